@@ -0,0 +1,237 @@
+/*
+ *
+ * $Id$
+ *
+ * Copyright (c) 2001 Sun Microsystems, Inc.  All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *
+ * 3. The end-user documentation included with the redistribution,
+ *    if any, must include the following acknowledgment:
+ *       "This product includes software developed by the
+ *       Sun Microsystems, Inc. for Project JXTA."
+ *    Alternately, this acknowledgment may appear in the software itself,
+ *    if and wherever such third-party acknowledgments normally appear.
+ *
+ * 4. The names "Sun", "Sun Microsystems, Inc.", "JXTA" and "Project JXTA"
+ *    must not be used to endorse or promote products derived from this
+ *    software without prior written permission. For written
+ *    permission, please contact Project JXTA at http://www.jxta.org.
+ *
+ * 5. Products derived from this software may not be called "JXTA",
+ *    nor may "JXTA" appear in their name, without prior written
+ *    permission of Sun.
+ *
+ * THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED.  IN NO EVENT SHALL SUN MICROSYSTEMS OR
+ * ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ * USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ * OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ *
+ * ====================================================================
+ *
+ * This software consists of voluntary contributions made by many
+ * individuals on behalf of Project JXTA.  For more
+ * information on Project JXTA, please see
+ * <http://www.jxta.org/>.
+ *
+ * This license is based on the BSD license adopted by the Apache Foundation.
+ */
+package net.jxta.impl.cm;
+
+import java.io.File;
+import java.util.Random;
+
+import net.jxta.id.IDFactory;
+import net.jxta.peergroup.PeerGroupID;
+import net.jxta.protocol.PipeAdvertisement;
+
+import net.jxta.impl.protocol.PipeAdv;
+import net.jxta.impl.util.TimeUtils;
+
+/**
+ * Measures discovery lookups on a {@link Cm} while another thread keeps
+ * saving advertisements, as SRDI pushes do. Each configuration is run
+ * against the cm as it is, where searches share a read lock, and with every
+ * call made while holding the cm, which is how the cm used to serialize
+ * all of its methods.
+ *
+ * <p/>The cm keeps its documents in a store in a temporary directory, as a
+ * peer group's cm does. It holds 40 pipe advertisements. Readers alternate
+ * exact name searches with wildcard searches returning up to 10
+ * advertisements. The writer saves one advertisement a millisecond.
+ *
+ * <p/>Compile against the classes built from <code>src</code> and run
+ * <code>net.jxta.impl.cm.CmBench</code> with a plain JVM. Scaling with the
+ * number of readers needs as many cores as readers.
+ */
+public class CmBench {
+
+    private static final String DN = "Adv";
+    private static final int ADVERTISEMENTS = 40;
+    private static final long DURATION = 2 * TimeUtils.ASECOND;
+
+    private static final int[] READERS = { 1, 4, 16 };
+
+    private static PipeAdvertisement[] advs = new PipeAdvertisement[ADVERTISEMENTS];
+
+    private static volatile boolean done;
+
+    public static void main(String[] args) throws Exception {
+        for (int eachAdv = 0; eachAdv < ADVERTISEMENTS; eachAdv++) {
+            advs[eachAdv] = (PipeAdvertisement) new PipeAdv.Instantiator().newInstance();
+            advs[eachAdv].setPipeID(IDFactory.newPipeID(PeerGroupID.defaultNetPeerGroupID));
+            advs[eachAdv].setName("pipe-" + eachAdv);
+            advs[eachAdv].setType("JxtaUnicast");
+        }
+
+        // warm up
+        run(4, false, false);
+        run(4, true, false);
+
+        for (int eachConfig = 0; eachConfig < READERS.length; eachConfig++) {
+            run(READERS[eachConfig], false, true);
+            run(READERS[eachConfig], true, true);
+        }
+    }
+
+    private static void run(int readerCount, final boolean monitor, boolean print) throws Exception {
+        File home = File.createTempFile("cmbench", "");
+
+        home.delete();
+        home.mkdirs();
+
+        final Cm cm = new Cm(home, false);
+
+        for (int eachAdv = 0; eachAdv < ADVERTISEMENTS; eachAdv++) {
+            cm.save(DN, advs[eachAdv].getID().getUniqueValue().toString(), advs[eachAdv]);
+        }
+
+        final long[] searches = new long[readerCount];
+        final long[] saves = new long[1];
+        Thread[] readers = new Thread[readerCount];
+
+        for (int eachReader = 0; eachReader < readerCount; eachReader++) {
+            final int reader = eachReader;
+
+            readers[eachReader] = new Thread(new Runnable() {
+                                                 public void run() {
+                                                     Random random = new Random(reader);
+
+                                                     while (!done) {
+                                                         int which = random.nextInt(ADVERTISEMENTS);
+                                                         int found;
+
+                                                         if (0 == (which & 1)) {
+                                                             found = search(cm, monitor, "pipe-" + which, 1);
+                                                         } else {
+                                                             found = search(cm, monitor, "pipe-" + (which / 10) + "*", 10);
+                                                         }
+
+                                                         if (0 == found) {
+                                                             throw new IllegalStateException("Nothing found");
+                                                         }
+
+                                                         searches[reader]++;
+                                                     }
+                                                 }
+                                             }, "reader " + eachReader);
+        }
+
+        Thread writer = new Thread(new Runnable() {
+                                       public void run() {
+                                           Random random = new Random(-1);
+
+                                           try {
+                                               while (!done) {
+                                                   PipeAdvertisement adv = advs[random.nextInt(ADVERTISEMENTS)];
+                                                   String fn = adv.getID().getUniqueValue().toString();
+
+                                                   if (monitor) {
+                                                       synchronized (cm) {
+                                                           cm.save(DN, fn, adv);
+                                                       }
+                                                   } else {
+                                                       cm.save(DN, fn, adv);
+                                                   }
+                                                   saves[0]++;
+
+                                                   Thread.sleep(1);
+                                               }
+                                           } catch (Exception failed) {
+                                               throw new IllegalStateException(failed.toString());
+                                           }
+                                       }
+                                   }, "writer");
+
+        done = false;
+
+        long start = TimeUtils.timeNow();
+
+        writer.start();
+        for (int eachReader = 0; eachReader < readerCount; eachReader++) {
+            readers[eachReader].start();
+        }
+
+        Thread.sleep(DURATION);
+
+        done = true;
+
+        writer.join();
+        for (int eachReader = 0; eachReader < readerCount; eachReader++) {
+            readers[eachReader].join();
+        }
+
+        long elapsed = TimeUtils.toRelativeTimeMillis(TimeUtils.timeNow(), start);
+        long total = 0;
+
+        for (int eachReader = 0; eachReader < readerCount; eachReader++) {
+            total += searches[eachReader];
+        }
+
+        cm.stop();
+        delete(home);
+
+        if (print) {
+            System.out.println(readerCount + " readers, " + (monitor ? "synchronized cm" : "read-write lock") + " : "
+                               + ((total * TimeUtils.ASECOND) / elapsed) + " searches/s, " + ((saves[0] * TimeUtils.ASECOND) / elapsed) + " saves/s");
+        }
+    }
+
+    private static int search(Cm cm, boolean monitor, String value, int threshold) {
+        if (monitor) {
+            synchronized (cm) {
+                return cm.search(DN, "Name", value, threshold, null).size();
+            }
+        }
+
+        return cm.search(DN, "Name", value, threshold, null).size();
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+
+        for (int eachChild = 0; (null != children) && (eachChild < children.length); eachChild++) {
+            delete(children[eachChild]);
+        }
+
+        file.delete();
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ *
+ * $Id$
+ *
+ * Copyright (c) 2001 Sun Microsystems, Inc.  All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *
+ * 3. The end-user documentation included with the redistribution,
+ *    if any, must include the following acknowledgment:
+ *       "This product includes software developed by the
+ *       Sun Microsystems, Inc. for Project JXTA."
+ *    Alternately, this acknowledgment may appear in the software itself,
+ *    if and wherever such third-party acknowledgments normally appear.
+ *
+ * 4. The names "Sun", "Sun Microsystems, Inc.", "JXTA" and "Project JXTA"
+ *    must not be used to endorse or promote products derived from this
+ *    software without prior written permission. For written
+ *    permission, please contact Project JXTA at http://www.jxta.org.
+ *
+ * 5. Products derived from this software may not be called "JXTA",
+ *    nor may "JXTA" appear in their name, without prior written
+ *    permission of Sun.
+ *
+ * THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED.  IN NO EVENT SHALL SUN MICROSYSTEMS OR
+ * ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ * USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ * OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ *
+ * ====================================================================
+ *
+ * This software consists of voluntary contributions made by many
+ * individuals on behalf of Project JXTA.  For more
+ * information on Project JXTA, please see
+ * <http://www.jxta.org/>.
+ *
+ * This license is based on the BSD license adopted by the Apache Foundation.
+ */
+package net.jxta.impl.endpoint;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+
+import net.jxta.document.MimeMediaType;
+import net.jxta.endpoint.ByteArrayMessageElement;
+import net.jxta.endpoint.Message;
+import net.jxta.endpoint.StringMessageElement;
+
+import net.jxta.impl.util.TimeUtils;
+
+/**
+ * Compares the in place buffer decoder of {@link WireFormatMessageBinary}
+ * with its stream decoder, in time and in bytes allocated per message.
+ *
+ * <p/>The message resembles an endpoint router message: a few short string
+ * elements in two namespaces and one 1KB payload. Allocation is read from
+ * the HotSpot thread MX bean, so run
+ * <code>net.jxta.impl.endpoint.DecoderBench</code> on a HotSpot JVM against
+ * the classes built from <code>src</code>.
+ */
+public class DecoderBench {
+
+    private static final MimeMediaType appMsg = new MimeMediaType("application/x-jxta-msg").intern();
+
+    private static final int MESSAGES = 200000;
+    private static final int RUNS = 5;
+
+    public static void main(String[] args) throws Exception {
+        byte[] frame = encode();
+        WireFormatMessageFactory.BufferInstantiator decoder = (WireFormatMessageFactory.BufferInstantiator) WireFormatMessageBinary.INSTANTIATOR;
+
+        System.out.println("message of " + frame.length + " bytes");
+
+        for (int eachRun = 0; eachRun < RUNS; eachRun++) {
+            long[] stream = decode(decoder, frame, false);
+            long[] buffer = decode(decoder, frame, true);
+
+            System.out.println("run " + eachRun + " : stream " + stream[0] + " ns/message " + stream[1] + " bytes/message, buffer "
+                               + buffer[0] + " ns/message " + buffer[1] + " bytes/message");
+        }
+    }
+
+    private static byte[] encode() throws Exception {
+        Message msg = new Message();
+        byte[] payload = new byte[1024];
+
+        for (int eachByte = 0; eachByte < payload.length; eachByte++) {
+            payload[eachByte] = (byte) eachByte;
+        }
+
+        msg.addMessageElement("jxta", new StringMessageElement("EndpointSourceAddress", "tcp://192.168.1.10:9701", null));
+        msg.addMessageElement("jxta", new StringMessageElement("EndpointDestinationAddress",
+                              "jxta://uuid-59616261646162614A787461503250335E8A1C0B0E7248B1A1C3A4B5C6D7E8F903/PipeService/urn:jxta:uuid-0001", null));
+        msg.addMessageElement("jxta", new StringMessageElement("EndpointRouterMsg", "<jxta:ERM><Dst>jxta://uuid-0001</Dst></jxta:ERM>", null));
+        msg.addMessageElement("app", new StringMessageElement("type", "photo", null));
+        msg.addMessageElement("app", new StringMessageElement("seq", "42", null));
+        msg.addMessageElement("app", new ByteArrayMessageElement("data", MimeMediaType.AOS, payload, null));
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+
+        WireFormatMessageBinary.INSTANTIATOR.toWire(msg, appMsg, null).sendToStream(bos);
+
+        return bos.toByteArray();
+    }
+
+    /**
+     * @return time in ns/message and allocation in bytes/message.
+     */
+    private static long[] decode(WireFormatMessageFactory.BufferInstantiator decoder, byte[] frame, boolean inPlace) throws Exception {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long self = Thread.currentThread().getId();
+        int elements = 0;
+
+        long allocatedBefore = threads.getThreadAllocatedBytes(self);
+        long start = TimeUtils.timeNow();
+
+        for (int eachMessage = 0; eachMessage < MESSAGES; eachMessage++) {
+            Message msg;
+
+            if (inPlace) {
+                msg = decoder.fromBuffer(ByteBuffer.wrap(frame), appMsg, null);
+            } else {
+                msg = decoder.fromWire(new ByteArrayInputStream(frame), appMsg, null);
+            }
+
+            Message.ElementIterator eachElement = msg.getMessageElements();
+
+            while (eachElement.hasNext()) {
+                eachElement.next();
+                elements++;
+            }
+        }
+
+        long elapsed = TimeUtils.toRelativeTimeMillis(TimeUtils.timeNow(), start);
+        long allocated = threads.getThreadAllocatedBytes(self) - allocatedBefore;
+
+        if (elements != 6 * MESSAGES) {
+            throw new IllegalStateException("Decoded " + elements + " elements");
+        }
+
+        return new long[] { (elapsed * 1000000L) / MESSAGES, allocated / MESSAGES };
+    }
+}
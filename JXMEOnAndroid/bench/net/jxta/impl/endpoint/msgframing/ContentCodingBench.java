@@ -0,0 +1,214 @@
+/*
+ *
+ * $Id$
+ *
+ * Copyright (c) 2001 Sun Microsystems, Inc.  All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *
+ * 3. The end-user documentation included with the redistribution,
+ *    if any, must include the following acknowledgment:
+ *       "This product includes software developed by the
+ *       Sun Microsystems, Inc. for Project JXTA."
+ *    Alternately, this acknowledgment may appear in the software itself,
+ *    if and wherever such third-party acknowledgments normally appear.
+ *
+ * 4. The names "Sun", "Sun Microsystems, Inc.", "JXTA" and "Project JXTA"
+ *    must not be used to endorse or promote products derived from this
+ *    software without prior written permission. For written
+ *    permission, please contact Project JXTA at http://www.jxta.org.
+ *
+ * 5. Products derived from this software may not be called "JXTA",
+ *    nor may "JXTA" appear in their name, without prior written
+ *    permission of Sun.
+ *
+ * THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED.  IN NO EVENT SHALL SUN MICROSYSTEMS OR
+ * ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ * USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ * OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ *
+ * ====================================================================
+ *
+ * This software consists of voluntary contributions made by many
+ * individuals on behalf of Project JXTA.  For more
+ * information on Project JXTA, please see
+ * <http://www.jxta.org/>.
+ *
+ * This license is based on the BSD license adopted by the Apache Foundation.
+ */
+package net.jxta.impl.endpoint.msgframing;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Random;
+
+import net.jxta.document.MimeMediaType;
+import net.jxta.endpoint.ByteArrayMessageElement;
+import net.jxta.endpoint.Message;
+import net.jxta.endpoint.StringMessageElement;
+
+import net.jxta.impl.endpoint.WireFormatMessage;
+import net.jxta.impl.endpoint.WireFormatMessageFactory;
+
+/**
+ * Measures what the <tt>deflate</tt> content coding of TCP messages costs
+ * and saves: the bytes of message body put on the wire with and without
+ * coding, and the CPU time spent coding and decoding each message.
+ *
+ * <p/>The messages carry discovery responses of 1, 4, 16 and 64 peer
+ * advertisements, which is the traffic coding is meant for, plus a 512 byte
+ * response that falls under the default 1024 byte threshold and 8KB of
+ * random bytes that do not compress. The coder is configured as a TCP
+ * connection configures it.
+ *
+ * <p/>Compile against the classes built from <code>src</code> and run
+ * <code>net.jxta.impl.endpoint.msgframing.ContentCodingBench</code> with a
+ * plain JVM.
+ */
+public class ContentCodingBench {
+
+    private static final MimeMediaType appMsg = new MimeMediaType("application/x-jxta-msg").intern();
+
+    private static final int THRESHOLD = 1024;
+    private static final int MAX_DECODED = 16 * 1024 * 1024;
+
+    private static final int ITERATIONS = 2000;
+
+    public static void main(String[] args) throws Exception {
+        Random random = new Random(42);
+        MessageContentCoder coder = new MessageContentCoder(THRESHOLD, MAX_DECODED);
+
+        // warm up
+        for (int eachRun = 0; eachRun < 3; eachRun++) {
+            measure(coder, responseMessage(random, 16), false);
+        }
+
+        measure(coder, smallMessage(), true);
+
+        int[] adCounts = { 1, 4, 16, 64 };
+
+        for (int eachCount = 0; eachCount < adCounts.length; eachCount++) {
+            measure(coder, responseMessage(random, adCounts[eachCount]), true);
+        }
+
+        byte[] noise = new byte[8 * 1024];
+
+        random.nextBytes(noise);
+
+        Message binary = new Message();
+
+        binary.addMessageElement("app", new ByteArrayMessageElement("data", MimeMediaType.AOS, noise, null));
+        measure(coder, binary, true);
+
+        coder.end();
+    }
+
+    private static Message smallMessage() {
+        Message msg = new Message();
+        StringBuffer response = new StringBuffer();
+
+        while (response.length() < 512) {
+            response.append("<jxta:DiscoveryResponse><Type>0</Type><Count>0</Count></jxta:DiscoveryResponse>");
+        }
+
+        msg.addMessageElement("jxta", new StringMessageElement("DiscoveryResponse", response.substring(0, 512), null));
+
+        return msg;
+    }
+
+    private static Message responseMessage(Random random, int adCount) {
+        StringBuffer response = new StringBuffer();
+
+        response.append("<?xml version=\"1.0\"?>\n<!DOCTYPE jxta:DiscoveryResponse>\n<jxta:DiscoveryResponse xmlns:jxta=\"http://jxta.org\">\n");
+        response.append("<Type>0</Type>\n<Count>").append(adCount).append("</Count>\n");
+
+        for (int eachAd = 0; eachAd < adCount; eachAd++) {
+            String peerId = uuid(random);
+
+            response.append("<Response Expiration=\"7200000\">\n");
+            response.append("&lt;?xml version=\"1.0\"?&gt;\n&lt;!DOCTYPE jxta:PA&gt;\n&lt;jxta:PA xmlns:jxta=\"http://jxta.org\"&gt;\n");
+            response.append("&lt;PID&gt;urn:jxta:uuid-59616261646162614A78746150325033").append(peerId).append("03&lt;/PID&gt;\n");
+            response.append("&lt;GID&gt;urn:jxta:jxta-NetGroup&lt;/GID&gt;\n");
+            response.append("&lt;Name&gt;peer-").append(Math.abs(random.nextInt() % 10000)).append("&lt;/Name&gt;\n");
+            response.append("&lt;Svc&gt;&lt;MCID&gt;urn:jxta:uuid-DEADBEEFDEAFBABAFEEDBABE0000000A05&lt;/MCID&gt;\n");
+            response.append("&lt;Parm&gt;&lt;jxta:TransportAdvertisement type=\"jxta:TCPTransportAdvertisement\"&gt;\n");
+            response.append("&lt;Protocol&gt;tcp&lt;/Protocol&gt;&lt;Port&gt;").append(9701 + (random.nextInt() & 0xFF)).append("&lt;/Port&gt;\n");
+            response.append("&lt;Server&gt;192.168.").append(random.nextInt() & 0xFF).append('.').append(random.nextInt() & 0xFF).append("&lt;/Server&gt;\n");
+            response.append("&lt;MulticastAddr&gt;224.0.1.85&lt;/MulticastAddr&gt;&lt;MulticastPort&gt;1234&lt;/MulticastPort&gt;\n");
+            response.append("&lt;/jxta:TransportAdvertisement&gt;&lt;/Parm&gt;&lt;/Svc&gt;\n");
+            response.append("&lt;/jxta:PA&gt;\n</Response>\n");
+        }
+
+        response.append("</jxta:DiscoveryResponse>\n");
+
+        Message msg = new Message();
+
+        msg.addMessageElement("jxta", new StringMessageElement("DiscoveryResponse", response.toString(), null));
+
+        return msg;
+    }
+
+    private static String uuid(Random random) {
+        StringBuffer uuid = new StringBuffer();
+
+        for (int eachDigit = 0; eachDigit < 32; eachDigit++) {
+            uuid.append(Character.toUpperCase(Character.forDigit(random.nextInt(16), 16)));
+        }
+
+        return uuid.toString();
+    }
+
+    private static void measure(MessageContentCoder coder, Message msg, boolean print) throws Exception {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        WireFormatMessage serialed = WireFormatMessageFactory.toWire(msg, appMsg, (MimeMediaType[]) null);
+        long length = serialed.getByteLength();
+        byte[] coded = null;
+
+        long started = threads.getCurrentThreadCpuTime();
+
+        for (int eachIteration = 0; eachIteration < ITERATIONS; eachIteration++) {
+            coded = coder.encode(serialed, length);
+        }
+
+        long encodeNanos = (threads.getCurrentThreadCpuTime() - started) / ITERATIONS;
+        long decodeNanos = 0;
+
+        if (null != coded) {
+            started = threads.getCurrentThreadCpuTime();
+
+            for (int eachIteration = 0; eachIteration < ITERATIONS; eachIteration++) {
+                if (coder.decode(MessageContentCoder.DEFLATE, coded, 0, coded.length).remaining() != length) {
+                    throw new IllegalStateException("Decoded length differs");
+                }
+            }
+
+            decodeNanos = (threads.getCurrentThreadCpuTime() - started) / ITERATIONS;
+        }
+
+        if (print) {
+            long wire = (null != coded) ? coded.length : length;
+
+            System.out.println(length + " byte message : " + wire + " bytes on the wire (" + ((wire * 100) / length) + "%), encode "
+                               + (encodeNanos / 1000) + " us CPU, decode " + (decodeNanos / 1000) + " us CPU"
+                               + ((null == coded) ? " (sent uncoded)" : ""));
+        }
+    }
+}
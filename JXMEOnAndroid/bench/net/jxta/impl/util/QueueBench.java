@@ -0,0 +1,247 @@
+/*
+ *
+ * $Id$
+ *
+ * Copyright (c) 2001 Sun Microsystems, Inc.  All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *
+ * 3. The end-user documentation included with the redistribution,
+ *    if any, must include the following acknowledgment:
+ *       "This product includes software developed by the
+ *       Sun Microsystems, Inc. for Project JXTA."
+ *    Alternately, this acknowledgment may appear in the software itself,
+ *    if and wherever such third-party acknowledgments normally appear.
+ *
+ * 4. The names "Sun", "Sun Microsystems, Inc.", "JXTA" and "Project JXTA"
+ *    must not be used to endorse or promote products derived from this
+ *    software without prior written permission. For written
+ *    permission, please contact Project JXTA at http://www.jxta.org.
+ *
+ * 5. Products derived from this software may not be called "JXTA",
+ *    nor may "JXTA" appear in their name, without prior written
+ *    permission of Sun.
+ *
+ * THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED.  IN NO EVENT SHALL SUN MICROSYSTEMS OR
+ * ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ * USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ * OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ *
+ * ====================================================================
+ *
+ * This software consists of voluntary contributions made by many
+ * individuals on behalf of Project JXTA.  For more
+ * information on Project JXTA, please see
+ * <http://www.jxta.org/>.
+ *
+ * This license is based on the BSD license adopted by the Apache Foundation.
+ */
+
+package net.jxta.impl.util;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compares {@link LockFreeQueue} with the synchronized {@link UnbiasedQueue}
+ * it replaces, with 1, 4 and 16 producers and a single consumer.
+ *
+ * <p/>Producers push with no timeout, so they wait while the queue is full,
+ * and the consumer pops with no timeout, as the pipe and socket queues are
+ * used. Each measurement runs in a JVM of its own, so that the code
+ * compiled for one queue does not favour or penalize the other. Each JVM
+ * runs warm-up iterations which are not counted, then measured iterations
+ * of a fixed number of messages. The figures are messages per millisecond,
+ * the mean over all the measured iterations of all the JVMs with its 99%
+ * confidence interval.
+ *
+ * <p/>Compile against the classes built from <code>src</code> and run
+ * <code>net.jxta.impl.util.QueueBench</code> with a plain JVM.
+ * <code>-Dforks</code>, <code>-Dwarmups</code>, <code>-Diterations</code>
+ * and <code>-Dcapacity</code> change the defaults of 3, 5, 10 and 100.
+ */
+public class QueueBench {
+
+    private static final int MESSAGES = 1000000;
+
+    /**
+     * Student's t for a 99% two sided interval, by degrees of freedom up to
+     * 30, beyond which the normal value is close enough.
+     */
+    private static final double[] T99 = {
+        63.657, 9.925, 5.841, 4.604, 4.032, 3.707, 3.499, 3.355, 3.250, 3.169,
+        3.106, 3.055, 3.012, 2.977, 2.947, 2.921, 2.898, 2.878, 2.861, 2.845,
+        2.831, 2.819, 2.807, 2.797, 2.787, 2.779, 2.771, 2.763, 2.756, 2.750
+    };
+
+    /**
+     * Keeps the popped elements reachable so the consumer loop can not be
+     * optimized away.
+     */
+    private static volatile Object sink;
+
+    public static void main(String[] args) throws Exception {
+        if ((args.length == 5) && "fork".equals(args[0])) {
+            fork(args[1], Integer.parseInt(args[2]), Integer.parseInt(args[3]), Integer.parseInt(args[4]));
+            return;
+        }
+
+        int forks = Integer.getInteger("forks", 3).intValue();
+        int capacity = Integer.getInteger("capacity", 100).intValue();
+        int[] producers = { 1, 4, 16 };
+        String[] queues = { "synchronized", "lockfree" };
+
+        System.out.println("capacity " + capacity + ", " + forks + " forks, messages/ms, mean +- 99% interval");
+
+        for (int eachProducers = 0; eachProducers < producers.length; eachProducers++) {
+            StringBuffer line = new StringBuffer();
+
+            line.append(producers[eachProducers]).append(" producers :");
+            for (int eachQueue = 0; eachQueue < queues.length; eachQueue++) {
+                List results = new ArrayList();
+
+                for (int eachFork = 0; eachFork < forks; eachFork++) {
+                    runFork(queues[eachQueue], producers[eachProducers], capacity, results);
+                }
+                line.append("  ").append(queues[eachQueue]).append(' ').append(summary(results));
+            }
+            System.out.println(line);
+        }
+    }
+
+    /**
+     * Runs one measurement in a new JVM and collects its iterations.
+     */
+    private static void runFork(String queue, int producers, int capacity, List results) throws Exception {
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        String[] command = {
+            java, "-cp", System.getProperty("java.class.path"),
+            "-Dwarmups=" + Integer.getInteger("warmups", 5),
+            "-Diterations=" + Integer.getInteger("iterations", 10),
+            QueueBench.class.getName(), "fork", queue,
+            Integer.toString(producers), Integer.toString(capacity), Integer.toString(MESSAGES)
+        };
+        Process process = Runtime.getRuntime().exec(command);
+        BufferedReader out = new BufferedReader(new InputStreamReader(process.getInputStream()));
+        String line;
+
+        while (null != (line = out.readLine())) {
+            results.add(Double.valueOf(line.trim()));
+        }
+        if (0 != process.waitFor()) {
+            throw new IllegalStateException("fork failed for " + queue + " with " + producers + " producers");
+        }
+    }
+
+    private static String summary(List results) {
+        int count = results.size();
+        double sum = 0;
+
+        for (int each = 0; each < count; each++) {
+            sum += ((Double) results.get(each)).doubleValue();
+        }
+
+        double mean = sum / count;
+        double squares = 0;
+
+        for (int each = 0; each < count; each++) {
+            double delta = ((Double) results.get(each)).doubleValue() - mean;
+
+            squares += delta * delta;
+        }
+
+        double error = (count > 1) ? t99(count - 1) * Math.sqrt(squares / (count - 1)) / Math.sqrt(count) : Double.NaN;
+
+        return format(mean) + " +- " + format(error);
+    }
+
+    private static double t99(int degrees) {
+        return (degrees <= T99.length) ? T99[degrees - 1] : 2.576;
+    }
+
+    private static String format(double value) {
+        return Long.toString(Math.round(value));
+    }
+
+    /**
+     * Body of a forked JVM : prints the messages per millisecond of each
+     * measured iteration, one per line.
+     */
+    private static void fork(String kind, int producers, int capacity, int messages) throws Exception {
+        int warmups = Integer.getInteger("warmups", 5).intValue();
+        int iterations = Integer.getInteger("iterations", 10).intValue();
+
+        for (int eachIteration = 0; eachIteration < warmups + iterations; eachIteration++) {
+            UnbiasedQueue queue = "lockfree".equals(kind)
+                                  ? (UnbiasedQueue) new LockFreeQueue(capacity, false)
+                                  : UnbiasedQueue.synchronizedQueue(new UnbiasedQueue(capacity, false));
+            double rate = run(queue, producers, messages);
+
+            if (eachIteration >= warmups) {
+                System.out.println(rate);
+            }
+        }
+    }
+
+    private static double run(final UnbiasedQueue queue, int producers, int messages) throws Exception {
+        final int perProducer = messages / producers;
+        Thread[] threads = new Thread[producers];
+
+        for (int eachProducer = 0; eachProducer < producers; eachProducer++) {
+            final Integer msg = new Integer(eachProducer);
+
+            threads[eachProducer] = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        for (int eachMsg = 0; eachMsg < perProducer; eachMsg++) {
+                            queue.push(msg, 0);
+                        }
+                    } catch (InterruptedException woken) {
+                        Thread.interrupted();
+                    }
+                }
+            }, "producer " + eachProducer);
+        }
+
+        long start = TimeUtils.timeNow();
+
+        for (int eachProducer = 0; eachProducer < producers; eachProducer++) {
+            threads[eachProducer].start();
+        }
+
+        int total = perProducer * producers;
+
+        for (int popped = 0; popped < total; popped++) {
+            sink = queue.pop(0);
+        }
+
+        long elapsed = TimeUtils.toRelativeTimeMillis(TimeUtils.timeNow(), start);
+
+        for (int eachProducer = 0; eachProducer < producers; eachProducer++) {
+            threads[eachProducer].join();
+        }
+
+        return (double) total / Math.max(1, elapsed);
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ *
+ * $Id$
+ *
+ * Copyright (c) 2001 Sun Microsystems, Inc.  All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *
+ * 3. The end-user documentation included with the redistribution,
+ *    if any, must include the following acknowledgment:
+ *       "This product includes software developed by the
+ *       Sun Microsystems, Inc. for Project JXTA."
+ *    Alternately, this acknowledgment may appear in the software itself,
+ *    if and wherever such third-party acknowledgments normally appear.
+ *
+ * 4. The names "Sun", "Sun Microsystems, Inc.", "JXTA" and "Project JXTA"
+ *    must not be used to endorse or promote products derived from this
+ *    software without prior written permission. For written
+ *    permission, please contact Project JXTA at http://www.jxta.org.
+ *
+ * 5. Products derived from this software may not be called "JXTA",
+ *    nor may "JXTA" appear in their name, without prior written
+ *    permission of Sun.
+ *
+ * THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED.  IN NO EVENT SHALL SUN MICROSYSTEMS OR
+ * ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ * USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ * OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ *
+ * ====================================================================
+ *
+ * This software consists of voluntary contributions made by many
+ * individuals on behalf of Project JXTA.  For more
+ * information on Project JXTA, please see
+ * <http://www.jxta.org/>.
+ *
+ * This license is based on the BSD license adopted by the Apache Foundation.
+ */
+package net.jxta.impl.util.pipe.reliable;
+
+import java.io.IOException;
+
+/**
+ * Measures the delayed ACK mode of {@link ReliableInputStream}: the number
+ * of ACK messages and the throughput when one ACK covers 1, 2 or 4 blocks.
+ * The simulated link has a 40ms round trip and the data is written in 1KB
+ * blocks.
+ *
+ * <p/>Compile against the classes built from <code>src</code> and run
+ * <code>net.jxta.impl.util.pipe.reliable.DelayedAckBench</code> with a
+ * plain JVM.
+ */
+public class DelayedAckBench {
+
+    public static void main(String[] args) throws Exception {
+        int[] ackEvery = { 1, 2, 4 };
+
+        for (int eachMode = 0; eachMode < ackEvery.length; eachMode++) {
+            report(ackEvery[eachMode]);
+        }
+
+        System.exit(0);
+    }
+
+    private static void report(final int ackEvery) throws Exception {
+        LoopbackTransfer transfer = new LoopbackTransfer() {
+            void configure(ReliableOutputStream ros, ReliableInputStream ris) throws IOException {
+                ris.setDelayedAck(ackEvery, (1 == ackEvery) ? 0 : 20);
+            }
+        };
+
+        transfer.delay = 20;
+        transfer.writeSize = 1024;
+        transfer.total = 3 * 1024 * 1024;
+
+        LoopbackTransfer.Result result = transfer.run(new AdaptiveFlowControl());
+
+        System.out.println("ackEvery=" + ackEvery + " : " + result.kbPerSecond(transfer.total) + " KB/s, " + result.elapsed + " ms, " +
+                           result.dataMessages + " data messages, " + result.ackMessages + " ACKs");
+    }
+}
@@ -0,0 +1,256 @@
+/*
+ *
+ * $Id$
+ *
+ * Copyright (c) 2001 Sun Microsystems, Inc.  All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *
+ * 3. The end-user documentation included with the redistribution,
+ *    if any, must include the following acknowledgment:
+ *       "This product includes software developed by the
+ *       Sun Microsystems, Inc. for Project JXTA."
+ *    Alternately, this acknowledgment may appear in the software itself,
+ *    if and wherever such third-party acknowledgments normally appear.
+ *
+ * 4. The names "Sun", "Sun Microsystems, Inc.", "JXTA" and "Project JXTA"
+ *    must not be used to endorse or promote products derived from this
+ *    software without prior written permission. For written
+ *    permission, please contact Project JXTA at http://www.jxta.org.
+ *
+ * 5. Products derived from this software may not be called "JXTA",
+ *    nor may "JXTA" appear in their name, without prior written
+ *    permission of Sun.
+ *
+ * THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED.  IN NO EVENT SHALL SUN MICROSYSTEMS OR
+ * ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ * USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ * OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ *
+ * ====================================================================
+ *
+ * This software consists of voluntary contributions made by many
+ * individuals on behalf of Project JXTA.  For more
+ * information on Project JXTA, please see
+ * <http://www.jxta.org/>.
+ *
+ * This license is based on the BSD license adopted by the Apache Foundation.
+ */
+package net.jxta.impl.util.pipe.reliable;
+
+import java.util.LinkedList;
+import java.util.Random;
+
+import java.io.IOException;
+
+import net.jxta.endpoint.Message;
+
+import net.jxta.impl.util.TimeUtils;
+
+/**
+ * One direction of a simulated link for the reliable stream benchmarks.
+ * Messages given to {@link #send(Message)} reach the receiver after a fixed
+ * one-way delay, delivered in order by a thread of the link. A fraction of
+ * the messages, chosen at random, is lost.
+ */
+class LoopbackLink implements Outgoing {
+
+    /**
+     * Where the messages of a link are delivered.
+     */
+    interface Receiver {
+        void recv(Message msg);
+    }
+
+    /**
+     * A message on its way.
+     */
+    private static class InFlight {
+        final long deliverAt;
+        final Message msg;
+
+        InFlight(long deliverAt, Message msg) {
+            this.deliverAt = deliverAt;
+            this.msg = msg;
+        }
+    }
+
+    private final String name;
+    private final long delay;
+    private final double loss;
+    private final Random random;
+
+    private final LinkedList inFlight = new LinkedList();
+
+    private Receiver receiver = null;
+    private boolean closed = false;
+    private long lastAccessed = TimeUtils.timeNow();
+
+    private int sent = 0;
+    private int lost = 0;
+
+    /**
+     * @param name  the name of the link and of its thread.
+     * @param delay the one-way delay in milliseconds.
+     * @param loss  the fraction of the messages which are lost.
+     * @param seed  the seed of the random losses, so that runs repeat.
+     */
+    LoopbackLink(String name, long delay, double loss, long seed) {
+        this.name = name;
+        this.delay = delay;
+        this.loss = loss;
+        this.random = new Random(seed);
+    }
+
+    /**
+     * Starts delivering messages to the receiver.
+     *
+     * @param receiver where the messages are delivered.
+     */
+    void start(Receiver receiver) {
+        this.receiver = receiver;
+
+        Thread deliverer = new Thread(new Runnable() {
+            public void run() {
+                deliver();
+            }
+        }, name);
+
+        deliverer.setDaemon(true);
+        deliverer.start();
+    }
+
+    /**
+     * @return the number of messages sent on the link, including the lost
+     * ones.
+     */
+    synchronized int getSent() {
+        return sent;
+    }
+
+    /**
+     * @return the number of messages lost by the link.
+     */
+    synchronized int getLost() {
+        return lost;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public synchronized boolean send(Message msg) throws IOException {
+        if (closed) {
+            throw new IOException("Link closed : " + name);
+        }
+
+        sent++;
+        lastAccessed = TimeUtils.timeNow();
+
+        if (random.nextDouble() < loss) {
+            lost++;
+            return true;
+        }
+
+        // The receiver takes elements out of the messages it gets.
+        inFlight.addLast(new InFlight(TimeUtils.toAbsoluteTimeMillis(delay), (Message) msg.clone()));
+        notifyAll();
+        return true;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public synchronized void close() {
+        closed = true;
+        inFlight.clear();
+        notifyAll();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public long getMinIdleReconnectTime() {
+        return 10 * TimeUtils.AMINUTE;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public long getIdleTimeout() {
+        return Long.MAX_VALUE;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public long getMaxRetryAge() {
+        return 2 * TimeUtils.AMINUTE;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public synchronized long getLastAccessed() {
+        return lastAccessed;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public synchronized void setLastAccessed(long time) {
+        lastAccessed = time;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public String toString() {
+        return "LoopbackLink " + name;
+    }
+
+    private void deliver() {
+        while (true) {
+            Message msg;
+
+            synchronized (this) {
+                while (!closed && (inFlight.isEmpty()
+                        || (((InFlight) inFlight.getFirst()).deliverAt > TimeUtils.timeNow()))) {
+                    long waitFor = inFlight.isEmpty() ? 0
+                            : TimeUtils.toRelativeTimeMillis(((InFlight) inFlight.getFirst()).deliverAt);
+
+                    try {
+                        wait(waitFor);
+                    } catch (InterruptedException woken) {
+                        Thread.interrupted();
+                    }
+                }
+
+                if (closed) {
+                    return;
+                }
+
+                msg = ((InFlight) inFlight.removeFirst()).msg;
+            }
+
+            receiver.recv(msg);
+        }
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ *
+ * $Id$
+ *
+ * Copyright (c) 2001 Sun Microsystems, Inc.  All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *
+ * 3. The end-user documentation included with the redistribution,
+ *    if any, must include the following acknowledgment:
+ *       "This product includes software developed by the
+ *       Sun Microsystems, Inc. for Project JXTA."
+ *    Alternately, this acknowledgment may appear in the software itself,
+ *    if and wherever such third-party acknowledgments normally appear.
+ *
+ * 4. The names "Sun", "Sun Microsystems, Inc.", "JXTA" and "Project JXTA"
+ *    must not be used to endorse or promote products derived from this
+ *    software without prior written permission. For written
+ *    permission, please contact Project JXTA at http://www.jxta.org.
+ *
+ * 5. Products derived from this software may not be called "JXTA",
+ *    nor may "JXTA" appear in their name, without prior written
+ *    permission of Sun.
+ *
+ * THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED.  IN NO EVENT SHALL SUN MICROSYSTEMS OR
+ * ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ * USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ * OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ *
+ * ====================================================================
+ *
+ * This software consists of voluntary contributions made by many
+ * individuals on behalf of Project JXTA.  For more
+ * information on Project JXTA, please see
+ * <http://www.jxta.org/>.
+ *
+ * This license is based on the BSD license adopted by the Apache Foundation.
+ */
+package net.jxta.impl.util.pipe.reliable;
+
+import java.io.IOException;
+
+import net.jxta.endpoint.Message;
+
+import net.jxta.impl.util.TimeUtils;
+
+/**
+ * A bulk transfer from a {@link ReliableOutputStream} to a
+ * {@link ReliableInputStream} over a pair of {@link LoopbackLink}s, one for
+ * the data and one for the ACKs.
+ */
+class LoopbackTransfer {
+
+    /**
+     * The outcome of a transfer.
+     */
+    static class Result {
+        long elapsed;
+        int dataMessages;
+        int ackMessages;
+        int lost;
+
+        /**
+         * @return the throughput in KB/s.
+         */
+        long kbPerSecond(int total) {
+            return (total * 1000L) / (1024L * Math.max(1, elapsed));
+        }
+    }
+
+    /**
+     * The one-way delay of the links in milliseconds.
+     */
+    long delay = 0;
+
+    /**
+     * The fraction of the data messages lost.
+     */
+    double loss = 0.0;
+
+    /**
+     * The size of each write.
+     */
+    int writeSize = 4096;
+
+    /**
+     * The number of bytes transferred.
+     */
+    int total = 1024 * 1024;
+
+    /**
+     * Runs one transfer.
+     *
+     * @param fc the flow control of the output stream.
+     * @return the outcome.
+     */
+    Result run(FlowControl fc) throws IOException, InterruptedException {
+        final LoopbackLink data = new LoopbackLink("data", delay, loss, 1);
+        final LoopbackLink acks = new LoopbackLink("acks", delay, 0.0, 2);
+        final ReliableOutputStream ros = new ReliableOutputStream(data, fc);
+        final ReliableInputStream ris = new ReliableInputStream(acks, 0);
+
+        data.start(new LoopbackLink.Receiver() {
+            public void recv(Message msg) {
+                ris.recv(msg);
+            }
+        });
+        acks.start(new LoopbackLink.Receiver() {
+            public void recv(Message msg) {
+                ros.recv(msg);
+            }
+        });
+
+        configure(ros, ris);
+
+        final int[] received = new int[1];
+        Thread reader = new Thread(new Runnable() {
+            public void run() {
+                byte[] buf = new byte[16 * 1024];
+
+                try {
+                    while (received[0] < total) {
+                        int got = ris.read(buf, 0, buf.length);
+
+                        if (got < 0) {
+                            break;
+                        }
+                        received[0] += got;
+                    }
+                } catch (IOException failed) {
+                    failed.printStackTrace();
+                }
+            }
+        }, "reader");
+
+        reader.start();
+
+        long start = TimeUtils.timeNow();
+        byte[] block = new byte[writeSize];
+
+        for (int written = 0; written < total; written += writeSize) {
+            ros.write(block, 0, Math.min(writeSize, total - written));
+        }
+        ros.flush();
+        reader.join();
+
+        Result result = new Result();
+
+        result.elapsed = TimeUtils.toRelativeTimeMillis(TimeUtils.timeNow(), start);
+        result.dataMessages = data.getSent();
+        result.ackMessages = acks.getSent();
+        result.lost = data.getLost();
+
+        if (received[0] < total) {
+            throw new IOException("Transfer ended after " + received[0] + " of " + total + " bytes");
+        }
+
+        ros.setClosing();
+        ris.close();
+        data.close();
+        acks.close();
+
+        return result;
+    }
+
+    /**
+     * Sets the options of the streams before the transfer starts.
+     */
+    void configure(ReliableOutputStream ros, ReliableInputStream ris) throws IOException {
+    }
+}
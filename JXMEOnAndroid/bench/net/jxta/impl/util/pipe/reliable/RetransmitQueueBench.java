@@ -0,0 +1,177 @@
+/*
+ *
+ * $Id$
+ *
+ * Copyright (c) 2001 Sun Microsystems, Inc.  All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *
+ * 3. The end-user documentation included with the redistribution,
+ *    if any, must include the following acknowledgment:
+ *       "This product includes software developed by the
+ *       Sun Microsystems, Inc. for Project JXTA."
+ *    Alternately, this acknowledgment may appear in the software itself,
+ *    if and wherever such third-party acknowledgments normally appear.
+ *
+ * 4. The names "Sun", "Sun Microsystems, Inc.", "JXTA" and "Project JXTA"
+ *    must not be used to endorse or promote products derived from this
+ *    software without prior written permission. For written
+ *    permission, please contact Project JXTA at http://www.jxta.org.
+ *
+ * 5. Products derived from this software may not be called "JXTA",
+ *    nor may "JXTA" appear in their name, without prior written
+ *    permission of Sun.
+ *
+ * THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED.  IN NO EVENT SHALL SUN MICROSYSTEMS OR
+ * ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ * USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ * OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ *
+ * ====================================================================
+ *
+ * This software consists of voluntary contributions made by many
+ * individuals on behalf of Project JXTA.  For more
+ * information on Project JXTA, please see
+ * <http://www.jxta.org/>.
+ *
+ * This license is based on the BSD license adopted by the Apache Foundation.
+ */
+package net.jxta.impl.util.pipe.reliable;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import net.jxta.impl.util.TimeUtils;
+
+/**
+ * Compares the ACK handling of {@link RetransmitQueue} with the
+ * <code>ArrayList</code> the retransmission queue used to be.
+ *
+ * <p/>The queue holds a window of 1,000 messages. Each ACK selectively
+ * acknowledges the 4 messages following the oldest one, then a cumulative
+ * ACK covers all 5, and 5 new messages refill the window. The ArrayList
+ * handling is the one <code>ackReceived()</code> used: a scan from the head
+ * for each SACK, and iterator removal for the cumulative ACK.
+ *
+ * <p/>Compile against the classes built from <code>src</code> and run
+ * <code>net.jxta.impl.util.pipe.reliable.RetransmitQueueBench</code> with a
+ * plain JVM.
+ */
+public class RetransmitQueueBench {
+
+    private static final int WINDOW = 1000;
+    private static final int SACKS = 4;
+    private static final int MESSAGES = 5000000;
+    private static final int RUNS = 5;
+
+    /**
+     * An entry of the ArrayList queue.
+     */
+    private static class Entry {
+        final int seqnum;
+
+        Entry(int seqnum) {
+            this.seqnum = seqnum;
+        }
+    }
+
+    public static void main(String[] args) {
+        for (int eachRun = 0; eachRun < RUNS; eachRun++) {
+            long list = listQueue();
+            long ring = ringQueue();
+
+            System.out.println("run " + eachRun + " : ArrayList " + list + " ns/message, ring " + ring + " ns/message");
+        }
+    }
+
+    private static long listQueue() {
+        List queue = new ArrayList(WINDOW);
+        int next = 1;
+
+        while (next <= WINDOW) {
+            queue.add(new Entry(next++));
+        }
+
+        long start = TimeUtils.timeNow();
+
+        for (int acked = 0; acked < MESSAGES; acked += SACKS + 1) {
+            int hole = ((Entry) queue.get(0)).seqnum;
+
+            for (int eachSack = 1; eachSack <= SACKS; eachSack++) {
+                Iterator eachEntry = queue.iterator();
+
+                while (eachEntry.hasNext()) {
+                    if (((Entry) eachEntry.next()).seqnum == hole + eachSack) {
+                        eachEntry.remove();
+                        break;
+                    }
+                }
+            }
+
+            Iterator eachEntry = queue.iterator();
+
+            while (eachEntry.hasNext()) {
+                if (((Entry) eachEntry.next()).seqnum > hole + SACKS) {
+                    break;
+                }
+                eachEntry.remove();
+            }
+
+            while (queue.size() < WINDOW) {
+                queue.add(new Entry(next++));
+            }
+        }
+
+        return (TimeUtils.toRelativeTimeMillis(TimeUtils.timeNow(), start) * 1000000L) / MESSAGES;
+    }
+
+    private static long ringQueue() {
+        RetransmitQueue queue = new RetransmitQueue(WINDOW);
+        int next = 1;
+
+        while (next <= WINDOW) {
+            queue.add(next, new Entry(next));
+            next++;
+        }
+
+        long start = TimeUtils.timeNow();
+
+        for (int acked = 0; acked < MESSAGES; acked += SACKS + 1) {
+            int hole = queue.first();
+
+            for (int eachSack = 1; eachSack <= SACKS; eachSack++) {
+                queue.remove(hole + eachSack);
+            }
+
+            while (!queue.isEmpty() && (queue.first() <= hole + SACKS)) {
+                queue.remove(queue.first());
+            }
+
+            while (queue.size() < WINDOW) {
+                queue.add(next, new Entry(next));
+                next++;
+            }
+        }
+
+        return (TimeUtils.toRelativeTimeMillis(TimeUtils.timeNow(), start) * 1000000L) / MESSAGES;
+    }
+}
@@ -60,6 +60,7 @@ package net.jxta.endpoint;
 import java.io.IOException;
 import java.io.InterruptedIOException;
 import net.jxta.peergroup.PeerGroupID;
+import net.jxta.impl.util.LockFreeQueue;
 import net.jxta.impl.util.UnbiasedQueue;
 
 import org.apache.log4j.Level;
@@ -210,7 +211,7 @@ public abstract class AsyncChannelMessenger extends ChannelMessenger {
 
         stateMachine = new AsyncChannelMessengerState(connected);
 
-        queue = new UnbiasedQueue(queueSize, false);
+        queue = new LockFreeQueue(queueSize, false);
 
         // We synchronize our state with the sharedMessenger's stateMachine. Logic would dictate that we pass it to super(),
         // but it is not itself constructed until super() returns. No way around it.
@@ -503,16 +504,42 @@ public abstract class AsyncChannelMessenger extends ChannelMessenger {
         return theMsg;
     }
 
+    /**
+     * Returns the messages at the head of the queue, without removing them. Unlike {@link #peek()}, this has no effect on the
+     * state: it is meant to look beyond a message that peek() has already returned.
+     *
+     * @param max the maximum number of messages to return.
+     * @return the messages, possibly none.
+     */
+    protected PendingMessage[] peekMulti(int max) {
+        Object[] msgs;
+        synchronized(stateMachine) {
+            msgs = queue.peekMulti(max);
+        }
+        PendingMessage[] result = new PendingMessage[msgs.length];
+        System.arraycopy(msgs, 0, result, 0, msgs.length);
+        return result;
+    }
+
     /**
      * One message done. Update the saturated/etc state accordingly.
      * @return true if there are more messages after the one we poped.
      */
     protected boolean pop() {
+        return pop(1);
+    }
+
+    /**
+     * Some messages done. Update the saturated/etc state accordingly.
+     * @param count the number of messages done.
+     * @return true if there are more messages after the ones we poped.
+     */
+    protected boolean pop(int count) {
 
         boolean result;
         int action = ACTION_NONE;
         synchronized(stateMachine) {
-            queue.pop();
+            queue.popMulti(count);
 
             if (queue.peek() == null) {
                 stateMachine.idleEvent();
@@ -172,7 +172,7 @@ public abstract class ChannelMessenger extends AbstractMessenger implements Mess
         // business. It should be specified by the app as part of the destination address. What we're doing here
         // is simply enforcing what could just be a convention.
 
-        super(baseAddress);
+        super(new EndpointAddress(baseAddress, origService, origServiceParam));
         if (groupRedirection == null) {
             insertedService = null;
         } else {
@@ -181,11 +181,8 @@ public abstract class ChannelMessenger extends AbstractMessenger implements Mess
         this.origService = origService;
         this.origServiceParam = origServiceParam;
 
-        // Now that we're initialized enough, grab the destination addr from our superclass and fix it.  We add the service and
-        // param; NOT the group mangling: getDestinationAddress[Object]() should always return what was given at construction.
-        EndpointAddress dest = getDestinationAddressObject();
-        dest.setServiceName(origService);
-        dest.setServiceParameter(origServiceParam);
+        // The destination given to our superclass already carries the service and param; NOT the group mangling:
+        // getDestinationAddress[Object]() should always return what was given at construction.
     }
 
     /**
@@ -57,7 +57,6 @@
 
 package net.jxta.endpoint;
 
-import java.lang.ref.SoftReference;
 import java.net.URI;
 
 import java.io.UnsupportedEncodingException;
@@ -66,6 +65,7 @@ import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
 
 import net.jxta.id.ID;
+import net.jxta.impl.util.Cache;
 
 /**
  * Describes a destination to which JXTA messages may be sent. This may be:
@@ -151,30 +151,50 @@ public class EndpointAddress {
     private String serviceParam = null;
 
     /**
-     *  number of modifications since initial creation. used in caching of
-     *  string representation and hashCode.
+     *  Default maximum number of addresses kept by {@link #intern(String)}.
      */
-    private transient volatile int modcount = 0;
+    private static final int DEFAULT_INTERN_CACHE_SIZE = 512;
 
     /**
-     *  mod count at last hash code calc
+     *  Canonical, unmodifiable addresses keyed by both the string they were
+     *  parsed from and their canonical string form.
      */
-    private transient int modAtLastHashCalc = -1;
+    private static final Cache internCache;
+
+    static {
+        int internCacheSize = DEFAULT_INTERN_CACHE_SIZE;
+
+        try {
+            String size = System.getProperty("net.jxta.endpoint.EndpointAddress.internCacheSize");
+
+            if (size != null) {
+                internCacheSize = Integer.parseInt(size);
+            }
+        } catch (Exception e) {
+            if (LOG.isEnabledFor(Level.WARN)) {
+                LOG.warn("Could not parse system property: net.jxta.endpoint.EndpointAddress.internCacheSize");
+            }
+            // Keep the defaults
+        }
+
+        internCache = new Cache(Math.max(internCacheSize, 2), null);
+    }
 
     /**
-     *  cached calculated hash code.
+     *  cached calculated hash code. 0 means not yet calculated; a calculated
+     *  hash is never 0.
      */
-    private transient int cachedHashCode = 0;
+    private transient volatile int cachedHashCode = 0;
 
     /**
-     *  mod count at last string representation creation.
+     *  cached copy of string representation.
      */
-    private transient int modAtLastStringCalc = -1;
+    private transient volatile String cachedToString = null;
 
     /**
-     *  cached copy of string representation.
+     *  cached copy of URI representation.
      */
-    private transient SoftReference cachedToString = null;
+    private transient volatile URI cachedURI = null;
 
     /**
      *  Returns an unmodifiable copy of the specified EndpointAddress. This
@@ -194,6 +214,10 @@ public class EndpointAddress {
             super.setProtocolAddress(address.getProtocolAddress());
             super.setServiceName(address.getServiceName());
             super.setServiceParameter(address.getServiceParameter());
+
+            // Nothing can change any more; compute the cached forms once.
+            hashCode();
+            toString();
         }
 
         /**
@@ -243,6 +267,53 @@ public class EndpointAddress {
         return new EndpointAddress.UnmodifiableEndpointAddress(address);
     }
 
+    /**
+     *  Returns the canonical, unmodifiable address for the provided string.
+     *  Recently used addresses are kept in a bounded cache so that addresses
+     *  which are parsed repeatedly, such as the source and destination of
+     *  incoming messages, are parsed once and share their hash code, string
+     *  and URI forms.
+     *
+     *  <p/>The returned address must not be modified. Use
+     *  {@link #EndpointAddress(EndpointAddress,String,String)} to derive a
+     *  different address from it.
+     *
+     *  @param address the string representation of the address.
+     *  @return the canonical unmodifiable address.
+     */
+    public static EndpointAddress intern(String address) {
+        if(address == null) {
+            throw new IllegalArgumentException("address must not be null");
+        }
+
+        synchronized(internCache) {
+            EndpointAddress result = (EndpointAddress) internCache.get(address);
+
+            if(null != result) {
+                return result;
+            }
+        }
+
+        // Parse outside of the lock.
+        EndpointAddress parsed = new UnmodifiableEndpointAddress(new EndpointAddress(address));
+        String canonical = parsed.toString();
+
+        synchronized(internCache) {
+            EndpointAddress result = (EndpointAddress) internCache.get(canonical);
+
+            if(null == result) {
+                result = parsed;
+                internCache.put(canonical, result);
+            }
+
+            if(!canonical.equals(address)) {
+                internCache.put(address, result);
+            }
+
+            return result;
+        }
+    }
+
     /**
      * Builds an empty (invalid) Endpoint Address.
      *
@@ -400,35 +471,34 @@ public class EndpointAddress {
     /**
      * {@inheritDoc}
      */
-    public synchronized int hashCode() {
-        if(modcount != modAtLastHashCalc) {
+    public int hashCode() {
+        int result = cachedHashCode;
+
+        if(0 == result) {
             if((null == protocol) || (null == protocolAddress)) {
                 throw new IllegalStateException("Corrupt EndpointAddress, protocol or address is null");
             }
 
-            cachedHashCode = protocol.toLowerCase().hashCode();
-            cachedHashCode += protocolAddress.hashCode() * 5741;   // a prime
-            cachedHashCode += ((service != null) ? service.hashCode() : 1) * 7177; // a prime
-            cachedHashCode += ((serviceParam != null) ? serviceParam.hashCode() : 1) * 6733; // a prime
+            result = protocol.toLowerCase().hashCode();
+            result += protocolAddress.hashCode() * 5741;   // a prime
+            result += ((service != null) ? service.hashCode() : 1) * 7177; // a prime
+            result += ((serviceParam != null) ? serviceParam.hashCode() : 1) * 6733; // a prime
 
-            cachedHashCode = (0 == cachedHashCode) ? 1 : cachedHashCode;
-            modAtLastHashCalc = modcount;
+            result = (0 == result) ? 1 : result;
+            cachedHashCode = result;
         }
 
-        return cachedHashCode;
+        return result;
     }
 
     /**
      * {@inheritDoc}
      */
-    public synchronized String toString() {
-        String result;
-
-        if((modcount == modAtLastStringCalc) && (null != cachedToString)) {
-            result = (String) cachedToString.get();
+    public String toString() {
+        String result = cachedToString;
 
-            if (null != result)
-                return result;
+        if(null != result) {
+            return result;
         }
 
         if((null == protocol) || (null == protocolAddress)) {
@@ -463,8 +533,7 @@ public class EndpointAddress {
 
         result = newResult.toString();
 
-        cachedToString = new SoftReference(result);
-        modAtLastStringCalc = modcount;
+        cachedToString = result;
 
         return result;
     }
@@ -475,7 +544,14 @@ public class EndpointAddress {
      *  @return a URI which represents the endpoint address.
      */
     public URI toURI() {
-        return URI.create(toString());
+        URI result = cachedURI;
+
+        if(null == result) {
+            result = URI.create(toString());
+            cachedURI = result;
+        }
+
+        return result;
     }
 
     /**
@@ -572,8 +648,7 @@ public class EndpointAddress {
         }
 
         protocol = name;
-        modcount++;
-        cachedToString = null;
+        invalidate();
     }
 
     /**
@@ -593,8 +668,7 @@ public class EndpointAddress {
         }
 
         protocolAddress = address;
-        modcount++;
-        cachedToString = null;
+        invalidate();
     }
 
     /**
@@ -607,7 +681,7 @@ public class EndpointAddress {
     public synchronized void setServiceName(String name) {
         if (null == name) {
             service = null;
-            modcount++;
+            invalidate();
             return;
         }
 
@@ -616,8 +690,7 @@ public class EndpointAddress {
         }
 
         service = name;
-        modcount++;
-        cachedToString = null;
+        invalidate();
     }
 
     /**
@@ -630,13 +703,21 @@ public class EndpointAddress {
     public synchronized void setServiceParameter(String param) {
         if(null == param) {
             serviceParam = null;
-            modcount++;
+            invalidate();
             return;
         }
 
         serviceParam = param;
-        modcount++;
+        invalidate();
+    }
+
+    /**
+     *  Discards the cached hash code, string and URI forms after a change.
+     */
+    private void invalidate() {
+        cachedHashCode = 0;
         cachedToString = null;
+        cachedURI = null;
     }
 
     /**
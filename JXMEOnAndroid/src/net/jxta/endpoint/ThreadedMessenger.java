@@ -108,6 +108,11 @@ public abstract class ThreadedMessenger extends AbstractMessenger implements Run
      */
     private static final long THREAD_IDLE_DEAD = 4 * TimeUtils.ASECOND;
 
+    /**
+     * The most messages of a channel handed to the implementation in one burst.
+     */
+    private static final int MAX_BURST = 16;
+
     /*
      * Actions that we defer to after returning from event methods. In other words,
      * they cannot be done with the lock held, or they require calling more event methods.
@@ -459,8 +464,31 @@ public abstract class ThreadedMessenger extends AbstractMessenger implements Run
             String currentService = theMsg.service;
             String currentParam = theMsg.param;
 
+            // The messages queued right behind this one for the same service and param go along with it, as one burst. A
+            // message which already failed once goes alone, so that it is the one bounced if it fails again.
+            Message[] burst = null;
+            if (theMsg.failure == null) {
+                AsyncChannelMessenger.PendingMessage[] queued = theChannel.peekMulti(MAX_BURST);
+                int count = 0;
+                while ((count < queued.length) && (queued[count].failure == null)
+                       && sameTarget(queued[count], theMsg)) {
+                    count++;
+                }
+                if ((count > 1) && (queued[0] == theMsg)) {
+                    burst = new Message[count];
+                    for (int eachMsg = 0; eachMsg < count; eachMsg++) {
+                        burst[eachMsg] = queued[eachMsg].msg;
+                    }
+                }
+            }
+
+            int sent = 1;
             try {
-                sendMessageBImpl(currentMsg, currentService, currentParam);
+                if (burst != null) {
+                    sent = sendMessagesBImpl(burst, currentService, currentParam);
+                } else {
+                    sendMessageBImpl(currentMsg, currentService, currentParam);
+                }
             } catch(Throwable any) {
 
                 // When the current message fails, we leave it inthere. sendMessageBImpl does not report failures. So that we can retry if
@@ -482,10 +510,11 @@ public abstract class ThreadedMessenger extends AbstractMessenger implements Run
             }
 
 
-            // Worked. Remove the message, Rotate the queues, get the next message from the next queue.
+            // Worked. Remove the messages, Rotate the queues, get the next message from the next queue. If only part of a
+            // burst was sent, the rest is still at the head of the queue.
             synchronized(stateMachine) {
 
-                theChannel.pop();
+                theChannel.pop(sent);
 
                 // Things are quite a bit simpler if there's a single still active channel, and it's frequent, so it's worth checking.
                 boolean empty = (theChannel.peek() == null);
@@ -517,6 +546,14 @@ public abstract class ThreadedMessenger extends AbstractMessenger implements Run
     }
 
 
+    /**
+     * Tells whether two queued messages go to the same service and param.
+     */
+    private static boolean sameTarget(AsyncChannelMessenger.PendingMessage one, AsyncChannelMessenger.PendingMessage other) {
+        return ((one.service == null) ? (other.service == null) : one.service.equals(other.service))
+               && ((one.param == null) ? (other.param == null) : one.param.equals(other.param));
+    }
+
     /**
      * Performs the ACTION_CONNECT deferred action. Generates a down event if it does not work.
      */
@@ -737,6 +774,27 @@ public abstract class ThreadedMessenger extends AbstractMessenger implements Run
      */
     protected abstract void sendMessageBImpl(Message msg, String service, String param) throws IOException;
 
+    /**
+     * Sends messages as one burst through underlying connection. By default they are sent one at a time with
+     * sendMessageBImpl; implementations which can hand them to the transport together override this.
+     *
+     * @return the number of messages sent, from the first. If less than all, sending the next one failed.
+     * @throws IOException if the first message could not be sent.
+     */
+    protected int sendMessagesBImpl(Message[] msgs, String service, String param) throws IOException {
+        for (int eachMsg = 0; eachMsg < msgs.length; eachMsg++) {
+            try {
+                sendMessageBImpl(msgs[eachMsg], service, param);
+            } catch(IOException failed) {
+                if (eachMsg == 0) {
+                    throw failed;
+                }
+                return eachMsg;
+            }
+        }
+        return msgs.length;
+    }
+
     /**
      * Obtain the logical destination address from the implementer (which likely gets it from the transport messenger).
      * Might not work if unresolved, so use with care.
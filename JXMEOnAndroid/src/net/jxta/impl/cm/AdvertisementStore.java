@@ -0,0 +1,795 @@
+/*
+ *
+ * $Id$
+ *
+ * Copyright (c) 2001 Sun Microsystems, Inc.  All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *
+ * 3. The end-user documentation included with the redistribution,
+ *    if any, must include the following acknowledgment:
+ *       "This product includes software developed by the
+ *       Sun Microsystems, Inc. for Project JXTA."
+ *    Alternately, this acknowledgment may appear in the software itself,
+ *    if and wherever such third-party acknowledgments normally appear.
+ *
+ * 4. The names "Sun", "Sun Microsystems, Inc.", "JXTA" and "Project JXTA"
+ *    must not be used to endorse or promote products derived from this
+ *    software without prior written permission. For written
+ *    permission, please contact Project JXTA at http://www.jxta.org.
+ *
+ * 5. Products derived from this software may not be called "JXTA",
+ *    nor may "JXTA" appear in their name, without prior written
+ *    permission of Sun.
+ *
+ * THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED.  IN NO EVENT SHALL SUN MICROSYSTEMS OR
+ * ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ * USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ * OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ *
+ * ====================================================================
+ *
+ * This software consists of voluntary contributions made by many
+ * individuals on behalf of Project JXTA.  For more
+ * information on Project JXTA, please see
+ * <http://www.jxta.org/>.
+ *
+ * This license is based on the BSD license adopted by the Apache Foundation.
+ */
+package net.jxta.impl.cm;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import java.io.IOException;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+import net.jxta.impl.util.TimeUtils;
+
+/**
+ * A disk backed store of advertisements for {@link Cm}.
+ *
+ * <p/>Advertisements are kept in a single append-only log file. Each save
+ * appends a record containing the directory and file name, the lifetime and
+ * expiration, the index attributes and the advertisement document. Each
+ * remove appends a tombstone. Every record is followed by a CRC32 of its
+ * contents.
+ *
+ * <p/>When the store is opened the log is scanned to rebuild the in memory
+ * index. Only the record headers are read, the documents stay on disk until
+ * they are asked for. A torn record at the end of the log, from a crash part
+ * way through a write, is detected by its length or CRC and cut off.
+ *
+ * <p/>Superseded, removed and expired records are dead space. When the dead
+ * space outgrows the live records the log is compacted by copying the live
+ * records to a new file which then replaces the old one. Compaction is not
+ * done by the changes themselves but by {@link #maintain()}, so that the
+ * caller can do it outside of its own locks.
+ */
+final class AdvertisementStore {
+
+    /**
+     * Log4J Logger
+     */
+    private final static Logger LOG = Logger.getLogger(AdvertisementStore.class.getName());
+
+    /**
+     * The log file signature, "JXCM".
+     */
+    private final static int MAGIC = 0x4A58434D;
+
+    private final static byte VERSION = 1;
+
+    /**
+     * The length of the log file header.
+     */
+    private final static int HEADER_LENGTH = 5;
+
+    private final static byte PUT = 1;
+    private final static byte REMOVE = 2;
+
+    /**
+     * Logs smaller than this are never compacted.
+     */
+    private final static long MIN_COMPACT_SIZE = 64 * 1024;
+
+    /**
+     * Expired records are looked for after this many changes.
+     */
+    private final static int SWEEP_INTERVAL = 128;
+
+    /**
+     * The location of an advertisement in the log.
+     */
+    static final class Entry {
+        final String dn;
+        final String fn;
+
+        /**
+         * Absolute time at which the advertisement expires locally.
+         */
+        final long lifetime;
+
+        /**
+         * Duration for which others may cache the advertisement.
+         */
+        final long expiration;
+
+        /**
+         * The index attributes of the advertisement.
+         */
+        final Map indexables;
+
+        /**
+         * Position of the record, including its length prefix, in the log.
+         */
+        long recordOffset;
+
+        /**
+         * Length of the record including its length prefix and CRC.
+         */
+        int recordLength;
+
+        /**
+         * Position of the document within the record.
+         */
+        int docOffset;
+
+        /**
+         * Length of the document.
+         */
+        int docLength;
+
+        Entry(String dn, String fn, long lifetime, long expiration, Map indexables) {
+            this.dn = dn;
+            this.fn = fn;
+            this.lifetime = lifetime;
+            this.expiration = expiration;
+            this.indexables = indexables;
+        }
+    }
+
+    private final File file;
+
+    private final File compactFile;
+
+    /**
+     * The previous log while a compacted log is being put in its place, on
+     * platforms which cannot rename over an existing file.
+     */
+    private final File oldFile;
+
+    private RandomAccessFile log;
+
+    /**
+     * Map of directory name to a map of file name to {@link Entry}.
+     */
+    private final Map dirs = new HashMap();
+
+    /**
+     * Total length of the live records.
+     */
+    private long liveBytes = 0;
+
+    /**
+     * Changes since we last looked for expired records.
+     */
+    private int changes = 0;
+
+    /**
+     * Opens the store in the specified directory, creating it if required.
+     *
+     * @param home the directory in which the store is kept.
+     * @throws IOException if the store cannot be opened.
+     */
+    AdvertisementStore(File home) throws IOException {
+        if (!home.isDirectory() && !home.mkdirs()) {
+            throw new IOException("Could not create store directory " + home);
+        }
+
+        file = new File(home, "advertisements.log");
+        compactFile = new File(home, "advertisements.log.compact");
+        oldFile = new File(home, "advertisements.log.old");
+
+        if (!file.exists()) {
+            if (compactFile.exists()) {
+                // Interrupted between moving the original aside and renaming
+                // the compacted log, which was complete and synced.
+                compactFile.renameTo(file);
+            } else if (oldFile.exists()) {
+                oldFile.renameTo(file);
+            }
+        }
+
+        // Whatever is left is from an interrupted compaction and the log is
+        // intact without it.
+        compactFile.delete();
+        oldFile.delete();
+
+        log = new RandomAccessFile(file, "rw");
+
+        if (log.length() < HEADER_LENGTH) {
+            log.setLength(0);
+            log.writeInt(MAGIC);
+            log.writeByte(VERSION);
+        } else {
+            if (log.readInt() != MAGIC || log.readByte() != VERSION) {
+                log.close();
+                throw new IOException("Not an advertisement store " + file);
+            }
+
+            recover();
+        }
+
+        sweepExpired();
+        compactIfNeeded();
+    }
+
+    /**
+     * Compacts the log if enough of it is dead space. May take a while, so
+     * callers should not hold any lock other readers need.
+     *
+     * @throws IOException if the log could not be compacted. The store is
+     * still usable.
+     */
+    synchronized void maintain() throws IOException {
+        if (null == log) {
+            return;
+        }
+
+        compactIfNeeded();
+    }
+
+    /**
+     * Rebuilds the index from the log, reading only the record headers.
+     */
+    private void recover() throws IOException {
+        long length = log.length();
+        long offset = HEADER_LENGTH;
+        int records = 0;
+
+        while (offset < length) {
+            if (offset + 4 > length) {
+                break;
+            }
+
+            log.seek(offset);
+
+            int bodyLength = log.readInt();
+            long recordEnd = offset + 4 + bodyLength + 4;
+
+            if ((bodyLength <= 0) || (recordEnd > length)) {
+                break;
+            }
+
+            // The final record may have been torn by a crash, check all of it.
+            if ((recordEnd == length) && !checkRecord(offset, bodyLength)) {
+                break;
+            }
+
+            Entry entry;
+            try {
+                entry = readHeader(offset, bodyLength);
+            } catch (IOException corrupt) {
+                if (LOG.isEnabledFor(Level.WARN)) {
+                    LOG.warn("Corrupt record at " + offset + " in " + file, corrupt);
+                }
+                break;
+            }
+
+            if (null == entry) {
+                // tombstone, the header has been applied.
+            } else {
+                putEntry(entry);
+            }
+
+            records++;
+            offset = recordEnd;
+        }
+
+        if (offset < length) {
+            if (LOG.isEnabledFor(Level.WARN)) {
+                LOG.warn("Truncating " + (length - offset) + " bytes of incomplete records from " + file);
+            }
+            log.setLength(offset);
+        }
+
+        if (LOG.isEnabledFor(Level.INFO)) {
+            LOG.info("Recovered " + records + " records from " + file);
+        }
+    }
+
+    /**
+     * Reads the header of the record at the specified position. Tombstones
+     * are applied and return <code>null</code>.
+     */
+    private Entry readHeader(long offset, int bodyLength) throws IOException {
+        log.seek(offset + 4);
+
+        byte type = log.readByte();
+        String dn = log.readUTF();
+        String fn = log.readUTF();
+
+        if (REMOVE == type) {
+            removeEntry(dn, fn);
+            return null;
+        }
+
+        if (PUT != type) {
+            throw new IOException("Unknown record type " + type);
+        }
+
+        long lifetime = log.readLong();
+        long expiration = log.readLong();
+        int indexCount = log.readShort();
+        Map indexables = new HashMap(indexCount * 2);
+
+        for (int eachIndex = 0; eachIndex < indexCount; eachIndex++) {
+            String key = log.readUTF();
+            String value = log.readUTF();
+
+            indexables.put(key, value);
+        }
+
+        Entry entry = new Entry(dn, fn, lifetime, expiration, indexables);
+
+        entry.docLength = log.readInt();
+        entry.docOffset = (int) (log.getFilePointer() - offset);
+        entry.recordOffset = offset;
+        entry.recordLength = 4 + bodyLength + 4;
+
+        if (entry.docOffset + entry.docLength + 4 != entry.recordLength) {
+            throw new IOException("Inconsistent record length");
+        }
+
+        return entry;
+    }
+
+    /**
+     * Verifies the CRC of the record at the specified position.
+     */
+    private boolean checkRecord(long offset, int bodyLength) throws IOException {
+        byte [] body = new byte[bodyLength];
+
+        log.seek(offset + 4);
+        log.readFully(body);
+
+        CRC32 crc = new CRC32();
+
+        crc.update(body);
+
+        return ((int) crc.getValue()) == log.readInt();
+    }
+
+    /**
+     * Stores an advertisement.
+     *
+     * @param dn directory name
+     * @param fn file name
+     * @param doc the advertisement document
+     * @param indexables the index attributes of the advertisement
+     * @param lifetime absolute time at which the advertisement expires
+     * @param expiration duration for which others may cache the advertisement
+     * @throws IOException if the advertisement cannot be written
+     */
+    synchronized void put(String dn, String fn, byte [] doc, Map indexables, long lifetime, long expiration) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(doc.length + 256);
+        DataOutputStream record = new DataOutputStream(bytes);
+
+        record.writeInt(0); // length, filled in below
+        record.writeByte(PUT);
+        record.writeUTF(dn);
+        record.writeUTF(fn);
+        record.writeLong(lifetime);
+        record.writeLong(expiration);
+        record.writeShort(indexables.size());
+
+        Iterator eachIndex = indexables.entrySet().iterator();
+        while (eachIndex.hasNext()) {
+            Map.Entry anIndex = (Map.Entry) eachIndex.next();
+
+            record.writeUTF((String) anIndex.getKey());
+            record.writeUTF((String) anIndex.getValue());
+        }
+
+        record.writeInt(doc.length);
+
+        int docOffset = record.size();
+
+        record.write(doc);
+
+        Entry entry = new Entry(dn, fn, lifetime, expiration, new HashMap(indexables));
+
+        entry.docOffset = docOffset;
+        entry.docLength = doc.length;
+        entry.recordOffset = append(bytes);
+        entry.recordLength = bytes.size();
+
+        putEntry(entry);
+        changed();
+    }
+
+    /**
+     * Removes an advertisement.
+     *
+     * @param dn directory name
+     * @param fn file name
+     * @throws IOException if the removal cannot be written
+     */
+    synchronized void remove(String dn, String fn) throws IOException {
+        if (null == getEntry(dn, fn)) {
+            return;
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+        DataOutputStream record = new DataOutputStream(bytes);
+
+        record.writeInt(0); // length, filled in below
+        record.writeByte(REMOVE);
+        record.writeUTF(dn);
+        record.writeUTF(fn);
+
+        append(bytes);
+
+        removeEntry(dn, fn);
+        changed();
+    }
+
+    /**
+     * Completes a record by filling in its length and appending its CRC,
+     * then writes it to the end of the log.
+     *
+     * @return the position of the record.
+     */
+    private long append(ByteArrayOutputStream bytes) throws IOException {
+        int bodyLength = bytes.size() - 4;
+
+        new DataOutputStream(bytes).writeInt(0); // room for the crc
+
+        byte [] record = bytes.toByteArray();
+
+        record[0] = (byte) (bodyLength >>> 24);
+        record[1] = (byte) (bodyLength >>> 16);
+        record[2] = (byte) (bodyLength >>> 8);
+        record[3] = (byte) bodyLength;
+
+        CRC32 crc = new CRC32();
+
+        crc.update(record, 4, bodyLength);
+
+        int value = (int) crc.getValue();
+        int at = record.length - 4;
+
+        record[at++] = (byte) (value >>> 24);
+        record[at++] = (byte) (value >>> 16);
+        record[at++] = (byte) (value >>> 8);
+        record[at] = (byte) value;
+
+        long offset = log.length();
+
+        log.seek(offset);
+        log.write(record);
+
+        return offset;
+    }
+
+    /**
+     * Returns the entry for an advertisement.
+     *
+     * @param dn directory name
+     * @param fn file name
+     * @return the entry or <code>null</code> if there is no such
+     * advertisement or it has expired.
+     */
+    synchronized Entry get(String dn, String fn) {
+        Entry entry = getEntry(dn, fn);
+
+        if ((null != entry) && (entry.lifetime < TimeUtils.timeNow())) {
+            return null;
+        }
+
+        return entry;
+    }
+
+    /**
+     * Returns the entries of a directory which have not expired, oldest
+     * first.
+     *
+     * @param dn directory name
+     * @return List of {@link Entry}
+     */
+    synchronized List entries(String dn) {
+        Map dir = (Map) dirs.get(dn);
+        List result = new ArrayList();
+
+        if (null == dir) {
+            return result;
+        }
+
+        long now = TimeUtils.timeNow();
+        Iterator eachEntry = dir.values().iterator();
+
+        while (eachEntry.hasNext()) {
+            Entry entry = (Entry) eachEntry.next();
+
+            if (entry.lifetime >= now) {
+                result.add(entry);
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Returns the number of advertisements in a directory, including any
+     * which have expired but not yet been swept.
+     *
+     * @param dn directory name
+     * @return the number of advertisements.
+     */
+    synchronized int size(String dn) {
+        Map dir = (Map) dirs.get(dn);
+
+        return (null == dir) ? 0 : dir.size();
+    }
+
+    /**
+     * Reads the document of an advertisement from the log.
+     *
+     * @param entry the entry of the advertisement.
+     * @return the document or <code>null</code> if the entry has been
+     * replaced or removed.
+     * @throws IOException if the record is corrupt or cannot be read.
+     */
+    synchronized byte [] read(Entry entry) throws IOException {
+        if (getEntry(entry.dn, entry.fn) != entry) {
+            return null;
+        }
+
+        int bodyLength = entry.recordLength - 8;
+        byte [] body = new byte[bodyLength];
+
+        log.seek(entry.recordOffset + 4);
+        log.readFully(body);
+
+        CRC32 crc = new CRC32();
+
+        crc.update(body);
+
+        if (((int) crc.getValue()) != log.readInt()) {
+            throw new IOException("Corrupt record for " + entry.dn + "/" + entry.fn);
+        }
+
+        byte [] doc = new byte[entry.docLength];
+
+        System.arraycopy(body, entry.docOffset - 4, doc, 0, entry.docLength);
+
+        return doc;
+    }
+
+    /**
+     * Forces the log to disk and closes it.
+     */
+    synchronized void close() {
+        if (null == log) {
+            return;
+        }
+
+        try {
+            log.getFD().sync();
+            log.close();
+        } catch (IOException failed) {
+            if (LOG.isEnabledFor(Level.WARN)) {
+                LOG.warn("Failed closing " + file, failed);
+            }
+        }
+
+        log = null;
+        dirs.clear();
+    }
+
+    private Entry getEntry(String dn, String fn) {
+        Map dir = (Map) dirs.get(dn);
+
+        return (null == dir) ? null : (Entry) dir.get(fn);
+    }
+
+    private void putEntry(Entry entry) {
+        Map dir = (Map) dirs.get(entry.dn);
+
+        if (null == dir) {
+            dir = new LinkedHashMap();
+            dirs.put(entry.dn, dir);
+        }
+
+        // Re-insert so that the directory stays in order of saving.
+        Entry old = (Entry) dir.remove(entry.fn);
+
+        if (null != old) {
+            liveBytes -= old.recordLength;
+        }
+
+        dir.put(entry.fn, entry);
+        liveBytes += entry.recordLength;
+    }
+
+    private void removeEntry(String dn, String fn) {
+        Map dir = (Map) dirs.get(dn);
+
+        if (null == dir) {
+            return;
+        }
+
+        Entry old = (Entry) dir.remove(fn);
+
+        if (null != old) {
+            liveBytes -= old.recordLength;
+        }
+    }
+
+    /**
+     * Notes a change, periodically sweeping expired records.
+     */
+    private void changed() {
+        if (++changes >= SWEEP_INTERVAL) {
+            sweepExpired();
+        }
+    }
+
+    /**
+     * Drops the expired entries from the index, their records become dead
+     * space.
+     */
+    private void sweepExpired() {
+        long now = TimeUtils.timeNow();
+        Iterator eachDir = dirs.values().iterator();
+
+        while (eachDir.hasNext()) {
+            Iterator eachEntry = ((Map) eachDir.next()).values().iterator();
+
+            while (eachEntry.hasNext()) {
+                Entry entry = (Entry) eachEntry.next();
+
+                if (entry.lifetime < now) {
+                    eachEntry.remove();
+                    liveBytes -= entry.recordLength;
+                }
+            }
+        }
+
+        changes = 0;
+    }
+
+    /**
+     * Compacts the log if more than half of it is dead space.
+     */
+    private void compactIfNeeded() throws IOException {
+        long length = log.length();
+
+        if ((length >= MIN_COMPACT_SIZE) && (length - HEADER_LENGTH - liveBytes > liveBytes)) {
+            compact();
+        }
+    }
+
+    /**
+     * Copies the live records to a new log which then replaces the current
+     * one.
+     */
+    private void compact() throws IOException {
+        if (LOG.isEnabledFor(Level.INFO)) {
+            LOG.info("Compacting " + file + " from " + log.length() + " to " + (liveBytes + HEADER_LENGTH) + " bytes");
+        }
+
+        RandomAccessFile compacted = new RandomAccessFile(compactFile, "rw");
+        Map offsets = new HashMap();
+
+        try {
+            compacted.setLength(0);
+            compacted.writeInt(MAGIC);
+            compacted.writeByte(VERSION);
+
+            byte [] record = new byte[4096];
+            Iterator eachDir = dirs.values().iterator();
+
+            while (eachDir.hasNext()) {
+                Iterator eachEntry = ((Map) eachDir.next()).values().iterator();
+
+                while (eachEntry.hasNext()) {
+                    Entry entry = (Entry) eachEntry.next();
+
+                    if (record.length < entry.recordLength) {
+                        record = new byte[entry.recordLength];
+                    }
+
+                    log.seek(entry.recordOffset);
+                    log.readFully(record, 0, entry.recordLength);
+
+                    offsets.put(entry, new Long(compacted.getFilePointer()));
+                    compacted.write(record, 0, entry.recordLength);
+                }
+            }
+
+            compacted.getFD().sync();
+        } catch (IOException failed) {
+            compacted.close();
+            compactFile.delete();
+            throw failed;
+        }
+        compacted.close();
+
+        // The log is closed for the renames, some platforms will not rename
+        // an open file. Whatever happens it is reopened, either as the
+        // compacted log or as the intact original.
+        log.close();
+
+        try {
+            replaceWithCompacted();
+        } finally {
+            log = new RandomAccessFile(file, "rw");
+        }
+
+        Iterator eachOffset = offsets.entrySet().iterator();
+        while (eachOffset.hasNext()) {
+            Map.Entry anOffset = (Map.Entry) eachOffset.next();
+
+            ((Entry) anOffset.getKey()).recordOffset = ((Long) anOffset.getValue()).longValue();
+        }
+    }
+
+    /**
+     * Puts the compacted log in place of the current one. The original is
+     * only deleted once the compacted log has taken its name.
+     *
+     * @throws IOException if the compacted log could not be put in place. The
+     * original log is then still in place.
+     */
+    private void replaceWithCompacted() throws IOException {
+        if (compactFile.renameTo(file)) {
+            return;
+        }
+
+        // Some platforms will not rename over an existing file.
+        oldFile.delete();
+        if (!file.renameTo(oldFile)) {
+            compactFile.delete();
+            throw new IOException("Could not replace " + file + " with compacted log");
+        }
+
+        if (!compactFile.renameTo(file)) {
+            oldFile.renameTo(file);
+            compactFile.delete();
+            throw new IOException("Could not replace " + file + " with compacted log");
+        }
+
+        oldFile.delete();
+    }
+}
@@ -0,0 +1,316 @@
+/*
+ *
+ * $Id$
+ *
+ * Copyright (c) 2001 Sun Microsystems, Inc.  All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *
+ * 3. The end-user documentation included with the redistribution,
+ *    if any, must include the following acknowledgment:
+ *       "This product includes software developed by the
+ *       Sun Microsystems, Inc. for Project JXTA."
+ *    Alternately, this acknowledgment may appear in the software itself,
+ *    if and wherever such third-party acknowledgments normally appear.
+ *
+ * 4. The names "Sun", "Sun Microsystems, Inc.", "JXTA" and "Project JXTA"
+ *    must not be used to endorse or promote products derived from this
+ *    software without prior written permission. For written
+ *    permission, please contact Project JXTA at http://www.jxta.org.
+ *
+ * 5. Products derived from this software may not be called "JXTA",
+ *    nor may "JXTA" appear in their name, without prior written
+ *    permission of Sun.
+ *
+ * THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED.  IN NO EVENT SHALL SUN MICROSYSTEMS OR
+ * ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ * USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ * OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ *
+ * ====================================================================
+ *
+ * This software consists of voluntary contributions made by many
+ * individuals on behalf of Project JXTA.  For more
+ * information on Project JXTA, please see
+ * <http://www.jxta.org/>.
+ *
+ * This license is based on the BSD license adopted by the Apache Foundation.
+ */
+package net.jxta.impl.cm;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * The values of one attribute of the documents in a {@link Cm} directory.
+ *
+ * <p/>Values are compared without regard to case. Exact matches are found
+ * by hash, values beginning with a prefix from a sorted map of the values,
+ * and values ending with a suffix from a sorted map of the reversed values.
+ * Only a pattern with a wildcard at both ends needs to look at every value.
+ */
+final class AttributeIndex {
+
+    /**
+     * The wildcard of the discovery query language.
+     */
+    private final static char WILDCARD = '*';
+
+    /**
+     * The indexed value of a document.
+     */
+    private static final class Posting {
+        final String folded;
+        final long lifetime;
+
+        Posting(String folded, long lifetime) {
+            this.folded = folded;
+            this.lifetime = lifetime;
+        }
+    }
+
+    /**
+     * Map of file name to {@link Posting}.
+     */
+    private final Map postings = new HashMap();
+
+    /**
+     * Map of folded value to the Set of file names with that value.
+     */
+    private final Map byValue = new HashMap();
+
+    /**
+     * The keys of {@link #byValue} in order, shares the file name Sets.
+     */
+    private final TreeMap sortedValues = new TreeMap();
+
+    /**
+     * The keys of {@link #byValue} reversed and in order, shares the file name
+     * Sets.
+     */
+    private final TreeMap reversedValues = new TreeMap();
+
+    /**
+     * Returns the form in which values are compared.
+     */
+    static String fold(String value) {
+        return value.toUpperCase();
+    }
+
+    private static String reverse(String value) {
+        return new StringBuffer(value).reverse().toString();
+    }
+
+    /**
+     * Indexes the value of a document, replacing any previous value.
+     *
+     * @param fn file name of the document
+     * @param value the value of the attribute
+     * @param lifetime absolute time at which the document expires
+     */
+    void add(String fn, String value, long lifetime) {
+        String folded = fold(value);
+        Posting old = (Posting) postings.put(fn, new Posting(folded, lifetime));
+
+        if (null != old) {
+            if (old.folded.equals(folded)) {
+                return;
+            }
+            unlink(fn, old.folded);
+        }
+
+        Set fns = (Set) byValue.get(folded);
+
+        if (null == fns) {
+            fns = new LinkedHashSet();
+            byValue.put(folded, fns);
+            sortedValues.put(folded, fns);
+            reversedValues.put(reverse(folded), fns);
+        }
+
+        fns.add(fn);
+    }
+
+    /**
+     * Removes a document from the index.
+     *
+     * @param fn file name of the document
+     */
+    void remove(String fn) {
+        Posting old = (Posting) postings.remove(fn);
+
+        if (null != old) {
+            unlink(fn, old.folded);
+        }
+    }
+
+    private void unlink(String fn, String folded) {
+        Set fns = (Set) byValue.get(folded);
+
+        if (null == fns) {
+            return;
+        }
+
+        fns.remove(fn);
+
+        if (fns.isEmpty()) {
+            byValue.remove(folded);
+            sortedValues.remove(folded);
+            reversedValues.remove(reverse(folded));
+        }
+    }
+
+    boolean isEmpty() {
+        return postings.isEmpty();
+    }
+
+    /**
+     * Returns the file names of the documents whose value matches. The
+     * pattern may begin and/or end with a wildcard. The index must not be
+     * changed while the iteration is in use.
+     *
+     * @param pattern the value to match or <code>null</code> to match every
+     * document.
+     * @return Iterator of file names.
+     */
+    Iterator match(String pattern) {
+        if ((null == pattern) || (pattern.length() == 0) || ((pattern.length() == 1) && (pattern.charAt(0) == WILDCARD))) {
+            return postings.keySet().iterator();
+        }
+
+        String folded = fold(pattern);
+        boolean leading = folded.charAt(0) == WILDCARD;
+        boolean trailing = (folded.length() > 1) && (folded.charAt(folded.length() - 1) == WILDCARD);
+
+        if (!leading && !trailing) {
+            Set fns = (Set) byValue.get(folded);
+
+            if (null == fns) {
+                return Collections.EMPTY_LIST.iterator();
+            }
+
+            return fns.iterator();
+        }
+
+        String term = folded.substring(leading ? 1 : 0, folded.length() - (trailing ? 1 : 0));
+
+        if (leading && trailing) {
+            List matching = new ArrayList();
+            Iterator eachValue = sortedValues.entrySet().iterator();
+
+            while (eachValue.hasNext()) {
+                Map.Entry aValue = (Map.Entry) eachValue.next();
+
+                if (((String) aValue.getKey()).indexOf(term) >= 0) {
+                    matching.add(aValue.getValue());
+                }
+            }
+
+            return new Flattener(matching.iterator());
+        }
+
+        SortedMap range;
+
+        if (trailing) {
+            range = prefixed(sortedValues, term);
+        } else {
+            range = prefixed(reversedValues, reverse(term));
+        }
+
+        return new Flattener(range.values().iterator());
+    }
+
+    /**
+     * Returns the entries of a sorted map whose keys begin with the
+     * specified prefix.
+     */
+    private static SortedMap prefixed(TreeMap map, String prefix) {
+        if (prefix.length() == 0) {
+            return map;
+        }
+
+        char last = prefix.charAt(prefix.length() - 1);
+
+        if (last == Character.MAX_VALUE) {
+            return map.tailMap(prefix);
+        }
+
+        String end = prefix.substring(0, prefix.length() - 1) + (char) (last + 1);
+
+        return map.subMap(prefix, end);
+    }
+
+    /**
+     * Iterates the file names of an iteration of file name Sets.
+     */
+    private static final class Flattener implements Iterator {
+        private final Iterator eachSet;
+        private Iterator eachFn = Collections.EMPTY_LIST.iterator();
+
+        Flattener(Iterator eachSet) {
+            this.eachSet = eachSet;
+        }
+
+        public boolean hasNext() {
+            while (!eachFn.hasNext() && eachSet.hasNext()) {
+                eachFn = ((Set) eachSet.next()).iterator();
+            }
+
+            return eachFn.hasNext();
+        }
+
+        public Object next() {
+            hasNext();
+
+            return eachFn.next();
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * Returns the absolute expiry of each indexed document.
+     *
+     * @return Map of file name to Long lifetime.
+     */
+    Map lifetimes() {
+        Map result = new HashMap(postings.size() * 2);
+        Iterator eachPosting = postings.entrySet().iterator();
+
+        while (eachPosting.hasNext()) {
+            Map.Entry aPosting = (Map.Entry) eachPosting.next();
+
+            result.put(aPosting.getKey(), new Long(((Posting) aPosting.getValue()).lifetime));
+        }
+
+        return result;
+    }
+}
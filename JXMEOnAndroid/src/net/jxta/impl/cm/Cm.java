@@ -56,24 +56,29 @@
  */
 package net.jxta.impl.cm;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.StringWriter;
 import java.math.BigInteger;
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
 import java.util.Vector;
 import net.jxta.id.ID;
 import net.jxta.discovery.DiscoveryService;
 import net.jxta.document.Advertisement;
+import net.jxta.document.AdvertisementFactory;
+import net.jxta.document.MimeMediaType;
 import net.jxta.document.StructuredDocument;
 import net.jxta.document.StructuredTextDocument;
 import net.jxta.impl.util.JxtaHash;
 import net.jxta.impl.util.TimeUtils;
+import net.jxta.impl.util.metrics.Counter;
+import net.jxta.impl.util.metrics.MetricsRegistry;
 import net.jxta.protocol.PeerAdvertisement;
 import net.jxta.protocol.PeerGroupAdvertisement;
 import net.jxta.protocol.SrdiMessage;
@@ -85,6 +90,10 @@ import org.apache.log4j.Logger;
  * intended to provide cache for services that have a need for cache
  * to search and exchange jxta documents.
  *
+ * <p/>When constructed with a store directory the documents are kept in an
+ * {@link AdvertisementStore} and survive restarts. The in memory caches then
+ * hold only the most recently used advertisements.
+ *
  * Only Core Services are intended to use this mechanism.
  */
 public final class Cm {
@@ -93,6 +102,14 @@ public final class Cm {
      * Log4J Logger
      */
     private final static Logger LOG = Logger.getLogger(Cm.class.getName());
+
+    /**
+     *  Record cache metrics shared by all of the Cms. A miss which is found in
+     *  the store is also counted as a store read.
+     */
+    private final static Counter CACHE_HITS = MetricsRegistry.getRegistry().counter("cm.cache.hits");
+    private final static Counter CACHE_MISSES = MetricsRegistry.getRegistry().counter("cm.cache.misses");
+    private final static Counter STORE_READS = MetricsRegistry.getRegistry().counter("cm.store.reads");
     /**
      *  adv types
      */
@@ -105,6 +122,47 @@ public final class Cm {
     private Map deltas  = new HashMap(4);
     private transient int cacheSize = 50;
 
+    /**
+     * The persistent store or <code>null</code> if documents are only kept
+     * in memory.
+     */
+    private AdvertisementStore store = null;
+
+    /**
+     * Held for reading while looking up documents and for writing while
+     * changing the documents or indexes. Deltas are guarded by the cm itself.
+     */
+    private final ReadWriteLock lock = new ReadWriteLock();
+
+    /**
+     * The documents found unreadable while holding only the read lock, as
+     * {dn, fn} pairs. They are removed from the store by the next writer.
+     * Guarded by itself.
+     */
+    private final List unreadable = new ArrayList();
+
+    /**
+     * Receives the advertisements saved in a cm.
+     */
+    public interface SaveListener {
+
+        /**
+         * Called after an advertisement has been saved. Called from the
+         * thread which saved the advertisement; must not block.
+         *
+         * @param  dn   directory name
+         * @param  fn   file name
+         * @param  adv  the advertisement which was saved
+         */
+        void advertisementSaved(String dn, String fn, Advertisement adv);
+    }
+
+    /**
+     * The registered save listeners. Replaced, never modified, while holding
+     * the cm.
+     */
+    private volatile SaveListener[] saveListeners = new SaveListener[0];
+
     /**
      * Constructor for cm
      *
@@ -116,6 +174,36 @@ public final class Cm {
         createCaches();
     }
 
+    /**
+     * Constructor for a cm which keeps its documents in the specified
+     * directory. If the store cannot be opened the cm keeps its documents in
+     * memory only.
+     *
+     * @param  storeHome       directory in which documents are stored
+     * @param  trackDeltas     when true deltas are tracked 
+     */
+    public Cm(File storeHome, boolean trackDeltas) {
+
+        this(trackDeltas);
+        try {
+            store = new AdvertisementStore(storeHome);
+        } catch (IOException failed) {
+            if (LOG.isEnabledFor(Level.WARN)) {
+                LOG.warn("Could not open store in " + storeHome + ", documents will not be persisted", failed);
+            }
+            return;
+        }
+
+        // rebuild the indexes, the documents stay on disk until needed.
+        for (int i=0; i<DIRNAME.length; i++) {
+            Iterator eachEntry = store.entries(DIRNAME[i]).iterator();
+            while (eachEntry.hasNext()) {
+                AdvertisementStore.Entry entry = (AdvertisementStore.Entry) eachEntry.next();
+                index(entry.indexables, DIRNAME[i], entry.fn, entry.lifetime);
+            }
+        }
+    }
+
     private void createCaches() {
         for (int i=0; i<DIRNAME.length; i++) {
             if (advMaps.get(DIRNAME[i]) == null) {
@@ -172,27 +260,44 @@ public final class Cm {
                              int threshold,
                              Vector expirations,
                              boolean bytes) {
-
-        LRUCache cache = (LRUCache) advMaps.get(dn);
-        Vector result = new Vector();
-        if (cache!= null) {
-            Iterator it = cache.iterator(threshold);
-            while (it.hasNext()) {
-                Record record = (Record) it.next();
-                if (!bytes) {
-                    result.add(record.advertisement);
+        lock.readLock();
+        try {
+            LRUCache cache = (LRUCache) advMaps.get(dn);
+            Vector result = new Vector();
+            if (cache!= null) {
+                Iterator it;
+                if (store != null) {
+                    it = store.entries(dn).iterator();
                 } else {
-                    result.add(record.advertisement.toString());
-                }
-                if (expirations != null) {
-                    expirations.add(new Long(record.expiration));
+                    it = cache.iterator(threshold);
                 }
-                if (result.size() >= threshold) {
-                    break;
+                while (it.hasNext()) {
+                    Record record;
+                    if (store != null) {
+                        record = getRecord(dn, ((AdvertisementStore.Entry) it.next()).fn);
+                        if (record == null) {
+                            continue;
+                        }
+                    } else {
+                        record = (Record) it.next();
+                    }
+                    if (!bytes) {
+                        result.add(record.advertisement);
+                    } else {
+                        result.add(record.advertisement.toString());
+                    }
+                    if (expirations != null) {
+                        expirations.add(new Long(record.expiration));
+                    }
+                    if (result.size() >= threshold) {
+                        break;
+                    }
                 }
             }
+            return result;
+        } finally {
+            lock.readUnlock();
         }
-        return result;
     }
 
     /**
@@ -206,13 +311,24 @@ public final class Cm {
      * document will expire. -1 is returned if the file is not
      * recognized or already expired.
      */
-    public synchronized long getLifetime(String dn, String fn) {
-        LRUCache cache = (LRUCache) advMaps.get(dn);
-        if (cache!= null) {
-            Record record = (Record) cache.get(fn);
-            return TimeUtils.toRelativeTimeMillis(record.lifetime);
+    public long getLifetime(String dn, String fn) {
+        lock.readLock();
+        try {
+            if (store != null) {
+                AdvertisementStore.Entry entry = store.get(dn, fn);
+                if (entry != null) {
+                    return TimeUtils.toRelativeTimeMillis(entry.lifetime);
+                }
+                return -1;
+            }
+            Record record = getRecord(dn, fn);
+            if (record != null) {
+                return TimeUtils.toRelativeTimeMillis(record.lifetime);
+            }
+            return -1;
+        } finally {
+            lock.readUnlock();
         }
-        return -1;
     }
 
     /**
@@ -226,13 +342,78 @@ public final class Cm {
      * @return     number of milliseconds until the file expires or -1 if the
      * file is not recognized or already expired.
      */
-    public synchronized long getExpirationtime(String dn, String fn) {
+    public long getExpirationtime(String dn, String fn) {
+        lock.readLock();
+        try {
+            if (store != null) {
+                AdvertisementStore.Entry entry = store.get(dn, fn);
+                if (entry != null) {
+                    return entry.expiration;
+                }
+                return -1;
+            }
+            Record record = getRecord(dn, fn);
+            if (record != null) {
+                return record.expiration;
+            }
+            return -1;
+        } finally {
+            lock.readUnlock();
+        }
+    }
+
+    /**
+     * Returns the record for a document, reading it from the store if it is
+     * not cached.
+     *
+     * @param  dn  contains the name of the folder
+     * @param  fn  contains the name of the file
+     * @return the record or <code>null</code> if the file is not recognized
+     * or already expired.
+     */
+    private Record getRecord(String dn, String fn) {
         LRUCache cache = (LRUCache) advMaps.get(dn);
-        if (cache!= null) {
-            Record record = (Record) cache.get(fn);
-            return record.expiration;
+        if (cache == null) {
+            return null;
+        }
+        Record record = (Record) cache.get(fn);
+        if (record != null) {
+            if (record.lifetime < TimeUtils.timeNow()) {
+                cache.remove(fn);
+                CACHE_MISSES.increment();
+                return null;
+            }
+            CACHE_HITS.increment();
+            return record;
+        }
+        CACHE_MISSES.increment();
+        if (store == null) {
+            return null;
+        }
+        AdvertisementStore.Entry entry = store.get(dn, fn);
+        if (entry == null) {
+            return null;
+        }
+        STORE_READS.increment();
+        try {
+            byte[] doc = store.read(entry);
+            if (doc == null) {
+                return null;
+            }
+            Advertisement adv = AdvertisementFactory.newAdvertisement(MimeMediaType.XMLUTF8, new ByteArrayInputStream(doc));
+            record = new Record(adv, entry.lifetime, entry.expiration);
+            cache.put(fn, record);
+            return record;
+        } catch (Exception failed) {
+            if (LOG.isEnabledFor(Level.WARN)) {
+                LOG.warn("Discarding unreadable document " + dn + "/" + fn, failed);
+            }
+            // Only the read lock may be held here.
+            synchronized (unreadable) {
+                unreadable.add(new String[] {dn, fn});
+            }
+            return null;
         }
-        return -1;
     }
 
     /**
@@ -242,19 +423,57 @@ public final class Cm {
      * @param  fn            file name
      * @throws  IOException  if an I/O error occurs
      */
-    public synchronized void remove(String dn, String fn)
+    public void remove(String dn, String fn)
     throws IOException {
-        LRUCache cache = (LRUCache) advMaps.get(dn);
-        if (cache!= null) {
-            Record record = (Record) cache.get(fn);
-            if (fn != null && record != null) {
-                cache.remove(fn);
-                addDelta(dn, record.advertisement.getIndexMap(), 0);
+        AdvertisementStore current;
+        lock.writeLock();
+        try {
+            current = store;
+            removeUnreadable();
+            LRUCache cache = (LRUCache) advMaps.get(dn);
+            if (cache == null) {
+                return;
+            }
+            if (fn == null) {
+                // remove the whole directory
+                if (store != null) {
+                    Iterator eachEntry = store.entries(dn).iterator();
+                    while (eachEntry.hasNext()) {
+                        AdvertisementStore.Entry entry = (AdvertisementStore.Entry) eachEntry.next();
+                        store.remove(dn, entry.fn);
+                        addDelta(dn, entry.indexables, 0);
+                    }
+                } else {
+                    Iterator eachRecord = cache.iterator(cache.size());
+                    while (eachRecord.hasNext()) {
+                        Record record = (Record) eachRecord.next();
+                        addDelta(dn, record.advertisement.getIndexMap(), 0);
+                    }
+                }
+                cache.clear();
+                indexMap.remove(dn);
+                return;
             }
+            Map indexables = null;
+            Record record = (Record) cache.remove(fn);
+            if (record != null) {
+                indexables = record.advertisement.getIndexMap();
+            }
+            if (store != null) {
+                AdvertisementStore.Entry entry = store.get(dn, fn);
+                if (entry != null) {
+                    indexables = entry.indexables;
+                }
+                store.remove(dn, fn);
+            }
+            if (indexables != null) {
+                addDelta(dn, indexables, 0);
+            }
+            unindex(dn, fn);
+        } finally {
+            lock.writeUnlock();
         }
-
-        //FIXME need to also remove memory indexes, however they will eventually
-        //be expungend since they're stored in an LRU cache
+        maintainStore(current);
     }
 
     /**
@@ -280,62 +499,133 @@ public final class Cm {
      * @param  lifetime         document lifetime in ms
      * @exception  IOException  if an I/O error occurs
      */
-    public synchronized void save(String dn, String fn, Advertisement adv, long lifetime, long expiration)
+    public void save(String dn, String fn, Advertisement adv, long lifetime, long expiration)
     throws IOException {
-        if (expiration < 0 || lifetime < 0) {
-            throw new IllegalArgumentException("cannot store an advertisement with negative expiry");
-        }
-        if (adv == null) {
-            throw new IllegalArgumentException("advertisement can be null");
-        }
-        if (LOG.isEnabledFor(Level.DEBUG)) {
-            LOG.debug("Saving :"+fn);
-        }
+        AdvertisementStore current;
+        lock.writeLock();
+        try {
+            current = store;
+            removeUnreadable();
+            if (expiration < 0 || lifetime < 0) {
+                throw new IllegalArgumentException("cannot store an advertisement with negative expiry");
+            }
+            if (adv == null) {
+                throw new IllegalArgumentException("advertisement can be null");
+            }
+            if (LOG.isEnabledFor(Level.DEBUG)) {
+                LOG.debug("Saving :"+fn);
+            }
 
-        long absoluteLifetime = TimeUtils.toAbsoluteTimeMillis(lifetime);
-        index(adv.getIndexMap(), dn, fn, lifetime);
-        Record record = new Record(adv, absoluteLifetime, expiration);
-        LRUCache cache = (LRUCache) advMaps.get(dn);
-        if (cache!= null) {
+            LRUCache cache = (LRUCache) advMaps.get(dn);
+            if (cache == null) {
+                throw new IOException("unknown directory type");
+            }
+            long absoluteLifetime = TimeUtils.toAbsoluteTimeMillis(lifetime);
+            Map indexables = adv.getIndexMap();
+            if (store != null) {
+                ByteArrayOutputStream doc = new ByteArrayOutputStream();
+                adv.getDocument(MimeMediaType.XMLUTF8).sendToStream(doc);
+                store.put(dn, fn, doc.toByteArray(), indexables, absoluteLifetime, expiration);
+            }
+            Record record = new Record(adv, absoluteLifetime, expiration);
             cache.put(fn, record);
-            index(adv.getIndexMap(), dn, fn, lifetime);
-        } else {
-            throw new IOException("unknown directory type");
+            unindex(dn, fn);
+            index(indexables, dn, fn, absoluteLifetime);
+            addDelta(dn, indexables, lifetime);
+        } finally {
+            lock.writeUnlock();
+        }
+        maintainStore(current);
+
+        SaveListener[] listeners = saveListeners;
+
+        for (int eachListener = 0; eachListener < listeners.length; eachListener++) {
+            try {
+                listeners[eachListener].advertisementSaved(dn, fn, adv);
+            } catch (Throwable all) {
+                if (LOG.isEnabledFor(Level.WARN)) {
+                    LOG.warn("Uncaught Throwable in save listener (" + listeners[eachListener].getClass().getName() + ")", all);
+                }
+            }
         }
     }
 
+    /**
+     * Registers a listener which is called after each save.
+     *
+     * @param  listener  the listener
+     */
+    public synchronized void addSaveListener(SaveListener listener) {
+        SaveListener[] listeners = new SaveListener[saveListeners.length + 1];
+
+        System.arraycopy(saveListeners, 0, listeners, 0, saveListeners.length);
+        listeners[saveListeners.length] = listener;
+        saveListeners = listeners;
+    }
+
+    /**
+     * Unregisters a save listener.
+     *
+     * @param  listener  the listener
+     * @return           true if the listener was registered
+     */
+    public synchronized boolean removeSaveListener(SaveListener listener) {
+        for (int eachListener = 0; eachListener < saveListeners.length; eachListener++) {
+            if (saveListeners[eachListener] == listener) {
+                SaveListener[] listeners = new SaveListener[saveListeners.length - 1];
+
+                System.arraycopy(saveListeners, 0, listeners, 0, eachListener);
+                System.arraycopy(saveListeners, eachListener + 1, listeners, eachListener, listeners.length - eachListener);
+                saveListeners = listeners;
+                return true;
+            }
+        }
+        return false;
+    }
+
 
 
     private void index(Map indexables, String dn, String fn, long lifetime) {
         if (LOG.isEnabledFor(Level.DEBUG)) {
             LOG.debug("Indexing :"+fn);
         }
-        Iterator it = indexables.keySet().iterator();
+        Map keyTable = (Map) indexMap.get(dn);
+        if (keyTable == null) {
+            keyTable = new HashMap();
+            indexMap.put(dn, keyTable);
+        }
+        Iterator it = indexables.entrySet().iterator();
         while (it.hasNext()) {
-            String key = (String) it.next();
-            IndexRecord indexRecord = new IndexRecord(fn, (String) indexables.get(key), lifetime);
+            Map.Entry anIndex = (Map.Entry) it.next();
+            String key = (String) anIndex.getKey();
             if (LOG.isEnabledFor(Level.DEBUG)) {
-                LOG.debug("Adding index for :"+key +" + "+indexables.get(key));
+                LOG.debug("Adding index for :"+key +" + "+anIndex.getValue());
             }
-            Map keyTable = (Map) indexMap.get(dn);
-            if (keyTable != null) {
-                Set set = (Set) keyTable.get(key);
-                if (set != null) {
-                    set.add(indexRecord);
-                } else {
-                    set = new HashSet();
-                    set.add(indexRecord);
-                    keyTable.put(key, set);
-                }
-            } else {
-                keyTable = new HashMap();
-                Set set = new HashSet();
-                set.add(indexRecord);
-                keyTable.put(key, set);
-                indexMap.put(dn, keyTable);
+            AttributeIndex attributeIndex = (AttributeIndex) keyTable.get(key);
+            if (attributeIndex == null) {
+                attributeIndex = new AttributeIndex();
+                keyTable.put(key, attributeIndex);
+            }
+            attributeIndex.add(fn, (String) anIndex.getValue(), lifetime);
+        }
+    }
+
+    /**
+     * Removes a document from the indexes of its directory.
+     */
+    private void unindex(String dn, String fn) {
+        Map keyTable = (Map) indexMap.get(dn);
+        if (keyTable == null) {
+            return;
+        }
+        Iterator it = keyTable.values().iterator();
+        while (it.hasNext()) {
+            AttributeIndex attributeIndex = (AttributeIndex) it.next();
+            attributeIndex.remove(fn);
+            if (attributeIndex.isEmpty()) {
+                it.remove();
             }
         }
-        addDelta(dn, indexables, lifetime);
     }
 
     /**
@@ -363,69 +653,143 @@ public final class Cm {
      *
      * @param  dn         contains the name of the folder on which to 
      *                    perform the search
-     * @param  value      contains the value to search on.
+     * @param  value      contains the value to search on, case insensitive.
+     *                    It may begin and/or end with a "*" wildcard.
      * @param  attribute  attribute to search on
      * @param  threshold  threshold
      * @return            Enumeration containing of all the documents names
      */
-    public synchronized Vector search(String dn,
-                                      String attribute,
-                                      String value,
-                                      int threshold,
-                                      Vector expirations) {
+    public Vector search(String dn,
+                         String attribute,
+                         String value,
+                         int threshold,
+                         Vector expirations) {
         if (LOG.isEnabledFor(Level.DEBUG)) {
             LOG.debug("Searching for :"+dn+" + "+attribute+" + "+value +" + "+threshold);
         }
         Vector res = new Vector();
-        LRUCache advmap = (LRUCache) advMaps.get(dn);
-        if (advmap == null || advmap.size() == 0) {
-            return res;
-        }
-        Map keyTable = (Map) indexMap.get(dn);
-        if (keyTable != null) {
-            Set set = (Set) keyTable.get(attribute);
-            if (set != null) {
-                if (LOG.isEnabledFor(Level.DEBUG)) {
-                    LOG.debug("Found a matching table for :"+attribute);
+        List stale = null;
+        lock.readLock();
+        try {
+            LRUCache advmap = (LRUCache) advMaps.get(dn);
+            if (advmap == null) {
+                return res;
+            }
+            if ((store != null) ? (store.size(dn) == 0) : (advmap.size() == 0)) {
+                return res;
+            }
+            Map keyTable = (Map) indexMap.get(dn);
+            if (keyTable == null) {
+                return res;
+            }
+            AttributeIndex attributeIndex = (AttributeIndex) keyTable.get(attribute);
+            if (attributeIndex == null) {
+                return res;
+            }
+            if (LOG.isEnabledFor(Level.DEBUG)) {
+                LOG.debug("Found a matching table for :"+attribute);
+            }
+            Iterator it = attributeIndex.match(value);
+            while (it.hasNext() && res.size() < threshold) {
+                String fn = (String) it.next();
+                Record record = getRecord(dn, fn);
+                if (record != null) {
+                    if (LOG.isEnabledFor(Level.DEBUG)) {
+                        LOG.debug("Found a matching record :"+fn);
+                    }
+                    res.add(record.advertisement);
+                    if (expirations != null) {
+                        expirations.add(new Long(record.expiration));
+                    }
+                } else {
+                    // expired or evicted from the cache
+                    if (stale == null) {
+                        stale = new ArrayList();
+                    }
+                    stale.add(fn);
                 }
+            }
+        } finally {
+            lock.readUnlock();
+        }
+        if (stale != null) {
+            purge(dn, stale);
+        }
+        return res;
+    }
 
-                Iterator it = set.iterator();
-                while (it.hasNext()) {
-                    IndexRecord idx = (IndexRecord) it.next();
-                    if (value != null) {
-                if (LOG.isEnabledFor(Level.DEBUG)) {
-                    LOG.debug("Comparing "+idx.value +" to "+value);
+    /**
+     * Removes documents which were found to be expired or evicted from the
+     * indexes, unless they have been saved again in the meantime.
+     */
+    private void purge(String dn, List fns) {
+        AdvertisementStore current;
+        lock.writeLock();
+        try {
+            current = store;
+            removeUnreadable();
+            LRUCache cache = (LRUCache) advMaps.get(dn);
+            if (cache == null) {
+                return;
+            }
+            Iterator eachFn = fns.iterator();
+            while (eachFn.hasNext()) {
+                String fn = (String) eachFn.next();
+                if (store != null ? (store.get(dn, fn) == null) : (cache.get(fn) == null)) {
+                    unindex(dn, fn);
                 }
-                        if (idx.value.toUpperCase().equals(value.toUpperCase())) {
-                            if (LOG.isEnabledFor(Level.DEBUG)) {
-                                LOG.debug("Found a matching record :"+idx.key);
-                            }
-                            Record record = (Record) advmap.get(idx.key);
-                            if (record != null) {
-                                res.add(record.advertisement);
-                                if (expirations != null) {
-                                    expirations.add(new Long(record.expiration));
-                                }
-                            }
-                        }
-
-                    } else {
-                        Record record = (Record) advmap.get(idx.key);
-                        if (record != null) {
-                            res.add(record.advertisement);
-                            if (expirations != null) {
-                                expirations.add(new Long(record.expiration));
-                            }
+            }
+        } finally {
+            lock.writeUnlock();
+        }
+        maintainStore(current);
+    }
 
-                        }
-                    }
-                    if (res.size()>= threshold) {
-                        break;
-                    }
+    /**
+     * Removes the documents found unreadable by readers from the store and
+     * the indexes. Must be called with the write lock held.
+     */
+    private void removeUnreadable() {
+        String[][] toRemove;
+        synchronized (unreadable) {
+            if (unreadable.isEmpty()) {
+                return;
+            }
+            toRemove = (String[][]) unreadable.toArray(new String[unreadable.size()][]);
+            unreadable.clear();
+        }
+        if (store == null) {
+            return;
+        }
+        for (int each = 0; each < toRemove.length; each++) {
+            String dn = toRemove[each][0];
+            String fn = toRemove[each][1];
+            try {
+                store.remove(dn, fn);
+            } catch (IOException failed) {
+                if (LOG.isEnabledFor(Level.WARN)) {
+                    LOG.warn("Could not remove unreadable document " + dn + "/" + fn, failed);
                 }
             }
+            unindex(dn, fn);
+        }
+    }
+
+    /**
+     * Gives the store a chance to compact its log. Called without holding
+     * the lock, so that readers are not held up by the disk i/o.
+     */
+    private void maintainStore(AdvertisementStore current) {
+        if (current == null) {
+            return;
+        }
+        try {
+            current.maintain();
+        } catch (IOException failed) {
+            if (LOG.isEnabledFor(Level.WARN)) {
+                LOG.warn("Could not compact the advertisement store", failed);
+            }
         }
-        return res;
     }
 
     /**
@@ -434,32 +798,40 @@ public final class Cm {
      * @param  dn  the relative dir name
      * @return     SrdiMessage.Entries
      */
-    public synchronized Vector getEntries(String dn, boolean clearDeltas) {
-        Vector res = new Vector();
-        Map keyTable = (Map) indexMap.get(dn);
-        if (keyTable == null) {
+    public Vector getEntries(String dn, boolean clearDeltas) {
+        lock.readLock();
+        try {
+            Vector res = new Vector();
+            Map keyTable = (Map) indexMap.get(dn);
+            if (keyTable == null) {
+                if (LOG.isEnabledFor(Level.DEBUG)) {
+                    LOG.debug("Returning empty vector of entries");
+                }
+                return res;
+            }
+            long now = TimeUtils.timeNow();
+            Iterator it = keyTable.values().iterator();
+            while (it.hasNext()) {
+                Iterator lifetimes = ((AttributeIndex) it.next()).lifetimes().entrySet().iterator();
+                while (lifetimes.hasNext()) {
+                    Map.Entry lifetime = (Map.Entry) lifetimes.next();
+                    long remaining = ((Long) lifetime.getValue()).longValue() - now;
+                    if (remaining > 0) {
+                        SrdiMessage.Entry entry = new SrdiMessage.Entry(dn, (String) lifetime.getKey(), remaining);
+                        res.add(entry);
+                    }
+                }
+            }
+            if (clearDeltas) {
+                clearDeltas(dn);
+            }
             if (LOG.isEnabledFor(Level.DEBUG)) {
-                LOG.debug("Returning empty vector of entries");
+                LOG.debug("Returning vector of size :"+res.size());
             }
             return res;
+        } finally {
+            lock.readUnlock();
         }
-        Iterator it = keyTable.values().iterator();
-        while (it.hasNext()) {
-            Set set = (Set) it.next();
-            Iterator sets = set.iterator();
-            while (sets.hasNext()) {
-                IndexRecord record = (IndexRecord) sets.next();
-                SrdiMessage.Entry entry = new SrdiMessage.Entry(dn, record.key, (record.lifetime- System.currentTimeMillis()));
-                res.add(entry);
-            }
-        }
-        if (clearDeltas) {
-            clearDeltas(dn);
-        }
-        if (LOG.isEnabledFor(Level.DEBUG)) {
-            LOG.debug("Returning vector of size :"+res.size());
-        }
-        return res;
     }
 
     /**
@@ -523,12 +895,23 @@ public final class Cm {
     /**
      * stop the cm
      */
-    public synchronized void stop() {
-        stop = true;
-        deltas.clear();
-        deltaMap.clear();
-        indexMap.clear();
-        advMaps.clear();
+    public void stop() {
+        lock.writeLock();
+        try {
+            stop = true;
+            if (store != null) {
+                store.close();
+                store = null;
+            }
+            synchronized (this) {
+                deltas.clear();
+                deltaMap.clear();
+            }
+            indexMap.clear();
+            advMaps.clear();
+        } finally {
+            lock.writeUnlock();
+        }
     }
     public class Record {
         public transient Advertisement advertisement;
@@ -554,24 +937,4 @@ public final class Cm {
             return advertisement.toString()+"  "+lifetime+" "+expiration;
         }
     }
-    public class IndexRecord implements Comparable {
-        public transient String key;
-        public transient String value;
-        public transient long lifetime;
-        public IndexRecord(String key, String value, long lifetime) {
-            this.key = key;
-            this.value = value;
-            this.lifetime = lifetime;
-        }
-        public boolean equals(Object obj) {
-            return key.equals(obj);
-        }
-        public int hashCode() {
-            return key.hashCode();
-        }
-        public int compareTo(Object obj) {
-            return key.compareTo((String)obj);
-        }
-    }
 }
-
@@ -15,14 +15,21 @@
  */
 package net.jxta.impl.cm;
 
-import java.util.Hashtable;
-import java.util.Iterator;
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
 
+import net.jxta.impl.util.FastHashMap;
+
 /**
  *  This class implements a Generic LRU Cache
  *
+ *  <p/>Lookups are not synchronized, only changes to the cache are. Least
+ *  recently used is approximated with the CLOCK algorithm: a lookup only
+ *  marks the entry as referenced and eviction skips, and unmarks, referenced
+ *  entries. The cache keeps no access order, so {@link #iterator(int)}
+ *  returns the entries in no particular order.
+ *
  *@author    Ignacio J. Ortega
  *@author    Mohamed Abdelaziz
  */
@@ -30,10 +37,18 @@ import java.util.List;
 public class LRUCache {
 
     private transient int cacheSize;
-    private transient int currentSize;
-    private transient CacheNode first;
-    private transient CacheNode last;
-    private transient Hashtable nodes;
+    private transient volatile int currentSize;
+    private transient final FastHashMap nodes;
+
+    /**
+     *  The clock, each slot holds a node or null.
+     */
+    private transient final CacheNode[] slots;
+
+    /**
+     *  The clock hand, the next slot considered for eviction.
+     */
+    private transient int hand = 0;
 
 
     /**
@@ -44,15 +59,19 @@ public class LRUCache {
     public LRUCache(int size) {
         currentSize = 0;
         cacheSize = size;
-        nodes = new Hashtable(size);
+        nodes = new FastHashMap(size * 2);
+        slots = new CacheNode[size];
     }
 
     /**
      *  clear the cache
      */
-    public void clear() {
-        first = null;
-        last = null;
+    public synchronized void clear() {
+        nodes.clear();
+        for (int i = 0; i < slots.length; i++) {
+            slots[i] = null;
+        }
+        currentSize = 0;
     }
     /**
      *  returns the number of elements currently in cache
@@ -71,13 +90,21 @@ public class LRUCache {
     public Object get(Object key) {
         CacheNode node = (CacheNode) nodes.get(key);
         if (node != null) {
-            moveToHead(node);
+            node.referenced = true;
             return node.value;
         }
         return null;
     }
 
-    protected Iterator iterator(int size) {
+    /**
+     *  Returns up to <code>size</code> of the cached values, in no particular
+     *  order. Callers which need fewer than all of the values get an
+     *  arbitrary subset, not the most recently used ones.
+     *
+     *@param  size  the maximum number of values returned
+     *@return       an iterator over a copy of the values
+     */
+    protected synchronized Iterator iterator(int size) {
         List list = new ArrayList();
         Iterator it = nodes.values().iterator();
         while (it.hasNext()) {
@@ -88,29 +115,6 @@ public class LRUCache {
         }
         return list.iterator();
     }
-    private void moveToHead(CacheNode node) {
-        if (node == first) {
-            return;
-        }
-        if (node.prev != null) {
-            node.prev.next = node.next;
-        }
-        if (node.next != null) {
-            node.next.prev = node.prev;
-        }
-        if (last == node) {
-            last = node.prev;
-        }
-        if (first != null) {
-            node.next = first;
-            first.prev = node;
-        }
-        first = node;
-        node.prev = null;
-        if (last == null) {
-            last = first;
-        }
-    }
 
     /**
      *  puts an object into cache
@@ -118,62 +122,65 @@ public class LRUCache {
      *@param  key    key to store value by
      *@param  value  object to insert
      */
-    public void put(Object key, Object value) {
+    public synchronized void put(Object key, Object value) {
         CacheNode node = (CacheNode) nodes.get(key);
-        if (node == null) {
-            if (currentSize >= cacheSize) {
-                if (last != null) {
-                    nodes.remove(last.key);
-                }
-                removeLast();
-            } else {
-                currentSize++;
-            }
-            node = new CacheNode();
+        if (node != null) {
+            node.value = value;
+            node.referenced = true;
+            return;
         }
-        node.value = value;
+        if (cacheSize <= 0) {
+            return;
+        }
+        node = new CacheNode();
         node.key = key;
-        moveToHead(node);
+        node.value = value;
+        node.referenced = true;
+        node.slot = freeSlot();
+        slots[node.slot] = node;
         nodes.put(key, node);
     }
 
     /**
-     *  remove an object from cache
-     *
-     *@param  key  key
-     *@return      Object removed
+     *  Finds an empty slot, evicting the first unreferenced entry found by
+     *  the clock hand if the cache is full.
      */
-    public Object remove(Object key) {
-        CacheNode node = (CacheNode) nodes.get(key);
-        if (node != null) {
-            if (node.prev != null) {
-                node.prev.next = node.next;
-            }
-            if (node.next != null) {
-                node.next.prev = node.prev;
+    private int freeSlot() {
+        while (true) {
+            int slot = hand;
+            hand = (hand + 1) % slots.length;
+            CacheNode node = slots[slot];
+            if (node == null) {
+                currentSize++;
+                return slot;
             }
-            if (last == node) {
-                last = node.prev;
+            if (currentSize < cacheSize) {
+                // there is an empty slot further on.
+                continue;
             }
-            if (first == node) {
-                first = node.next;
+            if (node.referenced) {
+                node.referenced = false;
+            } else {
+                nodes.remove(node.key);
+                return slot;
             }
         }
-        return node;
     }
 
     /**
-     *  removes the last enry from cache
+     *  remove an object from cache
+     *
+     *@param  key  key
+     *@return      Object removed
      */
-    private void removeLast() {
-        if (last != null) {
-            if (last.prev != null) {
-                last.prev.next = null;
-            } else {
-                first = null;
-            }
-            last = last.prev;
+    public synchronized Object remove(Object key) {
+        CacheNode node = (CacheNode) nodes.remove(key);
+        if (node != null) {
+            slots[node.slot] = null;
+            currentSize--;
+            return node.value;
         }
+        return null;
     }
 
     /**
@@ -181,10 +188,9 @@ public class LRUCache {
      */
     protected class CacheNode {
         Object key;
-        CacheNode next;
-
-        CacheNode prev;
-        Object value;
+        volatile Object value;
+        volatile boolean referenced;
+        int slot;
 
         /**
          *  Constructor for the CacheNode object
@@ -192,4 +198,3 @@ public class LRUCache {
         CacheNode() { }
     }
 }
-
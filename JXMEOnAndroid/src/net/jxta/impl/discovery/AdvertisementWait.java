@@ -0,0 +1,310 @@
+/*
+ *
+ * $Id$
+ *
+ * Copyright (c) 2001 Sun Microsystems, Inc.  All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *
+ * 3. The end-user documentation included with the redistribution,
+ *    if any, must include the following acknowledgment:
+ *       "This product includes software developed by the
+ *       Sun Microsystems, Inc. for Project JXTA."
+ *    Alternately, this acknowledgment may appear in the software itself,
+ *    if and wherever such third-party acknowledgments normally appear.
+ *
+ * 4. The names "Sun", "Sun Microsystems, Inc.", "JXTA" and "Project JXTA"
+ *    must not be used to endorse or promote products derived from this
+ *    software without prior written permission. For written
+ *    permission, please contact Project JXTA at http://www.jxta.org.
+ *
+ * 5. Products derived from this software may not be called "JXTA",
+ *    nor may "JXTA" appear in their name, without prior written
+ *    permission of Sun.
+ *
+ * THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED.  IN NO EVENT SHALL SUN MICROSYSTEMS OR
+ * ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ * USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ * OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ *
+ * ====================================================================
+ *
+ * This software consists of voluntary contributions made by many
+ * individuals on behalf of Project JXTA.  For more
+ * information on Project JXTA, please see
+ * <http://www.jxta.org/>.
+ *
+ * This license is based on the BSD license adopted by the Apache Foundation.
+ */
+
+package net.jxta.impl.discovery;
+
+import java.util.Enumeration;
+import java.util.Map;
+import java.util.Vector;
+
+import java.io.IOException;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+import net.jxta.discovery.DiscoveryService;
+import net.jxta.document.Advertisement;
+
+import net.jxta.impl.cm.Cm;
+import net.jxta.impl.util.TimeUtils;
+
+/**
+ *  A pending wait for advertisements matching a type, attribute and value.
+ *  The wait completes as soon as a matching advertisement is saved in the
+ *  cache manager of the discovery service, whether it was published locally
+ *  or arrived in a discovery response.
+ *
+ *  <p/>While {@link #get(long)} waits, remote queries are sent with
+ *  exponential backoff, starting at {@link #MIN_QUERY_INTERVAL} and up to
+ *  {@link #MAX_QUERY_INTERVAL}.
+ *
+ *  <p/>A wait must be {@link #cancel() cancelled} once it is no longer
+ *  needed so that it stops listening to the cache manager.
+ *
+ *  @see DiscoveryServiceImpl#awaitAdvertisements(int,String,String,Class)
+ */
+public class AdvertisementWait implements Cm.SaveListener {
+
+    /**
+     *  Log4J Logger
+     */
+    private final static Logger LOG = Logger.getLogger(AdvertisementWait.class.getName());
+
+    /**
+     *  Interval before the first repeated remote query.
+     */
+    public final static long MIN_QUERY_INTERVAL = 1 * TimeUtils.ASECOND;
+
+    /**
+     *  Longest interval between remote queries.
+     */
+    public final static long MAX_QUERY_INTERVAL = 30 * TimeUtils.ASECOND;
+
+    /**
+     *  Number of responses requested from each remote query.
+     */
+    private final static int QUERY_THRESHOLD = 20;
+
+    private final DiscoveryServiceImpl discovery;
+    private final Cm cm;
+    private final int type;
+    private final String dn;
+    private final String attr;
+    private final String value;
+    private final Class ofClass;
+
+    /**
+     *  The matching advertisements found so far. Guarded by this.
+     */
+    private final Vector results = new Vector();
+
+    /**
+     *  Set when an advertisement of our type was saved since we last looked
+     *  at the local advertisements. Guarded by this.
+     */
+    private boolean changed = true;
+
+    private boolean cancelled = false;
+
+    /**
+     *  Absolute time at which we send the next remote query and the interval
+     *  after it. Guarded by this.
+     */
+    private long nextQueryAt;
+    private long queryInterval = MIN_QUERY_INTERVAL;
+
+    /**
+     *  Creates a wait. Registers with the cache manager.
+     *
+     *@param  discovery  the discovery service to query.
+     *@param  cm         the cache manager of the discovery service.
+     *@param  type       the discovery type.
+     *@param  attr       the attribute to match or null for any.
+     *@param  value      the value to match. May begin and/or end with a
+     *      "*" wildcard.
+     *@param  ofClass    the class the advertisements must be an instance of.
+     */
+    AdvertisementWait(DiscoveryServiceImpl discovery, Cm cm, int type, String attr, String value, Class ofClass) {
+        this.discovery = discovery;
+        this.cm = cm;
+        this.type = type;
+        this.dn = DiscoveryServiceImpl.dirname[type];
+        this.attr = attr;
+        this.value = value;
+        this.ofClass = ofClass;
+
+        nextQueryAt = TimeUtils.timeNow();
+
+        cm.addSaveListener(this);
+    }
+
+    /**
+     *  {@inheritDoc}
+     *
+     *  <p/>Collects the saved advertisement if it matches.
+     */
+    public void advertisementSaved(String dn, String fn, Advertisement adv) {
+        if (!this.dn.equals(dn) || !ofClass.isInstance(adv)) {
+            return;
+        }
+
+        if (null != attr) {
+            Map indexables = adv.getIndexMap();
+            Object indexed = (null == indexables) ? null : indexables.get(attr);
+
+            if (!(indexed instanceof String) || ((null != value) && !matches((String) indexed, value))) {
+                return;
+            }
+        }
+
+        synchronized (this) {
+            if (!results.contains(adv)) {
+                results.add(adv);
+            }
+            changed = true;
+            notifyAll();
+        }
+    }
+
+    /**
+     *  Returns the matching advertisements, waiting for at least one to be
+     *  found for at most the specified time.
+     *
+     *@param  timeout  relative timeout in milliseconds. 0 means do not wait.
+     *@return          the matching advertisements, possibly none.
+     */
+    public Enumeration get(long timeout) {
+        long waitUntil = TimeUtils.toAbsoluteTimeMillis(timeout);
+
+        while (true) {
+            synchronized (this) {
+                if (changed && !cancelled) {
+                    changed = false;
+                    searchLocal();
+                }
+
+                long now = TimeUtils.timeNow();
+
+                if (cancelled || !results.isEmpty() || (TimeUtils.toRelativeTimeMillis(waitUntil, now) <= 0)) {
+                    return ((Vector) results.clone()).elements();
+                }
+
+                if (TimeUtils.toRelativeTimeMillis(nextQueryAt, now) > 0) {
+                    try {
+                        wait(TimeUtils.toRelativeTimeMillis(Math.min(nextQueryAt, waitUntil), now));
+                    } catch (InterruptedException woken) {
+                        Thread.interrupted();
+                        return ((Vector) results.clone()).elements();
+                    }
+                    continue;
+                }
+
+                if (LOG.isEnabledFor(Level.DEBUG)) {
+                    LOG.debug("Remote query for " + dn + " " + attr + "=" + value + ". Next in " + queryInterval + "ms");
+                }
+
+                nextQueryAt = TimeUtils.toAbsoluteTimeMillis(queryInterval);
+                queryInterval = Math.min(queryInterval * 2, MAX_QUERY_INTERVAL);
+            }
+
+            // Not while holding this; responses are saved and reported to
+            // us by other threads.
+            discovery.getRemoteAdvertisements(null, type, attr, value, QUERY_THRESHOLD);
+        }
+    }
+
+    /**
+     *  @return true if a matching advertisement was found.
+     */
+    public synchronized boolean isDone() {
+        return !results.isEmpty();
+    }
+
+    /**
+     *  Stops listening to the cache manager and releases any thread waiting
+     *  in {@link #get(long)}.
+     */
+    public void cancel() {
+        cm.removeSaveListener(this);
+
+        synchronized (this) {
+            cancelled = true;
+            notifyAll();
+        }
+    }
+
+    /**
+     *  Looks for matching advertisements which are already cached. Called
+     *  while holding this.
+     */
+    private void searchLocal() {
+        try {
+            Enumeration res = discovery.getLocalAdvertisements(type, attr, value);
+
+            while (res.hasMoreElements()) {
+                Object adv = res.nextElement();
+
+                if (ofClass.isInstance(adv) && !results.contains(adv)) {
+                    results.add(adv);
+                }
+            }
+        } catch (IOException failed) {
+            if (LOG.isEnabledFor(Level.DEBUG)) {
+                LOG.debug("Failure searching local advertisements", failed);
+            }
+        }
+    }
+
+    /**
+     *  Matches a value the way the cache manager does: ignoring case, with an
+     *  optional "*" wildcard at the beginning and/or at the end of the
+     *  pattern.
+     */
+    static boolean matches(String value, String pattern) {
+        String lowerValue = value.toLowerCase();
+        String lowerPattern = pattern.toLowerCase();
+        boolean anyStart = lowerPattern.startsWith("*");
+        boolean anyEnd = (lowerPattern.length() > 1) && lowerPattern.endsWith("*");
+
+        if (anyStart) {
+            lowerPattern = lowerPattern.substring(1);
+        }
+        if (anyEnd) {
+            lowerPattern = lowerPattern.substring(0, lowerPattern.length() - 1);
+        }
+
+        if (anyStart && anyEnd) {
+            return -1 != lowerValue.indexOf(lowerPattern);
+        } else if (anyStart) {
+            return lowerValue.endsWith(lowerPattern);
+        } else if (anyEnd) {
+            return lowerValue.startsWith(lowerPattern);
+        } else {
+            return lowerValue.equals(lowerPattern);
+        }
+    }
+}
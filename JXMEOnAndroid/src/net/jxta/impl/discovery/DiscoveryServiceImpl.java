@@ -910,6 +910,27 @@ public class DiscoveryServiceImpl implements DiscoveryService,
         return (listeners.remove(listener));
     }
 
+    /**
+     *  Starts waiting for advertisements matching the specified type,
+     *  attribute and value. The returned wait completes as soon as a matching
+     *  advertisement is published locally or arrives in a discovery response.
+     *
+     *@param  type     the discovery type.
+     *@param  attr     the attribute to match or null for any.
+     *@param  value    the value to match. May begin and/or end with a "*"
+     *      wildcard.
+     *@param  ofClass  the class the advertisements must be an instance of.
+     *@return          the wait. Must be cancelled once no longer needed.
+     */
+    public AdvertisementWait awaitAdvertisements(int type, String attr, String value, Class ofClass) {
+
+        if ((type > 2) || (type < 0)) {
+            throw new IllegalArgumentException("Unknown Advertisement type");
+        }
+
+        return new AdvertisementWait(this, cm, type, attr, value, ofClass);
+    }
+
     /**
      *  {@inheritDoc}
      */
@@ -115,6 +115,11 @@ public abstract class BlockingMessenger extends AbstractMessenger {
      */
     private String currentParam = null;
 
+    /**
+     * The messages sent as one burst, starting with the outstanding message, or null if it is sent alone.
+     */
+    private Message[] currentBatch = null;
+
     /**
      * The exception that caused that message to not be sent.
      */
@@ -344,6 +349,7 @@ public abstract class BlockingMessenger extends AbstractMessenger {
         currentMessage = msg;
         currentService = service;
         currentParam = param;
+        currentBatch = null;
         currentThrowable = null;
     }
 
@@ -558,9 +564,83 @@ public abstract class BlockingMessenger extends AbstractMessenger {
             return;
         }
 
-        // Failure. See how we can manage to throw it.
+        throw asIOException(failure);
+    }
+
+    /**
+     * Sends messages as one burst, blocking until they are sent or the send fails. The messages are handed to the transport
+     * together, which may send them for less than the price of sending each of them; see {@link #sendMessagesBImpl}.
+     *
+     * @param msgs the messages, all sent to the same service and param.
+     * @param service the service name override, or null.
+     * @param serviceParam the service param override, or null.
+     * @return the number of messages sent, from the first. If less than all, sending the next one failed. It may be sent
+     * again on its own to learn why.
+     * @throws IOException if none of the messages could be sent.
+     */
+    public int sendMessagesB(Message[] msgs, String service, String serviceParam) throws IOException {
+
+        if (0 == msgs.length) {
+            return 0;
+        }
+
+        int action = ACTION_NONE;
+        synchronized(stateMachine) {
+            try {
+                while ((currentMessage != null) && !inputClosed) {
+                    stateMachine.wait();
+                }
+            } catch(InterruptedException ie) {
+                throw new InterruptedIOException();
+            }
+
+            if (inputClosed) {
+                throw new IOException("Messenger is closed. It cannot be used to send messages");
+            }
+
+            // The burst takes the place of the one pending msg; the first message stands for it.
+            storeCurrent(msgs[0], service, serviceParam);
+            currentBatch = msgs;
+            stateMachine.saturatedEvent();
+            action = eventCalled();
+        }
+
+        notifyChange();                               // We called an event. State may have changed.
+        int sent = performDeferredAction(action);     // We called an event. There may be an action. (start, normally).
+
+        // As with sendMessageB: if failed, the currentMessage is still our first msg.
+        Throwable failure = null;
+        synchronized(stateMachine) {
+            if (currentMessage == msgs[0]) {
+                failure = currentThrowable;
+                if (failure == null) {
+                    failure = new IOException("Unknown error");
+                }
+                // Ok, let it go, now.
+                storeCurrent(null, null, null);
+            }
+        }
+
+        if ((failure == null) && (0 == sent)) {
+            failure = new IOException("Unknown error");
+        }
+
+        if (failure == null) {
+            for (int eachMsg = 0; eachMsg < sent; eachMsg++) {
+                msgs[eachMsg].setMessageProperty(Messenger.class, OutgoingMessageEvent.SUCCESS);
+            }
+            return sent;
+        }
+
+        throw asIOException(failure);
+    }
+
+    /**
+     * Converts the failure of a send to the exception to throw. Runtime exceptions and errors are thrown as they are.
+     */
+    private static IOException asIOException(Throwable failure) {
         if (failure instanceof IOException) {
-            throw (IOException) failure;
+            return (IOException) failure;
         }
         if (failure instanceof RuntimeException) {
             throw (RuntimeException) failure;
@@ -572,7 +652,7 @@ public abstract class BlockingMessenger extends AbstractMessenger {
         IOException failed = new IOException("Failure sending message");
         failed.initCause(failure);
 
-        throw failed;
+        return failed;
     }
 
     public final boolean sendMessageN(Message msg, String service, String serviceParam) {
@@ -660,15 +740,15 @@ public abstract class BlockingMessenger extends AbstractMessenger {
      * keep at least some flexibility.
      */
 
-    private void performDeferredAction(int action) {
+    private int performDeferredAction(int action) {
         switch(action) {
         case ACTION_SEND:
-            sendIt();
-            break;
+            return sendIt();
         case ACTION_CONNECT:
             cantConnect();
             break;
         }
+        return 0;
     }
 
     /**
@@ -694,20 +774,27 @@ public abstract class BlockingMessenger extends AbstractMessenger {
      * sendMessage is able to see that its own message was processed fully. (this is a small cheat regarding the
      * state of saturation after failall, but that's not actually detectable from the outside: input is closed
      * before failall anyway. See failall for that part.
+     *
+     * @return the number of messages sent: one, or as many of the current burst as were sent. Zero if it failed.
      */
-    private void sendIt() {
+    private int sendIt() {
 
         if (currentMessage == null) {
             if (LOG.isEnabledFor(Level.ERROR)) {
                 LOG.error("Internal error. Asked to send with no message.");
             }
-            return;
+            return 0;
         }
 
         int action = ACTION_NONE;
+        int sent = 1;
 
         try {
-            sendMessageBImpl(currentMessage, currentService, currentParam);
+            if (currentBatch != null) {
+                sent = sendMessagesBImpl(currentBatch, currentService, currentParam);
+            } else {
+                sendMessageBImpl(currentMessage, currentService, currentParam);
+            }
         } catch(Throwable any) {
             // Did not work. We report the link down and let the state machine tell us when to fail the msg.  It is assumed that
             // when this happens, the cnx is already down.  FIXME - jice@jxta.org 20040413: check with the various kind of funky
@@ -719,10 +806,10 @@ public abstract class BlockingMessenger extends AbstractMessenger {
             }
             notifyChange();
             performDeferredAction(action); // we expect connect but let the state machine decide.
-            return;
+            return 0;
         }
 
-        // Worked.
+        // Worked. If only part of a burst did, the caller still has the rest.
 
         synchronized(stateMachine) {
             storeCurrent(null, null, null);
@@ -734,6 +821,8 @@ public abstract class BlockingMessenger extends AbstractMessenger {
         notifyChange();
 
         performDeferredAction(action); // should be none but let the state machine decide.
+
+        return sent;
     }
 
     /**
@@ -768,6 +857,27 @@ public abstract class BlockingMessenger extends AbstractMessenger {
      */
     protected abstract boolean sendMessageBImpl(Message message, String service, String param) throws IOException;
 
+    /**
+     * send messages as one burst. block as needed. By default they are sent one at a time with sendMessageBImpl;
+     * transports which can send several messages for the price of one, for example with a single flush, override this.
+     *
+     * @return the number of messages sent, from the first. If less than all, sending the next one failed.
+     * @throws IOException if the first message could not be sent.
+     */
+    protected int sendMessagesBImpl(Message[] messages, String service, String param) throws IOException {
+        for (int eachMsg = 0; eachMsg < messages.length; eachMsg++) {
+            try {
+                sendMessageBImpl(messages[eachMsg], service, param);
+            } catch(IOException failed) {
+                if (eachMsg == 0) {
+                    throw failed;
+                }
+                return eachMsg;
+            }
+        }
+        return messages.length;
+    }
+
     /**
      * return true if this messenger has not been used for a long time. The definition of long time is: "so long that closing it
      * is worth the risk of having to re-open". A messenger should self close if it thinks it meets the definition of
@@ -100,6 +100,10 @@ import net.jxta.impl.endpoint.relay.RelayClient;
 import net.jxta.impl.endpoint.router.EndpointRouter;
 import net.jxta.impl.util.FastHashMap;
 import net.jxta.impl.util.SequenceIterator;
+import net.jxta.impl.util.TimeUtils;
+import net.jxta.impl.util.metrics.Counter;
+import net.jxta.impl.util.metrics.Histogram;
+import net.jxta.impl.util.metrics.MetricsRegistry;
 import net.jxta.peergroup.PeerGroup;
 import net.jxta.peergroup.PeerGroupID;
 import net.jxta.protocol.AccessPointAdvertisement;
@@ -135,6 +139,17 @@ public class EndpointServiceImpl implements EndpointService, MessengerEventListe
      */
     private final static Logger LOG = Logger.getLogger(EndpointServiceImpl.class.getName());
 
+    /**
+     *  Metrics shared by all of the endpoint services. The demux time includes
+     *  the time spent in the listeners, which are called synchronously.
+     */
+    private final static Counter DEMUX_MESSAGES = MetricsRegistry.getRegistry().counter("endpoint.demux.messages");
+    private final static Counter DEMUX_DISCARDED = MetricsRegistry.getRegistry().counter("endpoint.demux.discarded");
+    private final static Histogram DEMUX_TIME = MetricsRegistry.getRegistry().histogram("endpoint.demux.time");
+    private final static Counter PROPAGATED = MetricsRegistry.getRegistry().counter("endpoint.propagate.sent");
+    private final static Counter PROPAGATE_FILTERED = MetricsRegistry.getRegistry().counter("endpoint.propagate.filtered");
+    private final static Counter PROPAGATE_ERRORS = MetricsRegistry.getRegistry().counter("endpoint.propagate.errors");
+
     /**
      *  Element name in which the message destination address will be placed.
      *  This element is used for loopback detection during propagate. Only
@@ -211,6 +226,13 @@ public class EndpointServiceImpl implements EndpointService, MessengerEventListe
      */
     private final List incomingFilterListeners = new ArrayList();
 
+    /**
+     *  A copy of {@link #incomingFilterListeners} which is replaced, not
+     *  modified, whenever the filters change so that it can be read without
+     *  synchronization.
+     */
+    private volatile FilterListenerAndMask[] incomingFilters = new FilterListenerAndMask[0];
+
     /**
      *  The set of listener managed by this instance of the endpoint svc. <p/>
      *
@@ -220,6 +242,12 @@ public class EndpointServiceImpl implements EndpointService, MessengerEventListe
      */
     private final Map incomingMessageListeners = new FastHashMap(16);
 
+    /**
+     *  The routing table built from {@link #incomingMessageListeners}. It is
+     *  replaced, not modified, whenever the listeners change.
+     */
+    private volatile ListenerRoutes incomingRoutes = ListenerRoutes.EMPTY;
+
     /**
      *  if true then this service has been initialized
      */
@@ -247,6 +275,12 @@ public class EndpointServiceImpl implements EndpointService, MessengerEventListe
     private final Map messengerMap = new WeakHashMap(32);
     private String myServiceName = null;
     private final List outgoingFilterListeners = new ArrayList();
+
+    /**
+     *  A copy of {@link #outgoingFilterListeners}, as for
+     *  {@link #incomingFilters}.
+     */
+    private volatile FilterListenerAndMask[] outgoingFilters = new FilterListenerAndMask[0];
     private EndpointService parentEndpoint = null;
     private PeerGroup parentGroup = null;
 
@@ -336,6 +370,7 @@ public class EndpointServiceImpl implements EndpointService, MessengerEventListe
         FilterListenerAndMask aFilter = new FilterListenerAndMask(listener, namespace, name);
 
         incomingFilterListeners.add(aFilter);
+        incomingFilters = (FilterListenerAndMask[]) incomingFilterListeners.toArray(new FilterListenerAndMask[incomingFilterListeners.size()]);
     }
 
 
@@ -380,6 +415,7 @@ public class EndpointServiceImpl implements EndpointService, MessengerEventListe
             }
 
             incomingMessageListeners.put(address, listener);
+            incomingRoutes = new ListenerRoutes(incomingMessageListeners);
         }
 
         if (parentEndpoint != null) {
@@ -468,6 +504,7 @@ public class EndpointServiceImpl implements EndpointService, MessengerEventListe
         FilterListenerAndMask aFilter = new FilterListenerAndMask(listener, namespace, name);
 
         outgoingFilterListeners.add(aFilter);
+        outgoingFilters = (FilterListenerAndMask[]) outgoingFilterListeners.toArray(new FilterListenerAndMask[outgoingFilterListeners.size()]);
     }
 
 
@@ -708,6 +745,8 @@ public class EndpointServiceImpl implements EndpointService, MessengerEventListe
      */
     public void demux(Message msg) {
 
+        long demuxBeginTime = TimeUtils.timeNow();
+
         // Get the message destination
         MessageElement dstAddressElement = msg.getMessageElement(EndpointServiceImpl.MESSAGE_DESTINATION_NS,
                 EndpointServiceImpl.MESSAGE_DESTINATION_NAME);
@@ -717,11 +756,12 @@ public class EndpointServiceImpl implements EndpointService, MessengerEventListe
             if (LOG.isEnabledFor(Level.WARN)) {
                 LOG.warn(msg + " has no destination address. Discarded");
             }
+            DEMUX_DISCARDED.increment();
             return;
         }
 
         msg.removeMessageElement(dstAddressElement);
-        EndpointAddress dstAddress = new EndpointAddress(dstAddressElement.toString());
+        EndpointAddress dstAddress = EndpointAddress.intern(dstAddressElement.toString());
 
         // Get the message source
         MessageElement srcAddressElement = msg.getMessageElement(EndpointServiceImpl.MESSAGE_SOURCE_NS, EndpointServiceImpl.MESSAGE_SOURCE_NAME);
@@ -730,12 +770,16 @@ public class EndpointServiceImpl implements EndpointService, MessengerEventListe
             if (LOG.isEnabledFor(Level.WARN)) {
                 LOG.warn(msg + " has no source address. Discarded");
             }
+            DEMUX_DISCARDED.increment();
             return;
         }
         msg.removeMessageElement(srcAddressElement);
-        EndpointAddress msgScrAddress = new EndpointAddress(srcAddressElement.toString());
+        EndpointAddress msgScrAddress = EndpointAddress.intern(srcAddressElement.toString());
         //MessageUtil.printMessageStats(msg,true);
         processIncomingMessage(msg, msgScrAddress, dstAddress);
+
+        DEMUX_MESSAGES.increment();
+        DEMUX_TIME.record(TimeUtils.toRelativeTimeMillis(TimeUtils.timeNow(), demuxBeginTime));
     }
 
     /**
@@ -1272,8 +1316,7 @@ public class EndpointServiceImpl implements EndpointService, MessengerEventListe
                     }
                 }
 
-                connAddr.setServiceName(realService);
-                connAddr.setServiceParameter(realParam);
+                connAddr = new EndpointAddress(connAddr, realService, realParam);
 
             }
         }
@@ -1355,24 +1398,58 @@ public class EndpointServiceImpl implements EndpointService, MessengerEventListe
             EndpointAddress dstAddress,
             boolean incoming) {
 
-        Iterator eachFilter = incoming ? incomingFilterListeners.iterator() : outgoingFilterListeners.iterator();
+        FilterListenerAndMask[] filters = incoming ? incomingFilters : outgoingFilters;
 
-        while (eachFilter.hasNext()) {
-            FilterListenerAndMask aFilter = (FilterListenerAndMask) eachFilter.next();
+        if (0 == filters.length) {
+            return message;
+        }
 
-            Message.ElementIterator eachElement = message.getMessageElements();
+        // The namespace and name of each element of the message, taken once
+        // and again only if a filter replaces the message.
+        Message elementsOf = null;
+        String[] namespaces = null;
+        String[] names = null;
 
-            while (eachElement.hasNext()) {
-                MessageElement anElement = (MessageElement) eachElement.next();
+        for (int eachFilter = 0; eachFilter < filters.length; eachFilter++) {
+            FilterListenerAndMask aFilter = filters[eachFilter];
 
-                if ((null != aFilter.namespace) && (!aFilter.namespace.equals(eachElement.getNamespace()))) {
-                    continue;
+            if (elementsOf != message) {
+                List elementNamespaces = new ArrayList();
+                List elementNames = new ArrayList();
+                Message.ElementIterator eachElement = message.getMessageElements();
+
+                while (eachElement.hasNext()) {
+                    MessageElement anElement = (MessageElement) eachElement.next();
+
+                    elementNamespaces.add(eachElement.getNamespace());
+                    elementNames.add(anElement.getElementName());
                 }
 
-                if ((null != aFilter.name) && (!aFilter.name.equals(anElement.getElementName()))) {
-                    continue;
+                namespaces = (String[]) elementNamespaces.toArray(new String[elementNamespaces.size()]);
+                names = (String[]) elementNames.toArray(new String[elementNames.size()]);
+                elementsOf = message;
+            }
+
+            // The filter is called once for each element matching its mask.
+            int matches = 0;
+
+            if ((null == aFilter.namespace) && (null == aFilter.name)) {
+                matches = names.length;
+            } else {
+                for (int eachElement = 0; eachElement < names.length; eachElement++) {
+                    if ((null != aFilter.namespace) && (!aFilter.namespace.equals(namespaces[eachElement]))) {
+                        continue;
+                    }
+
+                    if ((null != aFilter.name) && (!aFilter.name.equals(names[eachElement]))) {
+                        continue;
+                    }
+
+                    matches++;
                 }
+            }
 
+            while (matches-- > 0) {
                 message = aFilter.listener.filterMessage(message, srcAddress, dstAddress);
 
                 if (null == message) {
@@ -1446,34 +1523,19 @@ public class EndpointServiceImpl implements EndpointService, MessengerEventListe
             return;
         }
 
-        // Now that we know the original service name is valid, finish building the decoded version.
-        if (demangledAddress != dstAddress) {
-            decodedServiceName = dstAddress.getServiceName() + "/" + decodedServiceName;
-        }
-
-        // First, try the regular destination
-        EndpointListener h = null;
-
-        if (null != decodedServiceParam) {
-            h = (EndpointListener) incomingMessageListeners.get(decodedServiceName + "/" + decodedServiceParam);
-        }
-
-        // Didn't find it with param, maybe there is a generic listener for the service
-        if (h == null) {
-            h = (EndpointListener) incomingMessageListeners.get(decodedServiceName);
-        }
+        // The original service name is kept under the group redirection, if any.
+        String groupServiceName = (demangledAddress != dstAddress) ? dstAddress.getServiceName() : null;
 
-        // Didn't find it still, try the compatibility name.
-        if (h == null) {
-            h = (EndpointListener) incomingMessageListeners.get(decodedServiceName + decodedServiceParam);
-        }
+        // Try the regular destination, then a generic listener for the service
+        // and then the compatibility name.
+        EndpointListener h = incomingRoutes.get(groupServiceName, decodedServiceName, decodedServiceParam);
 
         // Still no listener? oh well.
         if (h == null) {
             if (LOG.isEnabledFor(Level.WARN)) {
                 LOG.warn("No listener for '" + dstAddress + "' in group " +
                          group +
-                         "\ndecodedServiceName :" + decodedServiceName +
+                         "\ndecodedServiceName :" + ((null != groupServiceName) ? (groupServiceName + "/" + decodedServiceName) : decodedServiceName) +
                          "\tdecodedServiceParam :" + decodedServiceParam);
             }
             //printMessageStats(msg, true);
@@ -1499,10 +1561,6 @@ public class EndpointServiceImpl implements EndpointService, MessengerEventListe
      */
     public void propagate(Message srcMsg, String serviceName, String serviceParam)
              throws IOException {
-        long startPropagationTime = 0;
-
-        Metrics metrics = new Metrics();
-
         // Keep the orig unchanged for metering reference and caller's benefit, but
         // we are forced to clone it here, because we add a header.
         Message myMsg = (Message) srcMsg.clone();
@@ -1514,13 +1572,13 @@ public class EndpointServiceImpl implements EndpointService, MessengerEventListe
         // Do the local transports with the plain address.
         Iterator eachProto = getAllLocalTransports();
 
-        propagateThroughAll(eachProto, (Message) myMsg.clone(), serviceName, serviceParam, metrics);
+        propagateThroughAll(eachProto, (Message) myMsg.clone(), serviceName, serviceParam);
 
         // Do the parent transports with a mangled address.
         if (parentEndpoint != null) {
             eachProto = parentEndpoint.getAllMessageTransports();
             //FIXME what happens when service name, and/or param are null
-            propagateThroughAll(eachProto, (Message) myMsg.clone(), myServiceName, serviceName + "/" + serviceParam, metrics);
+            propagateThroughAll(eachProto, (Message) myMsg.clone(), myServiceName, serviceName + "/" + serviceParam);
         }
     }
 
@@ -1531,13 +1589,11 @@ public class EndpointServiceImpl implements EndpointService, MessengerEventListe
      *@param  myMsg         Description of the Parameter
      *@param  serviceName   Description of the Parameter
      *@param  serviceParam  Description of the Parameter
-     *@param  metrics       Description of the Parameter
      */
     private void propagateThroughAll(Iterator eachProto,
             Message myMsg,
             String serviceName,
-            String serviceParam,
-            Metrics metrics) {
+            String serviceParam) {
 
         Message filtered = null;
 
@@ -1567,11 +1623,14 @@ public class EndpointServiceImpl implements EndpointService, MessengerEventListe
                     if (LOG.isEnabledFor(Level.DEBUG)) {
                         LOG.debug("   message " + filtered + " discarded upon filter decision");
                     }
+                    PROPAGATE_FILTERED.increment();
                     break;
                 }
 
                 sender.propagate((Message) filtered.clone(), serviceName, serviceParam, null);
+                PROPAGATED.increment();
             } catch (Exception e) {
+                PROPAGATE_ERRORS.increment();
                 if (LOG.isEnabledFor(Level.WARN)) {
                     LOG.warn("Failed propagating message " + filtered + " on message transport " + aTransport, e);
                 }
@@ -1616,6 +1675,7 @@ public class EndpointServiceImpl implements EndpointService, MessengerEventListe
 
             if (listener == aFilter.listener) {
                 eachListener.remove();
+                incomingFilters = (FilterListenerAndMask[]) incomingFilterListeners.toArray(new FilterListenerAndMask[incomingFilterListeners.size()]);
                 return listener;
             }
         }
@@ -1650,6 +1710,7 @@ public class EndpointServiceImpl implements EndpointService, MessengerEventListe
         synchronized (incomingMessageListeners) {
             removedListener = (QuotaIncomingMessageListener) incomingMessageListeners.remove(address);
             if (removedListener != null) {
+                incomingRoutes = new ListenerRoutes(incomingMessageListeners);
                 result = removedListener.getListener();
                 // We need to explicitly close the  QuotaIncomingMessageListener
                 removedListener.close();
@@ -1716,6 +1777,7 @@ public class EndpointServiceImpl implements EndpointService, MessengerEventListe
             if ((listener == aFilter.listener) && ((null != namespace) ? namespace.equals(aFilter.namespace) : (null == aFilter.namespace))
                      && ((null != name) ? name.equals(aFilter.name) : (null == aFilter.name))) {
                 eachListener.remove();
+                outgoingFilters = (FilterListenerAndMask[]) outgoingFilterListeners.toArray(new FilterListenerAndMask[outgoingFilterListeners.size()]);
                 return listener;
             }
         }
@@ -1769,6 +1831,7 @@ public class EndpointServiceImpl implements EndpointService, MessengerEventListe
         if (incomingMessageListeners != null) {
             try {
                 incomingMessageListeners.clear();
+                incomingRoutes = ListenerRoutes.EMPTY;
             } catch (Exception ez) {
                 // Not much can be done
             }
@@ -1925,6 +1988,29 @@ public class EndpointServiceImpl implements EndpointService, MessengerEventListe
                 throw any;
             }
         }
+
+
+        /**
+         *  Hands a burst of messages to the transport messenger at once, so
+         *  that the transport can send them together.
+         *
+         *@param  msgs             the messages
+         *@param  service          the service override
+         *@param  param            the service param override
+         *@return                  the number of messages sent
+         *@exception  IOException  if none could be sent
+         */
+        protected int sendMessagesBImpl(Message[] msgs, String service, String param) throws IOException {
+            if (!(cachedMessenger instanceof BlockingMessenger)) {
+                return super.sendMessagesBImpl(msgs, service, param);
+            }
+            try {
+                return ((BlockingMessenger) cachedMessenger).sendMessagesB(msgs, service, param);
+            } catch (IOException any) {
+                cachedMessenger = null;
+                throw any;
+            }
+        }
     }
 
 
@@ -1988,15 +2074,5 @@ public class EndpointServiceImpl implements EndpointService, MessengerEventListe
         }
     }
 
-
-    // A vector for statistics between propagateThroughAll and its invoker.
-    /**
-     *  Description of the Class
-     */
-    private static class Metrics {
-        int numErrorsPropagated = 0;
-        int numFilteredOut = 0;
-        int numPropagatedTo = 0;
-    }
 }
 
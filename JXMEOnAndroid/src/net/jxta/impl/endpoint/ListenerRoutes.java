@@ -0,0 +1,219 @@
+/*
+ *
+ * $Id$
+ *
+ * Copyright (c) 2001 Sun Microsystems, Inc.  All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *
+ * 3. The end-user documentation included with the redistribution,
+ *    if any, must include the following acknowledgment:
+ *       "This product includes software developed by the
+ *       Sun Microsystems, Inc. for Project JXTA."
+ *    Alternately, this acknowledgment may appear in the software itself,
+ *    if and wherever such third-party acknowledgments normally appear.
+ *
+ * 4. The names "Sun", "Sun Microsystems, Inc.", "JXTA" and "Project JXTA"
+ *    must not be used to endorse or promote products derived from this
+ *    software without prior written permission. For written
+ *    permission, please contact Project JXTA at http://www.jxta.org.
+ *
+ * 5. Products derived from this software may not be called "JXTA",
+ *    nor may "JXTA" appear in their name, without prior written
+ *    permission of Sun.
+ *
+ * THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED.  IN NO EVENT SHALL SUN MICROSYSTEMS OR
+ * ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ * USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ * OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ *
+ * ====================================================================
+ *
+ * This software consists of voluntary contributions made by many
+ * individuals on behalf of Project JXTA.  For more
+ * information on Project JXTA, please see
+ * <http://www.jxta.org/>.
+ *
+ * This license is based on the BSD license adopted by the Apache Foundation.
+ */
+package net.jxta.impl.endpoint;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import net.jxta.endpoint.EndpointListener;
+
+/**
+ * An immutable routing table from the destination of incoming messages to
+ * the listener which receives them.
+ *
+ * <p/>Listeners are registered under an address of the form
+ * <code>serviceName[/serviceParam]</code> where the param may itself contain
+ * '/'. The table is a tree of the '/' separated segments of each address.
+ * Every node also maps the remainder of each address following it, so that
+ * a destination can be resolved from its parts, such as the group, service
+ * name and service param of a redirected message, without joining them into
+ * an address.
+ */
+final class ListenerRoutes {
+
+    /**
+     * The table with no listeners.
+     */
+    final static ListenerRoutes EMPTY = new ListenerRoutes(new HashMap());
+
+    /**
+     * A segment of one or more addresses.
+     */
+    private static final class Node {
+
+        /**
+         * The listener whose address ends with this segment.
+         */
+        EndpointListener listener = null;
+
+        /**
+         * Map of following segment to {@link Node}.
+         */
+        Map children = null;
+
+        /**
+         * Map of the remainder of an address after this segment and its '/'
+         * to {@link EndpointListener}.
+         */
+        Map remainders = null;
+    }
+
+    /**
+     * Map of first segment to {@link Node}.
+     */
+    private final Map roots = new HashMap();
+
+    /**
+     * Builds the routing table.
+     *
+     * @param listeners Map of address String to {@link EndpointListener}.
+     */
+    ListenerRoutes(Map listeners) {
+        Iterator eachListener = listeners.entrySet().iterator();
+
+        while (eachListener.hasNext()) {
+            Map.Entry aListener = (Map.Entry) eachListener.next();
+
+            add((String) aListener.getKey(), (EndpointListener) aListener.getValue());
+        }
+    }
+
+    private void add(String address, EndpointListener listener) {
+        Map level = roots;
+        int start = 0;
+
+        while (true) {
+            int slashAt = address.indexOf('/', start);
+            String segment = (-1 == slashAt) ? address.substring(start) : address.substring(start, slashAt);
+            Node node = (Node) level.get(segment);
+
+            if (null == node) {
+                node = new Node();
+                level.put(segment, node);
+            }
+
+            if (-1 == slashAt) {
+                node.listener = listener;
+                return;
+            }
+
+            if (null == node.remainders) {
+                node.remainders = new HashMap();
+                node.children = new HashMap();
+            }
+
+            node.remainders.put(address.substring(slashAt + 1), listener);
+            level = node.children;
+            start = slashAt + 1;
+        }
+    }
+
+    /**
+     * Returns the listener for a destination. The listener registered for
+     * the service and param is preferred, then the listener for the service
+     * alone and finally a listener registered under the service name and
+     * param run together.
+     *
+     * @param groupName the service name of the group redirection or
+     * <code>null</code> if the destination was not redirected.
+     * @param serviceName the service name of the destination.
+     * @param serviceParam the service param of the destination or
+     * <code>null</code>.
+     * @return the listener or <code>null</code> if there is none.
+     */
+    EndpointListener get(String groupName, String serviceName, String serviceParam) {
+        Node group = null;
+        Map services = roots;
+
+        if (null != groupName) {
+            group = (Node) roots.get(groupName);
+
+            if ((null == group) || (null == group.children)) {
+                return null;
+            }
+
+            services = group.children;
+        }
+
+        Node service = (Node) services.get(serviceName);
+        EndpointListener listener = null;
+
+        if (null != service) {
+            if ((null != serviceParam) && (null != service.remainders)) {
+                listener = (EndpointListener) service.remainders.get(serviceParam);
+            }
+
+            if (null == listener) {
+                listener = service.listener;
+            }
+        }
+
+        if ((null == listener) && (null != serviceParam)) {
+            // The compatibility name
+            String joined = serviceName + serviceParam;
+
+            if (null != group) {
+                listener = (EndpointListener) group.remainders.get(joined);
+            } else {
+                int slashAt = joined.indexOf('/');
+
+                if (-1 == slashAt) {
+                    service = (Node) roots.get(joined);
+                    listener = (null == service) ? null : service.listener;
+                } else {
+                    service = (Node) roots.get(joined.substring(0, slashAt));
+                    if ((null != service) && (null != service.remainders)) {
+                        listener = (EndpointListener) service.remainders.get(joined.substring(slashAt + 1));
+                    }
+                }
+            }
+        }
+
+        return listener;
+    }
+}
@@ -58,14 +58,14 @@
 package net.jxta.impl.endpoint;
 
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.SequenceInputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
@@ -130,7 +130,7 @@ public class WireFormatMessageBinary implements WireFormatMessage {
     /**
      *  Our instantiator.
      */
-    static class Instantiator implements WireFormatMessageFactory.Instantiator {
+    static class Instantiator implements WireFormatMessageFactory.BufferInstantiator {
 
         /**
          * Creates new WireFormatMessageBinary Instantiator
@@ -163,9 +163,9 @@ public class WireFormatMessageBinary implements WireFormatMessage {
 
             DataInputStream dis = new DataInputStream(is);
 
-            HashMap idToNamespace = readHeader(dis);
+            String [] namespaces = readHeader(dis);
 
-            int elementCnt = dis.readShort();
+            int elementCnt = dis.readUnsignedShort();
 
             if (LOG.isEnabledFor(Level.DEBUG))
                 LOG.debug("fromWire : message element count " + elementCnt + " from " + is);
@@ -189,16 +189,16 @@ public class WireFormatMessageBinary implements WireFormatMessage {
                 if(null == anElement)
                     break;
 
-                String namespace = (String) idToNamespace.get(anElement[0]);
+                int nsid = ((Integer) anElement[0]).intValue();
 
-                if(null == namespace) {
+                if(nsid >= namespaces.length) {
                     if (LOG.isEnabledFor(Level.ERROR))
                         LOG.error("Element identified a namespace which was not defined for this message.");
 
                     throw new IOException("Element identified a namespace which was not defined for this message.");
                 }
 
-                msg.addMessageElement(namespace, (MessageElement) anElement[1]);
+                msg.addMessageElement(namespaces[nsid], (MessageElement) anElement[1]);
                 eachElement++;
 
                 if (LOG.isEnabledFor(Level.DEBUG))
@@ -225,15 +225,217 @@ public class WireFormatMessageBinary implements WireFormatMessage {
             }
         }
 
+        /**
+         * {@inheritDoc}
+         *
+         *  <p/>The element values are not copied, the message elements refer
+         *  to the buffer's backing array.
+         */
+        public Message fromBuffer(ByteBuffer buffer, MimeMediaType type, MimeMediaType contentEncoding) throws IOException {
+            // FIXME 20020504 bondolo@jxta.org  Ignores type and contentEncoding completely.
+            if(!buffer.hasArray()) {
+                byte[] copy = new byte[buffer.remaining()];
+
+                buffer.get(copy);
+                buffer = ByteBuffer.wrap(copy);
+            }
+
+            ByteBuffer frame = buffer.slice();
+            Message msg = new Message();
+
+            try {
+                String [] namespaces = readHeader(frame);
+
+                int elementCnt = frame.getShort() & 0xFFFF;
+
+                if (LOG.isEnabledFor(Level.DEBUG))
+                    LOG.debug("fromBuffer : message element count " + elementCnt + " for " + msg);
+
+                int eachElement = 0;
+                while(((0 == elementCnt) && frame.hasRemaining()) || (eachElement < elementCnt)) {
+                    readMessageElement(frame, namespaces, msg);
+                    eachElement++;
+                }
+            } catch(BufferUnderflowException truncated) {
+                if (LOG.isEnabledFor(Level.ERROR))
+                    LOG.error("Message truncated at " + frame.position() + " of " + frame.limit() + " bytes for " + msg);
+
+                throw new EOFException("Message truncated at " + frame.position() + " of " + frame.limit() + " bytes");
+            }
+
+            buffer.position(buffer.position() + frame.position());
+
+            return msg;
+        }
+
+        /**
+         *  Read in a message header from the provided buffer.
+         *
+         *  @param frame  the buffer to read from.
+         *  @return array of namespaces indexed by namespace id.
+         *  @throws IOException if the header is invalid.
+         */
+        private static String [] readHeader(ByteBuffer frame) throws IOException {
+            if (frame.get() != 'j' || frame.get() != 'x' || frame.get() != 'm' || frame.get() != 'g') {
+                IOException failure = new IOException("Not a message (incorrect signature)");
+
+                if (LOG.isEnabledFor(Level.ERROR))
+                    LOG.error(failure);
+
+                throw failure;
+            }
+
+            // Message version
+            if (frame.get() != MESSAGE_VERSION) {
+                IOException failure = new IOException("Message not version " + MESSAGE_VERSION);
+
+                if (LOG.isEnabledFor(Level.ERROR))
+                    LOG.error(failure, failure);
+
+                throw failure;
+            }
+
+            int namespaceCnt = frame.getShort();
+
+            if((namespaceCnt < 0) || (namespaceCnt > 253)) {
+                IOException failure = new IOException("Message contains too many namespaces (>253)");
+
+                if (LOG.isEnabledFor(Level.ERROR))
+                    LOG.error(failure, failure);
+
+                throw failure;
+            }
+
+            String [] namespaces = new String[2 + namespaceCnt];
+            namespaces[0] = "";
+            namespaces[1] = "jxta";
+
+            for(int id=2; id < namespaces.length; ++id) {
+                namespaces[id] = readString(frame);
+            }
+
+            return namespaces;
+        }
+
+        /**
+         *  Read in a message element from the provided buffer. The element
+         *  value refers to the buffer's backing array.
+         *
+         *  @param frame  the buffer to read from.
+         *  @param namespaces the namespaces of the message, indexed by id.
+         *  @param msg  if not <code>null</code> then the message to which the
+         *  element is added.
+         *  @return the message element.
+         *  @throws IOException if the element is invalid.
+         */
+        private MessageElement readMessageElement(ByteBuffer frame, String [] namespaces, Message msg) throws IOException {
+            if (frame.get() != 'j' || frame.get() != 'x' || frame.get() != 'e' || frame.get() != 'l') {
+                IOException failure = new IOException("Not a message element (incorrect signature)");
+
+                if (LOG.isEnabledFor(Level.ERROR))
+                    LOG.error(failure, failure);
+
+                throw failure;
+            }
+
+            // Namespace id
+            int nsid = frame.get() & 0x000000FF;
+
+            // flags
+            byte flags = frame.get();
+
+            // Name
+            String name = readString(frame);
+
+            // Mime type
+            MimeMediaType type = null;
+            if ((flags & HAS_TYPE) != 0) {
+                String typeString = readString(frame);
+                try {
+                    type = new MimeMediaType(typeString);
+                } catch (IllegalArgumentException uhoh) {
+                    throw new IOException("Bad MimeType in message element header : " + uhoh.getMessage());
+                }
+            } else
+                type = MimeMediaType.AOS;
+
+            int dataLen = frame.getInt();
+
+            if((dataLen < 0) || (dataLen > frame.remaining()))
+                throw new IOException("Bad message element length : " + dataLen);
+
+            if (LOG.isEnabledFor(Level.DEBUG))
+                LOG.debug("element : nsid = " + nsid +
+                           " name = '" + name +
+                           "' type = '" + type +
+                           "' flags = " + Integer.toBinaryString(flags) +
+                           " datalen = " + dataLen);
+
+            int valueOffset = frame.arrayOffset() + frame.position();
+            Message submsg = null;
+
+            // Value
+            if (type.equalsIngoringParams(myTypes [0])) {
+                ByteBuffer subframe = frame.slice();
+
+                subframe.limit(dataLen);
+                submsg = fromBuffer(subframe, type, null);
+            }
+
+            frame.position(frame.position() + dataLen);
+
+            MessageElement sig = null;
+            if ((flags & HAS_SIGNATURE) != 0) {
+                sig = readMessageElement(frame, namespaces, null);
+            }
+
+            MessageElement element;
+            if(null == submsg) {
+                element = new ByteArrayMessageElement(name, type, frame.array(), valueOffset, dataLen, sig);
+            } else {
+                element = new JxtaMessageMessageElement(name, type, submsg, sig);
+            }
+
+            if(null != msg) {
+                if(nsid >= namespaces.length) {
+                    if (LOG.isEnabledFor(Level.ERROR))
+                        LOG.error("Element identified a namespace which was not defined for this message.");
+
+                    throw new IOException("Element identified a namespace which was not defined for this message.");
+                }
+
+                msg.addMessageElement(namespaces[nsid], element);
+            }
+
+            return element;
+        }
+
+        /**
+         *  Read and construct a string from the buffer.
+         *
+         *  @param frame the buffer to read from
+         *  @return the String which was read.
+         *  @throws IOException if the string is invalid.
+         */
+        private static String readString(ByteBuffer frame) throws IOException {
+            int len = frame.getShort();
+            if ((len < 0) || (len > frame.remaining()))
+                throw new IOException("Bad string length in message");
+
+            String result = new String(frame.array(), frame.arrayOffset() + frame.position(), len, "UTF8");
+            frame.position(frame.position() + len);
+            return result;
+        }
+
         /**
          *  Read in a message header from the provided data stream.
          *
          *  @param dis  the data stream to read from
-         *  @return hashmap containing the namespace id to namespace values
+         *  @return array of namespaces indexed by namespace id.
          *  @throws IOException if EOF or other IOException is encountered
          *  during the reading of the header.
          */
-        private static HashMap readHeader(DataInputStream dis) throws IOException {
+        private static String [] readHeader(DataInputStream dis) throws IOException {
             // Read message signature
             char [] msgsig = new char[4];
 
@@ -272,7 +474,7 @@ public class WireFormatMessageBinary implements WireFormatMessage {
 
             int namespaceCnt = dis.readShort();
 
-            if(namespaceCnt > 253) {
+            if((namespaceCnt < 0) || (namespaceCnt > 253)) {
                 IOException failure = new IOException("Message contains too many namespaces (>253)");
 
                 if (LOG.isEnabledFor(Level.ERROR))
@@ -281,15 +483,13 @@ public class WireFormatMessageBinary implements WireFormatMessage {
                 throw failure;
             }
 
-            HashMap id2namespace = new HashMap(2 + namespaceCnt);
-            id2namespace.put(new Integer(0), "");
-            id2namespace.put(new Integer(1), "jxta");
+            String [] id2namespace = new String[2 + namespaceCnt];
+            id2namespace[0] = "";
+            id2namespace[1] = "jxta";
 
-            int id=2;
-            for(int i=0; i<namespaceCnt; ++i) {
+            for(int id=2; id < id2namespace.length; ++id) {
                 try {
-                    String namespace = readString(dis);
-                    id2namespace.put(new Integer(id++), namespace);
+                    id2namespace[id] = readString(dis);
                 } catch (IOException caught) {
                     if (LOG.isEnabledFor(Level.WARN))
                         LOG.warn("Error Processing namespace", caught);
@@ -394,16 +594,11 @@ public class WireFormatMessageBinary implements WireFormatMessage {
 
                 value = new byte[dataLen];
 
-                String mayFail = null;
-                if (LOG.isEnabledFor(Level.WARN)) {
-                    mayFail = is.toString();
-                }
-
                 try {
                     dis.readFully(value);
                 } catch(EOFException failed) {
                     if (LOG.isEnabledFor(Level.WARN)) {
-                        LOG.error("had tried to read " + dataLen + " from " + mayFail + " which is now " + is);
+                        LOG.error("had tried to read " + dataLen + " from " + is);
                     }
                     throw failed;
                 }
@@ -447,6 +642,10 @@ public class WireFormatMessageBinary implements WireFormatMessage {
      *  Internal representation for a binary format wire message. Implemented
      *  as an inner class to allow content encodings to be easily mapped on
      *  top of the streams this class produces.
+     *
+     *  <p/>The sizes of the headers are computed up front. The headers are
+     *  only formed when the message is sent and then directly into the
+     *  destination stream through a single scratch array.
      */
     static class binaryMessageProxy implements Document {
         Message message;
@@ -459,7 +658,20 @@ public class WireFormatMessageBinary implements WireFormatMessage {
 
         List namespaces = new ArrayList();
 
-        byte [] header;
+        /**
+         *  The UTF8 encoded namespaces, excluding the two predefined ones.
+         */
+        byte [][] namespaceBytes;
+
+        /**
+         *  The length of the message header.
+         */
+        int headerLength;
+
+        /**
+         *  The length of the longest element header.
+         */
+        int maxElementHeaderLength;
 
         binaryMessageProxy(Message msg, MimeMediaType type) throws IOException {
             message = msg;
@@ -475,10 +687,13 @@ public class WireFormatMessageBinary implements WireFormatMessage {
                 MessageElement anElement = (MessageElement) eachElement.next();
                 byte namespaceid = ((Integer)namespaceIDs.get(eachElement.getNamespace())).byteValue();
 
-                elements.add(new binaryElementProxy(namespaceid, anElement));
+                binaryElementProxy aProxy = new binaryElementProxy(namespaceid, anElement);
+
+                maxElementHeaderLength = Math.max(maxElementHeaderLength, aProxy.getMaxHeaderLength());
+                elements.add(aProxy);
             }
 
-            buildHeader();
+            sizeHeader();
         }
 
         /**
@@ -502,6 +717,8 @@ public class WireFormatMessageBinary implements WireFormatMessage {
 
             List streamParts = new ArrayList();
 
+            byte [] header = new byte[headerLength];
+            writeHeader(header);
             streamParts.add(new ByteArrayInputStream(header));
 
             Iterator eachElement = elements.listIterator();
@@ -527,13 +744,15 @@ public class WireFormatMessageBinary implements WireFormatMessage {
             if (LOG.isEnabledFor(Level.DEBUG))
                 LOG.debug("Sending " + message + " to " + sendTo.getClass().getName() + "@" + System.identityHashCode(sendTo));
 
-            sendTo.write(header);
+            byte [] scratch = new byte[Math.max(headerLength, maxElementHeaderLength)];
+
+            sendTo.write(scratch, 0, writeHeader(scratch));
 
             Iterator eachElement = elements.listIterator();
 
             while(eachElement.hasNext()) {
                 binaryElementProxy anElement = (binaryElementProxy) eachElement.next();
-                anElement.sendToStream(sendTo);
+                anElement.sendToStream(sendTo, scratch);
             }
         }
 
@@ -543,7 +762,7 @@ public class WireFormatMessageBinary implements WireFormatMessage {
         public long getByteLength() {
             long size = 0;
 
-            size += header.length;
+            size += headerLength;
             Iterator eachElement = elements.iterator();
             while(eachElement.hasNext()) {
                 binaryElementProxy anElement = (binaryElementProxy) eachElement.next();
@@ -583,33 +802,48 @@ public class WireFormatMessageBinary implements WireFormatMessage {
         }
 
         /**
-         *  Builds the wire format header for the message.
+         *  Computes the length of the wire format header for the message.
          *
          *  @throws IOException if for some reason the header cannot be built.
          */
-        private void buildHeader() throws IOException {
-            ByteArrayOutputStream headerBytes = new ByteArrayOutputStream(256);
-            DataOutputStream header = new DataOutputStream(headerBytes);
-
-            header.writeBytes("jxmg");
+        private void sizeHeader() throws IOException {
+            namespaceBytes = new byte[namespaces.size() - 2][];
 
-            header.writeByte(MESSAGE_VERSION);
-            header.writeShort(namespaces.size() - 2);
+            // signature, version, namespace count, element count
+            headerLength = 4 + 1 + 2 + 2;
 
             for(int eachNamespace = 2; eachNamespace < namespaces.size(); eachNamespace++) {
-                byte [] elementName = ((String) namespaces.get(eachNamespace)).getBytes("UTF8");
-                header.writeShort(elementName.length);
-                header.write(elementName, 0, elementName.length);
+                byte [] namespace = ((String) namespaces.get(eachNamespace)).getBytes("UTF8");
+
+                namespaceBytes[eachNamespace - 2] = namespace;
+                headerLength += 2 + namespace.length;
             }
+        }
 
-            header.writeShort(elements.size());
+        /**
+         *  Forms the wire format header for the message.
+         *
+         *  @param into the array to fill in.
+         *  @return the length of the header.
+         */
+        private int writeHeader(byte [] into) {
+            int at = 0;
+
+            into[at++] = 'j';
+            into[at++] = 'x';
+            into[at++] = 'm';
+            into[at++] = 'g';
+
+            into[at++] = MESSAGE_VERSION;
+            at = putShort(into, at, namespaceBytes.length);
 
-            header.flush();
-            header.close();
-            headerBytes.flush();
-            headerBytes.close();
+            for(int eachNamespace = 0; eachNamespace < namespaceBytes.length; eachNamespace++) {
+                at = putBytes(into, at, namespaceBytes[eachNamespace]);
+            }
+
+            at = putShort(into, at, elements.size());
 
-            this.header = headerBytes.toByteArray();
+            return at;
         }
     };
 
@@ -620,7 +854,13 @@ public class WireFormatMessageBinary implements WireFormatMessage {
 
         MessageElement element;
 
-        byte [] header;
+        byte [] elementName;
+
+        byte [] elementType;
+
+        int dataLen;
+
+        int headerLength;
 
         binaryElementProxy(byte namespaceid, MessageElement element) throws IOException {
             this.namespaceid = namespaceid;
@@ -632,56 +872,82 @@ public class WireFormatMessageBinary implements WireFormatMessage {
                 this.sig = new binaryElementProxy(namespaceid, sig);
             }
 
-            buildHeader();
+            sizeHeader();
         }
 
-        void buildHeader() throws IOException {
-            byte [] elementName = element.getElementName().getBytes("UTF8");
-            byte [] elementType = null;
+        /**
+         *  Computes the length of the wire format header for the element.
+         */
+        void sizeHeader() throws IOException {
+            elementName = element.getElementName().getBytes("UTF8");
             if(!MimeMediaType.AOS.equals(element.getMimeType()))
                 elementType = element.getMimeType().toString().getBytes("UTF8");
 
             // FIXME  20020504 bondolo@jxta.org Do something with encodings.
-            ByteArrayOutputStream headerBytes = new ByteArrayOutputStream(256);
-            DataOutputStream header = new DataOutputStream(headerBytes);
 
-            header.writeBytes("jxel");
+            long dataLen = element.getByteLength();
+
+            if(dataLen > Integer.MAX_VALUE) {
+                throw new IllegalStateException("WireFormatMessageBinary does not support elements longer than 4GB");
+            }
 
-            header.writeByte(namespaceid);
-            header.writeByte(((null != elementType) ? HAS_TYPE : 0) |
-                             ((null != sig) ? HAS_SIGNATURE : 0));
+            this.dataLen = (int) dataLen;
 
-            header.writeShort(elementName.length);
-            header.write(elementName, 0, elementName.length);
+            // signature, namespace id, flags, name, [type], data length
+            headerLength = 4 + 1 + 1 + 2 + elementName.length + 4;
 
             if(null != elementType) {
-                header.writeShort(elementType.length);
-                header.write(elementType, 0, elementType.length);
+                headerLength += 2 + elementType.length;
             }
+        }
 
-            // FIXME content encoding should go here
+        /**
+         *  Returns the length of the longest header of this element or its
+         *  signature.
+         */
+        int getMaxHeaderLength() {
+            return (null == sig) ? headerLength : Math.max(headerLength, sig.getMaxHeaderLength());
+        }
 
-            long dataLen = element.getByteLength();
+        /**
+         *  Forms the wire format header for the element.
+         *
+         *  @param into the array to fill in.
+         *  @return the length of the header.
+         */
+        int writeHeader(byte [] into) {
+            int at = 0;
 
-            if(dataLen > Integer.MAX_VALUE) {
-                throw new IllegalStateException("WireFormatMessageBinary does not support elements longer than 4GB");
+            into[at++] = 'j';
+            into[at++] = 'x';
+            into[at++] = 'e';
+            into[at++] = 'l';
+
+            into[at++] = namespaceid;
+            into[at++] = (byte) (((null != elementType) ? HAS_TYPE : 0) |
+                                 ((null != sig) ? HAS_SIGNATURE : 0));
+
+            at = putBytes(into, at, elementName);
+
+            if(null != elementType) {
+                at = putBytes(into, at, elementType);
             }
 
-            header.writeInt((int) dataLen);
+            // FIXME content encoding should go here
 
-            header.flush();
-            header.close();
-            headerBytes.flush();
-            headerBytes.close();
+            into[at++] = (byte) (dataLen >>> 24);
+            into[at++] = (byte) (dataLen >>> 16);
+            into[at++] = (byte) (dataLen >>> 8);
+            into[at++] = (byte) dataLen;
 
-            this.header = headerBytes.toByteArray();
+            return at;
         }
 
         public long getByteLength() {
             long size = 0;
 
-            size += header.length;
-            size += element.getByteLength();
+            size += headerLength;
+            size += dataLen;
             if (null != sig)
                 size += sig.getByteLength();
 
@@ -691,6 +957,8 @@ public class WireFormatMessageBinary implements WireFormatMessage {
         public InputStream getStream() throws IOException {
             List streamParts = new ArrayList();
 
+            byte [] header = new byte[headerLength];
+            writeHeader(header);
             streamParts.add(new ByteArrayInputStream(header));
 
             streamParts.add(element.getStream());
@@ -701,15 +969,45 @@ public class WireFormatMessageBinary implements WireFormatMessage {
             return new SequenceInputStream(Collections.enumeration(streamParts));
         }
 
-        public void sendToStream(OutputStream sendTo) throws IOException {
+        /**
+         *  Write the element to a stream.
+         *
+         *  @param sendTo the stream to write to.
+         *  @param scratch an array at least as long as our longest header.
+         */
+        public void sendToStream(OutputStream sendTo, byte [] scratch) throws IOException {
 
-            sendTo.write(header);
+            sendTo.write(scratch, 0, writeHeader(scratch));
             element.sendToStream(sendTo);
             if(null != sig)
-                sig.sendToStream(sendTo);
+                sig.sendToStream(sendTo, scratch);
         }
     };
 
+    /**
+     *  Stores a short, big-endian, into an array.
+     *
+     *  @return the position following the short.
+     */
+    private static int putShort(byte [] into, int at, int value) {
+        into[at++] = (byte) (value >>> 8);
+        into[at++] = (byte) value;
+
+        return at;
+    }
+
+    /**
+     *  Stores a length prefixed byte string into an array.
+     *
+     *  @return the position following the string.
+     */
+    private static int putBytes(byte [] into, int at, byte [] value) {
+        at = putShort(into, at, value.length);
+        System.arraycopy(value, 0, into, at, value.length);
+
+        return at + value.length;
+    }
+
     /**
      *  The message we are serializing.
      */
@@ -55,7 +55,9 @@
 
 package net.jxta.impl.endpoint;
 
+import java.io.ByteArrayInputStream;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.util.Hashtable;
 import java.util.Map;
 
@@ -141,6 +143,28 @@ public class WireFormatMessageFactory extends ClassFactory {
         public Message fromWire(InputStream is, MimeMediaType type, MimeMediaType contentEncoding) throws IOException;
     };
 
+    /**
+     *  Interface for instantiators which can decode a message which is
+     *  entirely contained in a buffer without copying the element contents.
+     */
+    public interface BufferInstantiator extends Instantiator {
+
+        /**
+         *  Create an abstract message from a serialization held in a buffer.
+         *  The elements of the resulting message may share the buffer's
+         *  contents, the caller must not modify the buffer afterwards.
+         *
+         *  @param buffer The message serialization, from the buffer's position
+         *  to its limit. On return the position is after the message.
+         *  @param type Declared message type of the buffer including any optional
+         *  configuration parameters.
+         *  @param contentEncoding Content encoding (including optional parameters)
+         * which has been applied to the message. May be null for unencoded messages.
+         *  @return the new abstract message.
+         */
+        public Message fromBuffer(ByteBuffer buffer, MimeMediaType type, MimeMediaType contentEncoding) throws IOException;
+    };
+
     /**
      *  This is the map of mime-types and constructors used by
      *  <CODE>newStructuredDocument</CODE>.
@@ -324,4 +348,44 @@ public class WireFormatMessageFactory extends ClassFactory {
 
         return instantiator.fromWire(is, type, contentEncoding);
     }
+
+    /**
+     * Constructs a message from a serialization held in a buffer. If the
+     * instantiator for the type cannot decode buffers then the buffer is read
+     * as a stream.
+     *
+     *  @param buffer The message serialization, from the buffer's position
+     *  to its limit. The elements of the message may share the buffer's
+     *  contents, the caller must not modify the buffer afterwards.
+     *  @param type Declared message type of the buffer including any optional
+     *  configuration parameters.
+     *  @param contentEncoding Content encoding (including optional parameters)
+     * which has been applied to the message. May be null for unencoded messages.
+     *    @return the new abstract message.
+     */
+    public static Message fromBuffer(ByteBuffer buffer, MimeMediaType type, MimeMediaType contentEncoding) throws IOException {
+        if(!factory.loadedProperty) {
+            factory.loadedProperty = factory.doLoadProperty();
+        }
+
+        Instantiator instantiator =
+            (Instantiator) factory.getInstantiator(type.getMimeMediaType());
+
+        if(instantiator instanceof BufferInstantiator) {
+            return ((BufferInstantiator) instantiator).fromBuffer(buffer, type, contentEncoding);
+        }
+
+        if(!buffer.hasArray()) {
+            byte[] copy = new byte[buffer.remaining()];
+
+            buffer.get(copy);
+            buffer = ByteBuffer.wrap(copy);
+        }
+
+        Message msg = instantiator.fromWire(new ByteArrayInputStream(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining()), type, contentEncoding);
+
+        buffer.position(buffer.limit());
+
+        return msg;
+    }
 }
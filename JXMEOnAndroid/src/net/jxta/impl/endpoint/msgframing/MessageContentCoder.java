@@ -0,0 +1,317 @@
+/*
+ *
+ * $Id$
+ *
+ * Copyright (c) 2001 Sun Microsystems, Inc.  All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *
+ * 3. The end-user documentation included with the redistribution,
+ *    if any, must include the following acknowledgment:
+ *       "This product includes software developed by the
+ *       Sun Microsystems, Inc. for Project JXTA."
+ *    Alternately, this acknowledgment may appear in the software itself,
+ *    if and wherever such third-party acknowledgments normally appear.
+ *
+ * 4. The names "Sun", "Sun Microsystems, Inc.", "JXTA" and "Project JXTA"
+ *    must not be used to endorse or promote products derived from this
+ *    software without prior written permission. For written
+ *    permission, please contact Project JXTA at http://www.jxta.org.
+ *
+ * 5. Products derived from this software may not be called "JXTA",
+ *    nor may "JXTA" appear in their name, without prior written
+ *    permission of Sun.
+ *
+ * THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED.  IN NO EVENT SHALL SUN MICROSYSTEMS OR
+ * ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ * USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ * OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ *
+ * ====================================================================
+ *
+ * This software consists of voluntary contributions made by many
+ * individuals on behalf of Project JXTA.  For more
+ * information on Project JXTA, please see
+ * <http://www.jxta.org/>.
+ *
+ * This license is based on the BSD license adopted by the Apache Foundation.
+ */
+
+package net.jxta.impl.endpoint.msgframing;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+
+import java.io.EOFException;
+import java.io.IOException;
+
+import net.jxta.document.Document;
+
+/**
+ *  Applies and removes the content coding of framed messages. The content
+ *  codings a peer accepts are listed in the <tt>accept-coding</tt> header of
+ *  the {@link MessagePackageHeader} of the messages it sends and the coding
+ *  applied to a message is named by its <tt>content-coding</tt> header. A
+ *  coding is only applied once the peer has listed it; peers which do not
+ *  know the headers ignore them and are never sent coded messages.
+ *
+ *  <p/>The only coding currently supported is <tt>deflate</tt>, using the
+ *  platform's <code>java.util.zip</code> implementation.
+ *
+ *  <p/>A coder is intended for use by a single connection. Encoding and
+ *  decoding may proceed concurrently. The compressor and decompressor hold
+ *  native memory so they are only created when first needed and must be
+ *  released with {@link #end()}.
+ */
+public class MessageContentCoder {
+    
+    /**
+     *  The deflate content coding.
+     */
+    public final static String DEFLATE = "deflate";
+    
+    /**
+     *  The content codings we support, in order of preference.
+     */
+    private final static String [] SUPPORTED = { DEFLATE };
+    
+    /**
+     *  Guards the compressor.
+     */
+    private final Object encodeLock = new String("encode lock");
+    
+    /**
+     *  Guards the decompressor.
+     */
+    private final Object decodeLock = new String("decode lock");
+    
+    /**
+     *  The compressor or <code>null</code> if not yet needed.
+     */
+    private Deflater deflater = null;
+    
+    /**
+     *  The decompressor or <code>null</code> if not yet needed.
+     */
+    private Inflater inflater = null;
+    
+    /**
+     *  If <tt>true</tt> then the coder has been ended.
+     */
+    private volatile boolean ended = false;
+    
+    /**
+     *  Messages shorter than this are not coded.
+     */
+    private final int minLength;
+    
+    /**
+     *  The largest decoded message we will accept.
+     */
+    private final int maxDecodedLength;
+    
+    /**
+     *  Creates a new coder.
+     *
+     *  @param minLength messages shorter than this many bytes are not coded.
+     *  @param maxDecodedLength the largest decoded message which will be
+     *  accepted.
+     */
+    public MessageContentCoder(int minLength, int maxDecodedLength) {
+        this.minLength = minLength;
+        this.maxDecodedLength = maxDecodedLength;
+    }
+    
+    /**
+     *  Returns the content codings we support, in order of preference.
+     *
+     *  @return the content codings we support.
+     */
+    public static String [] getSupportedCodings() {
+        return (String []) SUPPORTED.clone();
+    }
+    
+    /**
+     *  Returns whether we can decode the specified content coding.
+     *
+     *  @param coding the content coding.
+     *  @return <tt>true</tt> if the coding is supported.
+     */
+    public static boolean isSupported(String coding) {
+        for(int eachCoding = 0; eachCoding < SUPPORTED.length; eachCoding++) {
+            if(SUPPORTED[eachCoding].equalsIgnoreCase(coding)) {
+                return true;
+            }
+        }
+        
+        return false;
+    }
+    
+    /**
+     *  Chooses the content coding to use for messages sent to a peer.
+     *
+     *  @param accepted the content codings accepted by the peer.
+     *  @return our preferred coding from those accepted or <code>null</code>
+     *  if there is none in common.
+     */
+    public static String selectCoding(String [] accepted) {
+        for(int eachOurs = 0; eachOurs < SUPPORTED.length; eachOurs++) {
+            for(int eachTheirs = 0; eachTheirs < accepted.length; eachTheirs++) {
+                if(SUPPORTED[eachOurs].equalsIgnoreCase(accepted[eachTheirs])) {
+                    return SUPPORTED[eachOurs];
+                }
+            }
+        }
+        
+        return null;
+    }
+    
+    /**
+     *  Encodes a serialized message.
+     *
+     *  @param doc the serialized message.
+     *  @param length the length of the serialized message.
+     *  @return the encoded message or <code>null</code> if the message is
+     *  below the minimum length or did not become smaller.
+     *  @throws IOException if the message cannot be serialized.
+     */
+    public byte [] encode(Document doc, long length) throws IOException {
+        if((length < minLength) || (length > Integer.MAX_VALUE)) {
+            return null;
+        }
+        
+        ByteArrayOutputStream coded = new ByteArrayOutputStream((int) (length / 2));
+        
+        synchronized(encodeLock) {
+            if(ended) {
+                throw new IOException("Content coder has been ended");
+            }
+            
+            if(null == deflater) {
+                deflater = new Deflater(Deflater.BEST_SPEED);
+            } else {
+                deflater.reset();
+            }
+            
+            DeflaterOutputStream out = new DeflaterOutputStream(coded, deflater, 4096);
+            
+            doc.sendToStream(out);
+            out.finish();
+        }
+        
+        if(coded.size() >= length) {
+            return null;
+        }
+        
+        return coded.toByteArray();
+    }
+    
+    /**
+     *  Decodes an encoded message.
+     *
+     *  @param coding the content coding of the message.
+     *  @param coded the array containing the encoded message.
+     *  @param offset the position of the encoded message in the array.
+     *  @param length the length of the encoded message.
+     *  @return a buffer containing the decoded message.
+     *  @throws IOException if the coding is unsupported or the message is
+     *  corrupt or too large.
+     */
+    public ByteBuffer decode(String coding, byte [] coded, int offset, int length) throws IOException {
+        if(!DEFLATE.equalsIgnoreCase(coding)) {
+            throw new IOException("Unsupported content coding : " + coding);
+        }
+        
+        byte [] decoded = new byte[Math.min(maxDecodedLength, Math.max(1024, length * 4))];
+        int decodedLength = 0;
+        
+        synchronized(decodeLock) {
+            if(ended) {
+                throw new IOException("Content coder has been ended");
+            }
+            
+            if(null == inflater) {
+                inflater = new Inflater();
+            } else {
+                inflater.reset();
+            }
+            
+            inflater.setInput(coded, offset, length);
+            
+            try {
+                while(!inflater.finished()) {
+                    if(decodedLength == decoded.length) {
+                        if(decoded.length >= maxDecodedLength) {
+                            throw new IOException("Decoded message larger than " + maxDecodedLength + " bytes");
+                        }
+                        
+                        byte [] larger = new byte[(int) Math.min((long) maxDecodedLength, 2L * decoded.length)];
+                        
+                        System.arraycopy(decoded, 0, larger, 0, decodedLength);
+                        decoded = larger;
+                    }
+                    
+                    int count = inflater.inflate(decoded, decodedLength, decoded.length - decodedLength);
+                    
+                    if((0 == count) && (inflater.needsInput() || inflater.needsDictionary())) {
+                        throw new EOFException("Coded message truncated");
+                    }
+                    
+                    decodedLength += count;
+                }
+            } catch(DataFormatException corrupt) {
+                IOException failed = new IOException("Corrupt coded message");
+                
+                failed.initCause(corrupt);
+                
+                throw failed;
+            }
+        }
+        
+        return ByteBuffer.wrap(decoded, 0, decodedLength);
+    }
+    
+    /**
+     *  Releases the resources of the coder. The coder may not be used
+     *  afterwards.
+     */
+    public void end() {
+        ended = true;
+        
+        synchronized(encodeLock) {
+            if(null != deflater) {
+                deflater.end();
+                deflater = null;
+            }
+        }
+        
+        synchronized(decodeLock) {
+            if(null != inflater) {
+                inflater.end();
+                inflater = null;
+            }
+        }
+    }
+}
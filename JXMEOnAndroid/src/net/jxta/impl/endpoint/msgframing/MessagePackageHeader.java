@@ -57,14 +57,13 @@
 package net.jxta.impl.endpoint.msgframing;
 
 import java.io.DataInput;
-import java.io.DataOutput;
 import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
+import java.util.StringTokenizer;
 
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
@@ -202,7 +201,7 @@ public class MessagePackageHeader {
             Header aHeader = (Header) eachHeader.next();
             
             if(aHeader.getName().equalsIgnoreCase(name))
-                headers.remove(aHeader);
+                eachHeader.remove();
         }
         
         headers.add(new Header(name, value));
@@ -235,30 +234,68 @@ public class MessagePackageHeader {
     }
     
     /**
-     *  Write the headers to a stream
+     *  Returns the length of the headers as written by
+     *  {@link #sendToStream(OutputStream)}.
+     *
+     *  @return the length of the headers in bytes.
+     */
+    public int getByteLength() {
+        Iterator eachHeader = getHeaders();
+        int length = 1; // empty header
+        
+        while(eachHeader.hasNext()) {
+            Header aHeader = (Header) eachHeader.next();
+            
+            length += 1 + nameBytes(aHeader).length + 2 + aHeader.getValue().length;
+        }
+        
+        return length;
+    }
+    
+    /**
+     *  Write the headers to a stream. The headers are formed in a single array
+     *  and written with one write.
      *
      *  @param out  the stream to send the headers to.
      */
     public void sendToStream(OutputStream out) throws IOException {
         Iterator eachHeader = getHeaders();
-        DataOutput dos = new DataOutputStream(out);
+        byte [] formed = new byte[getByteLength()];
+        int at = 0;
         
         // XXX 20021014 bondolo@jxta.org A framing signature would help here
 
         while(eachHeader.hasNext()) {
             Header aHeader = (Header) eachHeader.next();
             
-            byte [] nameBytes = aHeader.getName().getBytes("UTF-8");
+            byte [] nameBytes = nameBytes(aHeader);
             byte [] value = aHeader.getValue();
             
-            dos.write(nameBytes.length);
-            dos.write(nameBytes);
-            dos.writeShort(value.length);
-            dos.write(value);
+            formed[at++] = (byte) nameBytes.length;
+            System.arraycopy(nameBytes, 0, formed, at, nameBytes.length);
+            at += nameBytes.length;
+            formed[at++] = (byte) (value.length >>> 8);
+            formed[at++] = (byte) value.length;
+            System.arraycopy(value, 0, formed, at, value.length);
+            at += value.length;
         }
         
         // write empty header
-        dos.write(0);
+        formed[at++] = 0;
+        
+        out.write(formed, 0, at);
+    }
+    
+    /**
+     *  Returns the UTF-8 encoding of a header name.
+     */
+    private static byte [] nameBytes(Header aHeader) {
+        try {
+            return aHeader.getName().getBytes("UTF-8");
+        } catch (UnsupportedEncodingException never) {
+            // utf-8 is a required encoding.
+            throw new IllegalStateException("UTF-8 encoding support missing!");
+        }
     }
     
     /**
@@ -321,4 +358,116 @@ public class MessagePackageHeader {
         }
     }
     
+    /**
+     *  Convenience Method for Content Coding header
+     *
+     *  @param coding content coding of the message or <code>null</code> to
+     *  remove the header.
+     */
+    public void setContentCodingHeader(String coding) {
+        if(null == coding) {
+            Iterator eachHeader = getHeader("content-coding");
+            
+            while(eachHeader.hasNext()) {
+                headers.remove(eachHeader.next());
+            }
+            return;
+        }
+        
+        try {
+            replaceHeader("content-coding", coding.getBytes("UTF-8"));
+        } catch (UnsupportedEncodingException never) {
+            // utf-8 is a required encoding.
+            throw new IllegalStateException("UTF-8 encoding support missing!");
+        }
+    }
+    
+    /**
+     *  Convenience Method for Content Coding header
+     *
+     *  @return content coding from the header or <code>null</code> if the
+     *  message is not coded.
+     */
+    public String getContentCodingHeader() {
+        Iterator eachHeader = getHeader("content-coding");
+        
+        if(!eachHeader.hasNext()) {
+            return null;
+        }
+        
+        Header header = (Header) eachHeader.next();
+        try {
+            return new String(header.getValue(), "UTF-8");
+        } catch (UnsupportedEncodingException never) {
+            // utf-8 is a required encoding.
+            throw new IllegalStateException("UTF-8 encoding support missing!");
+        }
+    }
+    
+    /**
+     *  Convenience Method for Accept Coding header. The header lists the
+     *  content codings which the sender of the message will accept. Peers
+     *  which do not understand it ignore it.
+     *
+     *  @param codings content codings accepted, in order of preference, or
+     *  <code>null</code> to remove the header.
+     */
+    public void setAcceptCodingHeader(String [] codings) {
+        if((null == codings) || (0 == codings.length)) {
+            Iterator eachHeader = getHeader("accept-coding");
+            
+            while(eachHeader.hasNext()) {
+                headers.remove(eachHeader.next());
+            }
+            return;
+        }
+        
+        StringBuffer accepted = new StringBuffer();
+        
+        for(int eachCoding = 0; eachCoding < codings.length; eachCoding++) {
+            if(0 != eachCoding) {
+                accepted.append(',');
+            }
+            accepted.append(codings[eachCoding]);
+        }
+        
+        try {
+            replaceHeader("accept-coding", accepted.toString().getBytes("UTF-8"));
+        } catch (UnsupportedEncodingException never) {
+            // utf-8 is a required encoding.
+            throw new IllegalStateException("UTF-8 encoding support missing!");
+        }
+    }
+    
+    /**
+     *  Convenience Method for Accept Coding header
+     *
+     *  @return content codings from the header or <code>null</code> if the
+     *  sender did not list any.
+     */
+    public String [] getAcceptCodingHeader() {
+        Iterator eachHeader = getHeader("accept-coding");
+        
+        if(!eachHeader.hasNext()) {
+            return null;
+        }
+        
+        Header header = (Header) eachHeader.next();
+        String accepted;
+        try {
+            accepted = new String(header.getValue(), "UTF-8");
+        } catch (UnsupportedEncodingException never) {
+            // utf-8 is a required encoding.
+            throw new IllegalStateException("UTF-8 encoding support missing!");
+        }
+        
+        StringTokenizer codings = new StringTokenizer(accepted, ", ");
+        String [] result = new String[codings.countTokens()];
+        
+        for(int eachCoding = 0; eachCoding < result.length; eachCoding++) {
+            result[eachCoding] = codings.nextToken();
+        }
+        
+        return result;
+    }
 }
@@ -62,14 +62,10 @@ import java.net.URI;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Enumeration;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
 import java.util.Set;
-import java.util.Timer;
-import java.util.TimerTask;
 import java.util.Vector;
 
 import java.io.IOException;
@@ -104,9 +100,7 @@ import net.jxta.protocol.RouteAdvertisement;
 import net.jxta.exception.PeerGroupException;
 
 import net.jxta.impl.endpoint.LoopbackMessenger;
-import net.jxta.impl.util.FastHashMap;
 import net.jxta.impl.util.TimeUtils;
-import net.jxta.impl.util.TimerThreadNamer;
 
 import net.jxta.impl.endpoint.IllegalTransportLoopException;
 
@@ -123,24 +117,11 @@ public class EndpointRouter implements EndpointListener,
     private static transient final Logger LOG = Logger.getLogger(EndpointRouter.class.getName());
 
     /**
-     *  These are peers which we know multi-hop routes for.
-     *
-     *  <p/><ul>
-     *      <li>Key is peer id as a {@link et.jxta.endpoint.EndpointAddress}</li>
-     *      <li>value is a {@link Route}.</li>
-     *  </ul>
-     */
-    private Map routedRoutes = new FastHashMap(16);
-
-    /**
-     *  A record of failures.
-     *
-     *  <p/><ul>
-     *      <li>keys are {@link net.jxta.endpoint.EndpointAddress}.</li>
-     *      <li>values are the time of failure as {@link java.lang.Long}.</li>
-     *  </ul>
+     *  What we know about the peers we do not reach directly: the multi-hop
+     *  routes, the record of failed connection attempts, the routes we were
+     *  NACKed and the pending route queries.
      */
-    private Map triedAndFailed = new HashMap();
+    private RouteTable routeTable = null;
 
     /**
      * local peer ID as a endpointAddress.
@@ -191,17 +172,6 @@ public class EndpointRouter implements EndpointListener,
      */
     private Destinations destinations;
 
-    /**
-     *  A record of expiration time of known bad routes we received a NACK route
-     *
-     *  <p/><ul>
-     *      <li>Keys are {@link net.jxta.endpoint.EndpointAddress}.</li>
-     *      <li>Values are {@link net.jxta.impl.endpoint.router.BadRoute}.</li>
-     *  </ul>
-     *
-     */
-    private Map badRoutes = new HashMap();
-
     /**
      * We record queries when first started and keep them pending for
      * a while. Threads coming in the meanwhile wait for a result without
@@ -215,57 +185,29 @@ public class EndpointRouter implements EndpointListener,
      * FIXME: jice@jxta.org 20020903 this is approximate. We can do
      * cleaner/better than that, but it's an inexpensive improvement over what
      * was there before.
-     * FIXME: tra@jxta.org 20030818 the pending hashmap should be moved
-     * in the routeResolver class as this will allow to only synchronize
-     * on the routeResolver object rather than the router object.
-     *  <p/><ul>
-     *      <li>Keys are {@link net.jxta.endpoint.EndpointAddress}.</li>
-     *      <li>Values are {@link ClearPendingQuery}.</li>
-     *  </ul>
+     * The pending queries are kept in the route table.
      */
-    protected Map pendingQueries = new HashMap();
-
-    /**
-     * Timer by which we schedule the clearing of peinding queries.
-     */
-    private Timer timer;
-
-    protected class ClearPendingQuery extends TimerTask {
+    protected class ClearPendingQuery {
         EndpointAddress pid;
-        volatile boolean failed = false;
         long timeToRetry = 0;
 
-        ClearPendingQuery(EndpointAddress pid) {
-            this.pid = pid;
-            // We schedule for one tick at one minute and another at 5 minutes
-            // after the second, we cancel ourselves.
-            timer.schedule(this, 1L * TimeUtils.AMINUTE, 5L * TimeUtils.AMINUTE);
-            timeToRetry = TimeUtils.toAbsoluteTimeMillis(20L * TimeUtils.ASECOND);
-        }
+        /**
+         * Absolute time at which we're done trying. The query then becomes a
+         * negative cache info: for the next 5 minutes that destination fails
+         * immediately unless it unexpectedly gets finaly resolved.
+         */
+        final long failAt;
 
         /**
-         *  {@inheritDoc}
+         * Absolute time at which the negative cache info is expired.
          */
-        public void run() {
-            try {
-                if (failed) {
-                    // Second tick.
-                    // This negative cache info is expired.
-                    synchronized (EndpointRouter.this) {
-                        pendingQueries.remove(pid);
-                    }
-                    this.cancel();
-                } else {
-                    // First timer tick. We're done trying. This is now a negative
-                    // cache info. For the next 5 minutes that destination fails
-                    // immediately unless it unexpectedly gets finaly resolved.
-                    failed = true;
-                }
-            } catch (Throwable all) {
-                if (LOG.isEnabledFor(Level.ERROR)) {
-                    LOG.error("Uncaught Throwable in timer task " + Thread.currentThread().getName() + " for " + pid, all);
-                }
-            }
+        final long expireAt;
+
+        ClearPendingQuery(EndpointAddress pid) {
+            this.pid = pid;
+            failAt = TimeUtils.toAbsoluteTimeMillis(1L * TimeUtils.AMINUTE);
+            expireAt = TimeUtils.toAbsoluteTimeMillis(5L * TimeUtils.AMINUTE, failAt);
+            timeToRetry = TimeUtils.toAbsoluteTimeMillis(20L * TimeUtils.ASECOND);
         }
 
         public synchronized boolean isTimeToRetry() {
@@ -278,7 +220,18 @@ public class EndpointRouter implements EndpointListener,
         }
 
         public boolean isFailed() {
-            return failed;
+            return TimeUtils.toRelativeTimeMillis(failAt) <= 0;
+        }
+
+        public boolean isExpired() {
+            return TimeUtils.toRelativeTimeMillis(expireAt) <= 0;
+        }
+
+        /**
+         * @return the destination of the query.
+         */
+        public EndpointAddress getDestination() {
+            return pid;
         }
     }
 
@@ -660,14 +613,37 @@ public class EndpointRouter implements EndpointListener,
     public void init(PeerGroup g, ID assignedID, Advertisement impl)
     throws PeerGroupException {
 
-        timer = new Timer(true);
-        timer.schedule(new TimerThreadNamer("EndpointRouter Timer for " + g.getPeerGroupID()), 0);
         group = g;
         endpoint = group.getEndpointService();
         localPeerId = group.getPeerID();
         localPeerAddr = new EndpointAddress(routerPName, group.getPeerID().getUniqueValue().toString(), null, null);
         destinations = new Destinations(endpoint);
 
+        int routeTableSize = RouteTable.DEFAULT_CAPACITY;
+        long routeTTL = RouteTable.DEFAULT_ROUTE_TTL;
+
+        try {
+            String routeTableSizeStr = System.getProperty("net.jxta.impl.endpoint.router.routeTableSize");
+
+            if (routeTableSizeStr != null) {
+                routeTableSize = Math.max(1, Integer.parseInt(routeTableSizeStr));
+            }
+
+            String routeTTLStr = System.getProperty("net.jxta.impl.endpoint.router.routeTTL");
+
+            if (routeTTLStr != null) {
+                routeTTL = Math.max(1, Long.parseLong(routeTTLStr));
+            }
+        } catch (Exception e) {
+            if (LOG.isEnabledFor(Level.WARN)) {
+                LOG.warn("Could not parse system property: net.jxta.impl.endpoint.router.*");
+            }
+
+            // Keep the defaults
+        }
+
+        routeTable = new RouteTable(routeTableSize, routeTTL);
+
         // initialize the route resolver
         // FIXME tra 20030818 Should be loaded as service when complete
         // refactoring is done. When loaded as a true service should not
@@ -692,6 +668,8 @@ public class EndpointRouter implements EndpointListener,
             configInfo.append("\n\tConfiguration :");
             configInfo.append("\n\t\tPeerID : " + localPeerId);
             configInfo.append("\n\t\tPublic Address : " + localPeerAddr);
+            configInfo.append("\n\t\tRoute Table Size : " + routeTableSize);
+            configInfo.append("\n\t\tRoute TTL : " + routeTTL + "ms");
             //configInfo.append("\n\t\tUse RouteResolver : " + routeResolver.useRouteResolver());
 
             LOG.info(configInfo);
@@ -746,8 +724,16 @@ public class EndpointRouter implements EndpointListener,
         //routeResolver.stopApp();
 
         destinations.close();
-        timer.cancel();
-        timer = null;
+
+        if (LOG.isEnabledFor(Level.INFO)) {
+            LOG.info("Route table : " + routeTable.size() + " destinations" +
+                     "\n\thits : " + routeTable.getHits() +
+                     "\tmisses : " + routeTable.getMisses() +
+                     "\tnegative hits : " + routeTable.getNegativeHits() +
+                     "\tevictions : " + routeTable.getEvictions() +
+                     "\texpirations : " + routeTable.getExpirations());
+        }
+        routeTable.clear();
         //routeResolver = null;
 
         if (LOG.isEnabledFor(Level.INFO)) {
@@ -925,6 +911,15 @@ public class EndpointRouter implements EndpointListener,
                     break;
                 }
 
+                // If our queries for that destination failed recently, there
+                // is no point waiting for a route to show up.
+                if ((null == hint) && routeTable.isUnreachable(pId)) {
+                    if (LOG.isEnabledFor(Level.DEBUG)) {
+                        LOG.debug("Known unreachable " + pId);
+                    }
+                    break;
+                }
+
                 // Check that route resolution is enabled if
                 // not then bail out, there is nothing more
                 // that we can do.
@@ -941,7 +936,7 @@ public class EndpointRouter implements EndpointListener,
                 // we failed, or we waited at least ASYNC_MESSENGER_WAIT to get
                 // a chance for the async request to respond before we can
                 // issue the route discovery
-                Long nextTry = (Long) triedAndFailed.get(pId);
+                Long nextTry = routeTable.getRetryAt(pId);
 
                 if ((nextTry == null) || (nextTry.longValue() < TimeUtils.toAbsoluteTimeMillis(MAXASYNC_GETMESSENGER_RETRY))
                     || (TimeUtils.toRelativeTimeMillis(findRouteAt) <= 0)) {
@@ -965,12 +960,12 @@ public class EndpointRouter implements EndpointListener,
                     ClearPendingQuery t = null;
 
                     synchronized (this) {
-                        t = (ClearPendingQuery) pendingQueries.get(pId);
+                        t = routeTable.getPendingQuery(pId);
 
                         if (t == null) {
                             doFind = true;
                             t = new ClearPendingQuery(pId);
-                            pendingQueries.put(pId, t);
+                            routeTable.setPendingQuery(pId, t);
                         } else {
                             if (t.isFailed()) {
                                 break;
@@ -1089,7 +1084,7 @@ public class EndpointRouter implements EndpointListener,
         // no proof whatsoever that the peer is reachable at our
         // initiative. In general, there is nothing to gain in
         // removing our knowlege of a long route, or a pending route
-        // query, or a triedAndFailed record, other than to force
+        // query, or a retry record, other than to force
         // trying a newly obtained set of addresses. They will not
         // stop us from using this messenger as long as it works.
         // The only good thing we can do here, is waking up those
@@ -1115,10 +1110,10 @@ public class EndpointRouter implements EndpointListener,
         // than doing a redundant put.
 
         synchronized (this) {
-            Long curr = (Long) triedAndFailed.get(logDest);
+            Long curr = routeTable.getRetryAt(logDest);
 
             if (curr != null && curr.longValue() > TimeUtils.toAbsoluteTimeMillis(MAXASYNC_GETMESSENGER_RETRY)) {
-                triedAndFailed.put(logDest, new Long(TimeUtils.toAbsoluteTimeMillis(MAXASYNC_GETMESSENGER_RETRY)));
+                routeTable.setRetryAt(logDest, TimeUtils.toAbsoluteTimeMillis(MAXASYNC_GETMESSENGER_RETRY));
             }
         }
     }
@@ -1160,9 +1155,7 @@ public class EndpointRouter implements EndpointListener,
         // check if we have a valid route
         RouteAdvertisement route = null;
 
-        synchronized (this) {
-            route = (RouteAdvertisement) routedRoutes.get(pId);
-        }
+        route = routeTable.getRoute(pId);
 
         if (route != null || !seekRoute) { // done
             return route;
@@ -1270,7 +1263,7 @@ public class EndpointRouter implements EndpointListener,
                 if (!force) {
                     // check if we have some bad NACK route info for
                     // this destination
-                    BadRoute badRoute = (BadRoute) badRoutes.get(pidAddr);
+                    BadRoute badRoute = routeTable.getBadRoute(pidAddr);
 
                     if (badRoute != null) {
                         Long nextTry = badRoute.getExpiration();
@@ -1290,12 +1283,12 @@ public class EndpointRouter implements EndpointListener,
                                 return false;
                             }
                         } else { // expired info, just flush NACK route cache
-                            badRoutes.remove(pidAddr);
+                            routeTable.removeBadRoute(pidAddr);
                         }
                     }
                 } else {
                     // we get a new route
-                    badRoutes.remove(pidAddr);
+                    routeTable.removeBadRoute(pidAddr);
                 }
 
                 // Check if the route makes senses (loop detection)
@@ -1337,7 +1330,7 @@ public class EndpointRouter implements EndpointListener,
 
                 // SRDI is run only if the peer is acting as a rendezvous
                 if (group.isRendezvous()) {
-                    if (!routedRoutes.containsKey(pidAddr)) {
+                    if (!routeTable.hasRoute(pidAddr)) {
                         if (LOG.isEnabledFor(Level.DEBUG)) {
                             LOG.debug("push new SRDI route " + pid);
                         }
@@ -1350,11 +1343,12 @@ public class EndpointRouter implements EndpointListener,
                 // of PIDs in our route table
                 RouteAdvertisement newRoute = (RouteAdvertisement) r.cloneOnlyPIDs();
 
-                routedRoutes.put(pidAddr, newRoute);
+                routeTable.setRoute(pidAddr, newRoute);
 
                 // We can get rid of any negative info we had. We have
                 // a new and different route.
-                badRoutes.remove(pidAddr);
+                routeTable.removeBadRoute(pidAddr);
+                routeTable.removePendingQuery(pidAddr);
 
                 notifyAll(); // Wakeup those waiting for a route.
 
@@ -1381,7 +1375,7 @@ public class EndpointRouter implements EndpointListener,
 
         synchronized (this) {
             needRemove = false;
-            if (routedRoutes.containsKey(pId)) {
+            if (routeTable.removeRoute(pId) != null) {
                 if (group.isRendezvous()) {
                     // Remove the SRDI cache entry from the SRDI cache
                     needRemove = true;
@@ -1389,7 +1383,6 @@ public class EndpointRouter implements EndpointListener,
                         LOG.debug("remove SRDI route " + pId);
                     }
                 }
-                routedRoutes.remove(pId);
             }
         }
     }
@@ -1445,7 +1438,7 @@ public class EndpointRouter implements EndpointListener,
             destPeer = new EndpointAddress(origDstAddr, null, null);
 
             if (routerMsg.getLastHop() != null) {
-                lastHop = new EndpointAddress(routerMsg.getLastHop());
+                lastHop = EndpointAddress.intern(routerMsg.getLastHop());
             }
 
             // See if there's an originator full route adv inthere.
@@ -1635,7 +1628,7 @@ public class EndpointRouter implements EndpointListener,
                 // check if we have route to the src and use it as
                 // our reverse route. We could do more. But let's keep
                 // it to the minimum at this point.
-                RouteAdvertisement newReverseRoute = (RouteAdvertisement) routedRoutes.get(srcPeer);
+                RouteAdvertisement newReverseRoute = routeTable.getRoute(srcPeer);
 
                 if (newReverseRoute != null) {
                     // we found a new route back from our cache so let's use it
@@ -2019,7 +2012,7 @@ public class EndpointRouter implements EndpointListener,
                     // another thread to retry that destination. We only retry
                     // every MAXASYNC_GETMESSENGER_RETRY seconds
                     synchronized (this) {
-                        triedAndFailed.put(dest, new Long(TimeUtils.toAbsoluteTimeMillis(MAXASYNC_GETMESSENGER_RETRY)));
+                        routeTable.setRetryAt(dest, TimeUtils.toAbsoluteTimeMillis(MAXASYNC_GETMESSENGER_RETRY));
                     }
                     continue;
                 }
@@ -2049,7 +2042,7 @@ public class EndpointRouter implements EndpointListener,
                     // Success we got a messenger synchronously. Remove
                     // the negative cache entry.
                     synchronized (this) {
-                        triedAndFailed.remove(dest);
+                        routeTable.clearRetryAt(dest);
                         notifyAll();
                     }
 
@@ -2082,21 +2075,17 @@ public class EndpointRouter implements EndpointListener,
         // When needed, the negative info that prevents its from working
         // too much is removed. (see calls to ensureLocalRoute).
         synchronized (this) {
-            Long nextTry = (Long) triedAndFailed.get(destPeer);
-
-            if (nextTry != null) {
-                if (nextTry.longValue() > TimeUtils.timeNow()) {
-                    return null;
-                }
+            if (routeTable.isRetryPending(destPeer)) {
+                return null;
             }
             // We are the first thread trying this destination.
             // Let's preclude any other threads from attempting to do
             // anything while we are trying that destination. Other
             // threads will have a chance if they are still waiting
-            // when this thread is done. We will update triedAndFailed
+            // when this thread is done. We will update the retry record
             // when we get the async notification that we got or we
             // failed to get a messenger.
-            triedAndFailed.put(destPeer, new Long(TimeUtils.toAbsoluteTimeMillis(Long.MAX_VALUE)));
+            routeTable.setRetryAt(destPeer, TimeUtils.toAbsoluteTimeMillis(Long.MAX_VALUE));
 
         }
 
@@ -2154,13 +2143,13 @@ public class EndpointRouter implements EndpointListener,
             // something in parallel, but that's very unlikely and
             // if it is rare enough then the damage is small.
             synchronized (this) {
-                triedAndFailed.put(destPeer, new Long(TimeUtils.toAbsoluteTimeMillis(MAXASYNC_GETMESSENGER_RETRY)));
+                routeTable.setRetryAt(destPeer, TimeUtils.toAbsoluteTimeMillis(MAXASYNC_GETMESSENGER_RETRY));
             }
         } catch (Throwable e) {
             // If something weird happened be conservative and set a standard
             // finite timeout.
             synchronized (this) {
-                triedAndFailed.put(destPeer, new Long(TimeUtils.toAbsoluteTimeMillis(MAXASYNC_GETMESSENGER_RETRY)));
+                routeTable.setRetryAt(destPeer, TimeUtils.toAbsoluteTimeMillis(MAXASYNC_GETMESSENGER_RETRY));
             }
             if (LOG.isEnabledFor(Level.WARN)) {
                 LOG.warn("error looking for an address ", e);
@@ -2227,7 +2216,7 @@ public class EndpointRouter implements EndpointListener,
                     // as a destination.
                     // we only need to publish this route if
                     // we don't know about it yet.
-                    if (!(isLocalRoute(firstHopAddr) || routedRoutes.containsKey(firstHopAddr))) {
+                    if (!(isLocalRoute(firstHopAddr) || routeTable.hasRoute(firstHopAddr))) {
 
                         routeFirstHop = (RouteAdvertisement)
                                         AdvertisementFactory.newAdvertisement(RouteAdvertisement.getAdvertisementType());
@@ -2457,14 +2446,14 @@ public class EndpointRouter implements EndpointListener,
                 }
                 if (force) {
                     synchronized (this) {
-                        Long nextTry = (Long) triedAndFailed.get(pid2addr(pID));
+                        Long nextTry = routeTable.getRetryAt(pid2addr(pID));
 
                         if (nextTry != null) {
                             // only remove if we do not have a pending request (infinite retry)
                             // we take the conservative approach to avoid creating multiple
                             // async thread blocked on the same destination
                             if (nextTry.longValue() <= TimeUtils.toAbsoluteTimeMillis(MAXASYNC_GETMESSENGER_RETRY)) {
-                                triedAndFailed.remove(pid2addr(pID));
+                                routeTable.clearRetryAt(pid2addr(pID));
                                 notifyAll();
                             }
                         }
@@ -2484,8 +2473,8 @@ public class EndpointRouter implements EndpointListener,
      *
      * @return true or false
      */
-    protected synchronized boolean isPendingRouteQuery(EndpointAddress addr) {
-        return pendingQueries.containsKey(addr);
+    protected boolean isPendingRouteQuery(EndpointAddress addr) {
+        return routeTable.getPendingQuery(addr) != null;
     }
 
     /**
@@ -2495,8 +2484,8 @@ public class EndpointRouter implements EndpointListener,
      *
      * @return pending route query info
      */
-    protected synchronized ClearPendingQuery getPendingRouteQuery(EndpointAddress addr) {
-        return (ClearPendingQuery) pendingQueries.get(addr);
+    protected ClearPendingQuery getPendingRouteQuery(EndpointAddress addr) {
+        return routeTable.getPendingQuery(addr);
     }
 
     /**
@@ -2507,7 +2496,7 @@ public class EndpointRouter implements EndpointListener,
      * @return true or false
      */
     protected boolean isRoutedRoute(EndpointAddress addr) {
-        return routedRoutes.containsKey(addr);
+        return routeTable.hasRoute(addr);
     }
 
     /**
@@ -2531,31 +2520,40 @@ public class EndpointRouter implements EndpointListener,
     }
 
     /**
-     * Get all long route destinations
+     * Get all long routes
      *
-     * @return Iterator iterations of all routed route destinations
+     * @return Iterator iterations of a snapshot of all routed routes
      */
-    protected Iterator getRoutedRouteAllDestinations() {
-        return routedRoutes.entrySet().iterator();
+    protected Iterator getAllRoutedRoutes() {
+        return routeTable.getRoutes().iterator();
     }
 
     /**
      * Get all long route destination addresses
      *
-     * @return Iterator iterations of all routed route addresses
+     * @return Iterator iterations of a snapshot of all routed route addresses
+     */
+    protected Iterator getAllRoutedRouteAddresses() {
+        return routeTable.getRoutedDestinations().iterator();
+    }
+
+    /**
+     * Get all pending route queries
+     *
+     * @return Iterator iterations of a snapshot of all pending route queries
      */
-    protected synchronized Iterator getAllRoutedRouteAddresses() {
-        // XXX 20041107 bondolo Being synchronized does not make this itertor safe.
-        return routedRoutes.keySet().iterator();
+    protected Iterator getAllPendingQueries() {
+        return routeTable.getPendingQueries().iterator();
     }
 
     /**
-     * Get all pendingRouteQuery destinations
+     * Get the table of what we know about the peers we do not reach
+     * directly.
      *
-     * @return Iterator iterations of all pending route query destinations
+     * @return the route table
      */
-    protected Iterator getPendingQueriesAllDestinations() {
-        return pendingQueries.entrySet().iterator();
+    RouteTable getRouteTable() {
+        return routeTable;
     }
 
     /**
@@ -2572,8 +2570,8 @@ public class EndpointRouter implements EndpointListener,
      * @param addr of the bad route
      * @param badRoute bad route info
      */
-    protected synchronized void setBadRoute(EndpointAddress addr, BadRoute badRoute) {
-        badRoutes.put(addr, badRoute);
+    protected void setBadRoute(EndpointAddress addr, BadRoute badRoute) {
+        routeTable.setBadRoute(addr, badRoute);
     }
 
     /**
@@ -2582,7 +2580,7 @@ public class EndpointRouter implements EndpointListener,
      * @param addr of the bad route
      * @return BadRoute bad route info
      */
-    protected synchronized BadRoute  getBadRoute(EndpointAddress addr) {
-        return (BadRoute) badRoutes.get(addr);
+    protected BadRoute  getBadRoute(EndpointAddress addr) {
+        return routeTable.getBadRoute(addr);
     }
 }
@@ -65,7 +65,6 @@ package net.jxta.impl.endpoint.router;
 
 import java.util.Vector;
 import java.util.Iterator;
-import java.util.Map;
 
 import net.jxta.id.ID;
 import net.jxta.peer.PeerID;
@@ -338,25 +337,21 @@ public class RouteControl {
             }
 
             // now get the long routes
-            // Use entrySet, there's no point in doing redundant lookups
-            // in the map.
-            for (Iterator i = router.getRoutedRouteAllDestinations(); i.hasNext();) {
-                Map.Entry entry = (Map.Entry) i.next();
-
-                routes.add((RouteAdvertisement) entry.getValue());
+            for (Iterator i = router.getAllRoutedRoutes(); i.hasNext();) {
+                routes.add((RouteAdvertisement) i.next());
             }
 
-            for (Iterator it = router.getPendingQueriesAllDestinations(); it.hasNext();) {
-                Map.Entry entry = (Map.Entry) it.next();
+            for (Iterator it = router.getAllPendingQueries(); it.hasNext();) {
+                EndpointRouter.ClearPendingQuery query = (EndpointRouter.ClearPendingQuery) it.next();
 
-                ea = (EndpointAddress) entry.getKey();
+                ea = query.getDestination();
                 AccessPointAdvertisement ap = (AccessPointAdvertisement)
                                               AdvertisementFactory.newAdvertisement(AccessPointAdvertisement.getAdvertisementType());
 
                 ap.setPeerID(router.addr2pid(ea));
                 Vector eas = new Vector();
 
-                eas.add("pending " + (((EndpointRouter.ClearPendingQuery) entry.getValue()).isFailed() ? "(failed)" : "(new)"));
+                eas.add("pending " + (query.isFailed() ? "(failed)" : "(new)"));
                 ap.setEndpointAddresses(eas);
                 RouteAdvertisement r = (RouteAdvertisement)
                                        AdvertisementFactory.newAdvertisement(RouteAdvertisement.getAdvertisementType());
@@ -396,5 +391,48 @@ public class RouteControl {
         // FIXME hamada enable when resolver is added
         //router.getRouteResolver().disableRouteResolver();
     }
+
+    /**
+     * get the number of destinations the route table has information about
+     */
+    public int getRouteTableSize() {
+        return router.getRouteTable().size();
+    }
+
+    /**
+     * get the number of route lookups which found a long route
+     */
+    public long getRouteTableHits() {
+        return router.getRouteTable().getHits();
+    }
+
+    /**
+     * get the number of route lookups which found no long route
+     */
+    public long getRouteTableMisses() {
+        return router.getRouteTable().getMisses();
+    }
+
+    /**
+     * get the number of lookups answered by a recent failure to connect or
+     * to find a route
+     */
+    public long getRouteTableNegativeHits() {
+        return router.getRouteTable().getNegativeHits();
+    }
+
+    /**
+     * get the number of destinations the route table forgot for lack of room
+     */
+    public long getRouteTableEvictions() {
+        return router.getRouteTable().getEvictions();
+    }
+
+    /**
+     * get the number of long routes which expired
+     */
+    public long getRouteTableExpirations() {
+        return router.getRouteTable().getExpirations();
+    }
 }
 
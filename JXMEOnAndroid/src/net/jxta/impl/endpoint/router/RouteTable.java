@@ -0,0 +1,553 @@
+/*
+ *
+ * $Id$
+ *
+ * Copyright (c) 2001 Sun Microsystems, Inc.  All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *
+ * 3. The end-user documentation included with the redistribution,
+ *    if any, must include the following acknowledgment:
+ *       "This product includes software developed by the
+ *       Sun Microsystems, Inc. for Project JXTA."
+ *    Alternately, this acknowledgment may appear in the software itself,
+ *    if and wherever such third-party acknowledgments normally appear.
+ *
+ * 4. The names "Sun", "Sun Microsystems, Inc.", "JXTA" and "Project JXTA"
+ *    must not be used to endorse or promote products derived from this
+ *    software without prior written permission. For written
+ *    permission, please contact Project JXTA at http://www.jxta.org.
+ *
+ * 5. Products derived from this software may not be called "JXTA",
+ *    nor may "JXTA" appear in their name, without prior written
+ *    permission of Sun.
+ *
+ * THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED.  IN NO EVENT SHALL SUN MICROSYSTEMS OR
+ * ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ * USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ * OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ *
+ * ====================================================================
+ *
+ * This software consists of voluntary contributions made by many
+ * individuals on behalf of Project JXTA.  For more
+ * information on Project JXTA, please see
+ * <http://www.jxta.org/>.
+ *
+ * This license is based on the BSD license adopted by the Apache Foundation.
+ */
+
+package net.jxta.impl.endpoint.router;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+import net.jxta.endpoint.EndpointAddress;
+import net.jxta.protocol.RouteAdvertisement;
+
+import net.jxta.impl.util.Cache;
+import net.jxta.impl.util.CacheEntry;
+import net.jxta.impl.util.CacheEntryListener;
+import net.jxta.impl.util.TimeUtils;
+
+/**
+ *  What the router knows about the destinations it does not reach directly:
+ *  long routes, failed connection attempts, NACKed routes and route queries.
+ *
+ *  <p/>There is one entry per destination peer, in a cache of bounded size.
+ *  When the cache is full, the least recently used destination is forgotten.
+ *  Routes expire after a time to live, and the other informations carry their
+ *  own expiration time. An entry goes away once it holds nothing anymore.
+ *
+ *  <p/>Keys are peer ids as {@link net.jxta.endpoint.EndpointAddress}.
+ *
+ *  <p/>This class is synchronized.
+ */
+class RouteTable implements CacheEntryListener {
+
+    /**
+     *    Log4J Logger
+     */
+    private static transient final Logger LOG = Logger.getLogger(RouteTable.class.getName());
+
+    /**
+     *  Default number of destinations we keep information about.
+     */
+    final static int DEFAULT_CAPACITY = 1024;
+
+    /**
+     *  Default time to live of a long route.
+     */
+    final static long DEFAULT_ROUTE_TTL = 60L * TimeUtils.AMINUTE;
+
+    /**
+     *  What we know about one destination.
+     */
+    private static class Entry {
+
+        /**
+         *  The long route, only PIDs.
+         */
+        RouteAdvertisement route = null;
+
+        /**
+         *  Absolute time at which the route expires.
+         */
+        long routeExpiresAt = 0;
+
+        /**
+         *  Absolute time before which we do not try to connect again.
+         */
+        Long retryAt = null;
+
+        /**
+         *  The route we received a NACK for.
+         */
+        BadRoute badRoute = null;
+
+        /**
+         *  The route query we issued.
+         */
+        EndpointRouter.ClearPendingQuery pendingQuery = null;
+
+        boolean isEmpty() {
+            return (null == route) && (null == retryAt) && (null == badRoute) && (null == pendingQuery);
+        }
+    }
+
+    private final Cache entries;
+
+    private final long routeTTL;
+
+    /**
+     *  Statistics.
+     */
+    private long hits = 0;
+    private long misses = 0;
+    private long negativeHits = 0;
+    private long evictions = 0;
+    private long expirations = 0;
+
+    /**
+     *  Creates a route table.
+     *
+     *  @param capacity the number of destinations to keep information about.
+     *  @param routeTTL time to live of long routes, in milliseconds.
+     */
+    RouteTable(int capacity, long routeTTL) {
+        this.entries = new Cache(capacity, this);
+        this.routeTTL = routeTTL;
+    }
+
+    /**
+     *  {@inheritDoc}
+     *
+     *  <p/>Counts the destinations forgotten for lack of room.
+     */
+    public void purged(CacheEntry purged) {
+        evictions++;
+
+        if (LOG.isEnabledFor(Level.DEBUG)) {
+            LOG.debug("Forgot route information for " + purged.getKey());
+        }
+    }
+
+    /**
+     *  Returns the entry of a destination, optionally creating it.
+     */
+    private Entry getEntry(EndpointAddress addr, boolean create) {
+        Entry entry = (Entry) entries.get(addr);
+
+        if ((null == entry) && create) {
+            entry = new Entry();
+            entries.put(addr, entry);
+        }
+        return entry;
+    }
+
+    /**
+     *  Drops the entry of a destination once it holds nothing.
+     */
+    private void dropIfEmpty(EndpointAddress addr, Entry entry) {
+        if (entry.isEmpty()) {
+            entries.remove(addr);
+        }
+    }
+
+    /**
+     *  Drops the route of an entry if it has expired.
+     *
+     *  @return true if the entry has a valid route.
+     */
+    private boolean checkRoute(Entry entry, long now) {
+        if (null == entry.route) {
+            return false;
+        }
+        if (TimeUtils.toRelativeTimeMillis(entry.routeExpiresAt, now) <= 0) {
+            entry.route = null;
+            expirations++;
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     *  Drops the pending query of an entry if it has expired.
+     *
+     *  @return true if the entry has a pending query.
+     */
+    private boolean checkPendingQuery(Entry entry) {
+        if (null == entry.pendingQuery) {
+            return false;
+        }
+        if (entry.pendingQuery.isExpired()) {
+            entry.pendingQuery = null;
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     *  Returns the long route to a destination.
+     *
+     *  @param addr the destination.
+     *  @return the route or null if there is none or it expired.
+     */
+    synchronized RouteAdvertisement getRoute(EndpointAddress addr) {
+        Entry entry = getEntry(addr, false);
+
+        if ((null != entry) && checkRoute(entry, TimeUtils.timeNow())) {
+            hits++;
+            return entry.route;
+        }
+
+        misses++;
+        if (null != entry) {
+            dropIfEmpty(addr, entry);
+        }
+        return null;
+    }
+
+    /**
+     *  Returns true if there is a long route to a destination. Unlike
+     *  {@link #getRoute(EndpointAddress)} this does not count as a lookup.
+     *
+     *  @param addr the destination.
+     *  @return true if there is an unexpired route.
+     */
+    synchronized boolean hasRoute(EndpointAddress addr) {
+        Entry entry = getEntry(addr, false);
+
+        return (null != entry) && checkRoute(entry, TimeUtils.timeNow());
+    }
+
+    /**
+     *  Sets the long route to a destination, for the route time to live.
+     *
+     *  @param addr the destination.
+     *  @param route the route.
+     *  @return the route it replaces, if any.
+     */
+    synchronized RouteAdvertisement setRoute(EndpointAddress addr, RouteAdvertisement route) {
+        Entry entry = getEntry(addr, true);
+        RouteAdvertisement previous = checkRoute(entry, TimeUtils.timeNow()) ? entry.route : null;
+
+        entry.route = route;
+        entry.routeExpiresAt = TimeUtils.toAbsoluteTimeMillis(routeTTL);
+        return previous;
+    }
+
+    /**
+     *  Removes the long route to a destination.
+     *
+     *  @param addr the destination.
+     *  @return the route removed, if any.
+     */
+    synchronized RouteAdvertisement removeRoute(EndpointAddress addr) {
+        Entry entry = getEntry(addr, false);
+
+        if (null == entry) {
+            return null;
+        }
+
+        RouteAdvertisement previous = checkRoute(entry, TimeUtils.timeNow()) ? entry.route : null;
+
+        entry.route = null;
+        dropIfEmpty(addr, entry);
+        return previous;
+    }
+
+    /**
+     *  Returns the time before which we should not try to connect to a
+     *  destination again.
+     *
+     *  @param addr the destination.
+     *  @return the absolute time, or null if we may try now.
+     */
+    synchronized Long getRetryAt(EndpointAddress addr) {
+        Entry entry = getEntry(addr, false);
+
+        if ((null == entry) || (null == entry.retryAt)) {
+            return null;
+        }
+        if (entry.retryAt.longValue() <= TimeUtils.timeNow()) {
+            entry.retryAt = null;
+            dropIfEmpty(addr, entry);
+            return null;
+        }
+        return entry.retryAt;
+    }
+
+    /**
+     *  Returns true if we should not try to connect to a destination yet.
+     *  Unlike {@link #getRetryAt(EndpointAddress)} this is a lookup, so it
+     *  counts a negative hit.
+     *
+     *  @param addr the destination.
+     *  @return true if a recent failure says not to try now.
+     */
+    synchronized boolean isRetryPending(EndpointAddress addr) {
+        if (null == getRetryAt(addr)) {
+            return false;
+        }
+        negativeHits++;
+        return true;
+    }
+
+    /**
+     *  Sets the time before which we should not try to connect to a
+     *  destination again.
+     *
+     *  @param addr the destination.
+     *  @param retryAt the absolute time.
+     */
+    synchronized void setRetryAt(EndpointAddress addr, long retryAt) {
+        getEntry(addr, true).retryAt = new Long(retryAt);
+    }
+
+    /**
+     *  Allows trying to connect to a destination again right away.
+     *
+     *  @param addr the destination.
+     */
+    synchronized void clearRetryAt(EndpointAddress addr) {
+        Entry entry = getEntry(addr, false);
+
+        if (null != entry) {
+            entry.retryAt = null;
+            dropIfEmpty(addr, entry);
+        }
+    }
+
+    /**
+     *  @param addr the destination.
+     *  @return the NACKed route to a destination, if any.
+     */
+    synchronized BadRoute getBadRoute(EndpointAddress addr) {
+        Entry entry = getEntry(addr, false);
+
+        return (null == entry) ? null : entry.badRoute;
+    }
+
+    /**
+     *  @param addr the destination.
+     *  @param badRoute the NACKed route to a destination.
+     */
+    synchronized void setBadRoute(EndpointAddress addr, BadRoute badRoute) {
+        getEntry(addr, true).badRoute = badRoute;
+    }
+
+    /**
+     *  Forgets the NACKed route to a destination.
+     *
+     *  @param addr the destination.
+     */
+    synchronized void removeBadRoute(EndpointAddress addr) {
+        Entry entry = getEntry(addr, false);
+
+        if (null != entry) {
+            entry.badRoute = null;
+            dropIfEmpty(addr, entry);
+        }
+    }
+
+    /**
+     *  @param addr the destination.
+     *  @return the route query for a destination, if it has not expired.
+     */
+    synchronized EndpointRouter.ClearPendingQuery getPendingQuery(EndpointAddress addr) {
+        Entry entry = getEntry(addr, false);
+
+        if ((null == entry) || !checkPendingQuery(entry)) {
+            if (null != entry) {
+                dropIfEmpty(addr, entry);
+            }
+            return null;
+        }
+        return entry.pendingQuery;
+    }
+
+    /**
+     *  @param addr the destination.
+     *  @param query the route query for a destination.
+     */
+    synchronized void setPendingQuery(EndpointAddress addr, EndpointRouter.ClearPendingQuery query) {
+        getEntry(addr, true).pendingQuery = query;
+    }
+
+    /**
+     *  Forgets the route query for a destination.
+     *
+     *  @param addr the destination.
+     */
+    synchronized void removePendingQuery(EndpointAddress addr) {
+        Entry entry = getEntry(addr, false);
+
+        if (null != entry) {
+            entry.pendingQuery = null;
+            dropIfEmpty(addr, entry);
+        }
+    }
+
+    /**
+     *  Returns true if a destination is known to be unreachable: our queries
+     *  for a route to it have failed recently and we have no route.
+     *
+     *  @param addr the destination.
+     *  @return true if there is no point looking for a route now.
+     */
+    synchronized boolean isUnreachable(EndpointAddress addr) {
+        Entry entry = getEntry(addr, false);
+
+        if ((null == entry) || checkRoute(entry, TimeUtils.timeNow()) || !checkPendingQuery(entry)) {
+            return false;
+        }
+        if (entry.pendingQuery.isFailed()) {
+            negativeHits++;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     *  @return the destinations we have a long route to.
+     */
+    synchronized List getRoutedDestinations() {
+        List result = new ArrayList();
+        long now = TimeUtils.timeNow();
+
+        for (Iterator each = entries.cacheEntries().iterator(); each.hasNext();) {
+            CacheEntry cacheEntry = (CacheEntry) each.next();
+
+            if (checkRoute((Entry) cacheEntry.getValue(), now)) {
+                result.add(cacheEntry.getKey());
+            }
+        }
+        return result;
+    }
+
+    /**
+     *  @return the long routes we know.
+     */
+    synchronized List getRoutes() {
+        List result = new ArrayList();
+        long now = TimeUtils.timeNow();
+
+        for (Iterator each = entries.cacheEntries().iterator(); each.hasNext();) {
+            Entry entry = (Entry) ((CacheEntry) each.next()).getValue();
+
+            if (checkRoute(entry, now)) {
+                result.add(entry.route);
+            }
+        }
+        return result;
+    }
+
+    /**
+     *  @return the route queries which have not expired.
+     */
+    synchronized List getPendingQueries() {
+        List result = new ArrayList();
+
+        for (Iterator each = entries.cacheEntries().iterator(); each.hasNext();) {
+            Entry entry = (Entry) ((CacheEntry) each.next()).getValue();
+
+            if (checkPendingQuery(entry)) {
+                result.add(entry.pendingQuery);
+            }
+        }
+        return result;
+    }
+
+    /**
+     *  Forgets everything.
+     */
+    synchronized void clear() {
+        entries.clear();
+    }
+
+    /**
+     *  @return the number of destinations we have information about.
+     */
+    synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     *  @return the number of route lookups which found a route.
+     */
+    synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     *  @return the number of route lookups which found no route.
+     */
+    synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     *  @return the number of lookups answered by negative information: a
+     *  recent failure to connect or to find a route.
+     */
+    synchronized long getNegativeHits() {
+        return negativeHits;
+    }
+
+    /**
+     *  @return the number of destinations forgotten for lack of room.
+     */
+    synchronized long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     *  @return the number of routes which expired.
+     */
+    synchronized long getExpirations() {
+        return expirations;
+    }
+}
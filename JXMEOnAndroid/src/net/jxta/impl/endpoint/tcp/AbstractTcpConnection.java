@@ -0,0 +1,376 @@
+/*
+ *
+ * $Id$
+ *
+ * Copyright (c) 2001 Sun Microsystems, Inc.  All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *
+ * 3. The end-user documentation included with the redistribution,
+ *    if any, must include the following acknowledgment:
+ *       "This product includes software developed by the
+ *       Sun Microsystems, Inc. for Project JXTA."
+ *    Alternately, this acknowledgment may appear in the software itself,
+ *    if and wherever such third-party acknowledgments normally appear.
+ *
+ * 4. The names "Sun", "Sun Microsystems, Inc.", "JXTA" and "Project JXTA"
+ *    must not be used to endorse or promote products derived from this
+ *    software without prior written permission. For written
+ *    permission, please contact Project JXTA at http://www.jxta.org.
+ *
+ * 5. Products derived from this software may not be called "JXTA",
+ *    nor may "JXTA" appear in their name, without prior written
+ *    permission of Sun.
+ *
+ * THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED.  IN NO EVENT SHALL SUN MICROSYSTEMS OR
+ * ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ * USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ * OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ *
+ * ====================================================================
+ *
+ * This software consists of voluntary contributions made by many
+ * individuals on behalf of Project JXTA.  For more
+ * information on Project JXTA, please see
+ * <http://www.jxta.org/>.
+ *
+ * This license is based on the BSD license adopted by the Apache Foundation.
+ */
+
+package net.jxta.impl.endpoint.tcp;
+
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+
+import java.io.IOException;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+import net.jxta.endpoint.EndpointAddress;
+import net.jxta.endpoint.Message;
+import net.jxta.id.ID;
+
+import net.jxta.impl.endpoint.msgframing.MessageContentCoder;
+import net.jxta.impl.endpoint.msgframing.MessagePackageHeader;
+import net.jxta.impl.endpoint.msgframing.WelcomeMessage;
+import net.jxta.impl.util.metrics.Counter;
+import net.jxta.impl.util.metrics.Histogram;
+import net.jxta.impl.util.metrics.MetricsRegistry;
+
+/**
+ *  The state and behaviour common to all of the TCP connection
+ *  implementations. A connection is a socket to a single remote peer over
+ *  which the Welcome Message handshake has been (or is being) exchanged and
+ *  upon which framed messages are sent and received.
+ *
+ *  @see TcpConnection
+ *  @see NioTcpConnection
+ */
+abstract class AbstractTcpConnection {
+
+    /**
+     *  Log4J Logger
+     */
+    private static final Logger LOG = Logger.getLogger(AbstractTcpConnection.class.getName());
+
+    /**
+     *  Metrics shared by all of the connections. Bytes are message bytes, as
+     *  given by the content length, and times are in milliseconds for each
+     *  send, which may carry several messages.
+     */
+    static final Counter SENT_MESSAGES = MetricsRegistry.getRegistry().counter("tcp.sent.messages");
+    static final Counter SENT_BYTES = MetricsRegistry.getRegistry().counter("tcp.sent.bytes");
+    static final Counter SEND_FAILURES = MetricsRegistry.getRegistry().counter("tcp.sent.failures");
+    static final Histogram SEND_TIME = MetricsRegistry.getRegistry().histogram("tcp.sent.time");
+    static final Counter RECEIVED_MESSAGES = MetricsRegistry.getRegistry().counter("tcp.received.messages");
+    static final Counter RECEIVED_BYTES = MetricsRegistry.getRegistry().counter("tcp.received.bytes");
+    static final Histogram RECEIVE_TIME = MetricsRegistry.getRegistry().histogram("tcp.received.time");
+
+    /**
+     *  The transport which this connection is part of.
+     */
+    final TcpTransport proto;
+
+    EndpointAddress dstAddress = null;
+    EndpointAddress fullDstAddress = null;
+    transient InetAddress inetAddress = null;
+    transient int port = 0;
+
+    transient volatile boolean closed = false;
+
+    transient WelcomeMessage myWelcome = null;
+    transient WelcomeMessage itsWelcome = null;
+
+    private transient long lastUsed = System.currentTimeMillis();
+
+    boolean initiator;
+    boolean closingDueToFailure = false;
+
+    /**
+     *  Applies and removes message content coding or <code>null</code> if the
+     *  transport does not offer compression.
+     */
+    final transient MessageContentCoder coder;
+
+    /**
+     *  The content coding applied to the messages we send or
+     *  <code>null</code> if they are not coded. Chosen from the codings the
+     *  other party lists in the headers of its messages.
+     */
+    transient volatile String sendCoding = null;
+
+    /**
+     *  If <tt>true</tt> we have listed the codings we accept in the header of
+     *  a message we sent. TCP delivers that message before any other so we
+     *  list them only once per connection.
+     */
+    private transient volatile boolean codingsOffered = false;
+
+    /**
+     *  Creates a new connection for the specified transport.
+     *
+     *  @param p    the transport which this connection is part of.
+     */
+    AbstractTcpConnection(TcpTransport p) {
+        proto = p;
+        coder = p.compress ? new MessageContentCoder(TcpTransport.compressThreshold, TcpTransport.MaxDecodedMessageSize) : null;
+    }
+
+    /**
+     *  Lists the content codings we accept in the header of the first message
+     *  we send. The Welcome Message is left as older peers expect it. The
+     *  caller must serialize sends.
+     *
+     *  @param header   the header of the message being sent.
+     */
+    void offerCodings(MessagePackageHeader header) {
+        if ((null != coder) && !codingsOffered) {
+            header.setAcceptCodingHeader(MessageContentCoder.getSupportedCodings());
+            codingsOffered = true;
+        } else {
+            header.setAcceptCodingHeader(null);
+        }
+    }
+
+    /**
+     *  Called with the header of each message received to choose the content
+     *  coding for the messages we send. We only code messages if we offer
+     *  coding ourselves and the other party has listed a coding we support.
+     *
+     *  @param header   the header of the message received.
+     */
+    void codingsReceived(MessagePackageHeader header) {
+        if (null == coder) {
+            return;
+        }
+
+        String [] accepted = header.getAcceptCodingHeader();
+
+        if ((null != accepted) && (null == sendCoding)) {
+            sendCoding = MessageContentCoder.selectCoding(accepted);
+
+            if (LOG.isEnabledFor(Level.DEBUG)) {
+                LOG.debug("Content coding to " + ((null != itsWelcome) ? itsWelcome.getPeerID().toString() : "unknown") + " : " + sendCoding);
+            }
+        }
+    }
+
+    /**
+     *  Removes the content coding from a received message body.
+     *
+     *  @param coding   the content coding named by the message package header.
+     *  @param body the array containing the coded body.
+     *  @param length   the length of the body.
+     *  @return a buffer containing the decoded message.
+     *  @throws IOException if the coding was not offered or the body is
+     *  corrupt.
+     */
+    ByteBuffer decodeBody(String coding, byte[] body, int length) throws IOException {
+        if (null == coder) {
+            throw new IOException("Unexpected content coding : " + coding);
+        }
+
+        return coder.decode(coding, body, 0, length);
+    }
+
+    /**
+     *  Releases the content coder. Called when the connection is closed.
+     */
+    void endCoder() {
+        if (null != coder) {
+            coder.end();
+        }
+    }
+
+    /**
+     *  Decodes the destination address of an outgoing connection and
+     *  initializes the destination fields from it.
+     *
+     *  @param destaddr the destination address of this connection.
+     *  @throws IOException if the destination cannot be reached from here.
+     */
+    void setDestination(EndpointAddress destaddr) throws IOException {
+        this.fullDstAddress = destaddr;
+        this.dstAddress = new EndpointAddress(destaddr, null, null);
+
+        String protoAddr = destaddr.getProtocolAddress();
+        int portIndex = protoAddr.lastIndexOf(":");
+
+        if (portIndex == -1) {
+            throw new IllegalArgumentException("Invalid Protocol Address (port # missing) ");
+        }
+
+        String portString = protoAddr.substring(portIndex + 1);
+        try {
+            port = Integer.valueOf(portString).intValue();
+        } catch (NumberFormatException caught) {
+            throw new IllegalArgumentException("Invalid Protocol Address (port # invalid): " + portString);
+        }
+
+        // Check for bad port number.
+        if ((port <= 0) || (port > 65535)) {
+            throw new IllegalArgumentException("Invalid port number in Protocol Address : " + port);
+        }
+
+        String hostString = protoAddr.substring(0, portIndex);
+        inetAddress = InetAddress.getByName(hostString);
+
+        if (LOG.isEnabledFor(Level.INFO)) {
+            LOG.info("New TCP Connection to : " + dstAddress + " / "+ inetAddress.getHostAddress() + ":" + port);
+        }
+
+        // See if we're attempting to use the loopback address.
+        // And if so, is the peer configured for the loopback network only?
+        // (otherwise the connection is not permitted). Btw, the otherway around
+        // is just as wrong, so we check both at once and pretend it cannot work,
+        // even if it might have.
+        // FIXME 20041130 This is not an appropriate check if the other peer is
+        // running on the same machine and the InetAddress.getByName returns the
+        // loopback address.
+        if (inetAddress.isLoopbackAddress() != proto.usingInterface.isLoopbackAddress()) {
+            throw new IOException("Network unreachable");
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public boolean equals(Object target) {
+        if (this == target) {
+            return true;
+        }
+
+        if (null == target) {
+            return false;
+        }
+
+        if (target instanceof AbstractTcpConnection) {
+            AbstractTcpConnection likeMe = (AbstractTcpConnection) target;
+            return getDestinationAddress().equals(likeMe.getDestinationAddress()) && getDestinationPeerID().equals(likeMe.getDestinationPeerID());
+        }
+        return false;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public int hashCode() {
+        return  getDestinationPeerID().hashCode() + getDestinationAddress().hashCode();
+    }
+
+    /**
+     *  {@inheritDoc}
+     *
+     *  <p/>Implementation for debugging.
+     */
+    public String toString() {
+        return super.toString() + ":" + ((null != itsWelcome) ? itsWelcome.getPeerID().toString() : "unknown") + " on address "
+               + ((null != dstAddress) ? dstAddress.toString() : "unknown");
+    }
+
+    public EndpointAddress getDestinationAddress() {
+        return (EndpointAddress) dstAddress.clone();
+    }
+
+    public EndpointAddress getConnectionAddress() {
+        // Somewhat confusing but destinationAddress is the name of that thing
+        // for the welcome message.
+        return itsWelcome.getDestinationAddress();
+    }
+
+    public ID getDestinationPeerID() {
+        return itsWelcome.getPeerID();
+    }
+
+    /**
+     *  Starts receiving messages on this connection.
+     */
+    protected abstract void start();
+
+    /**
+     * Send message to the remote peer.
+     *
+     *  @param msg  the message to send.
+     */
+    public abstract void sendMessage(Message msg) throws IOException;
+
+    /**
+     *  Sends messages to the remote peer as one burst. They are written back
+     *  to back and the connection is flushed once, after the last of them.
+     *
+     *  @param msgs  the messages to send, in order.
+     */
+    public abstract void sendMessages(Message[] msgs) throws IOException;
+
+    /**
+     *  Soft close of the connection. Messages can no longer be sent, but any
+     *  in the queue will be flushed.
+     */
+    public abstract void close();
+
+    /**
+     *  return the current connection status.
+     *
+     *  @param true if there is an active connection to the remote peer,
+     *  otherwise false.
+     */
+    public abstract boolean isConnected();
+
+    /**
+     *  Return the absolute time in milliseconds at which this Connection was last used.
+     *
+     *  @return absolute time in milliseconds.
+     */
+    public long getLastUsed() {
+        return lastUsed;
+    }
+
+    /**
+     *  Set the last used time for this connection in absolute milliseconds.
+     *
+     *  @param time absolute time in milliseconds.
+     */
+    void setLastUsed(long time) {
+        lastUsed = time;
+    }
+}
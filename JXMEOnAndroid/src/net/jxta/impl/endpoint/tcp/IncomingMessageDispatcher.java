@@ -0,0 +1,457 @@
+/*
+ *
+ * $Id$
+ *
+ * Copyright (c) 2001 Sun Microsystems, Inc.  All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *
+ * 3. The end-user documentation included with the redistribution,
+ *    if any, must include the following acknowledgment:
+ *       "This product includes software developed by the
+ *       Sun Microsystems, Inc. for Project JXTA."
+ *    Alternately, this acknowledgment may appear in the software itself,
+ *    if and wherever such third-party acknowledgments normally appear.
+ *
+ * 4. The names "Sun", "Sun Microsystems, Inc.", "JXTA" and "Project JXTA"
+ *    must not be used to endorse or promote products derived from this
+ *    software without prior written permission. For written
+ *    permission, please contact Project JXTA at http://www.jxta.org.
+ *
+ * 5. Products derived from this software may not be called "JXTA",
+ *    nor may "JXTA" appear in their name, without prior written
+ *    permission of Sun.
+ *
+ * THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED.  IN NO EVENT SHALL SUN MICROSYSTEMS OR
+ * ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ * USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ * OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ *
+ * ====================================================================
+ *
+ * This software consists of voluntary contributions made by many
+ * individuals on behalf of Project JXTA.  For more
+ * information on Project JXTA, please see
+ * <http://www.jxta.org/>.
+ *
+ * This license is based on the BSD license adopted by the Apache Foundation.
+ */
+
+package net.jxta.impl.endpoint.tcp;
+
+
+import java.util.LinkedList;
+
+import java.io.InterruptedIOException;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+import net.jxta.endpoint.EndpointService;
+import net.jxta.endpoint.Message;
+
+/**
+ *  Hands messages received by the TCP connections to the endpoint service
+ *  on a small pool of worker threads so that a slow endpoint listener does
+ *  not stall the reading of the connection which delivered the message.
+ *
+ *  <p/>Each connection has its own {@link Lane}. Messages from a lane are
+ *  demuxed one at a time and in the order they were received; a lane is never
+ *  being processed by more than one worker at once. Different lanes are
+ *  served round-robin.
+ *
+ *  <p/>Lanes are bounded. A thread-per-connection receiver calling
+ *  {@link #dispatch(Lane, Message)} blocks while its lane is full, which in
+ *  turn stops it reading from the socket. Selector driven connections use
+ *  {@link #offer(Lane, Message)} and stop reading until their lane has
+ *  drained.
+ */
+final class IncomingMessageDispatcher {
+
+    /**
+     *  Log4J Logger
+     */
+    private static final Logger LOG = Logger.getLogger(IncomingMessageDispatcher.class.getName());
+
+    /**
+     *  The queue of messages from a single connection.
+     */
+    final class Lane {
+
+        /**
+         *  The messages waiting to be demuxed, and the tasks queued with
+         *  {@link IncomingMessageDispatcher#execute}.
+         */
+        private final LinkedList messages = new LinkedList();
+
+        /**
+         *  Run when a lane which had been reported full has drained.
+         */
+        private final Runnable resume;
+
+        /**
+         *  If <tt>true</tt> the lane is either waiting for a worker or being
+         *  processed by one.
+         */
+        private boolean scheduled = false;
+
+        /**
+         *  If <tt>true</tt> the lane was full when it was last offered a
+         *  message and the connection is waiting to be resumed.
+         */
+        private boolean suspended = false;
+
+        /**
+         *  The number of receivers blocked waiting for room in this lane.
+         */
+        private int blocked = 0;
+
+        Lane(Runnable resume) {
+            this.resume = resume;
+        }
+    }
+
+    private final EndpointService endpoint;
+
+    /**
+     *  The maximum number of messages queued per lane.
+     */
+    private final int laneCapacity;
+
+    private final Thread[] workers;
+
+    /**
+     *  The lanes which have messages and are waiting for a worker. Also the
+     *  lock for all of the dispatcher and lane state.
+     */
+    private final LinkedList readyLanes = new LinkedList();
+
+    private volatile boolean closed = false;
+
+    /**
+     *  The number of messages currently queued in all lanes.
+     */
+    private int queued = 0;
+
+    /**
+     *  The largest number of messages which have been queued at once.
+     */
+    private int maxQueued = 0;
+
+    /**
+     *  The total number of messages demuxed.
+     */
+    private long dispatched = 0;
+
+    /**
+     *  The number of times a lane has been full, stopping its connection.
+     */
+    private long backpressured = 0;
+
+    /**
+     *  Creates and starts a new dispatcher.
+     *
+     *  @param inGroup  the thread group in which the workers will run.
+     *  @param endpoint the endpoint service to which messages are given.
+     *  @param threads  the number of worker threads.
+     *  @param laneCapacity  the maximum number of messages queued per
+     *  connection.
+     */
+    IncomingMessageDispatcher(ThreadGroup inGroup, EndpointService endpoint, int threads, int laneCapacity) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("At least one worker thread is required");
+        }
+
+        if (laneCapacity < 1) {
+            throw new IllegalArgumentException("Lane capacity must be at least one");
+        }
+
+        this.endpoint = endpoint;
+        this.laneCapacity = laneCapacity;
+
+        workers = new Thread[threads];
+
+        for (int eachWorker = 0; eachWorker < threads; eachWorker++) {
+            workers[eachWorker] = new Thread(inGroup, new Runnable() {
+                                                 public void run() {
+                                                     work();
+                                                 }
+                                             }
+                                             , "TCP Message Dispatcher " + eachWorker);
+            workers[eachWorker].setDaemon(true);
+            workers[eachWorker].start();
+        }
+    }
+
+    /**
+     *  Creates a new lane for a connection.
+     *
+     *  @param resume   run when the lane has drained after {@link #offer}
+     *  reported it full. May be <code>null</code> if only {@link #dispatch} is
+     *  used.
+     *  @return a new lane.
+     */
+    Lane newLane(Runnable resume) {
+        return new Lane(resume);
+    }
+
+    /**
+     *  Queues a message for demuxing, waiting for room in the lane if it is
+     *  full.
+     *
+     *  @param lane the lane of the connection which received the message.
+     *  @param msg  the message.
+     *  @throws InterruptedIOException if interrupted while waiting.
+     */
+    void dispatch(Lane lane, Message msg) throws InterruptedIOException {
+        synchronized (readyLanes) {
+            if (lane.messages.size() >= laneCapacity) {
+                backpressured++;
+
+                lane.blocked++;
+                try {
+                    while (!closed && (lane.messages.size() >= laneCapacity)) {
+                        readyLanes.wait();
+                    }
+                } catch (InterruptedException woken) {
+                    Thread.interrupted();
+                    throw new InterruptedIOException("Interrupted waiting to dispatch message");
+                } finally {
+                    lane.blocked--;
+                }
+            }
+
+            enqueue(lane, msg);
+        }
+    }
+
+    /**
+     *  Queues a message for demuxing without waiting. The message is always
+     *  accepted.
+     *
+     *  @param lane the lane of the connection which received the message.
+     *  @param msg  the message.
+     *  @return <tt>true</tt> if the lane has room for more messages otherwise
+     *  <tt>false</tt>, in which case the caller should stop reading until the
+     *  lane's resume task is run.
+     */
+    boolean offer(Lane lane, Message msg) {
+        synchronized (readyLanes) {
+            enqueue(lane, msg);
+
+            if (lane.messages.size() >= laneCapacity) {
+                backpressured++;
+                lane.suspended = true;
+                return false;
+            }
+
+            return true;
+        }
+    }
+
+    /**
+     *  Runs a task for a connection on a worker thread, in order with the
+     *  messages of its lane. Used for the work which must not be done on a
+     *  selector thread. The task is not counted against the lane capacity.
+     *
+     *  @param lane the lane of the connection.
+     *  @param task the task.
+     */
+    void execute(Lane lane, Runnable task) {
+        synchronized (readyLanes) {
+            enqueue(lane, task);
+        }
+    }
+
+    /**
+     *  Add a message or a task to a lane and schedule the lane. Must be
+     *  called with the lock held.
+     */
+    private void enqueue(Lane lane, Object msg) {
+        if (closed) {
+            if (LOG.isEnabledFor(Level.DEBUG)) {
+                LOG.debug("Dispatcher closed, discarding " + msg);
+            }
+            return;
+        }
+
+        lane.messages.addLast(msg);
+
+        queued++;
+        if (queued > maxQueued) {
+            maxQueued = queued;
+        }
+
+        if (!lane.scheduled) {
+            lane.scheduled = true;
+            readyLanes.addLast(lane);
+            readyLanes.notify();
+        }
+    }
+
+    /**
+     *  The worker thread body.
+     */
+    private void work() {
+        try {
+            while (true) {
+                Lane lane;
+                Object msg;
+                Runnable resume = null;
+
+                synchronized (readyLanes) {
+                    while (!closed && readyLanes.isEmpty()) {
+                        readyLanes.wait();
+                    }
+
+                    if (closed) {
+                        return;
+                    }
+
+                    lane = (Lane) readyLanes.removeFirst();
+                    msg = lane.messages.removeFirst();
+                    queued--;
+
+                    if (lane.blocked > 0) {
+                        readyLanes.notifyAll();
+                    }
+
+                    if (lane.suspended && (lane.messages.size() <= laneCapacity / 2)) {
+                        lane.suspended = false;
+                        resume = lane.resume;
+                    }
+                }
+
+                if (null != resume) {
+                    resume.run();
+                }
+
+                try {
+                    if (msg instanceof Runnable) {
+                        ((Runnable) msg).run();
+                    } else {
+                        endpoint.demux((Message) msg);
+                    }
+                } catch (Throwable all) {
+                    if (LOG.isEnabledFor(Level.WARN)) {
+                        LOG.warn("Uncaught Throwable while demuxing " + msg, all);
+                    }
+                }
+
+                synchronized (readyLanes) {
+                    if (!(msg instanceof Runnable)) {
+                        dispatched++;
+                    }
+
+                    if (lane.messages.isEmpty()) {
+                        lane.scheduled = false;
+                    } else {
+                        // Back of the line so that other lanes get a turn.
+                        readyLanes.addLast(lane);
+                        readyLanes.notify();
+                    }
+                }
+            }
+        } catch (InterruptedException woken) {
+            Thread.interrupted();
+        } catch (Throwable all) {
+            if (LOG.isEnabledFor(Level.FATAL)) {
+                LOG.fatal("Uncaught Throwable in thread :" + Thread.currentThread().getName(), all);
+            }
+        }
+    }
+
+    /**
+     *  Stops the workers. Queued messages are discarded.
+     */
+    void stop() {
+        synchronized (readyLanes) {
+            closed = true;
+            readyLanes.clear();
+            queued = 0;
+            readyLanes.notifyAll();
+        }
+    }
+
+    /**
+     *  Returns the number of worker threads.
+     *
+     *  @return the number of worker threads.
+     */
+    int getThreadCount() {
+        return workers.length;
+    }
+
+    /**
+     *  Returns the maximum number of messages queued per connection.
+     *
+     *  @return the maximum number of messages queued per connection.
+     */
+    int getLaneCapacity() {
+        return laneCapacity;
+    }
+
+    /**
+     *  Returns the number of messages currently waiting to be demuxed.
+     *
+     *  @return the number of messages currently waiting to be demuxed.
+     */
+    int getQueueDepth() {
+        synchronized (readyLanes) {
+            return queued;
+        }
+    }
+
+    /**
+     *  Returns the largest number of messages which have been waiting to be
+     *  demuxed at once.
+     *
+     *  @return the queue depth high water mark.
+     */
+    int getMaxQueueDepth() {
+        synchronized (readyLanes) {
+            return maxQueued;
+        }
+    }
+
+    /**
+     *  Returns the total number of messages demuxed.
+     *
+     *  @return the total number of messages demuxed.
+     */
+    long getDispatchedCount() {
+        synchronized (readyLanes) {
+            return dispatched;
+        }
+    }
+
+    /**
+     *  Returns the number of times a connection had to stop reading because
+     *  its lane was full.
+     *
+     *  @return the number of times backpressure was applied.
+     */
+    long getBackpressureCount() {
+        synchronized (readyLanes) {
+            return backpressured;
+        }
+    }
+}
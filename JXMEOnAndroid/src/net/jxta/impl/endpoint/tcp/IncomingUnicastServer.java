@@ -64,13 +64,18 @@ import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
-import net.jxta.endpoint.MessengerEvent;
-import net.jxta.impl.endpoint.IPUtils;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
 
 /**
- *  This server handles incoming unicast TCP connections
+ *  This server handles incoming unicast TCP connections.
+ *
+ *  <p/>Connections are either accepted on a dedicated thread and served by a
+ *  {@link TcpConnection} each or, if the transport is using selectors, are
+ *  accepted on a selector thread and served by a {@link NioTcpConnection}.
  */
 public class IncomingUnicastServer implements Runnable {
 
@@ -119,6 +124,35 @@ public class IncomingUnicastServer implements Runnable {
      */
     private Thread acceptThread = null;
 
+    /**
+     *  The selectors on which connections are accepted and served or
+     *  <code>null</code> if each connection gets its own thread.
+     */
+    private final SelectorPool selectors;
+
+    /**
+     *  The channel of the socket we listen for connections on if using
+     *  selectors.
+     */
+    private ServerSocketChannel serverChannel = null;
+
+    /**
+     *  Accepts incoming connections on a selector thread.
+     */
+    private final SelectorPool.Handler acceptor = new SelectorPool.Handler() {
+                public void registered(SelectionKey key) {}
+
+                public void processSelection(SelectionKey key) {
+                    acceptChannels();
+                }
+
+                public void checkTimeout(long now) {}
+
+                public void close() {
+                    IncomingUnicastServer.this.stop();
+                }
+            };
+
     /**
      *  Constructor for the TCP server
      *
@@ -127,7 +161,21 @@ public class IncomingUnicastServer implements Runnable {
      *  @param preferedPort       the port we will be listening on.
      */
     public IncomingUnicastServer(TcpTransport owner, InetAddress serverInterface, int preferedPort, int startPort, int endPort) throws IOException, SecurityException {
+        this(owner, serverInterface, preferedPort, startPort, endPort, null);
+    }
+
+    /**
+     *  Constructor for the TCP server
+     *
+     *  @param owner            the TCP transport we are working for
+     *  @param serverInterface  the network interface to use.
+     *  @param preferedPort       the port we will be listening on.
+     *  @param selectors        the selectors on which connections will be
+     *  accepted and served or <code>null</code> to use a thread per connection.
+     */
+    IncomingUnicastServer(TcpTransport owner, InetAddress serverInterface, int preferedPort, int startPort, int endPort, SelectorPool selectors) throws IOException, SecurityException {
         this.owner = owner;
+        this.selectors = selectors;
         serverBindLocalInterface = serverInterface;
         serverBindPreferedLocalPort = preferedPort;
         serverBindStartLocalPort = startPort;
@@ -145,6 +193,28 @@ public class IncomingUnicastServer implements Runnable {
         if (acceptThread != null) {
             return false;
         }
+
+        if (null != selectors) {
+            if ((null == serverChannel) || serverChannel.isRegistered()) {
+                return false;
+            }
+
+            try {
+                serverChannel.configureBlocking(false);
+            } catch (IOException failed) {
+                if (LOG.isEnabledFor(Level.ERROR)) {
+                    LOG.error("Could not make ServerSocketChannel non-blocking", failed);
+                }
+                return false;
+            }
+
+            selectors.next().register(serverChannel, SelectionKey.OP_ACCEPT, acceptor);
+
+            if (LOG.isEnabledFor(Level.INFO)) {
+                LOG.info("Server is ready to accept connections");
+            }
+            return true;
+        }
         // Start daemon thread
         acceptThread = new Thread(inGroup, this, "TCP Unicast Server Connection Listener");
         acceptThread.setDaemon(true);
@@ -252,22 +322,8 @@ public class IncomingUnicastServer implements Runnable {
                 try {
                     // make a connection object
                     TcpConnection newConnect = new TcpConnection(inputSocket, owner);
-                    // if its not DOA, then register it.
-                    if (newConnect.isConnected()) {
-                        TcpMessenger newMessenger = new TcpMessenger(newConnect.getDestinationAddress(), newConnect, owner);
-                        if (LOG.isEnabledFor(Level.DEBUG)) {
-                            LOG.debug("Registering connection from " + inputSocket.getInetAddress().getHostAddress() + ":" + inputSocket.getPort());
-                        }
-                        try {
-                            MessengerEvent event = new MessengerEvent(owner, newMessenger, newConnect.getConnectionAddress());
-                            owner.messengerReadyEvent(newMessenger, newConnect.getConnectionAddress());
-                        } catch (Throwable all) {
-                            if (LOG.isEnabledFor(Level.FATAL)) {
-                                LOG.fatal("Uncaught Throwable in thread :" + Thread.currentThread().getName(), all);
-                            }
-                        }
-                        newMessenger.start();
-                    }
+
+                    connectionReady(newConnect);
                 } catch (OutOfMemoryError oom) {
                     // Make sure the socket is closed. Since we failed to
                     // put a TcpConnection wrapper around it, it belongs
@@ -330,11 +386,83 @@ public class IncomingUnicastServer implements Runnable {
         }
     }
 
+    /**
+     *  Registers a newly connected connection with the transport.
+     *
+     *  @param newConnect   the connection.
+     */
+    void connectionReady(AbstractTcpConnection newConnect) throws IOException {
+        // if its not DOA, then register it.
+        if (newConnect.isConnected()) {
+            TcpMessenger newMessenger = new TcpMessenger(newConnect.getDestinationAddress(), newConnect, owner);
+            if (LOG.isEnabledFor(Level.DEBUG)) {
+                LOG.debug("Registering connection from " + newConnect.inetAddress.getHostAddress() + ":" + newConnect.port);
+            }
+            try {
+                owner.messengerReadyEvent(newMessenger, newConnect.getConnectionAddress());
+            } catch (Throwable all) {
+                if (LOG.isEnabledFor(Level.FATAL)) {
+                    LOG.fatal("Uncaught Throwable in thread :" + Thread.currentThread().getName(), all);
+                }
+            }
+            newMessenger.start();
+        }
+    }
+
+    /**
+     *  Accepts all of the pending connections on the server channel. Called
+     *  on a selector thread.
+     */
+    private void acceptChannels() {
+        while (!closed) {
+            SocketChannel inputChannel;
+
+            try {
+                inputChannel = serverChannel.accept();
+            } catch (IOException e1) {
+                if (LOG.isEnabledFor(Level.WARN) && !closed) {
+                    LOG.warn("[1] ServerSocketChannel.accept() failed on " + serverSocket.getInetAddress() + ":" + serverSocket.getLocalPort(), e1);
+                }
+                return;
+            }
+
+            if (null == inputChannel) {
+                return;
+            }
+
+            try {
+                // The connection registers itself once the welcome messages
+                // have been exchanged.
+                new NioTcpConnection(inputChannel, this, owner);
+            } catch (Throwable all) {
+                // Make sure the channel is closed. Since we failed to
+                // put a connection wrapper around it, it belongs to us.
+                try {
+                    inputChannel.close();
+                } catch (Throwable any) {
+                    if (LOG.isEnabledFor(Level.ERROR)) {
+                        LOG.error("Failed to close dead channel", any);
+                    }
+                }
+
+                if (LOG.isEnabledFor(Level.WARN)) {
+                    LOG.warn("Failed to create connection", all);
+                }
+            }
+        }
+    }
+
     private synchronized void openServerSocket() throws IOException, SecurityException {
         serverSocket = null;
         try {
             synchronized (this) {
-                serverSocket = new ServerSocket(serverBindPreferedLocalPort, TcpTransport.MaxAcceptCnxBacklog, serverBindLocalInterface);
+                if (null != selectors) {
+                    serverChannel = ServerSocketChannel.open();
+                    serverSocket = serverChannel.socket();
+                    serverSocket.bind(new InetSocketAddress(serverBindLocalInterface, serverBindPreferedLocalPort), TcpTransport.MaxAcceptCnxBacklog);
+                } else {
+                    serverSocket = new ServerSocket(serverBindPreferedLocalPort, TcpTransport.MaxAcceptCnxBacklog, serverBindLocalInterface);
+                }
             }
             if (LOG.isEnabledFor(Level.INFO)) {
                 LOG.info("Server will accept connections at " + serverSocket.getLocalSocketAddress());
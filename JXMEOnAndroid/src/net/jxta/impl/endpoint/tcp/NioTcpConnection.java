@@ -0,0 +1,1050 @@
+/*
+ *
+ * $Id$
+ *
+ * Copyright (c) 2001 Sun Microsystems, Inc.  All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *
+ * 3. The end-user documentation included with the redistribution,
+ *    if any, must include the following acknowledgment:
+ *       "This product includes software developed by the
+ *       Sun Microsystems, Inc. for Project JXTA."
+ *    Alternately, this acknowledgment may appear in the software itself,
+ *    if and wherever such third-party acknowledgments normally appear.
+ *
+ * 4. The names "Sun", "Sun Microsystems, Inc.", "JXTA" and "Project JXTA"
+ *    must not be used to endorse or promote products derived from this
+ *    software without prior written permission. For written
+ *    permission, please contact Project JXTA at http://www.jxta.org.
+ *
+ * 5. Products derived from this software may not be called "JXTA",
+ *    nor may "JXTA" appear in their name, without prior written
+ *    permission of Sun.
+ *
+ * THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED.  IN NO EVENT SHALL SUN MICROSYSTEMS OR
+ * ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ * USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ * OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ *
+ * ====================================================================
+ *
+ * This software consists of voluntary contributions made by many
+ * individuals on behalf of Project JXTA.  For more
+ * information on Project JXTA, please see
+ * <http://www.jxta.org/>.
+ *
+ * This license is based on the BSD license adopted by the Apache Foundation.
+ */
+
+package net.jxta.impl.endpoint.tcp;
+
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+import net.jxta.document.MimeMediaType;
+import net.jxta.endpoint.EndpointAddress;
+import net.jxta.endpoint.Message;
+import net.jxta.util.ByteBufferOutputStream;
+
+import net.jxta.impl.endpoint.WireFormatMessage;
+import net.jxta.impl.endpoint.WireFormatMessageFactory;
+import net.jxta.impl.endpoint.msgframing.MessagePackageHeader;
+import net.jxta.impl.endpoint.msgframing.WelcomeMessage;
+import net.jxta.impl.util.TimeUtils;
+
+/**
+ *  A TCP connection which performs its i/o in non-blocking mode on one of the
+ *  transport's selector threads rather than on a dedicated receive thread.
+ *
+ *  <p/>The framing is identical to that of {@link TcpConnection}. Each side
+ *  first sends a {@link WelcomeMessage} terminated by CRLF and then a sequence
+ *  of messages each preceded by a {@link MessagePackageHeader}. Incoming data
+ *  is decoded incrementally as it arrives so that a connection never blocks
+ *  the selector thread waiting for the remainder of a frame.
+ *
+ *  <p/>Received messages are handed to the transport's dispatcher. If the
+ *  dispatcher falls behind then the connection stops reading until it has
+ *  caught up rather than stalling the selector thread.
+ *
+ *  <p/>Senders serialize the message on their own thread and write as much
+ *  of it as the socket will accept. If the socket buffer fills then the
+ *  sender waits while the selector thread completes the write.
+ */
+final class NioTcpConnection extends AbstractTcpConnection implements SelectorPool.Handler {
+
+    /**
+     *  Log4J Logger
+     */
+    private static final Logger LOG = Logger.getLogger(NioTcpConnection.class.getName());
+
+    private static final MimeMediaType appMsg = new MimeMediaType("application/x-jxta-msg").intern();
+
+    /**
+     *  The maximum length of a welcome message, including the CRLF.
+     */
+    private static final int MaxWelcomeSize = 4096;
+
+    /**
+     *  The largest the receive buffer is permitted to grow in order to hold a
+     *  message package header.
+     */
+    private static final int MaxReadBufferSize = 256 * 1024;
+
+    /**
+     *  Receive states.
+     */
+    private static final int STATE_WELCOME = 0;
+    private static final int STATE_HEADER = 1;
+    private static final int STATE_BODY = 2;
+
+    private final SocketChannel channel;
+
+    /**
+     *  The selector thread which performs our i/o.
+     */
+    private final SelectorPool.SelectorThread selector;
+
+    /**
+     *  The server which accepted this connection or <code>null</code> for
+     *  outgoing connections.
+     */
+    private final IncomingUnicastServer server;
+
+    /**
+     *  Our selection key. Only manipulated on the selector thread.
+     */
+    private SelectionKey key = null;
+
+    /**
+     *  The receive buffer, kept ready for filling between reads. Only
+     *  accessed on the selector thread.
+     */
+    private ByteBuffer readBuffer = ByteBuffer.allocate(TcpTransport.ChunkSize);
+
+    private int readState = STATE_WELCOME;
+
+    /**
+     *  The type of the message currently being received.
+     */
+    private MimeMediaType msgMime = null;
+
+    /**
+     *  The content coding of the message currently being received or
+     *  <code>null</code> if it is not coded.
+     */
+    private String msgCoding = null;
+
+    /**
+     *  The body of the message currently being received.
+     */
+    private ByteBuffer body = null;
+
+    /**
+     *  The absolute time at which we started receiving the body of the
+     *  current message.
+     */
+    private long bodyStartedAt = 0;
+
+    /**
+     *  The absolute time at which we last received some data.
+     */
+    private volatile long lastReadProgress = TimeUtils.timeNow();
+
+    /**
+     *  Our lane in the transport's dispatcher or <code>null</code> if
+     *  messages are demuxed on the selector thread.
+     */
+    private final IncomingMessageDispatcher.Lane lane;
+
+    /**
+     *  If <tt>true</tt> then reading is suspended until our dispatcher lane
+     *  drains. Only accessed on the selector thread.
+     */
+    private boolean readSuspended = false;
+
+    /**
+     *  Only one outgoing message per connection. Held for the duration of a
+     *  send including any wait for the socket to drain.
+     */
+    private final transient Object sendLock = new String("tcp send lock");
+
+    /**
+     *  Guards {@link #pendingWrite}. Senders wait on this object for the
+     *  selector thread to complete their write.
+     */
+    private final transient Object writeLock = new String("tcp write lock");
+
+    /**
+     *  The data which remains to be written or <code>null</code> if there is
+     *  no write in progress.
+     */
+    private ByteBuffer[] pendingWrite = null;
+
+    /**
+     *  The package header for outgoing messages, reused for each message.
+     *  Only accessed with the send lock held.
+     */
+    private final MessagePackageHeader sendHeader = new MessagePackageHeader();
+
+    /**
+     *  The buffer into which outgoing messages are encoded, reused for each
+     *  message which fits. Only accessed with the send lock held.
+     */
+    private ByteBuffer sendBuffer = null;
+
+    /**
+     *  The absolute time at which we were last able to write some data.
+     */
+    private long lastWriteProgress = 0;
+
+    /**
+     *  If <tt>true</tt> then the Welcome Message exchange has completed.
+     */
+    private volatile boolean handshaken = false;
+
+    /**
+     *  Adds write interest to our selection key. Run on the selector thread.
+     */
+    private final Runnable enableWrite = new Runnable() {
+                                             public void run() {
+                                                 if ((null != key) && key.isValid()) {
+                                                     key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                                                 }
+                                             }
+                                         };
+
+    /**
+     *  Resumes reading once our dispatcher lane has drained. Run on the
+     *  selector thread.
+     */
+    private final Runnable resumeRead = new Runnable() {
+                                            public void run() {
+                                                resumeReading();
+                                            }
+                                        };
+
+    /**
+     *  Creates a new connection for the specified destination address. Returns
+     *  once the Welcome Message exchange has completed.
+     *
+     *  @param destaddr the destination address of this connection.
+     *  @param p    the transport which this connection is part of.
+     *  @throws IOException for failures in creating the connection.
+     */
+    NioTcpConnection(EndpointAddress destaddr, TcpTransport p) throws IOException {
+        super(p);
+
+        initiator = true;
+        server = null;
+
+        setDestination(destaddr);
+
+        channel = SocketChannel.open();
+        selector = p.selectors.next();
+        lane = newLane();
+
+        try {
+            channel.socket().connect(new InetSocketAddress(inetAddress, port), TcpTransport.connectionTimeOut);
+            startChannel();
+            awaitWelcome();
+        } catch (IOException e) {
+            // If we failed for any reason, make sure the channel is closed.
+            // We're the only one to know about it.
+            closingDueToFailure = true;
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     *  Creates a new connection from an incoming channel. The connection is
+     *  handed to the server once the Welcome Message exchange completes.
+     *
+     *  @param incChannel    the incoming channel.
+     *  @param server   the server which accepted the channel.
+     *  @param p the transport we are working for.
+     *  @throws IOException for failures in creating the connection.
+     */
+    NioTcpConnection(SocketChannel incChannel, IncomingUnicastServer server, TcpTransport p) throws IOException {
+        super(p);
+
+        initiator = false;
+        this.server = server;
+
+        channel = incChannel;
+        selector = p.selectors.next();
+        lane = newLane();
+
+        Socket incSocket = incChannel.socket();
+
+        if (LOG.isEnabledFor(Level.INFO)) {
+            LOG.info("Connection from " + incSocket.getInetAddress().getHostAddress() + ":" + incSocket.getPort());
+        }
+
+        inetAddress = incSocket.getInetAddress();
+        port = incSocket.getPort();
+
+        // Temporarily, our address for inclusion in the welcome message
+        // response. Replaced once we have the other party's welcome.
+        dstAddress = new EndpointAddress(proto.getProtocolName(), inetAddress.getHostAddress() + ":" + port, null, null);
+        fullDstAddress = dstAddress;
+
+        startChannel();
+    }
+
+    /**
+     *  {@inheritDoc}
+     */
+    protected void finalize() {
+        closingDueToFailure = false;
+        close();
+    }
+
+    /**
+     *  Returns a new dispatcher lane for this connection or <code>null</code>
+     *  if the transport demuxes on the receiving thread.
+     */
+    private IncomingMessageDispatcher.Lane newLane() {
+        if (null == proto.dispatcher) {
+            return null;
+        }
+
+        return proto.dispatcher.newLane(new Runnable() {
+                                            public void run() {
+                                                selector.execute(resumeRead);
+                                            }
+                                        }
+                                       );
+    }
+
+    /**
+     *  Configures the socket, queues our welcome message and registers with
+     *  the selector.
+     */
+    private void startChannel() throws IOException {
+        Socket socket = channel.socket();
+
+        socket.setKeepAlive(true);
+        int useBufferSize = Math.max(TcpTransport.ChunkSize, socket.getSendBufferSize());
+
+        socket.setSendBufferSize(useBufferSize);
+
+        useBufferSize = Math.max(TcpTransport.RecvBufferSize, socket.getReceiveBufferSize());
+        socket.setReceiveBufferSize(useBufferSize);
+
+        // We do not linger. Close happens on the selector thread and a
+        // lingering close would stall every other connection using it.
+        socket.setSoLinger(false, 0);
+        socket.setTcpNoDelay(true);
+
+        channel.configureBlocking(false);
+
+        myWelcome = new WelcomeMessage(fullDstAddress, proto.getPublicAddress(), proto.group.getPeerID(), false);
+
+        ByteArrayOutputStream welcome = new ByteArrayOutputStream();
+
+        myWelcome.sendToStream(welcome);
+
+        synchronized (writeLock) {
+            pendingWrite = new ByteBuffer[] { ByteBuffer.wrap(welcome.toByteArray()) };
+            lastWriteProgress = TimeUtils.timeNow();
+            writePending();
+        }
+
+        selector.register(channel, SelectionKey.OP_READ, this);
+    }
+
+    /**
+     *  Wait for the other party's welcome message.
+     */
+    private void awaitWelcome() throws IOException {
+        long until = TimeUtils.toAbsoluteTimeMillis(TcpTransport.ShortTimeout);
+
+        synchronized (writeLock) {
+            while (!handshaken) {
+                if (closed) {
+                    throw new EOFException("Connection closed before welcome message was received");
+                }
+
+                long waitFor = TimeUtils.toRelativeTimeMillis(until);
+
+                if (waitFor <= 0) {
+                    throw new InterruptedIOException("Timeout waiting for welcome message");
+                }
+
+                try {
+                    writeLock.wait(waitFor);
+                } catch (InterruptedException woken) {
+                    Thread.interrupted();
+                    throw new InterruptedIOException("Interrupted waiting for welcome message");
+                }
+            }
+        }
+
+        if (LOG.isEnabledFor(Level.DEBUG)) {
+            LOG.debug("startChannel : Hello from " + itsWelcome.getPublicAddress() + " [" + itsWelcome.getPeerID() + "]");
+        }
+    }
+
+    /**
+     *  {@inheritDoc}
+     *
+     *  <p/>Receiving begins as soon as the connection is registered with the
+     *  selector, there is nothing more to start.
+     */
+    protected void start() {}
+
+    /**
+     *  {@inheritDoc}
+     */
+    public void sendMessage(Message msg) throws IOException {
+        sendMessages(new Message[] { msg });
+    }
+
+    /**
+     *  {@inheritDoc}
+     *
+     *  <p/>The frames are packed into as few buffers as they fit in and
+     *  written with one gathering write.
+     */
+    public void sendMessages(Message[] msgs) throws IOException {
+
+        // socket is a stream, only one writer at a time...
+        synchronized (sendLock) {
+            if (closed) {
+                if (LOG.isEnabledFor(Level.INFO)) {
+                    LOG.info("Connection was closed to : " + dstAddress);
+                }
+
+                throw new IOException("Connection was closed to : " + dstAddress);
+            }
+
+            long sendBeginTime = TimeUtils.timeNow();
+
+            try {
+                List frames = new ArrayList(1);
+                ByteBuffer frame = null;
+                long size = 0;
+
+                for (int eachMsg = 0; eachMsg < msgs.length; eachMsg++) {
+                    // serialize the message.
+                    WireFormatMessage serialed = WireFormatMessageFactory.toWire(msgs[eachMsg], appMsg, (MimeMediaType[]) null);
+
+                    long msgLength = serialed.getByteLength();
+
+                    // Compress the message if the peer accepts it and it is
+                    // large enough to be worth it.
+                    byte[] coded = (null != sendCoding) ? coder.encode(serialed, msgLength) : null;
+
+                    if (null != coded) {
+                        msgLength = coded.length;
+                    }
+
+                    // Build the protocol header
+                    sendHeader.setContentTypeHeader(serialed.getMimeType());
+                    sendHeader.setContentCodingHeader((null != coded) ? sendCoding : null);
+                    offerCodings(sendHeader);
+                    sendHeader.setContentLengthHeader(msgLength);
+
+                    if (LOG.isEnabledFor(Level.DEBUG)) {
+                        LOG.debug("sendMessage (" + msgLength + ") to " + dstAddress + " via " + inetAddress.getHostAddress() + ":" + port);
+                    }
+
+                    long frameLength = sendHeader.getByteLength() + msgLength;
+
+                    if (frameLength > Integer.MAX_VALUE) {
+                        throw new IOException("Message too large : " + msgLength);
+                    }
+
+                    // The first frame goes in the shared buffer, the next
+                    // ones after it while they fit, then in buffers of
+                    // their own.
+                    if ((null == frame) || (frame.remaining() < frameLength)) {
+                        if (null != frame) {
+                            frame.flip();
+                            frames.add(frame);
+                        }
+                        frame = frames.isEmpty()
+                                ? getSendBuffer((int) frameLength)
+                                : ByteBuffer.allocate(Math.max((int) frameLength, TcpTransport.ChunkSize));
+                    }
+
+                    // Encode the header and message in one pass into the buffer.
+                    OutputStream out = new ByteBufferOutputStream(frame);
+
+                    sendHeader.sendToStream(out);
+                    if (null != coded) {
+                        frame.put(coded);
+                    } else {
+                        serialed.sendToStream(out);
+                    }
+
+                    size += msgLength;
+                }
+
+                if (null == frame) {
+                    return;
+                }
+                frame.flip();
+                frames.add(frame);
+
+                synchronized (writeLock) {
+                    pendingWrite = (ByteBuffer[]) frames.toArray(new ByteBuffer[frames.size()]);
+                    lastWriteProgress = TimeUtils.timeNow();
+
+                    writePending();
+
+                    if (null != pendingWrite) {
+                        selector.execute(enableWrite);
+                    }
+
+                    while (null != pendingWrite) {
+                        if (closed) {
+                            throw new IOException("Connection was closed to : " + dstAddress);
+                        }
+
+                        long waitFor = TimeUtils.toRelativeTimeMillis(TimeUtils.toAbsoluteTimeMillis(TcpTransport.ShortTimeout, lastWriteProgress));
+
+                        if (waitFor <= 0) {
+                            throw new InterruptedIOException("Write stalled to : " + dstAddress);
+                        }
+
+                        try {
+                            writeLock.wait(waitFor);
+                        } catch (InterruptedException woken) {
+                            Thread.interrupted();
+                            throw new InterruptedIOException("Interrupted during write to : " + dstAddress);
+                        }
+                    }
+                }
+
+                // all done!
+                setLastUsed(System.currentTimeMillis());
+
+                SENT_MESSAGES.add(msgs.length);
+                SENT_BYTES.add(size);
+                SEND_TIME.record(TimeUtils.toRelativeTimeMillis(TimeUtils.timeNow(), sendBeginTime));
+            } catch (IOException failure) {
+                SEND_FAILURES.increment();
+                if (LOG.isEnabledFor(Level.INFO)) {
+                    LOG.info("tcp send - message send failed for " + inetAddress.getHostAddress() + ":" + port, failure);
+                }
+
+                closingDueToFailure = true;
+                close();
+
+                throw failure;
+            }
+        }
+    }
+
+    /**
+     *  Returns an empty buffer with room for a frame of the specified length.
+     *  Frames of up to the transport's send buffer size share a direct buffer
+     *  which is kept for the life of the connection. Must be called with the
+     *  send lock held.
+     *
+     *  @param frameLength the length of the frame.
+     *  @return a buffer with at least the specified remaining.
+     */
+    private ByteBuffer getSendBuffer(int frameLength) {
+        if (frameLength > TcpTransport.SendBufferSize) {
+            return ByteBuffer.allocate(frameLength);
+        }
+
+        if ((null == sendBuffer) || (sendBuffer.capacity() < frameLength)) {
+            int capacity = TcpTransport.ChunkSize;
+
+            while (capacity < frameLength) {
+                capacity *= 2;
+            }
+
+            sendBuffer = ByteBuffer.allocateDirect(Math.min(capacity, TcpTransport.SendBufferSize));
+        }
+
+        sendBuffer.clear();
+
+        return sendBuffer;
+    }
+
+    /**
+     *  Writes as much of the pending data as the socket will accept. Must be
+     *  called with the write lock held.
+     */
+    private void writePending() throws IOException {
+        if (null == pendingWrite) {
+            return;
+        }
+
+        long written = channel.write(pendingWrite);
+
+        if (written > 0) {
+            lastWriteProgress = TimeUtils.timeNow();
+        }
+
+        if (!pendingWrite[pendingWrite.length - 1].hasRemaining()) {
+            pendingWrite = null;
+            writeLock.notifyAll();
+        }
+    }
+
+    /**
+     *  {@inheritDoc}
+     */
+    public void registered(SelectionKey key) {
+        this.key = key;
+
+        if (closed) {
+            key.cancel();
+            return;
+        }
+
+        synchronized (writeLock) {
+            if (null != pendingWrite) {
+                key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            }
+        }
+    }
+
+    /**
+     *  {@inheritDoc}
+     */
+    public void processSelection(SelectionKey key) {
+        try {
+            if (key.isWritable()) {
+                synchronized (writeLock) {
+                    writePending();
+
+                    if (null == pendingWrite) {
+                        key.interestOps(SelectionKey.OP_READ);
+                    }
+                }
+            }
+
+            if (key.isValid() && key.isReadable()) {
+                processReadable();
+            }
+        } catch (Throwable e) {
+            receiveFailed(e);
+        }
+    }
+
+    /**
+     *  Close the connection following a receive error.
+     *
+     *  @param failure the error.
+     */
+    private void receiveFailed(Throwable failure) {
+        if (failure instanceof EOFException) {
+            // The other side has closed the connection
+            if (LOG.isEnabledFor(Level.INFO)) {
+                LOG.info("tcp receive - Connection was closed by " + inetAddress.getHostAddress() + ":" + port);
+            }
+        } else {
+            closingDueToFailure = true;
+
+            if (LOG.isEnabledFor(Level.WARN)) {
+                LOG.warn("tcp receive - Error on connection " + inetAddress.getHostAddress() + ":" + port, failure);
+            }
+        }
+
+        close();
+    }
+
+    /**
+     *  {@inheritDoc}
+     *
+     *  <p/>A connection in the middle of receiving something must make
+     *  progress within the short timeout, an idle connection is closed after
+     *  the long timeout. Stalled writes are detected by the writer.
+     */
+    public void checkTimeout(long now) {
+        if (readSuspended) {
+            // Waiting on the dispatcher, not the remote peer.
+            return;
+        }
+
+        boolean midFrame = (STATE_HEADER != readState) || (readBuffer.position() > 0);
+        long timeout = midFrame ? TcpTransport.ShortTimeout : TcpTransport.LongTimeout;
+
+        if (TimeUtils.toRelativeTimeMillis(now, lastReadProgress) > timeout) {
+            closingDueToFailure = midFrame;
+
+            if (LOG.isEnabledFor(Level.WARN)) {
+                LOG.warn("tcp receive - Error : read() timeout on connection " + inetAddress.getHostAddress() + ":" + port);
+            }
+
+            close();
+        }
+    }
+
+    /**
+     *  Reads whatever is available from the channel and processes any
+     *  complete frames.
+     */
+    private void processReadable() throws IOException {
+        while (!closed && !readSuspended) {
+            int count;
+
+            if ((STATE_BODY == readState) && (0 == readBuffer.position())) {
+                // Nothing buffered, read straight into the message body.
+                count = channel.read(body);
+            } else {
+                if (!readBuffer.hasRemaining()) {
+                    growReadBuffer();
+                }
+
+                count = channel.read(readBuffer);
+            }
+
+            if (count < 0) {
+                throw new EOFException();
+            }
+
+            if (0 == count) {
+                return;
+            }
+
+            lastReadProgress = TimeUtils.timeNow();
+
+            readBuffer.flip();
+            try {
+                processFrames();
+            } finally {
+                readBuffer.compact();
+            }
+        }
+    }
+
+    /**
+     *  Resume reading after a suspension, first processing whatever was left
+     *  in the receive buffer.
+     */
+    private void resumeReading() {
+        if (!readSuspended || closed || (null == key) || !key.isValid()) {
+            return;
+        }
+
+        readSuspended = false;
+        lastReadProgress = TimeUtils.timeNow();
+
+        try {
+            readBuffer.flip();
+            try {
+                processFrames();
+            } finally {
+                readBuffer.compact();
+            }
+
+            if (!readSuspended) {
+                key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+            }
+        } catch (Throwable e) {
+            receiveFailed(e);
+        }
+    }
+
+    /**
+     *  Enlarge the receive buffer because it is full and does not contain a
+     *  complete welcome message or message header.
+     */
+    private void growReadBuffer() throws IOException {
+        if (readBuffer.capacity() >= MaxReadBufferSize) {
+            throw new IOException("Message header too large");
+        }
+
+        ByteBuffer larger = ByteBuffer.allocate(Math.min(readBuffer.capacity() * 2, MaxReadBufferSize));
+
+        readBuffer.flip();
+        larger.put(readBuffer);
+        readBuffer = larger;
+    }
+
+    /**
+     *  Consume as much of the receive buffer as possible.
+     */
+    private void processFrames() throws IOException {
+        while (true) {
+            switch (readState) {
+            case STATE_WELCOME:
+                int welcomeLength = welcomeLength(readBuffer);
+
+                if (-1 == welcomeLength) {
+                    if (readBuffer.remaining() >= MaxWelcomeSize) {
+                        throw new IOException("Invalid welcome message, too long");
+                    }
+                    return;
+                }
+
+                byte[] welcomeBytes = new byte[welcomeLength];
+
+                readBuffer.get(welcomeBytes);
+                itsWelcome = new WelcomeMessage(new ByteArrayInputStream(welcomeBytes));
+                readState = STATE_HEADER;
+
+                welcomeReceived();
+                break;
+
+            case STATE_HEADER:
+                int headerLength = headerLength(readBuffer);
+
+                if (-1 == headerLength) {
+                    return;
+                }
+
+                byte[] headerBytes = new byte[headerLength];
+
+                readBuffer.get(headerBytes);
+
+                MessagePackageHeader header = new MessagePackageHeader(new ByteArrayInputStream(headerBytes));
+
+                msgMime = header.getContentTypeHeader();
+
+                long msglength = header.getContentLengthHeader();
+
+                msgCoding = header.getContentCodingHeader();
+
+                codingsReceived(header);
+
+                if ((msglength < 0) || (msglength > TcpTransport.MaxMessageSize)) {
+                    throw new IOException("Invalid message length : " + msglength);
+                }
+
+                if (LOG.isEnabledFor(Level.DEBUG)) {
+                    LOG.debug("tcp receive - message body (" + msglength + ") starts for " + inetAddress.getHostAddress() + ":" + port);
+                }
+
+                body = ByteBuffer.allocate((int) msglength);
+                bodyStartedAt = TimeUtils.timeNow();
+                readState = STATE_BODY;
+                break;
+
+            case STATE_BODY:
+                if (readBuffer.hasRemaining() && body.hasRemaining()) {
+                    int take = Math.min(readBuffer.remaining(), body.remaining());
+                    int limit = readBuffer.limit();
+
+                    readBuffer.limit(readBuffer.position() + take);
+                    body.put(readBuffer);
+                    readBuffer.limit(limit);
+                }
+
+                if (body.hasRemaining()) {
+                    return;
+                }
+
+                body.flip();
+
+                RECEIVED_MESSAGES.increment();
+                RECEIVED_BYTES.add(body.limit());
+                RECEIVE_TIME.record(TimeUtils.toRelativeTimeMillis(TimeUtils.timeNow(), bodyStartedAt));
+
+                if (null != msgCoding) {
+                    body = decodeBody(msgCoding, body.array(), body.limit());
+                }
+
+                // The message elements share the body buffer, no copying.
+                Message msg = WireFormatMessageFactory.fromBuffer(body, msgMime, (MimeMediaType) null);
+
+                body = null;
+                msgMime = null;
+                msgCoding = null;
+                readState = STATE_HEADER;
+
+                if (LOG.isEnabledFor(Level.DEBUG)) {
+                    LOG.debug("tcp receive - handing incoming message from " + inetAddress.getHostAddress() + ":" + port + " to EndpointService");
+                }
+
+                setLastUsed(System.currentTimeMillis());
+
+                if (null == lane) {
+                    // Demux the message for the upper layers. This happens on
+                    // the selector thread so listeners had better be quick.
+                    proto.endpoint.demux(msg);
+                } else if (!proto.dispatcher.offer(lane, msg)) {
+                    // The dispatcher is behind. Leave anything else in the
+                    // socket until it catches up.
+                    readSuspended = true;
+                    key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                    return;
+                }
+                break;
+
+            default:
+                throw new IllegalStateException("Unknown receive state : " + readState);
+            }
+        }
+    }
+
+    /**
+     *  Called once the other party's welcome message has been received.
+     */
+    private void welcomeReceived() throws IOException {
+        if (LOG.isEnabledFor(Level.DEBUG)) {
+            LOG.debug("welcomeReceived : Hello from " + itsWelcome.getPublicAddress() + " [" + itsWelcome.getPeerID() + "]");
+        }
+
+        if (!initiator) {
+            // The correct value for dstAddr: that of the other party.
+            dstAddress = itsWelcome.getPublicAddress();
+            fullDstAddress = dstAddress;
+        }
+
+        synchronized (writeLock) {
+            handshaken = true;
+            writeLock.notifyAll();
+        }
+
+        if (!initiator) {
+            // Registering the messenger calls the endpoint's listeners,
+            // which must not hold up the other connections of our selector.
+            Runnable ready = new Runnable() {
+                public void run() {
+                    try {
+                        server.connectionReady(NioTcpConnection.this);
+                    } catch (IOException failed) {
+                        if (LOG.isEnabledFor(Level.WARN)) {
+                            LOG.warn("Could not register connection from " + inetAddress.getHostAddress() + ":" + port, failed);
+                        }
+                        closingDueToFailure = true;
+                        close();
+                    }
+                }
+            };
+
+            if (null != lane) {
+                proto.dispatcher.execute(lane, ready);
+            } else {
+                Thread readyThread = new Thread(proto.myThreadGroup, ready, "TCP Connection Ready");
+                readyThread.setDaemon(true);
+                readyThread.start();
+            }
+        }
+    }
+
+    /**
+     *  Returns the length of the welcome message at the start of the buffer
+     *  including the terminating CRLF.
+     *
+     *  @param buffer the buffer to examine.
+     *  @return the length of the welcome message or -1 if the buffer does not
+     *  contain a complete welcome message.
+     */
+    private static int welcomeLength(ByteBuffer buffer) {
+        for (int at = buffer.position() + 1; at < buffer.limit(); at++) {
+            if (('\n' == buffer.get(at)) && ('\r' == buffer.get(at - 1))) {
+                return at + 1 - buffer.position();
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     *  Returns the length of the message package header at the start of the
+     *  buffer including the terminating empty header.
+     *
+     *  @param buffer the buffer to examine.
+     *  @return the length of the header or -1 if the buffer does not contain a
+     *  complete header.
+     */
+    private static int headerLength(ByteBuffer buffer) {
+        int at = buffer.position();
+        int limit = buffer.limit();
+
+        while (at < limit) {
+            int nameLength = buffer.get(at++) & 0xFF;
+
+            if (0 == nameLength) {
+                return at - buffer.position();
+            }
+
+            at += nameLength;
+
+            if (at + 2 > limit) {
+                return -1;
+            }
+
+            int valueLength = ((buffer.get(at) & 0xFF) << 8) | (buffer.get(at + 1) & 0xFF);
+
+            at += 2 + valueLength;
+        }
+
+        return -1;
+    }
+
+    /**
+     *  {@inheritDoc}
+     */
+    public synchronized void close() {
+        if (LOG.isEnabledFor(Level.INFO)) {
+            LOG.info(
+                (closingDueToFailure ? "Failure" : "Normal") + " close of socket to : " + dstAddress + " / " + inetAddress.getHostAddress() + ":"
+                + port);
+            if (LOG.isEnabledFor(Level.DEBUG) && closingDueToFailure) {
+                LOG.debug("stack trace", new Throwable("stack trace"));
+            }
+        }
+
+        if (!closed) {
+            setLastUsed(0); // we idle now. Way idle.
+            closed = true;
+            endCoder();
+
+            try {
+                // Also cancels our key.
+                channel.close();
+            } catch (IOException ez1) {
+                if (LOG.isEnabledFor(Level.DEBUG)) {
+                    LOG.debug("Error : could not close channel ", ez1);
+                }
+            }
+
+            synchronized (writeLock) {
+                writeLock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     *  {@inheritDoc}
+     */
+    public boolean isConnected() {
+        return handshaken && !closed;
+    }
+}
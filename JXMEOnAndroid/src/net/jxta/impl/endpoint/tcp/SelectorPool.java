@@ -0,0 +1,404 @@
+/*
+ *
+ * $Id$
+ *
+ * Copyright (c) 2001 Sun Microsystems, Inc.  All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *
+ * 3. The end-user documentation included with the redistribution,
+ *    if any, must include the following acknowledgment:
+ *       "This product includes software developed by the
+ *       Sun Microsystems, Inc. for Project JXTA."
+ *    Alternately, this acknowledgment may appear in the software itself,
+ *    if and wherever such third-party acknowledgments normally appear.
+ *
+ * 4. The names "Sun", "Sun Microsystems, Inc.", "JXTA" and "Project JXTA"
+ *    must not be used to endorse or promote products derived from this
+ *    software without prior written permission. For written
+ *    permission, please contact Project JXTA at http://www.jxta.org.
+ *
+ * 5. Products derived from this software may not be called "JXTA",
+ *    nor may "JXTA" appear in their name, without prior written
+ *    permission of Sun.
+ *
+ * THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED.  IN NO EVENT SHALL SUN MICROSYSTEMS OR
+ * ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ * USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ * OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ *
+ * ====================================================================
+ *
+ * This software consists of voluntary contributions made by many
+ * individuals on behalf of Project JXTA.  For more
+ * information on Project JXTA, please see
+ * <http://www.jxta.org/>.
+ *
+ * This license is based on the BSD license adopted by the Apache Foundation.
+ */
+
+package net.jxta.impl.endpoint.tcp;
+
+
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import java.io.IOException;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+import net.jxta.impl.util.TimeUtils;
+
+/**
+ *  A small, fixed set of threads each of which runs a {@link Selector}. The
+ *  selector threads perform all of the socket i/o for the connections and
+ *  server sockets registered with them. Connections are spread across the
+ *  selector threads in round-robin fashion.
+ *
+ *  <p/>Selection keys may only be manipulated from the selector thread which
+ *  owns them. Other threads must use {@link SelectorThread#execute(Runnable)}
+ *  to have work done on their behalf.
+ */
+final class SelectorPool {
+
+    /**
+     *  Log4J Logger
+     */
+    private static final Logger LOG = Logger.getLogger(SelectorPool.class.getName());
+
+    /**
+     *  The interval at which each selector thread checks its channels for
+     *  stalled or idle connections.
+     */
+    static final long SweepInterval = TimeUtils.ASECOND;
+
+    /**
+     *  The interface implemented by the objects attached to selection keys.
+     */
+    interface Handler {
+
+        /**
+         *  Called on the selector thread once the channel has been registered.
+         *
+         *  @param key the selection key for the channel.
+         */
+        void registered(SelectionKey key);
+
+        /**
+         *  Called on the selector thread when the channel is ready for one or
+         *  more of the operations it is interested in.
+         *
+         *  @param key the selection key for the channel.
+         */
+        void processSelection(SelectionKey key);
+
+        /**
+         *  Called periodically on the selector thread so that stalled or idle
+         *  channels can be closed.
+         *
+         *  @param now the current time in absolute milliseconds.
+         */
+        void checkTimeout(long now);
+
+        /**
+         *  Called on the selector thread when it shuts down. The handler must
+         *  close its channel and release whoever is waiting on it.
+         */
+        void close();
+    }
+
+    /**
+     *  A thread running a selector.
+     */
+    static final class SelectorThread implements Runnable {
+
+        private final Selector selector;
+
+        private final Thread thread;
+
+        /**
+         *  Tasks waiting to be run on the selector thread.
+         */
+        private final List tasks = new ArrayList();
+
+        private volatile boolean closed = false;
+
+        /**
+         *  Set once the selector has been closed. Tasks submitted after this
+         *  are run by the submitting thread.
+         */
+        private boolean shutDown = false;
+
+        SelectorThread(ThreadGroup inGroup, String name) throws IOException {
+            selector = Selector.open();
+
+            thread = new Thread(inGroup, this, name);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        /**
+         *  Runs the task on the selector thread. If the caller is the
+         *  selector thread, or if the selector thread has already shut down,
+         *  then the task is run immediately.
+         *
+         *  @param task the task to run.
+         */
+        void execute(Runnable task) {
+            if (Thread.currentThread() != thread) {
+                synchronized (tasks) {
+                    if (!shutDown) {
+                        tasks.add(task);
+                        selector.wakeup();
+                        return;
+                    }
+                }
+            }
+
+            task.run();
+        }
+
+        /**
+         *  Register a channel with this selector thread. The channel must
+         *  already be in non-blocking mode. If the selector thread has been
+         *  stopped then the handler is closed instead.
+         *
+         *  @param channel the channel to register.
+         *  @param ops the initial interest set.
+         *  @param handler the handler for the channel.
+         */
+        void register(final SelectableChannel channel, final int ops, final Handler handler) {
+            execute(new Runnable() {
+                        public void run() {
+                            if (!selector.isOpen()) {
+                                handler.close();
+                                return;
+                            }
+
+                            try {
+                                handler.registered(channel.register(selector, ops, handler));
+                            } catch (ClosedChannelException closed) {
+                                if (LOG.isEnabledFor(Level.DEBUG)) {
+                                    LOG.debug("Channel was closed before registration", closed);
+                                }
+                            }
+                        }
+                    }
+                   );
+        }
+
+        /**
+         *  Stops the selector thread. The handlers of all of the channels
+         *  registered with it will be closed.
+         */
+        void stop() {
+            closed = true;
+            selector.wakeup();
+        }
+
+        /**
+         *  {@inheritDoc}
+         */
+        public void run() {
+            try {
+                long nextSweep = TimeUtils.toAbsoluteTimeMillis(SweepInterval);
+
+                while (!closed) {
+                    selector.select(SweepInterval);
+
+                    runTasks();
+
+                    Iterator eachSelected = selector.selectedKeys().iterator();
+
+                    while (eachSelected.hasNext()) {
+                        SelectionKey aKey = (SelectionKey) eachSelected.next();
+
+                        eachSelected.remove();
+
+                        if (aKey.isValid()) {
+                            try {
+                                ((Handler) aKey.attachment()).processSelection(aKey);
+                            } catch (Throwable all) {
+                                if (LOG.isEnabledFor(Level.ERROR)) {
+                                    LOG.error("Uncaught Throwable processing " + aKey.attachment(), all);
+                                }
+                            }
+                        }
+                    }
+
+                    long now = TimeUtils.timeNow();
+
+                    if (now >= nextSweep) {
+                        SelectionKey[] allKeys = (SelectionKey[]) selector.keys().toArray(new SelectionKey[0]);
+
+                        for (int eachKey = 0; eachKey < allKeys.length; eachKey++) {
+                            if (allKeys[eachKey].isValid()) {
+                                ((Handler) allKeys[eachKey].attachment()).checkTimeout(now);
+                            }
+                        }
+
+                        nextSweep = TimeUtils.toAbsoluteTimeMillis(SweepInterval, now);
+                    }
+                }
+            } catch (Throwable all) {
+                if (LOG.isEnabledFor(Level.FATAL)) {
+                    LOG.fatal("Uncaught Throwable in thread :" + Thread.currentThread().getName(), all);
+                }
+            } finally {
+                closeAll();
+            }
+        }
+
+        private void runTasks() {
+            Runnable[] toRun;
+
+            synchronized (tasks) {
+                if (tasks.isEmpty()) {
+                    return;
+                }
+
+                toRun = (Runnable[]) tasks.toArray(new Runnable[tasks.size()]);
+                tasks.clear();
+            }
+
+            for (int eachTask = 0; eachTask < toRun.length; eachTask++) {
+                try {
+                    toRun[eachTask].run();
+                } catch (Throwable all) {
+                    if (LOG.isEnabledFor(Level.ERROR)) {
+                        LOG.error("Uncaught Throwable in selector task", all);
+                    }
+                }
+            }
+        }
+
+        private void closeAll() {
+            // Tasks queued before shut down may register channels. Run them
+            // while the selector is still open so that those channels are
+            // closed along with the rest.
+            runTasks();
+
+            SelectionKey[] allKeys = (SelectionKey[]) selector.keys().toArray(new SelectionKey[0]);
+
+            for (int eachKey = 0; eachKey < allKeys.length; eachKey++) {
+                Handler handler = (Handler) allKeys[eachKey].attachment();
+
+                try {
+                    if (null != handler) {
+                        handler.close();
+                    } else {
+                        allKeys[eachKey].channel().close();
+                    }
+                } catch (Throwable all) {
+                    if (LOG.isEnabledFor(Level.WARN)) {
+                        LOG.warn("Failure closing " + allKeys[eachKey].channel(), all);
+                    }
+                }
+            }
+
+            try {
+                selector.close();
+            } catch (IOException ignored) {
+                ;
+            }
+
+            // Anything queued since is run now, later arrivals are run by
+            // their submitters. Registrations will find the selector closed
+            // and close their handlers.
+            synchronized (tasks) {
+                shutDown = true;
+            }
+
+            runTasks();
+
+            if (LOG.isEnabledFor(Level.INFO)) {
+                LOG.info("Selector thread has been shut down.");
+            }
+        }
+    }
+
+    private final SelectorThread[] selectors;
+
+    private int nextSelector = 0;
+
+    /**
+     *  Creates and starts the selector threads.
+     *
+     *  @param inGroup  the thread group in which the threads will run.
+     *  @param count the number of selector threads.
+     *  @throws IOException if the selectors could not be opened.
+     */
+    SelectorPool(ThreadGroup inGroup, int count) throws IOException {
+        if (count < 1) {
+            throw new IllegalArgumentException("At least one selector thread is required");
+        }
+
+        selectors = new SelectorThread[count];
+
+        try {
+            for (int eachSelector = 0; eachSelector < count; eachSelector++) {
+                selectors[eachSelector] = new SelectorThread(inGroup, "TCP Selector " + eachSelector);
+            }
+        } catch (IOException failed) {
+            stop();
+            throw failed;
+        }
+    }
+
+    /**
+     *  Returns the number of selector threads.
+     *
+     *  @return the number of selector threads.
+     */
+    int size() {
+        return selectors.length;
+    }
+
+    /**
+     *  Returns the selector thread which should be used for the next channel.
+     *
+     *  @return a selector thread.
+     */
+    synchronized SelectorThread next() {
+        SelectorThread result = selectors[nextSelector];
+
+        nextSelector = (nextSelector + 1) % selectors.length;
+
+        return result;
+    }
+
+    /**
+     *  Stops all of the selector threads.
+     */
+    void stop() {
+        for (int eachSelector = 0; eachSelector < selectors.length; eachSelector++) {
+            if (null != selectors[eachSelector]) {
+                selectors[eachSelector].stop();
+            }
+        }
+    }
+}
@@ -68,6 +68,7 @@ import java.io.EOFException;
 import java.io.IOException;
 import java.io.InterruptedIOException;
 import java.net.SocketException;
+import java.nio.ByteBuffer;
 
 import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
@@ -77,7 +78,6 @@ import net.jxta.endpoint.EndpointAddress;
 import net.jxta.endpoint.Message;
 import net.jxta.id.ID;
 import net.jxta.peer.PeerID;
-import net.jxta.util.LimitInputStream;
 import net.jxta.util.WatchedInputStream;
 import net.jxta.util.WatchedOutputStream;
 
@@ -86,12 +86,13 @@ import net.jxta.impl.endpoint.WireFormatMessage;
 import net.jxta.impl.endpoint.WireFormatMessageFactory;
 import net.jxta.impl.endpoint.msgframing.MessagePackageHeader;
 import net.jxta.impl.endpoint.msgframing.WelcomeMessage;
+import net.jxta.impl.util.TimeUtils;
 
 /**
  * Low-level TcpMessenger
  *
  */
-class TcpConnection implements Runnable {
+class TcpConnection extends AbstractTcpConnection implements Runnable {
 
     /**
      *  Log4J Logger
@@ -100,35 +101,33 @@ class TcpConnection implements Runnable {
 
     private static final MimeMediaType appMsg = new MimeMediaType("application/x-jxta-msg").intern();
 
-    private final TcpTransport proto;
-
-    private EndpointAddress dstAddress = null;
-    private EndpointAddress fullDstAddress = null;
-    private transient InetAddress inetAddress = null;
-    private transient int port = 0;
-
-    private transient volatile boolean closed = false;
     private transient Thread recvThread = null;
 
-    private transient WelcomeMessage myWelcome = null;
-    private transient WelcomeMessage itsWelcome = null;
-
-    private transient long lastUsed = System.currentTimeMillis();
     private transient Socket sharedSocket = null;
     private transient WatchedOutputStream woutputStream = null;
     private transient WatchedInputStream winputStream = null;
     private transient OutputStream outputStream = null;
     private transient InputStream inputStream = null;
 
-    private boolean initiator;
     private long connectionBegunTime;
-    private boolean closingDueToFailure = false;
+
+    /**
+     *  Our lane in the transport's dispatcher or <code>null</code> if
+     *  messages are demuxed on the receive thread.
+     */
+    private final transient IncomingMessageDispatcher.Lane lane = (null == proto.dispatcher) ? null : proto.dispatcher.newLane(null);
 
     /**
      *  only one outgoing message per connection.
      */
     private final transient Object writeLock = new String("tcp write lock");
 
+    /**
+     *  The package header for outgoing messages, reused for each message.
+     *  Only accessed with the write lock held.
+     */
+    private final transient MessagePackageHeader sendHeader = new MessagePackageHeader();
+
     /**
      *  Creates a new TcpConnection for the specified destination address.
      *
@@ -137,50 +136,11 @@ class TcpConnection implements Runnable {
      *  @throws IOException for failures in creating the connection.
      */
     TcpConnection(EndpointAddress destaddr, TcpTransport p) throws IOException {
-        initiator = true;
-
-        proto = p;
-
-        this.fullDstAddress = destaddr;
-        this.dstAddress = new EndpointAddress(destaddr, null, null);
-
-        String protoAddr = destaddr.getProtocolAddress();
-        int portIndex = protoAddr.lastIndexOf(":");
+        super(p);
 
-        if (portIndex == -1) {
-            throw new IllegalArgumentException("Invalid Protocol Address (port # missing) ");
-        }
-
-        String portString = protoAddr.substring(portIndex + 1);
-        try {
-            port = Integer.valueOf(portString).intValue();
-        } catch (NumberFormatException caught) {
-            throw new IllegalArgumentException("Invalid Protocol Address (port # invalid): " + portString);
-        }
-
-        // Check for bad port number.
-        if ((port <= 0) || (port > 65535)) {
-            throw new IllegalArgumentException("Invalid port number in Protocol Address : " + port);
-        }
-
-        String hostString = protoAddr.substring(0, portIndex);
-        inetAddress = InetAddress.getByName(hostString);
-
-        if (LOG.isEnabledFor(Level.INFO)) {
-            LOG.info("New TCP Connection to : " + dstAddress + " / "+ inetAddress.getHostAddress() + ":" + port);
-        }
+        initiator = true;
 
-        // See if we're attempting to use the loopback address.
-        // And if so, is the peer configured for the loopback network only?
-        // (otherwise the connection is not permitted). Btw, the otherway around
-        // is just as wrong, so we check both at once and pretend it cannot work,
-        // even if it might have.
-        // FIXME 20041130 This is not an appropriate check if the other peer is
-        // running on the same machine and the InetAddress.getByName returns the
-        // loopback address.
-        if (inetAddress.isLoopbackAddress() != proto.usingInterface.isLoopbackAddress()) {
-            throw new IOException("Network unreachable");
-        }
+        setDestination(destaddr);
 
         try {
             sharedSocket = new Socket(inetAddress, port);
@@ -203,7 +163,7 @@ class TcpConnection implements Runnable {
      *  @throws IOException for failures in creating the connection.
      */
     TcpConnection(Socket incSocket, TcpTransport p) throws IOException {
-        proto = p;
+        super(p);
         try {
             if (LOG.isEnabledFor(Level.INFO)) {
                 LOG.info("Connection from " + incSocket.getInetAddress().getHostAddress() + ":" + incSocket.getPort());
@@ -234,25 +194,6 @@ class TcpConnection implements Runnable {
         }
     }
 
-    /**
-     * {@inheritDoc}
-     */
-    public boolean equals(Object target) {
-        if (this == target) {
-            return true;
-        }
-
-        if (null == target) {
-            return false;
-        }
-
-        if (target instanceof TcpConnection) {
-            TcpConnection likeMe = (TcpConnection) target;
-            return getDestinationAddress().equals(likeMe.getDestinationAddress()) && getDestinationPeerID().equals(likeMe.getDestinationPeerID());
-        }
-        return false;
-    }
-
     /**
      * {@inheritDoc}
      */
@@ -261,23 +202,6 @@ class TcpConnection implements Runnable {
         close();
     }
 
-    /**
-     * {@inheritDoc}
-     */
-    public int hashCode() {
-        return  getDestinationPeerID().hashCode() + getDestinationAddress().hashCode();
-    }
-
-    /**
-     *  {@inheritDoc}
-     *
-     *  <p/>Implementation for debugging.
-     */
-    public String toString() {
-        return super.toString() + ":" + ((null != itsWelcome) ? itsWelcome.getPeerID().toString() : "unknown") + " on address "
-               + ((null != dstAddress) ? dstAddress.toString() : "unknown");
-    }
-
     private synchronized void setThreadName() {
 
         if (recvThread != null) {
@@ -291,20 +215,6 @@ class TcpConnection implements Runnable {
         }
     }
 
-    public EndpointAddress getDestinationAddress() {
-        return (EndpointAddress) dstAddress.clone();
-    }
-
-    public EndpointAddress getConnectionAddress() {
-        // Somewhat confusing but destinationAddress is the name of that thing
-        // for the welcome message.
-        return itsWelcome.getDestinationAddress();
-    }
-
-    public ID getDestinationPeerID() {
-        return itsWelcome.getPeerID();
-    }
-
     private void startSocket() throws IOException {
         sharedSocket.setKeepAlive(true);
         int useBufferSize = Math.max(TcpTransport.ChunkSize, sharedSocket.getSendBufferSize());
@@ -359,11 +269,16 @@ class TcpConnection implements Runnable {
     }
 
     /**
-     * Send message to the remote peer.
-     *
-     *  @param msg  the message to send.
+     * {@inheritDoc}
      */
     public void sendMessage(Message msg) throws IOException {
+        sendMessages(new Message[] { msg });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void sendMessages(Message[] msgs) throws IOException {
 
         // socket is a stream, only one writer at a time...
         synchronized (writeLock) {
@@ -375,39 +290,25 @@ class TcpConnection implements Runnable {
                 throw new IOException("Connection was closed to : " + dstAddress);
             }
 
-            boolean success = false;
-            long sendBeginTime = 0;
+            long sendBeginTime = TimeUtils.timeNow();
             long size = 0;
 
-
             try {
-                // 20020730 bondolo@jxta.org Do something with content-coding here
-                // serialize the message.
-                WireFormatMessage serialed = WireFormatMessageFactory.toWire(msg, appMsg, (MimeMediaType[]) null);
-
-                // Build the protocol header
-                // Allocate a buffer to contain the message and the header
-
-                MessagePackageHeader header = new MessagePackageHeader();
-
-                header.setContentTypeHeader(serialed.getMimeType());
-
-                size = serialed.getByteLength();
-                header.setContentLengthHeader(size);
-
-                if (LOG.isEnabledFor(Level.DEBUG)) {
-                    LOG.debug("sendMessage (" + serialed.getByteLength() + ") to " + dstAddress + " via " + inetAddress.getHostAddress() + ":" + port);
+                for (int eachMsg = 0; eachMsg < msgs.length; eachMsg++) {
+                    size += writeMessage(msgs[eachMsg]);
                 }
 
-                header.sendToStream(outputStream);
-                serialed.sendToStream(outputStream);
+                // one flush for the whole burst.
                 outputStream.flush();
 
                 // all done!
-                success = true;
                 setLastUsed(System.currentTimeMillis());
 
+                SENT_MESSAGES.add(msgs.length);
+                SENT_BYTES.add(size);
+                SEND_TIME.record(TimeUtils.toRelativeTimeMillis(TimeUtils.timeNow(), sendBeginTime));
             } catch (Throwable failure) {
+                SEND_FAILURES.increment();
 
                 if (LOG.isEnabledFor(Level.INFO)) {
                     LOG.info("tcp send - message send failed for " + inetAddress.getHostAddress() + ":" + port, failure);
@@ -420,6 +321,49 @@ class TcpConnection implements Runnable {
         }
     }
 
+    /**
+     *  Writes a message and its header to the buffered output stream without
+     *  flushing it. Must be called with the write lock held.
+     *
+     *  @param msg the message.
+     *  @return the length of the message as sent.
+     */
+    private long writeMessage(Message msg) throws IOException {
+        // serialize the message.
+        WireFormatMessage serialed = WireFormatMessageFactory.toWire(msg, appMsg, (MimeMediaType[]) null);
+
+        // Build the protocol header
+
+        sendHeader.setContentTypeHeader(serialed.getMimeType());
+
+        long size = serialed.getByteLength();
+
+        // Compress the message if the peer accepts it and it is
+        // large enough to be worth it.
+        byte[] coded = (null != sendCoding) ? coder.encode(serialed, size) : null;
+
+        sendHeader.setContentCodingHeader((null != coded) ? sendCoding : null);
+        offerCodings(sendHeader);
+        if (null != coded) {
+            size = coded.length;
+        }
+        sendHeader.setContentLengthHeader(size);
+
+        if (LOG.isEnabledFor(Level.DEBUG)) {
+            LOG.debug("sendMessage (" + serialed.getByteLength() + ") to " + dstAddress + " via " + inetAddress.getHostAddress() + ":" + port);
+        }
+
+        // Header and message are written in one pass through the
+        // buffered stream.
+        sendHeader.sendToStream(outputStream);
+        if (null != coded) {
+            outputStream.write(coded);
+        } else {
+            serialed.sendToStream(outputStream);
+        }
+
+        return size;
+    }
     /**
      *  {@inheritDoc}
      *
@@ -441,7 +385,7 @@ class TcpConnection implements Runnable {
                         break;
                     }
                     if (LOG.isEnabledFor(Level.DEBUG)) {
-                        LOG.debug("tcp receive - message starts for " + inetAddress.getHostAddress() + ":" + port);
+                        LOG.debug("tcp receive - message starts for {}:{}", inetAddress.getHostAddress(), new Integer(port));
                     }
                     // We can stay blocked here for a long time, it's ok.
                     MessagePackageHeader header = new MessagePackageHeader(inputStream);
@@ -451,21 +395,36 @@ class TcpConnection implements Runnable {
 
                     long msglength = header.getContentLengthHeader();
 
-                    // FIXME 20020730 bondolo@jxta.org Do something with content-coding here.
+                    String msgCoding = header.getContentCodingHeader();
+
+                    codingsReceived(header);
 
                     if (LOG.isEnabledFor(Level.DEBUG)) {
-                        LOG.debug("tcp receive - message body (" + msglength + ") starts for " + inetAddress.getHostAddress() + ":" + port);
+                        LOG.debug("tcp receive - message body ({}) starts for {}", new Long(msglength), inetAddress.getHostAddress() + ":" + port);
                     }
 
                     // read the message!
                     // We have received the header, so, the rest had better
                     // come. Turn the short timeout on.
                     inputActive(true);
+                    receiveBeginTime = TimeUtils.timeNow();
 
                     Message msg = null;
 
                     try {
-                        msg = WireFormatMessageFactory.fromWire(new LimitInputStream(inputStream, msglength, true), msgMime, (MimeMediaType) null);
+                        if ((msglength < 0) || (msglength > TcpTransport.MaxMessageSize)) {
+                            throw new IOException("Invalid message length : " + msglength);
+                        }
+
+                        // Read the whole body then decode it in place; the
+                        // message elements share the body array.
+                        byte[] body = new byte[(int) msglength];
+
+                        readFully(body);
+
+                        ByteBuffer decoded = (null == msgCoding) ? ByteBuffer.wrap(body) : decodeBody(msgCoding, body, body.length);
+
+                        msg = WireFormatMessageFactory.fromBuffer(decoded, msgMime, (MimeMediaType) null);
                     } catch (IOException failed) {
                         if (LOG.isEnabledFor(Level.INFO)) {
                             LOG.info("tcp receive - failed reading msg from " + inetAddress.getHostAddress() + ":" + port);
@@ -484,13 +443,23 @@ class TcpConnection implements Runnable {
                     }
 
                     if (LOG.isEnabledFor(Level.DEBUG)) {
-                        LOG.debug("tcp receive - handing incoming message from " + inetAddress.getHostAddress() + ":" + port + " to EndpointService");
+                        LOG.debug("tcp receive - handing incoming message from {}:{} to EndpointService", inetAddress.getHostAddress(), new Integer(port));
                     }
 
-                    // Demux the message for the upper layers.
-                    proto.endpoint.demux(msg);
-
                     setLastUsed(System.currentTimeMillis());
+
+                    RECEIVED_MESSAGES.increment();
+                    RECEIVED_BYTES.add(msglength);
+                    RECEIVE_TIME.record(TimeUtils.toRelativeTimeMillis(TimeUtils.timeNow(), receiveBeginTime));
+
+                    if (null == lane) {
+                        // Demux the message for the upper layers.
+                        proto.endpoint.demux(msg);
+                    } else {
+                        // Hand the message to the dispatcher. Blocks, and
+                        // so stops us reading, while it is behind.
+                        proto.dispatcher.dispatch(lane, msg);
+                    }
                 }
             } catch (InterruptedIOException woken) {
 
@@ -593,6 +562,7 @@ class TcpConnection implements Runnable {
             setLastUsed(0); // we idle now. Way idle.
             closeIOs();
             closed = true;
+            endCoder();
             if (recvThread != null) {
                 recvThread.interrupt();
             }
@@ -611,21 +581,23 @@ class TcpConnection implements Runnable {
     }
 
     /**
-     *  Return the absolute time in milliseconds at which this Connection was last used.
+     *  Reads exactly enough bytes from the socket to fill the array.
      *
-     *  @return absolute time in milliseconds.
+     *  @param bytes    the array to fill.
+     *  @throws EOFException if the socket is closed before the array is full.
      */
-    public long getLastUsed() {
-        return lastUsed;
-    }
+    private void readFully(byte[] bytes) throws IOException {
+        int offset = 0;
 
-    /**
-     *  Set the last used time for this connection in absolute milliseconds.
-     *
-     *  @param time absolute time in milliseconds.
-     */
-    private void setLastUsed(long time) {
-        lastUsed = time;
+        while (offset < bytes.length) {
+            int count = inputStream.read(bytes, offset, bytes.length - offset);
+
+            if (count < 0) {
+                throw new EOFException("Connection closed after " + offset + " of " + bytes.length + " message bytes");
+            }
+
+            offset += count;
+        }
     }
 
     /**
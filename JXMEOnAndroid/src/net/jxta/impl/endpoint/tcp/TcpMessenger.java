@@ -115,7 +115,7 @@ class TcpMessenger extends BlockingMessenger {
     /**
      *  The connection
      */
-    volatile TcpConnection conn;
+    volatile AbstractTcpConnection conn;
     
     /**
      * If this is an incoming connection we must not close it when this messenger disapears.
@@ -137,7 +137,7 @@ class TcpMessenger extends BlockingMessenger {
      *  @param destaddr the destination of the messenger
      *  @param p    the tcp MessageSender we are working for.
      */
-    TcpMessenger(EndpointAddress destaddr, TcpConnection conn, TcpTransport p)
+    TcpMessenger(EndpointAddress destaddr, AbstractTcpConnection conn, TcpTransport p)
         throws IOException {
 
         // We need self destruction: tcp messengers are expenssive to make and they refer to
@@ -174,7 +174,7 @@ class TcpMessenger extends BlockingMessenger {
         /**
          *  Create a connection. Not needed immediately, but this gets things going
          */
-        this(destaddr, new TcpConnection(destaddr, p), p);
+        this(destaddr, p.newConnection(destaddr), p);
         this.incoming = false;
     }
 
@@ -210,7 +210,7 @@ class TcpMessenger extends BlockingMessenger {
      */
     public void closeImpl() {
 
-        TcpConnection toClose = conn;
+        AbstractTcpConnection toClose = conn;
 
         if (toClose == null) {
             return;
@@ -234,7 +234,7 @@ class TcpMessenger extends BlockingMessenger {
     // should still work, but it's a stretch. Transports should get a deeper retrofit eventually.
     public boolean isClosed() {
 
-        TcpConnection holdIt = conn;
+        AbstractTcpConnection holdIt = conn;
 
         if (holdIt == null) {
             return true;
@@ -263,7 +263,7 @@ class TcpMessenger extends BlockingMessenger {
      * timeout for that.
      */
     public boolean isIdleImpl() {
-        TcpConnection holdIt = conn;
+        AbstractTcpConnection holdIt = conn;
         return (holdIt == null) || (TimeUtils.toRelativeTimeMillis(TimeUtils.timeNow(), holdIt.getLastUsed()) > 15 * TimeUtils.AMINUTE);
     }
 
@@ -295,7 +295,7 @@ class TcpMessenger extends BlockingMessenger {
         // to prevent an NPE if they happen in parallel.
         // So, get a private reference just long enough to send.
 
-        TcpConnection myConn = conn;
+        AbstractTcpConnection myConn = conn;
 
         if (isClosed()) {
             IOException failure = new IOException("Messenger was closed, it cannot be used to send messages.");
@@ -308,14 +308,9 @@ class TcpMessenger extends BlockingMessenger {
         }
         
         // Set the message with the appropriate src and dest address
-        message.replaceMessageElement(EndpointServiceImpl.MESSAGE_SOURCE_NS, srcAddressElement);
-        
         EndpointAddress destAddressToUse = getDestAddressToUse(service, serviceParam);
         
-        MessageElement dstAddressElement = new StringMessageElement(EndpointServiceImpl.MESSAGE_DESTINATION_NAME, destAddressToUse.toString(),
-                (MessageElement) null);
-        
-        message.replaceMessageElement(EndpointServiceImpl.MESSAGE_DESTINATION_NS, dstAddressElement);
+        setAddresses(message, destAddressToUse);
         
         // send it
         try {
@@ -340,4 +335,65 @@ class TcpMessenger extends BlockingMessenger {
 
         return true;
     }
+
+    /**
+     *  {@inheritDoc}
+     *
+     *  <p/>The messages are sent as one burst on the connection, with a
+     *  single flush. Either all of them are sent or the send fails.
+     */
+    protected int sendMessagesBImpl(Message[] messages, String service, String serviceParam)
+        throws IOException {
+
+        AbstractTcpConnection myConn = conn;
+
+        if (isClosed()) {
+            IOException failure = new IOException("Messenger was closed, it cannot be used to send messages.");
+            
+            if (LOG.isEnabledFor(Level.INFO)) {
+                LOG.info(failure);
+            }
+            
+            throw failure;
+        }
+        
+        EndpointAddress destAddressToUse = getDestAddressToUse(service, serviceParam);
+        
+        for (int eachMsg = 0; eachMsg < messages.length; eachMsg++) {
+            setAddresses(messages[eachMsg], destAddressToUse);
+        }
+        
+        try {
+            if (LOG.isEnabledFor(Level.DEBUG)) {
+                LOG.debug("Sending " + messages.length + " messages to " + destAddressToUse + " on connection " + myConn.getDestinationAddress());
+            }
+        
+            myConn.sendMessages(messages);
+        } catch (IOException caught) {
+            if (LOG.isEnabledFor(Level.DEBUG)) {
+                LOG.debug("Send of " + messages.length + " messages failed", caught);
+            }
+
+            close();
+
+            throw caught;
+        }
+        
+        return messages.length;
+    }
+    
+    /**
+     *  Sets the source and destination address elements of a message.
+     *
+     *  @param message the message.
+     *  @param destAddressToUse the destination address.
+     */
+    private void setAddresses(Message message, EndpointAddress destAddressToUse) {
+        message.replaceMessageElement(EndpointServiceImpl.MESSAGE_SOURCE_NS, srcAddressElement);
+        
+        MessageElement dstAddressElement = new StringMessageElement(EndpointServiceImpl.MESSAGE_DESTINATION_NAME, destAddressToUse.toString(),
+                (MessageElement) null);
+        
+        message.replaceMessageElement(EndpointServiceImpl.MESSAGE_DESTINATION_NS, dstAddressElement);
+    }
 }
@@ -199,6 +199,46 @@ public class TcpTransport implements Runnable, Module, MessageSender, MessageRec
 
     static final int              MaxAcceptCnxBacklog = 50; // Java's default is 50
 
+    /**
+     * The number of selector threads used when the transport is configured to
+     * use selectors rather than a thread per connection. One per processor,
+     * but never more than four; a few threads can serve hundreds of connections.
+     */
+    static final int              SelectorThreadCount = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+    /**
+     * The number of threads which demux received messages. Zero means that
+     * messages are demuxed by the thread which received them. We go get the
+     * system property "net.jxta.impl.endpoint.tcp.dispatchThreads".
+     */
+    static int                    dispatchThreadCount = 2;
+
+    /**
+     * The maximum number of received messages queued for demux per
+     * connection before the connection stops reading. We go get the system
+     * property "net.jxta.impl.endpoint.tcp.dispatchQueueSize".
+     */
+    static int                    dispatchQueueSize = 16;
+
+    /**
+     * Messages smaller than this are never compressed. We go get the system
+     * property "net.jxta.impl.endpoint.tcp.compressThreshold".
+     */
+    static int                    compressThreshold = 1024;
+
+    /**
+     * The largest message we will accept once its compression is removed.
+     */
+    static final int              MaxDecodedMessageSize = 16 * 1024 * 1024;
+
+    /**
+     * The largest message body we will accept from the wire. The length comes
+     * from the remote peer and the whole body is buffered, so it must be
+     * bounded. We go get the system property
+     * "net.jxta.impl.endpoint.tcp.maxMessageSize".
+     */
+    static int                    MaxMessageSize = 4 * 1024 * 1024;
+
     // Connections that are watched often - io in progress
     List                          ShortCycle = Collections.synchronizedList(new ArrayList());
 
@@ -216,6 +256,23 @@ public class TcpTransport implements Runnable, Module, MessageSender, MessageRec
     private int                   restrictionPort = -1;
     private IncomingUnicastServer unicastServer = null;
 
+    /**
+     *  The selector threads which perform the connection i/o or
+     *  <code>null</code> if each connection has its own receive thread.
+     */
+    SelectorPool                  selectors = null;
+
+    /**
+     *  Demuxes the messages received by our connections or <code>null</code>
+     *  if they are demuxed by the receiving thread.
+     */
+    IncomingMessageDispatcher     dispatcher = null;
+
+    /**
+     *  If <tt>true</tt> then our connections offer to compress messages.
+     */
+    boolean                       compress = false;
+
     private boolean               isClosed = false;
 
     private boolean               allowMulticast = true;
@@ -291,6 +348,38 @@ public class TcpTransport implements Runnable, Module, MessageSender, MessageRec
             // Keep the default
         }
 
+        try {
+            String dispatchThreadsStr = System.getProperty("net.jxta.impl.endpoint.tcp.dispatchThreads");
+
+            if (dispatchThreadsStr != null) {
+                dispatchThreadCount = Math.max(0, Integer.parseInt(dispatchThreadsStr));
+            }
+
+            String dispatchQueueStr = System.getProperty("net.jxta.impl.endpoint.tcp.dispatchQueueSize");
+
+            if (dispatchQueueStr != null) {
+                dispatchQueueSize = Math.max(1, Integer.parseInt(dispatchQueueStr));
+            }
+
+            String compressThresholdStr = System.getProperty("net.jxta.impl.endpoint.tcp.compressThreshold");
+
+            if (compressThresholdStr != null) {
+                compressThreshold = Math.max(0, Integer.parseInt(compressThresholdStr));
+            }
+
+            String maxMessageSizeStr = System.getProperty("net.jxta.impl.endpoint.tcp.maxMessageSize");
+
+            if (maxMessageSizeStr != null) {
+                MaxMessageSize = Math.min(MaxDecodedMessageSize, Math.max(1, Integer.parseInt(maxMessageSizeStr)));
+            }
+        } catch (Exception e) {
+            if (LOG.isEnabledFor(Level.WARN)) {
+                LOG.warn("Could not parse system property: net.jxta.impl.endpoint.tcp.*");
+            }
+
+            // Keep the defaults
+        }
+
         connectionWatchTimer = new Timer(true);
         connectionWatchTimer.schedule(new TimerThreadNamer("TCP Transport Connection Timer"), 0);
 
@@ -435,10 +524,20 @@ public class TcpTransport implements Runnable, Module, MessageSender, MessageRec
             // specified ?
             publicAddressOnly = adv.getPublicAddressOnly();
 
+            compress = adv.getCompress();
+
             // Start the servers
             myThreadGroup = new ThreadGroup(group.getHomeThreadGroup(), "TcpTransport " + usingInterface.getHostAddress());
+            if (adv.getUseSelector()) {
+                selectors = new SelectorPool(myThreadGroup, SelectorThreadCount);
+            }
+
+            if (dispatchThreadCount > 0) {
+                dispatcher = new IncomingMessageDispatcher(myThreadGroup, endpoint, dispatchThreadCount, dispatchQueueSize);
+            }
+
             if (adv.isServerEnabled()) {
-                unicastServer = new IncomingUnicastServer(this, usingInterface, serverSocketPort, adv.getStartPort(), adv.getEndPort());
+                unicastServer = new IncomingUnicastServer(this, usingInterface, serverSocketPort, adv.getStartPort(), adv.getEndPort(), selectors);
                 InetSocketAddress boundAddresss = unicastServer.getLocalSocketAddress();
 
                 // XXX bondolo 20040628 Save the port back as a preference to TCPAdv
@@ -686,6 +785,21 @@ public class TcpTransport implements Runnable, Module, MessageSender, MessageRec
             }
 
             configInfo.append("\n\tConfiguration :");
+            if (null != selectors) {
+                configInfo.append("\n\t\tConnection IO: " + selectors.size() + " selector thread(s)");
+            } else {
+                configInfo.append("\n\t\tConnection IO: thread per connection");
+            }
+            if (null != dispatcher) {
+                configInfo.append("\n\t\tMessage Dispatch: " + dispatcher.getThreadCount() + " thread(s), " + dispatcher.getLaneCapacity() + " messages per connection");
+            } else {
+                configInfo.append("\n\t\tMessage Dispatch: receiving thread");
+            }
+            if (compress) {
+                configInfo.append("\n\t\tCompression: offered for messages of " + compressThreshold + " bytes or more");
+            } else {
+                configInfo.append("\n\t\tCompression: off");
+            }
             if (null != unicastServer) {
                 if (-1 == unicastServer.getStartPort()) {
                     configInfo.append("\n\t\tUnicast Server Bind Addr: " + usingInterface.getHostAddress() + ":" + serverSocketPort);
@@ -747,6 +861,15 @@ public class TcpTransport implements Runnable, Module, MessageSender, MessageRec
             unicastServer = null;
         }
 
+        // Closes all of the selector driven connections.
+        if (selectors != null) {
+            selectors.stop();
+        }
+
+        if (dispatcher != null) {
+            dispatcher.stop();
+        }
+
         if (multicastSocket != null) {
             multicastSocket.close();
             multicastSocket = null;
@@ -798,6 +921,46 @@ public class TcpTransport implements Runnable, Module, MessageSender, MessageRec
         return (EndpointAddress) publicAddress.clone();
     }
 
+    /**
+     *  Returns the number of received messages currently waiting to be
+     *  demuxed.
+     *
+     *  @return the number of received messages waiting to be demuxed.
+     */
+    public int getIncomingQueueDepth() {
+        return (null == dispatcher) ? 0 : dispatcher.getQueueDepth();
+    }
+
+    /**
+     *  Returns the largest number of received messages which have been
+     *  waiting to be demuxed at once.
+     *
+     *  @return the incoming queue depth high water mark.
+     */
+    public int getMaxIncomingQueueDepth() {
+        return (null == dispatcher) ? 0 : dispatcher.getMaxQueueDepth();
+    }
+
+    /**
+     *  Returns the total number of received messages which have been demuxed
+     *  by the dispatch threads.
+     *
+     *  @return the number of messages demuxed by the dispatch threads.
+     */
+    public long getDispatchedMessageCount() {
+        return (null == dispatcher) ? 0 : dispatcher.getDispatchedCount();
+    }
+
+    /**
+     *  Returns the number of times a connection has stopped reading because
+     *  too many of its messages were waiting to be demuxed.
+     *
+     *  @return the number of times backpressure was applied.
+     */
+    public long getIncomingBackpressureCount() {
+        return (null == dispatcher) ? 0 : dispatcher.getBackpressureCount();
+    }
+
     /**
      *  {@inheritDoc}
      */
@@ -899,6 +1062,22 @@ public class TcpTransport implements Runnable, Module, MessageSender, MessageRec
         }
     }
 
+    /**
+     *  Opens a new connection to the specified destination using the
+     *  connection i/o model we are configured for.
+     *
+     *  @param dst  the destination address.
+     *  @return the new connection.
+     *  @throws IOException for failures in creating the connection.
+     */
+    AbstractTcpConnection newConnection(EndpointAddress dst) throws IOException {
+        if (null != selectors) {
+            return new NioTcpConnection(dst, this);
+        } else {
+            return new TcpConnection(dst, this);
+        }
+    }
+
     /**
      *  Handles incoming multicasts.
      */
@@ -982,7 +1161,16 @@ public class TcpTransport implements Runnable, Module, MessageSender, MessageRec
             MessagePackageHeader header = new MessagePackageHeader(inputStream);
             MimeMediaType msgMime = header.getContentTypeHeader();
             long msglength = header.getContentLengthHeader();
-            // FIXME 20020730 bondolo@jxta.org Do something with content-coding here.
+
+            // Content coding is negotiated per connection. Nobody has agreed
+            // to one for multicast.
+            if (null != header.getContentCodingHeader()) {
+                if (LOG.isEnabledFor(Level.DEBUG)) {
+                    LOG.debug("processMulticast : content coded multicast discarded");
+                }
+                return;
+            }
+
             // read the message!
             Message msg = WireFormatMessageFactory.fromWire(new LimitInputStream(inputStream,
                                                             msglength),
@@ -1067,7 +1255,8 @@ public class TcpTransport implements Runnable, Module, MessageSender, MessageRec
                 throw new IllegalStateException("utf-8 encoding support missing!");
             }
 
-            // 20020730 bondolo@jxta.org Do something with content-coding here
+            // Multicast messages are never content coded. Receivers have not
+            // negotiated a coding with us.
 
             // Write the header and the message.
             CountingOutputStream count = new CountingOutputStream(new DevNullOutputStream());
@@ -1131,6 +1320,12 @@ public class TcpTransport implements Runnable, Module, MessageSender, MessageRec
             endpointAddress = new EndpointAddress(addr, null, null);
             TcpMessenger tcpMessenger = new TcpMessenger(endpointAddress, this);
             result = true;
+
+            // Selector driven connections receive from the start and are
+            // referenced by their selector; they must be closed explicitly.
+            if (null != selectors) {
+                tcpMessenger.close();
+            }
         } catch (Throwable e) {
             if (LOG.isEnabledFor(Level.WARN)) {
                 LOG.warn("failure pinging " + addr.toString(), e);
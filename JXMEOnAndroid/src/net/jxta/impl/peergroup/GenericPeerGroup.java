@@ -105,8 +105,11 @@ import net.jxta.exception.ProtocolNotSupportedException;
 import net.jxta.exception.ServiceNotFoundException;
 import net.jxta.exception.ViolationException;
 
+import net.jxta.impl.discovery.AdvertisementWait;
+import net.jxta.impl.discovery.DiscoveryServiceImpl;
 import net.jxta.impl.loader.RefJxtaLoader;
 import net.jxta.impl.protocol.PlatformConfig;
+import net.jxta.impl.util.TimeUtils;
 //import net.jxta.impl.protocol.PSEConfigAdv;
 
 /**
@@ -251,9 +254,14 @@ public abstract class GenericPeerGroup implements PeerGroup {
         if (stopping) {
             return null;
         }
-        Service p = (Service) services.remove(name);
+        Service p;
 
-        services.put(name, service);
+        // Lookups only hold the table's lock.
+        synchronized (services) {
+            p = (Service) services.remove(name);
+
+            services.put(name, service);
+        }
         return p;
     }
 
@@ -408,6 +416,17 @@ public abstract class GenericPeerGroup implements PeerGroup {
             int seconds,
             Class thisClass) {
 
+        if (discovery instanceof DiscoveryServiceImpl) {
+            // Completes as soon as a matching advertisement is cached.
+            AdvertisementWait wait = ((DiscoveryServiceImpl) discovery).awaitAdvertisements(type, attr, value, thisClass);
+
+            try {
+                return wait.get(seconds * TimeUtils.ASECOND);
+            } finally {
+                wait.cancel();
+            }
+        }
+
         Vector results = new Vector();
 
         try {
@@ -1293,9 +1312,10 @@ public abstract class GenericPeerGroup implements PeerGroup {
      *      that name
      *@exception  ServiceNotFoundException  Description of the Exception
      */
-    public synchronized Service lookupService(ID name) throws ServiceNotFoundException {
+    public Service lookupService(ID name) throws ServiceNotFoundException {
         // Null services are never registered, so we do not need to test that
-        // case.
+        // case. The table is synchronized, so the group monitor is not
+        // needed; modules look up services while the group is starting them.
         Service p = (Service) services.get(name);
 
         if (p == null) {
@@ -0,0 +1,547 @@
+/*
+ *
+ * $Id$
+ *
+ * Copyright (c) 2001 Sun Microsystems, Inc.  All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *
+ * 3. The end-user documentation included with the redistribution,
+ *    if any, must include the following acknowledgment:
+ *       "This product includes software developed by the
+ *       Sun Microsystems, Inc. for Project JXTA."
+ *    Alternately, this acknowledgment may appear in the software itself,
+ *    if and wherever such third-party acknowledgments normally appear.
+ *
+ * 4. The names "Sun", "Sun Microsystems, Inc.", "JXTA" and "Project JXTA"
+ *    must not be used to endorse or promote products derived from this
+ *    software without prior written permission. For written
+ *    permission, please contact Project JXTA at http://www.jxta.org.
+ *
+ * 5. Products derived from this software may not be called "JXTA",
+ *    nor may "JXTA" appear in their name, without prior written
+ *    permission of Sun.
+ *
+ * THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED.  IN NO EVENT SHALL SUN MICROSYSTEMS OR
+ * ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ * USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ * OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ *
+ * ====================================================================
+ *
+ * This software consists of voluntary contributions made by many
+ * individuals on behalf of Project JXTA.  For more
+ * information on Project JXTA, please see
+ * <http://www.jxta.org/>.
+ *
+ * This license is based on the BSD license adopted by the Apache Foundation.
+ */
+
+package net.jxta.impl.peergroup;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+import net.jxta.peergroup.PeerGroup;
+import net.jxta.platform.Module;
+import net.jxta.platform.ModuleClassID;
+
+import net.jxta.impl.util.TimeUtils;
+
+/**
+ *  Starts the modules of a peer group. A module is started once the modules
+ *  it is declared to depend upon have completed their start. Modules whose
+ *  dependencies are complete are started concurrently by a small number of
+ *  worker threads.
+ *
+ *  <p/>The status returned by {@link Module#startApp(String[])} is handled
+ *  as follows:
+ *
+ *  <ul>
+ *  <li>{@link Module#START_OK}: The module is done. Modules depending upon it
+ *  and modules which stalled are made ready to start.</li>
+ *
+ *  <li>{@link Module#START_AGAIN_PROGRESS}: The module is made ready to start
+ *  again.</li>
+ *
+ *  <li>{@link Module#START_AGAIN_STALLED}: The module waits until another
+ *  module completes its start, or is retried after a short delay if no
+ *  module completes.</li>
+ *
+ *  <li>Any other value: The module failed to start. It is done and will not
+ *  be started again.</li>
+ *  </ul>
+ *
+ *  <p/>Starting ends when no module is ready or running. Modules which are
+ *  still waiting at that point, or which keep reporting progress or stalling
+ *  without any module completing, are reported by {@link #getNotStarted()}.
+ *
+ *  <p/>All state is guarded by a private monitor. The caller's locks, such as
+ *  the peer group monitor held by {@link StdPeerGroup#initFirst}, stay held
+ *  while the modules start so modules must not synchronize on them from
+ *  within their startApp().
+ */
+class ModuleStarter {
+
+    /**
+     *  Log4J Logger
+     */
+    private static final Logger LOG = Logger.getLogger(ModuleStarter.class.getName());
+
+    /**
+     *  Default number of worker threads.
+     */
+    private static final int DEFAULT_START_THREADS = 2;
+
+    /**
+     *  Delay before stalled modules are tried again if no module completes.
+     */
+    private static final long STALLED_RETRY_INTERVAL = TimeUtils.ATENTHOFASECOND;
+
+    /**
+     *  Stalled modules are given up once no module has completed for this
+     *  long.
+     */
+    private static final long STALLED_TIMEOUT = 10 * TimeUtils.ASECOND;
+
+    /**
+     *  Declared start dependencies of the standard modules.
+     *
+     *  <ul>
+     *  <li>keys are {@link net.jxta.platform.ModuleClassID}</li>
+     *  <li>values are arrays of {@link net.jxta.platform.ModuleClassID}</li>
+     *  </ul>
+     *
+     *  <p/>Modules which are not listed depend upon the endpoint service.
+     */
+    private static final Map dependencies = new HashMap();
+
+    static {
+        ModuleClassID[] none = new ModuleClassID[0];
+        ModuleClassID[] endpoint = new ModuleClassID[] { PeerGroup.endpointClassID };
+        ModuleClassID[] resolverAndRendezvous = new ModuleClassID[] { PeerGroup.resolverClassID, PeerGroup.rendezvousClassID };
+
+        dependencies.put(PeerGroup.endpointClassID, none);
+        dependencies.put(PeerGroup.resolverClassID, endpoint);
+        dependencies.put(PeerGroup.rendezvousClassID, endpoint);
+        dependencies.put(PeerGroup.discoveryClassID, resolverAndRendezvous);
+        dependencies.put(PeerGroup.pipeClassID, resolverAndRendezvous);
+        dependencies.put(PeerGroup.relayProtoClassID, new ModuleClassID[] { PeerGroup.endpointClassID, PeerGroup.discoveryClassID });
+    }
+
+    /**
+     *  A module being started.
+     */
+    private static class Task {
+        final ModuleClassID id;
+        final Module module;
+        final ModuleClassID[] dependsOn;
+
+        /**
+         *  Absolute time of the first call to startApp().
+         */
+        long firstStartAt = 0;
+
+        /**
+         *  Total time spent inside startApp().
+         */
+        long inStartApp = 0;
+
+        int attempts = 0;
+
+        /**
+         *  Result of the last call to startApp().
+         */
+        int result = Module.START_AGAIN_STALLED;
+
+        Task(ModuleClassID id, Module module, ModuleClassID[] dependsOn) {
+            this.id = id;
+            this.module = module;
+            this.dependsOn = dependsOn;
+        }
+    }
+
+    private final Object lock = new Object();
+    private final ThreadGroup threadGroup;
+    private final String name;
+    private final int numThreads;
+
+    /**
+     *  Modules waiting for their dependencies, as {@link Task}s.
+     */
+    private final List waiting = new ArrayList();
+
+    /**
+     *  Modules ready to be started, as {@link Task}s.
+     */
+    private final LinkedList ready = new LinkedList();
+
+    /**
+     *  Modules waiting for another module to complete, as {@link Task}s.
+     */
+    private final List stalled = new ArrayList();
+
+    /**
+     *  Modules whose last call to startApp() has returned, as {@link Task}s.
+     */
+    private final LinkedList returned = new LinkedList();
+
+    /**
+     *  The ids of the modules which are being started.
+     */
+    private final Set starting = new HashSet();
+
+    /**
+     *  The ids of the modules which are done, started or failed.
+     */
+    private final Set done = new HashSet();
+
+    /**
+     *  The modules which failed to start. Keys are
+     *  {@link net.jxta.platform.ModuleClassID}, values are
+     *  {@link net.jxta.platform.Module}.
+     */
+    private final Map failed = new HashMap();
+
+    /**
+     *  The modules which could not be started. Keys are
+     *  {@link net.jxta.platform.ModuleClassID}, values are
+     *  {@link net.jxta.platform.Module}.
+     */
+    private final Map notStarted = new HashMap();
+
+    private int running = 0;
+    private boolean finished = false;
+
+    /**
+     *  Creates a starter for the given modules.
+     *
+     *@param  threadGroup  the thread group of the worker threads.
+     *@param  name         the name used for the worker threads and in logs.
+     *@param  modules      the modules to start. Keys are
+     *      {@link net.jxta.platform.ModuleClassID}, values are
+     *      {@link net.jxta.platform.Module}.
+     */
+    ModuleStarter(ThreadGroup threadGroup, String name, Map modules) {
+        this.threadGroup = threadGroup;
+        this.name = name;
+
+        int threads = DEFAULT_START_THREADS;
+
+        try {
+            String threadsStr = System.getProperty("net.jxta.impl.peergroup.startThreads");
+
+            if (threadsStr != null) {
+                threads = Math.max(1, Integer.parseInt(threadsStr));
+            }
+        } catch (Exception e) {
+            if (LOG.isEnabledFor(Level.WARN)) {
+                LOG.warn("Could not parse system property: net.jxta.impl.peergroup.startThreads");
+            }
+            // Keep the defaults
+        }
+
+        numThreads = Math.min(threads, Math.max(1, modules.size()));
+
+        Iterator eachModule = modules.entrySet().iterator();
+
+        while (eachModule.hasNext()) {
+            Map.Entry anEntry = (Map.Entry) eachModule.next();
+            ModuleClassID id = (ModuleClassID) anEntry.getKey();
+
+            starting.add(id);
+        }
+
+        eachModule = modules.entrySet().iterator();
+
+        while (eachModule.hasNext()) {
+            Map.Entry anEntry = (Map.Entry) eachModule.next();
+            ModuleClassID id = (ModuleClassID) anEntry.getKey();
+            ModuleClassID[] dependsOn = (ModuleClassID[]) dependencies.get(id);
+
+            if (null == dependsOn) {
+                dependsOn = new ModuleClassID[] { PeerGroup.endpointClassID };
+            }
+
+            waiting.add(new Task(id, (Module) anEntry.getValue(), dependsOn));
+        }
+    }
+
+    /**
+     *  Starts the modules and returns once no more progress can be made.
+     */
+    void start() {
+        synchronized (lock) {
+            startModules();
+        }
+    }
+
+    private void startModules() {
+        long startedAt = TimeUtils.timeNow();
+        int toGo = waiting.size();
+        long progressWithoutCompletion = 0;
+        long lastCompletedAt = startedAt;
+        long retryStalledAt = Long.MAX_VALUE;
+
+        makeReady();
+
+        for (int eachThread = 0; eachThread < numThreads; eachThread++) {
+            Thread worker = new Thread(threadGroup, new Worker(), "Module Starter " + eachThread + " for " + name);
+
+            worker.setDaemon(true);
+            worker.start();
+        }
+
+        try {
+            while (true) {
+                while (!returned.isEmpty()) {
+                    Task task = (Task) returned.removeFirst();
+
+                    switch (task.result) {
+                    case Module.START_OK:
+                        if (LOG.isEnabledFor(Level.INFO)) {
+                            LOG.info("Module started : " + task.module + " in " +
+                                     TimeUtils.toRelativeTimeMillis(TimeUtils.timeNow(), task.firstStartAt) + "ms (" +
+                                     task.inStartApp + "ms in startApp(), " + task.attempts + " attempts)");
+                        }
+                        complete(task);
+                        --toGo;
+                        progressWithoutCompletion = 0;
+                        lastCompletedAt = TimeUtils.timeNow();
+                        retryStalledAt = Long.MAX_VALUE;
+                        break;
+
+                    case Module.START_AGAIN_PROGRESS:
+                        // Modules may pretend to make progress. Give up after
+                        // as many attempts as N^2 + 1 passes over the N modules
+                        // still to go would have made.
+                        if (++progressWithoutCompletion > (long) toGo * ((long) toGo * toGo + 1)) {
+                            notStarted.put(task.id, task.module);
+                        } else {
+                            ready.addLast(task);
+                        }
+                        break;
+
+                    case Module.START_AGAIN_STALLED:
+                        if (LOG.isEnabledFor(Level.DEBUG)) {
+                            LOG.debug("Module stalled : " + task.module);
+                        }
+                        stalled.add(task);
+                        if (Long.MAX_VALUE == retryStalledAt) {
+                            retryStalledAt = TimeUtils.toAbsoluteTimeMillis(STALLED_RETRY_INTERVAL);
+                        }
+                        break;
+
+                    default: // (negative)
+                        if (LOG.isEnabledFor(Level.WARN)) {
+                            LOG.warn("Module failed to start (" + task.result + ") : " + task.module);
+                        }
+                        failed.put(task.id, task.module);
+                        complete(task);
+                        --toGo;
+                        break;
+                    }
+                }
+
+                // Stalled modules may be waiting for something other than a
+                // module, so they are retried on a timer until no module has
+                // completed for STALLED_TIMEOUT.
+                if (stalled.isEmpty()) {
+                    retryStalledAt = Long.MAX_VALUE;
+                } else if (TimeUtils.timeNow() >= retryStalledAt) {
+                    retryStalledAt = Long.MAX_VALUE;
+
+                    if (TimeUtils.toRelativeTimeMillis(TimeUtils.timeNow(), lastCompletedAt) < STALLED_TIMEOUT) {
+                        ready.addAll(stalled);
+                        stalled.clear();
+                    }
+                }
+
+                if (ready.isEmpty() && (0 == running) && (Long.MAX_VALUE == retryStalledAt)) {
+                    break;
+                }
+
+                lock.notifyAll();
+
+                try {
+                    if (Long.MAX_VALUE == retryStalledAt) {
+                        lock.wait();
+                    } else {
+                        lock.wait(Math.max(1, TimeUtils.toRelativeTimeMillis(retryStalledAt)));
+                    }
+                } catch (InterruptedException woken) {
+                    Thread.interrupted();
+                }
+            }
+        } finally {
+            finished = true;
+            lock.notifyAll();
+        }
+
+        Iterator eachTask = waiting.iterator();
+
+        while (eachTask.hasNext()) {
+            Task task = (Task) eachTask.next();
+
+            notStarted.put(task.id, task.module);
+        }
+
+        eachTask = stalled.iterator();
+
+        while (eachTask.hasNext()) {
+            Task task = (Task) eachTask.next();
+
+            notStarted.put(task.id, task.module);
+        }
+
+        if (LOG.isEnabledFor(Level.INFO)) {
+            LOG.info("Started modules of " + name + " in " + TimeUtils.toRelativeTimeMillis(TimeUtils.timeNow(), startedAt) + "ms using " +
+                     numThreads + " threads. " + failed.size() + " failed, " + notStarted.size() + " could not be started.");
+        }
+    }
+
+    /**
+     *  @return the modules which failed to start. Keys are
+     *  {@link net.jxta.platform.ModuleClassID}, values are
+     *  {@link net.jxta.platform.Module}.
+     */
+    Map getFailed() {
+        return failed;
+    }
+
+    /**
+     *  @return the modules which could not be started. Keys are
+     *  {@link net.jxta.platform.ModuleClassID}, values are
+     *  {@link net.jxta.platform.Module}.
+     */
+    Map getNotStarted() {
+        return notStarted;
+    }
+
+    /**
+     *  Marks a module as done and wakes up the modules which were waiting for
+     *  it.
+     */
+    private void complete(Task task) {
+        done.add(task.id);
+
+        // Any completion may be what the stalled modules were waiting for.
+        ready.addAll(stalled);
+        stalled.clear();
+
+        makeReady();
+    }
+
+    /**
+     *  Moves the waiting modules whose dependencies are done to the ready
+     *  list. Dependencies which are not being started are ignored.
+     */
+    private void makeReady() {
+        Iterator eachTask = waiting.iterator();
+
+        while (eachTask.hasNext()) {
+            Task task = (Task) eachTask.next();
+            boolean satisfied = true;
+
+            for (int eachDep = 0; eachDep < task.dependsOn.length; eachDep++) {
+                ModuleClassID dep = task.dependsOn[eachDep];
+
+                if (!dep.equals(task.id) && starting.contains(dep) && !done.contains(dep)) {
+                    satisfied = false;
+                    break;
+                }
+            }
+
+            if (satisfied) {
+                eachTask.remove();
+                ready.addLast(task);
+            }
+        }
+    }
+
+    /**
+     *  Calls startApp() on the ready modules.
+     */
+    private class Worker implements Runnable {
+
+        /**
+         *  {@inheritDoc}
+         */
+        public void run() {
+            while (true) {
+                Task task;
+
+                synchronized (lock) {
+                    while (ready.isEmpty() && !finished) {
+                        try {
+                            lock.wait();
+                        } catch (InterruptedException woken) {
+                            Thread.interrupted();
+                        }
+                    }
+
+                    if (finished) {
+                        return;
+                    }
+
+                    task = (Task) ready.removeFirst();
+                    running++;
+                }
+
+                long calledAt = TimeUtils.timeNow();
+                int res;
+
+                try {
+                    res = task.module.startApp(null);
+                } catch (Throwable all) {
+                    if (LOG.isEnabledFor(Level.ERROR)) {
+                        LOG.error("Exception in startApp() : " + task.module, all);
+                    }
+                    res = -1;
+                }
+
+                long returnedAt = TimeUtils.timeNow();
+
+                synchronized (lock) {
+                    if (0 == task.attempts) {
+                        task.firstStartAt = calledAt;
+                    }
+                    task.attempts++;
+                    task.inStartApp += TimeUtils.toRelativeTimeMillis(returnedAt, calledAt);
+                    task.result = res;
+
+                    returned.addLast(task);
+                    running--;
+                    lock.notifyAll();
+                }
+            }
+        }
+    }
+}
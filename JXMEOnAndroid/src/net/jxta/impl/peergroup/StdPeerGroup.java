@@ -54,6 +54,8 @@
  */
 package net.jxta.impl.peergroup;
 
+import java.io.File;
+
 import java.util.ArrayList;
 import java.util.Enumeration;
 import java.util.Hashtable;
@@ -92,6 +94,7 @@ import net.jxta.exception.ViolationException;
 import net.jxta.exception.JxtaException;
 
 import net.jxta.impl.cm.Cm;
+import net.jxta.impl.config.Config;
 
 /**
  * A subclass of GenericPeerGroup that makes a peer group out of independent
@@ -429,48 +432,49 @@ public class StdPeerGroup extends GenericPeerGroup implements CompatibilityEquat
      *
      * This method loads and initializes all modules
      * described in the given implementation advertisement. Then, all modules
-     * are placed in a list and the list is processed iteratively. During each
-     * iteration, the {@link Module#startApp(String[])} method of each module
-     * is invoked once. Iterations continue until no progress is being made or
-     * the list is empty.
+     * are started by a {@link ModuleStarter}. A module is started once the
+     * modules it is declared to depend upon have started; modules which do
+     * not depend upon each other are started concurrently by a small number
+     * of threads (<code>net.jxta.impl.peergroup.startThreads</code>,
+     * default 2).
      *
      * <p/>The status returned by the {@link Module#startApp(String[])} method
      * of each module is considered as follows:
      *
      * <ul>
-     * <li>{@link Module#START_OK}: The module is removed from the list of
-     * modules to be started and its {@link Module#startApp(String[])}
-     * method will not be invoked again.
+     * <li>{@link Module#START_OK}: The module is started and its
+     * {@link Module#startApp(String[])} method will not be invoked again.
+     * Modules which depend upon it, or which stalled, are started.
      * </li>
      *
-     * <li>{@link Module#START_AGAIN_PROGRESS}: The module remains in the
-     * list of modules to be started and its {@link Module#startApp(String[])}
-     * method will be invoked during the next iteration, if there is one. </li>
+     * <li>{@link Module#START_AGAIN_PROGRESS}: The module's
+     * {@link Module#startApp(String[])} method will be invoked again. </li>
      *
-     * <li>{@link Module#START_AGAIN_STALLED}: The module remains in the list
-     * of modules to be started and its {@link Module#startApp(String[])}
-     * method will be invoked during the next iteration if there is one. </li>
+     * <li>{@link Module#START_AGAIN_STALLED}: The module's
+     * {@link Module#startApp(String[])} method will be invoked again once
+     * another module has started, or after a short delay. </li>
      *
      * <li>Any other value: The module failed to initialize. Its
      * {@link Module#startApp(String[])}
      * method will not be invoked again.</li>
      * </ul>
      *
-     * <p/>Iterations through the list stop when:
+     * <p/>Starting stops when:
      * <ul>
-     * <li>The list is empty: the group initialization proceeds.</li>
+     * <li>All modules have started or failed: the group initialization
+     * proceeds.</li>
      *
-     * <li>A complete iteration was performed and all modules returned
-     * {@link Module#START_AGAIN_STALLED}: a {@link PeerGroupException}
-     * is thrown.</li>
+     * <li>All remaining modules are stalled and no module has started for
+     * ten seconds: a {@link PeerGroupException} is thrown.</li>
      *
-     * <li>A number of complete iteration completed without any module
-     * returning {@link Module#START_OK}: a {@link PeerGroupException}
-     * is thrown. The number of complete iterations before that happens is
-     * computed as 1 + the square of the number of modules currently in the
-     * list.</li>
+     * <li>Modules keep returning {@link Module#START_AGAIN_PROGRESS} without
+     * any module starting for as many invocations as 1 + the square of the
+     * number of remaining modules passes over them would make: a
+     * {@link PeerGroupException} is thrown.</li>
      * </ul>
      *
+     * <p/>The time each module took to start is logged.
+     *
      */
     protected synchronized void initFirst(PeerGroup parent, ID assignedID, Advertisement impl)
     throws PeerGroupException {
@@ -486,7 +490,8 @@ public class StdPeerGroup extends GenericPeerGroup implements CompatibilityEquat
         // Set-up the minimal GenericPeerGroup
         super.initFirst(parent, assignedID, impl);
         try {
-            cm = new Cm(true);
+            File cmHome = new File(new File(Config.JXTA_HOME, "cm"), getPeerGroupID().getUniqueValue().toString());
+            cm = new Cm(cmHome, true);
         } catch (Exception e) {
             if (LOG.isEnabledFor(Level.ERROR)) {
                 LOG.error("Error during creation of local store", e);
@@ -585,16 +590,9 @@ public class StdPeerGroup extends GenericPeerGroup implements CompatibilityEquat
             throw new PeerGroupException("Unhandled Throwable", e);
         }
 
-        // Make a list of all the things we need to start.
-        // There is an a-priori order, but we'll iterate over the
-        // list until all where able to complete their start phase
-        // or no progress is made. Since we give to modules the opportunity
-        // to pretend that they are making progress, we need to have a
-        // safeguard: we will not iterate through the list more than N^2 + 1
-        // times without at least one module completing; N being the number
-        // of modules still in the list. That should cover the worst case
-        // scenario and still allow the process to eventually fail if it has
-        // no chance of success.
+        // Make a list of all the things we need to start. Modules are
+        // started as soon as the modules they depend upon have started;
+        // independent modules are started concurrently. See ModuleStarter.
 
         Map allStart = new HashMap(protocols.size() + initServices.size() + 1);
 
@@ -602,80 +600,43 @@ public class StdPeerGroup extends GenericPeerGroup implements CompatibilityEquat
         allStart.putAll(initServices);
         allStart.putAll(protocols);
 
-        long modulesToGo = allStart.size();
-        long maxIterations = modulesToGo * modulesToGo + 1;
-        boolean progress = true;
-
-        while (progress && (modulesToGo > 0) && (maxIterations-- > 0)) {
-
-            progress = false;
-
-            Iterator eachModule = allStart.entrySet().iterator();
+        ModuleStarter starter = new ModuleStarter(getHomeThreadGroup(), "group " + getPeerGroupID(), allStart);
 
-            while (eachModule.hasNext()) {
-                Map.Entry anEntry = (Map.Entry) eachModule.next();
+        // We keep the group monitor while the modules start. The starter
+        // waits on its own monitor.
+        starter.start();
 
-                m = (Module) anEntry.getValue();
-                int res;
-                try {
-                    res = m.startApp(null);
-                } catch (Throwable all) {
-                    if (LOG.isEnabledFor(Level.ERROR)) {
-                        LOG.error("Exception in startApp() : " + m, all);
-                    }
-                    res = -1;
-                }
-
-                switch (res) {
-                case Module.START_OK:
-                    // One done. Remove from allStart and recompute maxIteration.
-
-                    if (LOG.isEnabledFor(Level.INFO)) {
-                        LOG.info("Module started : " + m);
-                    }
-                    eachModule.remove();
-                    --modulesToGo;
-                    maxIterations = modulesToGo * modulesToGo + 1;
+        Iterator eachFailed = starter.getFailed().entrySet().iterator();
 
-                case Module.START_AGAIN_PROGRESS:
-                    progress = true;
+        while (eachFailed.hasNext()) {
+            Map.Entry anEntry = (Map.Entry) eachFailed.next();
 
-                case Module.START_AGAIN_STALLED:
-                    break;
+            m = (Module) anEntry.getValue();
 
-                default: // (negative)
-                    if (LOG.isEnabledFor(Level.WARN)) {
-                        LOG.warn("Module failed to start (" + res + ") : " + m);
-                    }
-                    eachModule.remove();
-                    --modulesToGo;
-                    maxIterations = modulesToGo * modulesToGo + 1;
-
-                    // remove the module from the service tables. we don't
-                    // know which table its in unfortunately.
-                    try {
-                        if(m instanceof Service)
-                            removeService((ModuleClassID) anEntry.getKey(), (Service) m);
-                    } catch (ServiceNotFoundException ignored) {
-                        ;
-                    }
-                    catch (ViolationException ignored) {
-                        ;
-                    }
-                    protocols.remove(anEntry.getKey());
-                    break;
-                }
+            // remove the module from the service tables. we don't
+            // know which table its in unfortunately.
+            try {
+                if(m instanceof Service)
+                    removeService((ModuleClassID) anEntry.getKey(), (Service) m);
+            } catch (ServiceNotFoundException ignored) {
+                ;
             }
+            catch (ViolationException ignored) {
+                ;
+            }
+            protocols.remove(anEntry.getKey());
         }
 
         // Uh-oh. Services co-dependency prevented them from starting.
-        if (allStart.size() > 0) {
+        Map notStarted = starter.getNotStarted();
+
+        if (notStarted.size() > 0) {
             if (LOG.isEnabledFor(Level.ERROR)) {
                 StringBuffer failed = new StringBuffer("No progress is being made in starting services. Giving up.");
 
                 failed.append("\nThe following services refused to start: ");
 
-                Iterator sequence = allStart.values().iterator();
+                Iterator sequence = notStarted.values().iterator();
 
                 while (sequence.hasNext()) {
                     failed.append("\n\t");
@@ -72,6 +72,7 @@ import net.jxta.pipe.PipeMsgListener;
 import net.jxta.protocol.PipeAdvertisement;
 
 import net.jxta.impl.util.TimeUtils;
+import net.jxta.impl.util.LockFreeQueue;
 import net.jxta.impl.util.UnbiasedQueue;
 
 /**
@@ -141,7 +142,7 @@ class InputPipeImpl implements EndpointListener, InputPipe {
         }
         // queue based inputpipe?
         if (listener == null) {
-            queue = UnbiasedQueue.synchronizedQueue(new UnbiasedQueue(QUEUESIZE, true));
+            queue = new LockFreeQueue(QUEUESIZE, true);
         }
     }
 
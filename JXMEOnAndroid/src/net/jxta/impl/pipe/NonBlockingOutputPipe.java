@@ -55,8 +55,10 @@
  */
 package net.jxta.impl.pipe;
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 
 import java.io.IOException;
@@ -76,6 +78,7 @@ import net.jxta.pipe.PipeID;
 import net.jxta.protocol.PipeAdvertisement;
 
 import net.jxta.impl.util.TimeUtils;
+import net.jxta.impl.util.LockFreeQueue;
 import net.jxta.impl.util.UnbiasedQueue;
 
 /**
@@ -162,9 +165,28 @@ class NonBlockingOutputPipe implements PipeResolver.Listener, OutputPipe, Runnab
     private int queryID = -1;
 
     /**
-     *  Queue of messages waiting to be sent.
+     *  Queue of messages waiting to be sent, as {@link QueuedMessage}s.
      */
-    private UnbiasedQueue queue = UnbiasedQueue.synchronizedQueue(new UnbiasedQueue(50, false));
+    private final UnbiasedQueue queue;
+
+    /**
+     *  Maximum number of messages sent in one pass of the worker thread.
+     */
+    private final int batchSize;
+
+    /**
+     *  Maximum number of bytes sent in one pass of the worker thread. A
+     *  batch is ended by the message which reaches the budget.
+     */
+    private final long batchBytes;
+
+    /**
+     *  Statistics of the worker thread. Guarded by the queue.
+     */
+    private long numSent = 0;
+    private long numBatches = 0;
+    private long totalQueueWait = 0;
+    private long maxQueueWait = 0;
 
     /**
      *  The set of peers to which the pipe can be resolved.
@@ -189,8 +211,16 @@ class NonBlockingOutputPipe implements PipeResolver.Listener, OutputPipe, Runnab
      *@param  pAdv      advertisement for the pipe we are supporting.
      *@param  destPeer  the peer this pipe is currently bound to.
      *@param  peers     the set of peers we allow this pipe to be bound to.
+     *@param  queueSize  the number of messages which may wait to be sent.
+     *@param  batchSize  the maximum number of messages sent in one pass.
+     *@param  batchBytes the number of bytes after which a pass ends.
      */
-    public NonBlockingOutputPipe(PeerGroup g, PipeResolver r, PipeAdvertisement pAdv, PeerID destPeer, Set peers) {
+    public NonBlockingOutputPipe(PeerGroup g, PipeResolver r, PipeAdvertisement pAdv, PeerID destPeer, Set peers,
+                                 int queueSize, int batchSize, long batchBytes) {
+
+        queue = new LockFreeQueue(queueSize, false);
+        this.batchSize = Math.max(1, batchSize);
+        this.batchBytes = batchBytes;
 
         myGroup = g;
         myPipeResolver = r;
@@ -280,6 +310,45 @@ class NonBlockingOutputPipe implements PipeResolver.Listener, OutputPipe, Runnab
         return closed;
     }
 
+    /**
+     *  @return the number of messages sent by the worker thread.
+     */
+    public long getNumSent() {
+        synchronized (queue) {
+            return numSent;
+        }
+    }
+
+    /**
+     *  @return the average number of messages sent in one pass of the worker
+     *  thread.
+     */
+    public double getAvgBatchSize() {
+        synchronized (queue) {
+            return (0 == numBatches) ? 0.0 : (double) numSent / numBatches;
+        }
+    }
+
+    /**
+     *  @return the average time in milliseconds messages waited in the queue
+     *  before being sent.
+     */
+    public double getAvgQueueWait() {
+        synchronized (queue) {
+            return (0 == numSent) ? 0.0 : (double) totalQueueWait / numSent;
+        }
+    }
+
+    /**
+     *  @return the longest time in milliseconds a message waited in the queue
+     *  before being sent.
+     */
+    public long getMaxQueueWait() {
+        synchronized (queue) {
+            return maxQueueWait;
+        }
+    }
+
     /**
      *  Convenience method for constructing a peer endpoint address from its
      *  peer id
@@ -527,6 +596,23 @@ class NonBlockingOutputPipe implements PipeResolver.Listener, OutputPipe, Runnab
                     // switch() emulation
 
                     if ((workerState.STARTVERIFY == workerstate) || (workerState.STARTMIGRATE == workerstate)) {
+                        if (workerState.STARTMIGRATE == workerstate) {
+                            // another peer may already be known to resolve the pipe.
+                            PeerID cached = myPipeResolver.getCachedResolution((PipeID) getPipeID(), getType(), resolvablePeers);
+
+                            if ((null != cached) && !cached.equals(destPeer)) {
+                                if (LOG.isEnabledFor(Level.INFO)) {
+                                    LOG.info("Pipe '" + getPipeID() + "' has migrated to cached resolution " + cached);
+                                }
+
+                                destPeer = cached;
+                                workerstate = workerState.ACQUIREMESSENGER;
+
+                                // move on to the next state.
+                                continue;
+                            }
+                        }
+
                         if (LOG.isEnabledFor(Level.DEBUG)) {
                             if (null == destPeer) {
                                 LOG.debug("Starting re-resolve for '" + getPipeID());
@@ -563,6 +649,7 @@ class NonBlockingOutputPipe implements PipeResolver.Listener, OutputPipe, Runnab
                                 if (LOG.isEnabledFor(Level.INFO)) {
                                     LOG.info("Pipe '" + getPipeID() + "' has migrated from " + destPeer);
                                 }
+                                myPipeResolver.forgetResolution((PipeID) getPipeID(), destPeer);
                                 workerstate = workerState.STARTMIGRATE;
 
                                 // move on to the next state.
@@ -634,6 +721,8 @@ class NonBlockingOutputPipe implements PipeResolver.Listener, OutputPipe, Runnab
                                     LOG.warn("Could not get messenger to : " + destPeer + ". ");
                                 }
 
+                                myPipeResolver.forgetResolution((PipeID) getPipeID(), destPeer);
+
                                 if (migrated) {
                                     // we can't migrate again, we never finished.
                                     // the last migrate!
@@ -693,16 +782,16 @@ class NonBlockingOutputPipe implements PipeResolver.Listener, OutputPipe, Runnab
 
                 // now actually send messages. We don't do this under the global sync.
                 if (workerState.SENDMESSAGES == workerstate) {
-                    Message msg = null;
+                    QueuedMessage first = null;
 
                     try {
-                        msg = (Message) queue.pop(IDLEWORKERLINGER);
+                        first = (QueuedMessage) queue.pop(IDLEWORKERLINGER);
                     } catch (InterruptedException woken) {
                         Thread.interrupted();
                         continue;
                     }
 
-                    if (null == msg) {
+                    if (null == first) {
                         synchronized (this) {
                             // before deciding to die, we need to make sure that
                             // nobody snuck something into the queue. If there
@@ -722,22 +811,74 @@ class NonBlockingOutputPipe implements PipeResolver.Listener, OutputPipe, Runnab
                         }
                     }
 
+                    // drain whatever else is already waiting, up to the batch
+                    // limits, so the worker goes through the queue once per
+                    // batch. The messenger queues the batch back to back and
+                    // its sender hands what it finds queued to the transport
+                    // as one burst, with one flush.
+                    List batch = new ArrayList(batchSize);
+                    batch.add(first);
+                    long bytes = first.msg.getByteLength();
+
+                    while ((batch.size() < batchSize) && (bytes < batchBytes)) {
+                        QueuedMessage next;
+
+                        try {
+                            // does not wait, but wakes a blocked sender.
+                            next = (QueuedMessage) queue.pop(-1);
+                        } catch (InterruptedException woken) {
+                            Thread.interrupted();
+                            break;
+                        }
+
+                        if (null == next) {
+                            break;
+                        }
+                        batch.add(next);
+                        bytes += next.msg.getByteLength();
+                    }
+
+                    long dequeuedAt = TimeUtils.timeNow();
+
                     if (LOG.isEnabledFor(Level.DEBUG)) {
-                        LOG.debug("Sending " + msg + " on " + getPipeID());
+                        LOG.debug("Sending " + batch.size() + " messages (" + bytes + " bytes) on " + getPipeID());
                     }
 
-                    if (!destMessenger.isClosed()) {
+                    int sent = 0;
+
+                    while ((sent < batch.size()) && !destMessenger.isClosed()) {
+                        Message msg = ((QueuedMessage) batch.get(sent)).msg;
+
                         try {
                             destMessenger.sendMessageB(msg, null, null);
+                            sent++;
                         } catch (IOException failed) {
                             if (LOG.isEnabledFor(Level.WARN)) {
                                 LOG.warn("Failure sending " + msg + " on " + getPipeID(), failed);
                             }
+
+                            // If the messenger closed, the message is tried
+                            // again with the rest of the batch. Otherwise it is
+                            // this message which cannot be sent.
+                            if (!destMessenger.isClosed()) {
+                                batch.remove(sent);
+                            }
                         }
                     }
 
+                    queueWaits(batch, sent, dequeuedAt);
+
                     // May be now closed due to failing to send.
                     if (destMessenger.isClosed()) {
+                        // the rest of the batch goes back at the head of the
+                        // queue, in order, for the next messenger. It keeps
+                        // its places even if senders have refilled the queue.
+                        Object[] unsent = batch.subList(sent, batch.size()).toArray();
+
+                        if ((unsent.length > 0) && !queue.unpop(unsent) && LOG.isEnabledFor(Level.WARN)) {
+                            LOG.warn("Queue closed, dropped " + unsent.length + " messages on " + getPipeID());
+                        }
+
                         synchronized (this) {
                             workerstate = workerState.ACQUIREMESSENGER;
                             destMessenger = null;
@@ -766,7 +907,37 @@ class NonBlockingOutputPipe implements PipeResolver.Listener, OutputPipe, Runnab
                         "\tqueue closed : " + queue.isClosed() +
                         "\tnumber in queue : " + queue.getCurrentInQueue() +
                         "\tnumber queued : " + queue.getNumEnqueued() +
-                        "\tnumber dequeued : " + queue.getNumDequeued());
+                        "\tnumber dequeued : " + queue.getNumDequeued() +
+                        "\n\tnumber sent : " + getNumSent() +
+                        "\taverage batch : " + getAvgBatchSize() +
+                        "\taverage queue wait : " + getAvgQueueWait() + "ms" +
+                        "\tmax queue wait : " + getMaxQueueWait() + "ms");
+            }
+        }
+    }
+
+    /**
+     *  Accounts for the time the sent messages of a batch waited in the queue.
+     *
+     *@param  batch       the batch.
+     *@param  sent        the number of messages of the batch which were sent.
+     *@param  dequeuedAt  the time the batch was taken from the queue.
+     */
+    private void queueWaits(List batch, int sent, long dequeuedAt) {
+        if (0 == sent) {
+            return;
+        }
+
+        synchronized (queue) {
+            numBatches++;
+            for (int eachMsg = 0; eachMsg < sent; eachMsg++) {
+                long waited = TimeUtils.toRelativeTimeMillis(dequeuedAt, ((QueuedMessage) batch.get(eachMsg)).queuedAt);
+
+                numSent++;
+                totalQueueWait += waited;
+                if (waited > maxQueueWait) {
+                    maxQueueWait = waited;
+                }
             }
         }
     }
@@ -784,10 +955,11 @@ class NonBlockingOutputPipe implements PipeResolver.Listener, OutputPipe, Runnab
         }
 
         boolean pushed = false;
+        QueuedMessage queued = new QueuedMessage(msg);
 
         while (!queue.isClosed()) {
             try {
-                pushed = queue.push(msg, 250 * TimeUtils.AMILLISECOND);
+                pushed = queue.push(queued, 250 * TimeUtils.AMILLISECOND);
                 break;
             } catch (InterruptedException woken) {
                 Thread.interrupted();
@@ -829,6 +1001,19 @@ class NonBlockingOutputPipe implements PipeResolver.Listener, OutputPipe, Runnab
         }
     }
 
+    /**
+     *  A message waiting in the queue, with the time it was queued at.
+     */
+    private static class QueuedMessage {
+        final Message msg;
+        final long queuedAt;
+
+        QueuedMessage(Message msg) {
+            this.msg = msg;
+            this.queuedAt = TimeUtils.timeNow();
+        }
+    }
+
     /**
      *  Tracks the state of our worker thread.
      */
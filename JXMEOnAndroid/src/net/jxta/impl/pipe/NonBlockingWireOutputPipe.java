@@ -74,6 +74,7 @@ import net.jxta.pipe.OutputPipe;
 import net.jxta.protocol.PipeAdvertisement;
 
 import net.jxta.impl.util.TimeUtils;
+import net.jxta.impl.util.LockFreeQueue;
 import net.jxta.impl.util.UnbiasedQueue;
 
 /**
@@ -118,7 +119,7 @@ class NonBlockingWireOutputPipe implements OutputPipe, Runnable {
     /**
      *  Queue of messages waiting to be sent.
      */
-    private UnbiasedQueue queue = UnbiasedQueue.synchronizedQueue(new UnbiasedQueue(50, false));
+    private UnbiasedQueue queue = new LockFreeQueue(50, false);
 
     /**
      *  The worker thread which actually sends messages on the pipe
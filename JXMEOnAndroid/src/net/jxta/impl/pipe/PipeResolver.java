@@ -60,6 +60,7 @@ import java.io.Reader;
 import java.io.StringReader;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.EventListener;
 import java.util.EventObject;
 import java.util.HashMap;
@@ -83,6 +84,7 @@ import net.jxta.impl.cm.Srdi.SrdiInterface;
 import net.jxta.impl.protocol.PipeResolverMsg;
 import net.jxta.impl.protocol.ResolverQuery;
 import net.jxta.impl.protocol.SrdiMessageImpl;
+import net.jxta.impl.util.Cache;
 import net.jxta.impl.util.TimeUtils;
 import net.jxta.membership.MembershipService;
 import net.jxta.peer.PeerID;
@@ -152,7 +154,62 @@ class PipeResolver implements SrdiInterface, QueryHandler, PipeRegistrar {
      *
      */
     private Map localInputPipes = new HashMap();
-    private Map remoteInputPipes = new HashMap();
+
+    /**
+     *  Remote resolutions of pipes, most recently used first. Guarded by this.
+     *  <p/>
+     *
+     *  <ul>
+     *    <li> Keys are {@link net.jxta.pipe.PipeID}s</li>
+     *    <li> Values are {@link java.util.Map}.
+     *    <ul>
+     *      <li> Keys are {@link net.jxta.peer.PeerID}s</li>
+     *      <li> Values are {@link Entry}.</li>
+     *    </ul>
+     *    </li>
+     *  </ul>
+     *
+     */
+    private final Cache remoteInputPipes;
+
+    /**
+     *  The maximum number of queries whose send time we remember.
+     */
+    private final static int MAX_PENDING_QUERIES = 256;
+
+    /**
+     *  Queries we sent and have not yet received an answer for. Guarded by
+     *  this.
+     *
+     *  <ul>
+     *    <li> Keys are query ids as {@link java.lang.Integer}s</li>
+     *    <li> Values are the time the query was first sent as {@link java.lang.Long}s</li>
+     *  </ul>
+     *
+     */
+    private final Cache pendingQueries = new Cache(MAX_PENDING_QUERIES, null);
+
+    /**
+     *  Queries sent only to revalidate a cached resolution. Their answers
+     *  refresh the cache but are not passed to listeners. Guarded by this.
+     *
+     *  <ul>
+     *    <li> Keys are query ids as {@link java.lang.Integer}s</li>
+     *    <li> Values are {@link net.jxta.pipe.PipeID}s</li>
+     *  </ul>
+     *
+     */
+    private final Cache revalidations = new Cache(MAX_PENDING_QUERIES, null);
+
+    /**
+     *  Statistics of the resolution cache and of resolution latency. Guarded
+     *  by this.
+     */
+    private long cacheHits = 0;
+    private long cacheMisses = 0;
+    private long numResolved = 0;
+    private long totalResolveTime = 0;
+    private long maxResolveTime = 0;
 
     /**
      *  Membership Service we will use
@@ -192,9 +249,12 @@ class PipeResolver implements SrdiInterface, QueryHandler, PipeRegistrar {
      *  Constructor for the PipeResolver object
      *
      *@param  g  group for which this PipeResolver operates in
+     *@param  resolutionCacheSize  the number of pipes for which remote
+     *      resolutions are kept.
      */
-    PipeResolver(PeerGroup group) {
+    PipeResolver(PeerGroup group, int resolutionCacheSize) {
 
+        remoteInputPipes = new Cache(Math.max(1, resolutionCacheSize), null);
         myGroup = group;
         resolver = myGroup.getResolverService();
         membership = myGroup.getMembershipService();
@@ -599,6 +659,24 @@ class PipeResolver implements SrdiInterface, QueryHandler, PipeRegistrar {
         }
 
         String ipId = pipeResp.getPipeID().toString();
+        PipeID pipeID = (PipeID) pipeResp.getPipeID();
+        Integer queryKey = new Integer(response.getQueryId());
+        boolean revalidation;
+
+        synchronized (this) {
+            revalidation = (null != revalidations.remove(queryKey));
+
+            Long sentAt = (Long) pendingQueries.remove(queryKey);
+
+            if ((null != sentAt) && pipeResp.isFound()) {
+                long resolveTime = TimeUtils.toRelativeTimeMillis(TimeUtils.timeNow(), sentAt.longValue());
+
+                numResolved++;
+                totalResolveTime += resolveTime;
+                maxResolveTime = Math.max(maxResolveTime, resolveTime);
+            }
+        }
+
         Set peerRsps = pipeResp.getPeerIDs();
         Iterator eachResp = peerRsps.iterator();
 
@@ -611,16 +689,173 @@ class PipeResolver implements SrdiInterface, QueryHandler, PipeRegistrar {
                     LOG.debug("NACK for pipe '" + ipId + "' from peer " + peer);
                 }
                 // We have received a NACK. Remove that entry.
-                remoteInputPipes.remove(pipeResp.getPipeID());
+                forgetResolution(pipeID, peer);
             } else {
                 //FIXME hamada revisit pipe expiry
-                remoteInputPipes.put(pipeResp.getPipeID(), new Entry(peer, (PipeServiceImpl.VERIFYINTERVAL / 2), pipeResp));
+                Entry entry = new Entry(peer, TimeUtils.toAbsoluteTimeMillis(PipeServiceImpl.VERIFYINTERVAL / 2), pipeResp);
+
+                synchronized (this) {
+                    Map bindings = (Map) remoteInputPipes.get(pipeID);
+
+                    if (null == bindings) {
+                        bindings = new HashMap();
+                        remoteInputPipes.put(pipeID, bindings);
+                    }
+                    bindings.put(peer, entry);
+                }
+            }
+
+            if (revalidation) {
+                if (LOG.isEnabledFor(Level.DEBUG)) {
+                    LOG.debug("Revalidated resolution of pipe '" + ipId + "' at peer " + peer + " : " + pipeResp.isFound());
+                }
+                continue;
             }
+
             // call listener for pipeid
-            callListener(response.getQueryId(), (PipeID) pipeResp.getPipeID(), pipeResp.getPipeType(), peer, !pipeResp.isFound());
+            callListener(response.getQueryId(), pipeID, pipeResp.getPipeType(), peer, !pipeResp.isFound());
         }
     }
 
+    /**
+     *  Returns a peer at which the pipe was recently resolved, if any. Expired
+     *  resolutions are discarded along the way.
+     *
+     *@param  pipeID           the pipe.
+     *@param  type             the type the pipe must have.
+     *@param  acceptablePeers  the peers at which we would accept the pipe to
+     *      be resolved. Empty set means all peers are acceptable.
+     *@return                  the peer with the freshest resolution or null if
+     *      there is no fresh resolution.
+     */
+    synchronized PeerID getCachedResolution(PipeID pipeID, String type, Set acceptablePeers) {
+
+        Map bindings = (Map) remoteInputPipes.get(pipeID);
+        Entry freshest = null;
+
+        if (null != bindings) {
+            Iterator eachBinding = bindings.values().iterator();
+
+            while (eachBinding.hasNext()) {
+                Entry entry = (Entry) eachBinding.next();
+
+                if (entry.isExpired()) {
+                    eachBinding.remove();
+                    continue;
+                }
+
+                if (!type.equals(entry.response.getPipeType())) {
+                    continue;
+                }
+
+                if (!acceptablePeers.isEmpty() && !acceptablePeers.contains(entry.peerID)) {
+                    continue;
+                }
+
+                if ((null == freshest) || (entry.expiration > freshest.expiration)) {
+                    freshest = entry;
+                }
+            }
+
+            if (bindings.isEmpty()) {
+                remoteInputPipes.remove(pipeID);
+            }
+        }
+
+        if (null == freshest) {
+            cacheMisses++;
+            return null;
+        }
+
+        cacheHits++;
+
+        if (LOG.isEnabledFor(Level.DEBUG)) {
+            LOG.debug("Cached resolution of pipe " + pipeID + " at peer " + freshest.peerID);
+        }
+        return freshest.peerID;
+    }
+
+    /**
+     *  Forget the resolution of a pipe at a peer.
+     *
+     *@param  pipeID  the pipe.
+     *@param  peer    the peer which no longer resolves the pipe.
+     */
+    synchronized void forgetResolution(PipeID pipeID, PeerID peer) {
+
+        Map bindings = (Map) remoteInputPipes.get(pipeID);
+
+        if (null != bindings) {
+            bindings.remove(peer);
+
+            if (bindings.isEmpty()) {
+                remoteInputPipes.remove(pipeID);
+            }
+        }
+    }
+
+    /**
+     *  Re-query the peer at which a pipe was resolved from the cache. The
+     *  answer refreshes or removes the cached resolution and is not passed to
+     *  the pipe resolver listeners.
+     *
+     *@param  adv   the advertisement of the pipe.
+     *@param  peer  the peer at which the pipe was resolved.
+     */
+    void revalidate(PipeAdvertisement adv, PeerID peer) {
+
+        int queryID = getNextQueryID();
+
+        synchronized (this) {
+            revalidations.put(new Integer(queryID), adv.getPipeID());
+        }
+        sendPipeQuery(adv, Collections.singleton(peer), queryID);
+    }
+
+    /**
+     *  @return the number of pipes for which remote resolutions are cached.
+     */
+    synchronized int getResolutionCacheSize() {
+        return remoteInputPipes.size();
+    }
+
+    /**
+     *  @return the number of times a fresh resolution was found in the cache.
+     */
+    synchronized long getResolutionCacheHits() {
+        return cacheHits;
+    }
+
+    /**
+     *  @return the number of times no fresh resolution was found in the cache.
+     */
+    synchronized long getResolutionCacheMisses() {
+        return cacheMisses;
+    }
+
+    /**
+     *  @return the number of queries which received a positive answer.
+     */
+    synchronized long getNumResolved() {
+        return numResolved;
+    }
+
+    /**
+     *  @return the average time in milliseconds between sending a query and
+     *  receiving its first positive answer.
+     */
+    synchronized double getAvgResolveTime() {
+        return (0 == numResolved) ? 0.0 : (double) totalResolveTime / numResolved;
+    }
+
+    /**
+     *  @return the longest time in milliseconds between sending a query and
+     *  receiving its first positive answer.
+     */
+    synchronized long getMaxResolveTime() {
+        return maxResolveTime;
+    }
+
     /**
      *  {@inheritDoc}
      *
@@ -831,6 +1066,15 @@ class PipeResolver implements SrdiInterface, QueryHandler, PipeRegistrar {
         query.setSrc(myGroup.getPeerID().toString());
         query.setQuery(asDoc.toString());
 
+        synchronized (this) {
+            // Resolution time is measured from the first copy of a query.
+            Integer queryKey = new Integer(queryID);
+
+            if (null == pendingQueries.get(queryKey)) {
+                pendingQueries.put(queryKey, new Long(TimeUtils.timeNow()));
+            }
+        }
+
         if (targetPeers.isEmpty()) {
             // we have no idea, walk the tree
             resolver.sendQuery(null, query);
@@ -849,6 +1093,11 @@ class PipeResolver implements SrdiInterface, QueryHandler, PipeRegistrar {
      */
     void stop() {
 
+        if (LOG.isEnabledFor(Level.INFO)) {
+            LOG.info("Pipe resolution cache : " + getResolutionCacheHits() + " hits, " + getResolutionCacheMisses() + " misses. " +
+                     getNumResolved() + " queries answered in " + getAvgResolveTime() + "ms on average, " + getMaxResolveTime() + "ms at most.");
+        }
+
         resolver.unregisterHandler(PipeResolverName);
         credential = null;
         credentialDoc = null;
@@ -877,6 +1126,11 @@ class PipeResolver implements SrdiInterface, QueryHandler, PipeRegistrar {
         srdi = null;
         srdiThread = null;
         localInputPipes.clear();
+        synchronized (this) {
+            remoteInputPipes.clear();
+            pendingQueries.clear();
+            revalidations.clear();
+        }
     }
 
     /**
@@ -981,7 +1235,8 @@ class PipeResolver implements SrdiInterface, QueryHandler, PipeRegistrar {
          *  Peer Pointer reference
          *
          *@param  peerid      PeerID for this entry
-         *@param  expiration  the expiration for this entry
+         *@param  expiration  the absolute time in milliseconds at which this
+         *      entry expires
          */
         public Entry(PeerID peerID, long expiration, PipeResolverMessage response) {
             this.peerID = peerID;
@@ -989,6 +1244,13 @@ class PipeResolver implements SrdiInterface, QueryHandler, PipeRegistrar {
             this.response = response;
         }
 
+        /**
+         *  @return true if this entry has expired.
+         */
+        public boolean isExpired() {
+            return TimeUtils.toRelativeTimeMillis(expiration, TimeUtils.timeNow()) <= 0;
+        }
+
         /**
         *  {@inheritDoc}
          */
@@ -118,6 +118,38 @@ public class PipeServiceImpl implements PipeService, PipeResolver.Listener {
      */
     final static long VERIFYINTERVAL = 20 * TimeUtils.AMINUTE;
 
+    /**
+     *  Default number of messages which may wait to be sent on an output pipe.
+     */
+    private final static int DEFAULT_QUEUE_SIZE = 50;
+
+    /**
+     *  Default maximum number of messages an output pipe sends in one pass.
+     */
+    private final static int DEFAULT_BATCH_SIZE = 16;
+
+    /**
+     *  Default number of bytes after which an output pipe ends a pass.
+     */
+    private final static long DEFAULT_BATCH_BYTES = 64 * 1024;
+
+    /**
+     *  Default number of pipes for which remote resolutions are cached.
+     */
+    private final static int DEFAULT_RESOLUTION_CACHE_SIZE = 256;
+
+    /**
+     *  Configuration of the output pipes we create.
+     */
+    private int outputQueueSize = DEFAULT_QUEUE_SIZE;
+    private int outputBatchSize = DEFAULT_BATCH_SIZE;
+    private long outputBatchBytes = DEFAULT_BATCH_BYTES;
+
+    /**
+     *  Number of pipes for which remote resolutions are cached.
+     */
+    private int resolutionCacheSize = DEFAULT_RESOLUTION_CACHE_SIZE;
+
     /**
      *  the impl advertisement for this impl.
      */
@@ -346,19 +378,34 @@ public class PipeServiceImpl implements PipeService, PipeResolver.Listener {
 
             // need to create the listener first
             pipeResolver.addListener(pipeId, this, PipeResolver.ANYQUERY);
-            int queryid = pipeResolver.sendPipeQuery(pipeAdv, resolvablePeers, PipeResolver.ANYQUERY);
+
             // look locally for the pipe
+            InputPipe local = null;
             if (resolvablePeers.isEmpty() || resolvablePeers.contains(myGroup.getPeerID())) {
-                InputPipe local = pipeResolver.findLocal(pipeId);
-
-                // if we have a local instance, make sure the local instance is of the same type.
-                if (null != local) {
-                    if (local.getType().equals(pipeAdv.getType())) {
-                        pipeResolver.callListener(queryid, pipeId, local.getType(), myGroup.getPeerID(), false);
-                    } else {
-                        if (LOG.isEnabledFor(Level.WARN)) {
-                            LOG.warn("rejecting local pipe (" + local.getType() + ") because type is not (" + pipeAdv.getType() + ")");
-                        }
+                local = pipeResolver.findLocal(pipeId);
+            }
+
+            if (null == local) {
+                // A fresh remote resolution satisfies the request right away.
+                // It is revalidated in the background.
+                PeerID cached = pipeResolver.getCachedResolution(pipeId, type, resolvablePeers);
+
+                if (null != cached) {
+                    pipeResolver.callListener(PipeResolver.ANYQUERY, pipeId, type, cached, false);
+                    pipeResolver.revalidate(pipeAdv, cached);
+                    return;
+                }
+            }
+
+            int queryid = pipeResolver.sendPipeQuery(pipeAdv, resolvablePeers, PipeResolver.ANYQUERY);
+
+            // if we have a local instance, make sure the local instance is of the same type.
+            if (null != local) {
+                if (local.getType().equals(pipeAdv.getType())) {
+                    pipeResolver.callListener(queryid, pipeId, local.getType(), myGroup.getPeerID(), false);
+                } else {
+                    if (LOG.isEnabledFor(Level.WARN)) {
+                        LOG.warn("rejecting local pipe (" + local.getType() + ") because type is not (" + pipeAdv.getType() + ")");
                     }
                 }
             }
@@ -371,6 +418,54 @@ public class PipeServiceImpl implements PipeService, PipeResolver.Listener {
         }
     }
 
+    /**
+     *  @return the number of pipes for which remote resolutions are cached.
+     */
+    public int getResolutionCacheSize() {
+        PipeResolver resolver = pipeResolver;
+
+        return (null == resolver) ? 0 : resolver.getResolutionCacheSize();
+    }
+
+    /**
+     *  @return the number of pipe resolutions satisfied from the cache.
+     */
+    public long getResolutionCacheHits() {
+        PipeResolver resolver = pipeResolver;
+
+        return (null == resolver) ? 0 : resolver.getResolutionCacheHits();
+    }
+
+    /**
+     *  @return the number of pipe resolutions which found no fresh binding
+     *  in the cache.
+     */
+    public long getResolutionCacheMisses() {
+        PipeResolver resolver = pipeResolver;
+
+        return (null == resolver) ? 0 : resolver.getResolutionCacheMisses();
+    }
+
+    /**
+     *  @return the average time in milliseconds between sending a pipe query
+     *  and receiving its first positive answer.
+     */
+    public double getAvgResolveTime() {
+        PipeResolver resolver = pipeResolver;
+
+        return (null == resolver) ? 0.0 : resolver.getAvgResolveTime();
+    }
+
+    /**
+     *  @return the longest time in milliseconds between sending a pipe query
+     *  and receiving its first positive answer.
+     */
+    public long getMaxResolveTime() {
+        PipeResolver resolver = pipeResolver;
+
+        return (null == resolver) ? 0 : resolver.getMaxResolveTime();
+    }
+
     /**
      *  {@inheritDoc}
      *
@@ -399,6 +494,38 @@ public class PipeServiceImpl implements PipeService, PipeResolver.Listener {
         implAdvertisement = (ModuleImplAdvertisement) impl;
         myGroup = pg;
 
+        try {
+            String queueSizeStr = System.getProperty("net.jxta.impl.pipe.queueSize");
+
+            if (queueSizeStr != null) {
+                outputQueueSize = Math.max(1, Integer.parseInt(queueSizeStr));
+            }
+
+            String batchSizeStr = System.getProperty("net.jxta.impl.pipe.batchSize");
+
+            if (batchSizeStr != null) {
+                outputBatchSize = Math.max(1, Integer.parseInt(batchSizeStr));
+            }
+
+            String batchBytesStr = System.getProperty("net.jxta.impl.pipe.batchBytes");
+
+            if (batchBytesStr != null) {
+                outputBatchBytes = Math.max(0, Long.parseLong(batchBytesStr));
+            }
+
+            String resolutionCacheSizeStr = System.getProperty("net.jxta.impl.pipe.resolutionCacheSize");
+
+            if (resolutionCacheSizeStr != null) {
+                resolutionCacheSize = Math.max(1, Integer.parseInt(resolutionCacheSizeStr));
+            }
+        } catch (Exception e) {
+            if (LOG.isEnabledFor(Level.WARN)) {
+                LOG.warn("Could not parse system property: net.jxta.impl.pipe.*");
+            }
+
+            // Keep the defaults
+        }
+
         if (LOG.isEnabledFor(Level.INFO)) {
             StringBuffer configInfo = new StringBuffer("Configuring Pipe Service : " + assignedID);
 
@@ -415,6 +542,9 @@ public class PipeServiceImpl implements PipeService, PipeResolver.Listener {
 
             configInfo.append("\n\tConfiguration :");
             configInfo.append("\n\t\tVerify Interval : " + VERIFYINTERVAL + "ms");
+            configInfo.append("\n\t\tOutput Queue Size : " + outputQueueSize);
+            configInfo.append("\n\t\tOutput Batch : " + outputBatchSize + " messages, " + outputBatchBytes + " bytes");
+            configInfo.append("\n\t\tResolution Cache Size : " + resolutionCacheSize);
 
             LOG.info(configInfo);
         }
@@ -449,7 +579,8 @@ public class PipeServiceImpl implements PipeService, PipeResolver.Listener {
                 String type = pl.adv.getType();
                 OutputPipe op = null;
                 if (PipeService.UnicastType.equals(type)) {
-                    op = new NonBlockingOutputPipe(myGroup, pipeResolver, pl.adv, peerID, pl.peers);
+                    op = new NonBlockingOutputPipe(myGroup, pipeResolver, pl.adv, peerID, pl.peers,
+                                                   outputQueueSize, outputBatchSize, outputBatchBytes);
                 } else {
                     if (LOG.isEnabledFor(Level.WARN)) {
                         LOG.warn("Could not create output pipe of type '" + type + "'. Discarding.");
@@ -541,7 +672,7 @@ public class PipeServiceImpl implements PipeService, PipeResolver.Listener {
         }
 
         // create our resolver handler; it will register itself w/ the resolver.
-        pipeResolver = new PipeResolver(myGroup);
+        pipeResolver = new PipeResolver(myGroup, resolutionCacheSize);
         needed = myGroup.getRendezVousService();
         if (null == needed) {
             if (LOG.isEnabledFor(Level.WARN)) {
@@ -94,6 +94,8 @@ public class TCPAdv extends TransportAdvertisement {
     private static final String MULTICAST_OFF_TAG = "MulticastOff";
     private static final String FlagsTag = "Flags";
     private static final String PublicAddressOnlyAttr = "PublicAddressOnly";
+    private static final String UseSelectorAttr = "UseSelector";
+    private static final String CompressAttr = "Compress";
     
     private String configMode = CONFIGMODES[0];
     private String interfaceAddress = null;
@@ -108,6 +110,8 @@ public class TCPAdv extends TransportAdvertisement {
     private boolean serverEnabled = true;
     private boolean multicastEnabled = true;
     private boolean publicAddressOnly = false;
+    private boolean useSelector = false;
+    private boolean compress = false;
     
     /**
      *  Our instantiator
@@ -194,6 +198,8 @@ public class TCPAdv extends TransportAdvertisement {
             String options = attr.getValue();
 
             publicAddressOnly = (options.indexOf(PublicAddressOnlyAttr) != -1);
+            useSelector = (options.indexOf(UseSelectorAttr) != -1);
+            compress = (options.indexOf(CompressAttr) != -1);
         }
         
         Enumeration elements = doc.getChildren();
@@ -577,6 +583,48 @@ public class TCPAdv extends TransportAdvertisement {
     public void setPublicAddressOnly(boolean only) {
         publicAddressOnly = only;
     }
+
+    /**
+     * Returns whether connections are served by a small pool of selector
+     * threads rather than by a thread per connection.
+     *
+     * @return true if selectors are used
+     */
+    public boolean getUseSelector() {
+        return useSelector;
+    }
+
+    /**
+     * Sets whether connections are served by a small pool of selector
+     * threads rather than by a thread per connection.
+     *
+     * @param use true to use selectors
+     */
+    public void setUseSelector(boolean use) {
+        useSelector = use;
+    }
+
+    /**
+     * Returns whether compression of messages is offered to the peers we
+     * connect with. Messages are only compressed when the other peer offers
+     * compression too.
+     *
+     * @return true if compression is offered
+     */
+    public boolean getCompress() {
+        return compress;
+    }
+
+    /**
+     * Sets whether compression of messages is offered to the peers we
+     * connect with. Messages are only compressed when the other peer offers
+     * compression too.
+     *
+     * @param compress true to offer compression
+     */
+    public void setCompress(boolean compress) {
+        this.compress = compress;
+    }
     
     /**
      *  {@inheritDoc}
@@ -736,9 +784,28 @@ public class TCPAdv extends TransportAdvertisement {
         }       
         
         if (adv instanceof Attributable) {
-            // Only one flag for now. Easy.
+            StringBuffer flags = new StringBuffer();
+
             if (publicAddressOnly) {
-                ((Attributable) adv).addAttribute(FlagsTag, PublicAddressOnlyAttr);
+                flags.append(PublicAddressOnlyAttr);
+            }
+
+            if (useSelector) {
+                if (flags.length() > 0) {
+                    flags.append(' ');
+                }
+                flags.append(UseSelectorAttr);
+            }
+
+            if (compress) {
+                if (flags.length() > 0) {
+                    flags.append(' ');
+                }
+                flags.append(CompressAttr);
+            }
+
+            if (flags.length() > 0) {
+                ((Attributable) adv).addAttribute(FlagsTag, flags.toString());
             }
         }
         
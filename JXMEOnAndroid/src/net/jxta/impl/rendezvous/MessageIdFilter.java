@@ -0,0 +1,220 @@
+/*
+ *
+ * $Id$
+ *
+ * Copyright (c) 2001 Sun Microsystems, Inc.  All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *
+ * 3. The end-user documentation included with the redistribution,
+ *    if any, must include the following acknowledgment:
+ *       "This product includes software developed by the
+ *       Sun Microsystems, Inc. for Project JXTA."
+ *    Alternately, this acknowledgment may appear in the software itself,
+ *    if and wherever such third-party acknowledgments normally appear.
+ *
+ * 4. The names "Sun", "Sun Microsystems, Inc.", "JXTA" and "Project JXTA"
+ *    must not be used to endorse or promote products derived from this
+ *    software without prior written permission. For written
+ *    permission, please contact Project JXTA at http://www.jxta.org.
+ *
+ * 5. Products derived from this software may not be called "JXTA",
+ *    nor may "JXTA" appear in their name, without prior written
+ *    permission of Sun.
+ *
+ * THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED.  IN NO EVENT SHALL SUN MICROSYSTEMS OR
+ * ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ * USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ * OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ *
+ * ====================================================================
+ *
+ * This software consists of voluntary contributions made by many
+ * individuals on behalf of Project JXTA.  For more
+ * information on Project JXTA, please see
+ * <http://www.jxta.org/>.
+ *
+ * This license is based on the BSD license adopted by the Apache Foundation.
+ */
+package net.jxta.impl.rendezvous;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import net.jxta.impl.id.UUID.UUID;
+import net.jxta.impl.util.TimeUtils;
+
+/**
+ * Remembers the ids of recently propagated messages so that duplicates can
+ * be discarded.
+ *
+ * <p/>The ids are kept in a ring in order of arrival and in a hash set for
+ * lookup, so both recording and checking take constant time. An id is
+ * forgotten once it is older than the lifetime or when the ring is full and
+ * room is needed for a newer id. The filter is exact, an id which is still
+ * remembered is never mistaken for another. An id forgotten early because
+ * the ring was full is counted as an overflow since a duplicate of it would
+ * no longer be detected; a steady overflow count means the window is too
+ * small for the propagation rate.
+ */
+final class MessageIdFilter {
+
+    /**
+     * The ids in order of arrival.
+     */
+    private final UUID[] ids;
+
+    /**
+     * The time at which each id in {@link #ids} was recorded.
+     */
+    private final long[] recorded;
+
+    /**
+     * The ids in the ring.
+     */
+    private final Set index;
+
+    /**
+     * How long ids are remembered in relative milliseconds.
+     */
+    private final long lifetime;
+
+    /**
+     * The position of the oldest id in the ring.
+     */
+    private int oldest = 0;
+
+    /**
+     * The number of ids in the ring.
+     */
+    private int count = 0;
+
+    private long checked = 0;
+    private long duplicates = 0;
+    private long overflows = 0;
+
+    /**
+     * @param capacity the maximum number of ids remembered.
+     * @param lifetime how long ids are remembered in relative milliseconds.
+     */
+    MessageIdFilter(int capacity, long lifetime) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+
+        ids = new UUID[capacity];
+        recorded = new long[capacity];
+        index = new HashSet(capacity * 2);
+        this.lifetime = lifetime;
+    }
+
+    /**
+     * Records an id unless it is already remembered.
+     *
+     * @param id the message id.
+     * @return true if the id was recorded, false if it is a duplicate.
+     */
+    synchronized boolean add(UUID id) {
+        long now = TimeUtils.timeNow();
+
+        expire(now);
+        checked++;
+
+        if (index.contains(id)) {
+            duplicates++;
+            return false;
+        }
+
+        if (count == ids.length) {
+            if (recorded[oldest] >= now - lifetime) {
+                overflows++;
+            }
+            forgetOldest();
+        }
+
+        int slot = (oldest + count) % ids.length;
+
+        ids[slot] = id;
+        recorded[slot] = now;
+        index.add(id);
+        count++;
+
+        return true;
+    }
+
+    /**
+     * Returns true if the id is remembered.
+     *
+     * @param id the message id.
+     * @return true if the id is remembered.
+     */
+    synchronized boolean contains(UUID id) {
+        expire(TimeUtils.timeNow());
+
+        return index.contains(id);
+    }
+
+    /**
+     * Forgets all ids.
+     */
+    synchronized void clear() {
+        while (count > 0) {
+            forgetOldest();
+        }
+    }
+
+    private void expire(long now) {
+        long oldestAllowed = now - lifetime;
+
+        while ((count > 0) && (recorded[oldest] < oldestAllowed)) {
+            forgetOldest();
+        }
+    }
+
+    private void forgetOldest() {
+        index.remove(ids[oldest]);
+        ids[oldest] = null;
+        oldest = (oldest + 1) % ids.length;
+        count--;
+    }
+
+    /**
+     * Returns the number of ids checked by {@link #add(UUID)}.
+     */
+    synchronized long getCheckedCount() {
+        return checked;
+    }
+
+    /**
+     * Returns the number of duplicates found by {@link #add(UUID)}.
+     */
+    synchronized long getDuplicateCount() {
+        return duplicates;
+    }
+
+    /**
+     * Returns the number of ids forgotten before their lifetime had passed
+     * to make room for newer ids.
+     */
+    synchronized long getOverflowCount() {
+        return overflows;
+    }
+}
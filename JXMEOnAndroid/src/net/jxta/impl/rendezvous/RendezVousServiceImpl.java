@@ -170,9 +170,16 @@ public class RendezVousServiceImpl implements RendezVousService, EndpointListene
      */
     protected final static int MAX_INFRA_TTL = 2;
     /**
-     *  Description of the Field
+     *  Default number of propagated message ids remembered for detecting
+     *  duplicates.
+     */
+    protected final static int MAX_MSGIDS = 4096;
+
+    /**
+     *  Default time in relative milliseconds for which propagated message ids
+     *  are remembered.
      */
-    protected final static int MAX_MSGIDS = 100;
+    protected final static long MSGID_LIFETIME = 10 * TimeUtils.AMINUTE;
 
     /**
      *  Number of rendezvous we will try to connect to.
@@ -230,7 +237,6 @@ public class RendezVousServiceImpl implements RendezVousService, EndpointListene
     private transient PeerGroup group = null;
     private transient ModuleImplAdvertisement implAdvertisement = null;
     private transient long maxChoiceDelay = ADDEVENT_DELAY;
-    private transient int messagesReceived;
 
     /**
      *  Once choice delay has reached zero, any ADD event could trigger a
@@ -251,7 +257,10 @@ public class RendezVousServiceImpl implements RendezVousService, EndpointListene
      */
     private transient long monitorStartAt = -1;
 
-    private transient final List msgIds = new ArrayList(MAX_MSGIDS);
+    /**
+     *  Ids of recently propagated messages.
+     */
+    private transient MessageIdFilter msgIds = null;
 
     /**
      *  Description of the Field
@@ -302,19 +311,12 @@ public class RendezVousServiceImpl implements RendezVousService, EndpointListene
      */
     public boolean addMsgId(UUID id) {
 
-        synchronized (msgIds) {
-            if (isMsgIdRecorded(id)) {
-                // Already there. Nothing to do
-                return false;
-            }
-
-            if (msgIds.size() < MAX_MSGIDS) {
-                msgIds.add(id);
-            } else {
-                msgIds.set((messagesReceived % MAX_MSGIDS), id);
+        if (!msgIds.add(id)) {
+            if (LOG.isEnabledFor(Level.DEBUG)) {
+                LOG.debug("Duplicate Message ID : " + id);
             }
-
-            messagesReceived++;
+            // Already there. Nothing to do
+            return false;
         }
 
         if (LOG.isEnabledFor(Level.DEBUG)) {
@@ -911,6 +913,31 @@ public class RendezVousServiceImpl implements RendezVousService, EndpointListene
             config = RdvConfigAdv.RendezVousConfiguration.AD_HOC;
         }
 
+        int msgIdWindow = MAX_MSGIDS;
+        long msgIdLifetime = MSGID_LIFETIME;
+
+        try {
+            String msgIdWindowStr = System.getProperty("net.jxta.impl.rendezvous.msgIdWindow");
+
+            if (msgIdWindowStr != null) {
+                msgIdWindow = Math.max(1, Integer.parseInt(msgIdWindowStr));
+            }
+
+            String msgIdLifetimeStr = System.getProperty("net.jxta.impl.rendezvous.msgIdLifetime");
+
+            if (msgIdLifetimeStr != null) {
+                msgIdLifetime = Math.max(0, Long.parseLong(msgIdLifetimeStr));
+            }
+        } catch (Exception e) {
+            if (LOG.isEnabledFor(Level.WARN)) {
+                LOG.warn("Could not parse system property: net.jxta.impl.rendezvous.*");
+            }
+
+            // Keep the defaults
+        }
+
+        msgIds = new MessageIdFilter(msgIdWindow, msgIdLifetime);
+
         if (LOG.isEnabledFor(Level.INFO)) {
             StringBuffer configInfo = new StringBuffer("Configuring RendezVous Service : " + assignedID);
 
@@ -935,6 +962,7 @@ public class RendezVousServiceImpl implements RendezVousService, EndpointListene
             }
             configInfo.append("\n\t\tRendezVous : " + config);
             configInfo.append("\n\t\tAuto RendezVous : " + autoRendezvous);
+            configInfo.append("\n\t\tMessage ID Window : " + msgIdWindow + " ids / " + msgIdLifetime + " ms");
             //configInfo.append("\n\t\tAuto-RendezVous Reconfig Interval : " + rdv_watchdog_interval);
 
             LOG.info(configInfo);
@@ -953,6 +981,28 @@ public class RendezVousServiceImpl implements RendezVousService, EndpointListene
     }
 
 
+    /**
+     *  Returns the number of propagated messages discarded as duplicates.
+     *
+     *@return    the number of duplicates.
+     */
+    public long getDuplicateMessageCount() {
+        return (null == msgIds) ? 0 : msgIds.getDuplicateCount();
+    }
+
+
+    /**
+     *  Returns the number of message ids forgotten before their lifetime had
+     *  passed because the id window was full. Duplicates of these messages
+     *  would not have been detected.
+     *
+     *@return    the number of ids forgotten early.
+     */
+    public long getMessageIdOverflowCount() {
+        return (null == msgIds) ? 0 : msgIds.getOverflowCount();
+    }
+
+
     /**
      *  Gets the msgIdRecorded attribute of the RendezVousServiceImpl object
      *
@@ -961,11 +1011,7 @@ public class RendezVousServiceImpl implements RendezVousService, EndpointListene
      */
     public boolean isMsgIdRecorded(UUID id) {
 
-        boolean found;
-
-        synchronized (msgIds) {
-            found = msgIds.contains(id);
-        }
+        boolean found = msgIds.contains(id);
 
         if (LOG.isEnabledFor(Level.DEBUG)) {
             LOG.debug(id + " = " + found);
@@ -1828,6 +1874,9 @@ public class RendezVousServiceImpl implements RendezVousService, EndpointListene
         }
         propListeners.clear();
         timer.cancel();
+        if (LOG.isEnabledFor(Level.INFO)) {
+            LOG.info("Propagated message ids checked : " + msgIds.getCheckedCount() + " duplicates : " + msgIds.getDuplicateCount() + " overflowed : " + msgIds.getOverflowCount());
+        }
         msgIds.clear();
         eventListeners.clear();
         if (LOG.isEnabledFor(Level.INFO)) {
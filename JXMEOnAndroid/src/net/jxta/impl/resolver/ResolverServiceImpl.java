@@ -110,6 +110,10 @@ import net.jxta.impl.endpoint.router.RouteControl;
 import net.jxta.impl.protocol.ResolverQuery;
 import net.jxta.impl.protocol.ResolverResponse;
 import net.jxta.impl.protocol.ResolverSrdiMsgImpl;
+import net.jxta.impl.util.TimeUtils;
+import net.jxta.impl.util.metrics.Counter;
+import net.jxta.impl.util.metrics.Histogram;
+import net.jxta.impl.util.metrics.MetricsRegistry;
 
 /**
  * Implements the {@link net.jxta.resolver.ResolverService} using the standard
@@ -125,6 +129,17 @@ public class ResolverServiceImpl implements ResolverService {
      */
     private final static transient Logger LOG = Logger.getLogger(ResolverServiceImpl.class.getName());
 
+    /**
+     *  Metrics shared by all of the resolvers. Handler times are in
+     *  milliseconds.
+     */
+    private final static Counter QUERIES_SENT = MetricsRegistry.getRegistry().counter("resolver.query.sent");
+    private final static Counter QUERIES_RECEIVED = MetricsRegistry.getRegistry().counter("resolver.query.received");
+    private final static Histogram QUERY_TIME = MetricsRegistry.getRegistry().histogram("resolver.query.time");
+    private final static Counter RESPONSES_SENT = MetricsRegistry.getRegistry().counter("resolver.response.sent");
+    private final static Counter RESPONSES_RECEIVED = MetricsRegistry.getRegistry().counter("resolver.response.received");
+    private final static Histogram RESPONSE_TIME = MetricsRegistry.getRegistry().histogram("resolver.response.time");
+
     /**
      *  Resolver query endpoint postfix
      */
@@ -477,6 +492,8 @@ public class ResolverServiceImpl implements ResolverService {
 
         String queryHandlerName = query.getHandlerName();
 
+        QUERIES_SENT.increment();
+
         if (destPeer == null) {
             try {
                 Message queryMsg = new Message();
@@ -518,6 +535,8 @@ public class ResolverServiceImpl implements ResolverService {
      */
     public void sendResponse(String destPeer, ResolverResponseMsg response) {
 
+        RESPONSES_SENT.increment();
+
         if (destPeer == null) {
             if (rendezvous == null) {
                 return;
@@ -681,7 +700,7 @@ public class ResolverServiceImpl implements ResolverService {
             LOG.debug("Handing query #"+ query.getQueryId() + " to : " + queryHandlerName);
         }
 
-        long startTime = 0;
+        long startTime = TimeUtils.timeNow();
         try {
             int result;
             return theHandler.processQuery(query, srcAddr);
@@ -691,6 +710,8 @@ public class ResolverServiceImpl implements ResolverService {
             }
             // stop repropagation
             return ResolverService.OK;
+        } finally {
+            QUERY_TIME.record(TimeUtils.toRelativeTimeMillis(TimeUtils.timeNow(), startTime));
         }
     }
 
@@ -724,7 +745,7 @@ public class ResolverServiceImpl implements ResolverService {
             LOG.debug("Process response to query #" + resp.getQueryId() + " with " + handlerName);
         }
 
-        long startTime = 0;
+        long startTime = TimeUtils.timeNow();
         try {
             theHandler.processResponse(resp, srcAddr);
         } catch (Throwable all) {
@@ -732,6 +753,7 @@ public class ResolverServiceImpl implements ResolverService {
                 LOG.warn("Uncaught Throwable from handler for: " + handlerName, all);
             }
         }
+        RESPONSE_TIME.record(TimeUtils.toRelativeTimeMillis(TimeUtils.timeNow(), startTime));
     }
 
     /**
@@ -913,6 +935,8 @@ public class ResolverServiceImpl implements ResolverService {
                 return;
             }
 
+            QUERIES_RECEIVED.increment();
+
             int res = processQuery(query, srcAddr);
 
             if (ResolverService.Repropagate == res) {
@@ -964,6 +988,8 @@ public class ResolverServiceImpl implements ResolverService {
                 }
                 return;
             }
+
+            RESPONSES_RECEIVED.increment();
             processResponse(resp, srcAddr);
         }
     }
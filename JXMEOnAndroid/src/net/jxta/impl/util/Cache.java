@@ -57,6 +57,7 @@
 
 package net.jxta.impl.util;
 
+import java.util.Collection;
 import java.util.HashMap;
 
 /**
@@ -128,6 +129,24 @@ public class Cache {
 	this.listener = listener;
     }
 
+    /**
+     * Returns the number of entries, purgeable or not.
+     */
+    public int size()
+    {
+	return map.size();
+    }
+
+    /**
+     * Returns all the cache entries, purgeable or not, without changing their
+     * lru position. The collection is a live view: it must not be modified
+     * and must not be used after the cache is.
+     */
+    public Collection cacheEntries()
+    {
+	return map.values();
+    }
+
     /**
      * Empties the cache completely.
      * The entries are abandonned to the GC.
@@ -136,6 +155,7 @@ public class Cache {
     {
         lru.clear();
 	map.clear();
+	size = 0;
     }
 
 
@@ -0,0 +1,216 @@
+/*
+ *
+ * $Id$
+ *
+ * Copyright (c) 2001 Sun Microsystems, Inc.  All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *
+ * 3. The end-user documentation included with the redistribution,
+ *    if any, must include the following acknowledgment:
+ *       "This product includes software developed by the
+ *       Sun Microsystems, Inc. for Project JXTA."
+ *    Alternately, this acknowledgment may appear in the software itself,
+ *    if and wherever such third-party acknowledgments normally appear.
+ *
+ * 4. The names "Sun", "Sun Microsystems, Inc.", "JXTA" and "Project JXTA"
+ *    must not be used to endorse or promote products derived from this
+ *    software without prior written permission. For written
+ *    permission, please contact Project JXTA at http://www.jxta.org.
+ *
+ * 5. Products derived from this software may not be called "JXTA",
+ *    nor may "JXTA" appear in their name, without prior written
+ *    permission of Sun.
+ *
+ * THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED.  IN NO EVENT SHALL SUN MICROSYSTEMS OR
+ * ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ * USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ * OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ *
+ * ====================================================================
+ *
+ * This software consists of voluntary contributions made by many
+ * individuals on behalf of Project JXTA.  For more
+ * information on Project JXTA, please see
+ * <http://www.jxta.org/>.
+ *
+ * This license is based on the BSD license adopted by the Apache Foundation.
+ */
+
+package net.jxta.impl.util;
+
+import java.util.AbstractList;
+import java.util.RandomAccess;
+
+/**
+ *  A list stored in a circular array. Adding or removing an element at
+ *  either end takes constant time, which makes it a good backing for queues.
+ *  Elements in the middle are still inserted and removed by shifting. This
+ *  list is explicitly <b>NOT</b> synchronized.
+ */
+public class CircularList extends AbstractList implements RandomAccess {
+
+    /**
+     *  Initial capacity, in elements. Must be a power of two.
+     */
+    private static final int INITIAL_CAPACITY = 16;
+
+    /**
+     *  The elements. The length is always a power of two.
+     */
+    private Object[] elements = new Object[INITIAL_CAPACITY];
+
+    /**
+     *  Index in elements of the first element.
+     */
+    private int head = 0;
+
+    /**
+     *  Number of elements.
+     */
+    private int size = 0;
+
+    /**
+     *  Creates an empty list.
+     */
+    public CircularList() {
+    }
+
+    /**
+     *  {@inheritDoc}
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     *  {@inheritDoc}
+     */
+    public Object get(int index) {
+        checkIndex(index, size);
+        return elements[(head + index) & (elements.length - 1)];
+    }
+
+    /**
+     *  {@inheritDoc}
+     */
+    public Object set(int index, Object element) {
+        checkIndex(index, size);
+        int at = (head + index) & (elements.length - 1);
+        Object previous = elements[at];
+        elements[at] = element;
+        return previous;
+    }
+
+    /**
+     *  {@inheritDoc}
+     */
+    public boolean add(Object element) {
+        if (size == elements.length) {
+            grow();
+        }
+        elements[(head + size) & (elements.length - 1)] = element;
+        size++;
+        modCount++;
+        return true;
+    }
+
+    /**
+     *  {@inheritDoc}
+     */
+    public void add(int index, Object element) {
+        checkIndex(index, size + 1);
+        if (index == size) {
+            add(element);
+            return;
+        }
+        if (size == elements.length) {
+            grow();
+        }
+        int mask = elements.length - 1;
+        if (0 == index) {
+            head = (head - 1) & mask;
+            elements[head] = element;
+        } else {
+            // shift the tail up by one.
+            for (int each = size; each > index; each--) {
+                elements[(head + each) & mask] = elements[(head + each - 1) & mask];
+            }
+            elements[(head + index) & mask] = element;
+        }
+        size++;
+        modCount++;
+    }
+
+    /**
+     *  {@inheritDoc}
+     */
+    public Object remove(int index) {
+        checkIndex(index, size);
+        int mask = elements.length - 1;
+        Object removed = elements[(head + index) & mask];
+        if (0 == index) {
+            elements[head] = null;
+            head = (head + 1) & mask;
+        } else {
+            // shift the tail down by one.
+            for (int each = index; each < size - 1; each++) {
+                elements[(head + each) & mask] = elements[(head + each + 1) & mask];
+            }
+            elements[(head + size - 1) & mask] = null;
+        }
+        size--;
+        modCount++;
+        return removed;
+    }
+
+    /**
+     *  {@inheritDoc}
+     */
+    public void clear() {
+        int mask = elements.length - 1;
+        for (int each = 0; each < size; each++) {
+            elements[(head + each) & mask] = null;
+        }
+        head = 0;
+        size = 0;
+        modCount++;
+    }
+
+    /**
+     *  Doubles the capacity, unwrapping the elements to the start of the new
+     *  array.
+     */
+    private void grow() {
+        Object[] bigger = new Object[elements.length * 2];
+        int firstPart = Math.min(size, elements.length - head);
+        System.arraycopy(elements, head, bigger, 0, firstPart);
+        System.arraycopy(elements, 0, bigger, firstPart, size - firstPart);
+        elements = bigger;
+        head = 0;
+    }
+
+    private static void checkIndex(int index, int bound) {
+        if ((index < 0) || (index >= bound)) {
+            throw new IndexOutOfBoundsException("Index: " + index);
+        }
+    }
+}
@@ -0,0 +1,654 @@
+/*
+ *
+ * $Id$
+ *
+ * Copyright (c) 2001 Sun Microsystems, Inc.  All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *
+ * 3. The end-user documentation included with the redistribution,
+ *    if any, must include the following acknowledgment:
+ *       "This product includes software developed by the
+ *       Sun Microsystems, Inc. for Project JXTA."
+ *    Alternately, this acknowledgment may appear in the software itself,
+ *    if and wherever such third-party acknowledgments normally appear.
+ *
+ * 4. The names "Sun", "Sun Microsystems, Inc.", "JXTA" and "Project JXTA"
+ *    must not be used to endorse or promote products derived from this
+ *    software without prior written permission. For written
+ *    permission, please contact Project JXTA at http://www.jxta.org.
+ *
+ * 5. Products derived from this software may not be called "JXTA",
+ *    nor may "JXTA" appear in their name, without prior written
+ *    permission of Sun.
+ *
+ * THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED.  IN NO EVENT SHALL SUN MICROSYSTEMS OR
+ * ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ * USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ * OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ *
+ * ====================================================================
+ *
+ * This software consists of voluntary contributions made by many
+ * individuals on behalf of Project JXTA.  For more
+ * information on Project JXTA, please see
+ * <http://www.jxta.org/>.
+ *
+ * This license is based on the BSD license adopted by the Apache Foundation.
+ */
+
+package net.jxta.impl.util;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+/**
+ *  A bounded queue for many producers and a single consumer which pushes and
+ *  pops without taking a lock. It has the timeout, drop and close behaviour
+ *  of a {@link UnbiasedQueue#synchronizedQueue(UnbiasedQueue) synchronized}
+ *  {@link UnbiasedQueue} and may be used in its place.
+ *
+ *  <p/>The elements are kept in a <code>ConcurrentLinkedQueue</code> and
+ *  the bound is kept by reserving a place in an atomic count before an
+ *  element is added. Monitors are only used by threads which have to wait,
+ *  for an element or for room, and are only notified when somebody waits.
+ *
+ *  <p/>Any thread may push. The popping methods, {@link #unpop(Object[])}
+ *  and the <code>pushBack</code> methods belong to the consumer: they are
+ *  safe from several threads but the order of the elements is then only
+ *  kept per thread.
+ */
+public class LockFreeQueue extends UnbiasedQueue {
+
+    /**
+     *  Log4J Logger
+     */
+    private static final Logger LOG = Logger.getLogger(LockFreeQueue.class.getName());
+
+    /**
+     *  The queued elements.
+     */
+    private final ConcurrentLinkedQueue items = new ConcurrentLinkedQueue();
+
+    /**
+     *  Elements returned to the head of the queue by the consumer. They come
+     *  before the elements of <code>items</code>.
+     */
+    private final ConcurrentLinkedQueue front = new ConcurrentLinkedQueue();
+
+    /**
+     *  The number of elements queued or about to be. A producer reserves its
+     *  place here before adding its element.
+     */
+    private final AtomicInteger size = new AtomicInteger(0);
+
+    private volatile int maxSize;
+
+    /**
+     *  Consumers waiting for an element.
+     */
+    private final Waiters consumers = new Waiters() {
+        boolean isReady() {
+            return !front.isEmpty() || !items.isEmpty() || isClosed();
+        }
+    };
+
+    /**
+     *  Producers finding the queue full, asleep or about to be.
+     */
+    private final AtomicInteger blocked = new AtomicInteger(0);
+
+    /**
+     *  Producers waiting for room.
+     */
+    private final Waiters producers = new Waiters() {
+        boolean isReady() {
+            return (size.get() < maxSize) || isClosed();
+        }
+    };
+
+    /**
+     *  The statistics. The enqueued count is not kept, it is the sum of the
+     *  others and of the size. The dequeue statistics belong to the consumer.
+     */
+    private final AtomicLong sizesAtEnqueue = new AtomicLong(0);
+    private final AtomicLong dropped = new AtomicLong(0);
+    private volatile long dequeued = 0;
+    private volatile long sizesAtDequeue = 0;
+
+    /**
+     *  Creates a 100 element queue which drops the oldest element when full.
+     */
+    public LockFreeQueue() {
+        this(DEFAULT_MAX_OBJECTS, DROP_OLDEST_OBJECT);
+    }
+
+    /**
+     *  Creates a new queue.
+     *
+     *  @param maxsize   Queue will not grow larger than this size. Use
+     *  {@link java.lang.Integer#MAX_VALUE} for "unbounded" queue size.
+     *  @param dropOldest    If <tt>true</tt> a push which times out on a full
+     *  queue drops the oldest element to make room, otherwise it fails.
+     */
+    public LockFreeQueue(int maxsize, boolean dropOldest) {
+        super(maxsize, dropOldest, new ArrayList(0));
+        maxSize = maxsize;
+    }
+
+    /**
+     *  {@inheritDoc}
+     */
+    public void close() {
+        closeFlag = true;
+        consumers.wakeAll();
+        producers.wakeAll();
+    }
+
+    /**
+     *  {@inheritDoc}
+     */
+    public void clear() {
+        while (null != remove()) {
+            dropped.incrementAndGet();
+        }
+    }
+
+    /**
+     *  {@inheritDoc}
+     *
+     *  <p/>Unlike the unsynchronized queue, this may be used with
+     *  {@link #pop(long)}.
+     */
+    public boolean push(Object obj) {
+        if (isClosed()) {
+            return false;
+        }
+
+        int inQueue = reserve();
+
+        if (inQueue < 0) {
+            return false;
+        }
+
+        items.offer(obj);
+        enqueued(inQueue);
+        return true;
+    }
+
+    /**
+     *  {@inheritDoc}
+     */
+    public boolean pushBack(Object obj) {
+        if (isClosed()) {
+            return false;
+        }
+
+        int inQueue = reserve();
+
+        if (inQueue < 0) {
+            return false;
+        }
+
+        toFront(new Object[] { obj });
+        enqueued(inQueue);
+        return true;
+    }
+
+    /**
+     *  {@inheritDoc}
+     */
+    public boolean unpop(Object [] objs) {
+        if (isClosed()) {
+            return false;
+        }
+
+        int inQueue = size.getAndAdd(objs.length);
+
+        toFront(objs);
+        for (int eachObj = 0; eachObj < objs.length; eachObj++) {
+            enqueued(inQueue + eachObj);
+        }
+        return true;
+    }
+
+    /**
+     *  {@inheritDoc}
+     */
+    public boolean push(Object obj, long timeout) throws InterruptedException {
+        return push3(obj, timeout, false);
+    }
+
+    /**
+     *  {@inheritDoc}
+     */
+    public boolean pushBack(Object obj, long timeout) throws InterruptedException {
+        return push3(obj, timeout, true);
+    }
+
+    private boolean push3(Object obj, long timeout, boolean atHead) throws InterruptedException {
+
+        if (0 == timeout) {
+            timeout = Long.MAX_VALUE;
+        }
+
+        long absoluteTimeOut = TimeUtils.toAbsoluteTimeMillis(timeout);
+
+        while (!isClosed()) {
+            int inQueue = reserve();
+
+            if (inQueue >= 0) {
+                if (atHead) {
+                    toFront(new Object[] { obj });
+                } else {
+                    items.offer(obj);
+                }
+                enqueued(inQueue);
+                return true;
+            }
+
+            long waitfor = TimeUtils.toRelativeTimeMillis(absoluteTimeOut);
+
+            if (waitfor > 0) {
+                awaitRoom(waitfor);
+                continue;
+            }
+
+            // Queue is full but its time to do something.
+            // discard an element or simply return.
+            if (!dropOldestObject) {
+                return false;
+            }
+
+            //  Issue a warning if we have not done so recently.
+            long now = TimeUtils.timeNow();
+            if ((now > nextDroppedWarn) && LOG.isEnabledFor(Level.WARN)) {
+                LOG.warn("Queue full, dropped one or more elements. Now dropped " + dropped.get() + " elements.");
+                nextDroppedWarn = now + DROPPED_OBJECT_WARNING_INTERVAL;
+            }
+
+            if (atHead) {
+                // this element is the oldest, so it is the one dropped.
+                dropped.incrementAndGet();
+                return true;
+            }
+
+            if (null != remove()) {
+                dropped.incrementAndGet();
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     *  {@inheritDoc}
+     */
+    public Object peek() {
+        Object result = front.peek();
+
+        return (null != result) ? result : items.peek();
+    }
+
+    /**
+     *  {@inheritDoc}
+     *
+     *  <p/>Unlike the unsynchronized queue, this may be used with
+     *  {@link #push(Object,long)}.
+     */
+    public Object pop() {
+        Object result = remove();
+
+        if (null != result) {
+            dequeued++;
+            sizesAtDequeue += size.get() + 1;
+        }
+
+        return result;
+    }
+
+    /**
+     *  {@inheritDoc}
+     */
+    public Object pop(long timeout) throws InterruptedException {
+        Object result = pop();
+
+        if ((null != result) || (timeout < 0)) {
+            return result;
+        }
+
+        if (0 == timeout) {
+            timeout = Long.MAX_VALUE;
+        }
+
+        long absoluteTimeOut = TimeUtils.toAbsoluteTimeMillis(timeout);
+
+        while (true) {
+            if (isClosed()) {
+                // pushes are refused now, what we find is the last of it.
+                return pop();
+            }
+
+            long waitfor = TimeUtils.toRelativeTimeMillis(absoluteTimeOut);
+
+            if (waitfor <= 0) {
+                return null;
+            }
+
+            // the producers may just need the processor.
+            Thread.yield();
+            result = pop();
+            if (null != result) {
+                return result;
+            }
+
+            consumers.await(waitfor);
+
+            result = pop();
+            if (null != result) {
+                return result;
+            }
+        }
+    }
+
+    /**
+     *  {@inheritDoc}
+     */
+    public Object [] popMulti(int maxObjs) {
+        if (maxObjs <= 0) {
+            throw new IllegalArgumentException("maxObjs must be > 0");
+        }
+
+        List result = new ArrayList(Math.min(maxObjs, size.get()));
+
+        while (result.size() < maxObjs) {
+            Object obj = pop();
+
+            if (null == obj) {
+                break;
+            }
+            result.add(obj);
+        }
+
+        return result.toArray();
+    }
+
+    /**
+     *  {@inheritDoc}
+     */
+    public Object [] peekMulti(int maxObjs) {
+        if (maxObjs <= 0) {
+            throw new IllegalArgumentException("maxObjs must be > 0");
+        }
+
+        List result = new ArrayList(Math.min(maxObjs, size.get()));
+
+        Iterator eachObj = front.iterator();
+        while ((result.size() < maxObjs) && eachObj.hasNext()) {
+            result.add(eachObj.next());
+        }
+
+        eachObj = items.iterator();
+        while ((result.size() < maxObjs) && eachObj.hasNext()) {
+            result.add(eachObj.next());
+        }
+
+        return result.toArray();
+    }
+
+    /**
+     *  {@inheritDoc}
+     */
+    public int getMaxQueueSize() {
+        return maxSize;
+    }
+
+    /**
+     *  {@inheritDoc}
+     */
+    public void setMaxQueueSize(int maxObjs) {
+        maxSize = maxObjs;
+        producers.wakeAll();
+    }
+
+    /**
+     *  {@inheritDoc}
+     */
+    public int getCurrentInQueue() {
+        return size.get();
+    }
+
+    /**
+     *  {@inheritDoc}
+     */
+    public long getNumEnqueued() {
+        return dequeued + dropped.get() + size.get();
+    }
+
+    /**
+     *  {@inheritDoc}
+     */
+    public double getAvgInQueueAtEnqueue() {
+        long count = getNumEnqueued();
+
+        return (count > 0) ? (double) sizesAtEnqueue.get() / count : Double.NaN;
+    }
+
+    /**
+     *  {@inheritDoc}
+     */
+    public long getNumDequeued() {
+        return dequeued;
+    }
+
+    /**
+     *  {@inheritDoc}
+     */
+    public double getAvgInQueueAtDequeue() {
+        long count = dequeued;
+
+        return (count > 0) ? (double) sizesAtDequeue / count : Double.NaN;
+    }
+
+    /**
+     *  {@inheritDoc}
+     */
+    public long getNumDropped() {
+        return dropped.get();
+    }
+
+    /**
+     *  {@inheritDoc}
+     */
+    public void interrupt() {
+        consumers.wake();
+    }
+
+    /**
+     *  Reserves a place in the queue.
+     *
+     *  @return the number of elements queued before ours, or -1 if the queue
+     *  is full.
+     */
+    private int reserve() {
+        while (true) {
+            int inQueue = size.get();
+
+            if (inQueue >= maxSize) {
+                return -1;
+            }
+
+            if (size.compareAndSet(inQueue, inQueue + 1)) {
+                return inQueue;
+            }
+        }
+    }
+
+    /**
+     *  Accounts for an element added and wakes a waiting consumer.
+     */
+    private void enqueued(int inQueue) {
+        sizesAtEnqueue.addAndGet(inQueue);
+        consumers.wake();
+    }
+
+    /**
+     *  Removes the oldest element, if any, and wakes the producers waiting
+     *  for room.
+     */
+    private Object remove() {
+        Object result = front.poll();
+
+        if (null == result) {
+            result = items.poll();
+        }
+
+        // producers only sleep on a full queue, so they are all woken as it
+        // stops being full. Woken together they refill it in one go rather
+        // than one element per wakeup.
+        if ((null != result) && (size.getAndDecrement() >= maxSize)) {
+            producers.wakeAll();
+        }
+
+        return result;
+    }
+
+    /**
+     *  Waits for the consumer to make room.
+     */
+    private void awaitRoom(long waitfor) throws InterruptedException {
+        try {
+            // A lone producer first lets the consumer run, which is usually
+            // all it takes. With several, yielding would only hand the
+            // processor from one blocked producer to the next.
+            if (1 == blocked.incrementAndGet()) {
+                Thread.yield();
+                if (size.get() < maxSize) {
+                    return;
+                }
+            }
+            producers.await(waitfor);
+        } finally {
+            blocked.decrementAndGet();
+        }
+    }
+
+    /**
+     *  Puts elements at the head of the queue, in order, ahead of any
+     *  returned before.
+     */
+    private void toFront(Object [] objs) {
+        List returned = new ArrayList();
+
+        Object obj;
+        while (null != (obj = front.poll())) {
+            returned.add(obj);
+        }
+
+        for (int eachObj = 0; eachObj < objs.length; eachObj++) {
+            front.offer(objs[eachObj]);
+        }
+        front.addAll(returned);
+    }
+
+    /**
+     *  Threads waiting for the same change of the queue. Only the threads
+     *  asleep are counted and a thread is no longer counted once woken, so
+     *  that the other side takes the monitor only when it has somebody to
+     *  wake.
+     */
+    private abstract class Waiters {
+
+        /**
+         *  Threads asleep and not woken yet. Only changed with the monitor
+         *  held.
+         */
+        volatile int sleeping = 0;
+
+        /**
+         *  Threads woken which have not left yet. Guarded by the monitor.
+         */
+        private int woken = 0;
+
+        /**
+         *  @return true if the waiters need not wait.
+         */
+        abstract boolean isReady();
+
+        /**
+         *  Waits for a change, unless there has been one since the caller
+         *  last looked.
+         */
+        void await(long waitfor) throws InterruptedException {
+            synchronized (this) {
+                sleeping++;
+                try {
+                    // rechecked once counted, so that the other side either
+                    // sees us asleep or we see its change.
+                    if (!isReady()) {
+                        wait(waitfor);
+                    }
+                } finally {
+                    if (woken > 0) {
+                        woken--;
+                    } else {
+                        sleeping--;
+                    }
+                }
+            }
+        }
+
+        /**
+         *  Wakes one thread, if any sleeps.
+         */
+        void wake() {
+            if (sleeping > 0) {
+                synchronized (this) {
+                    if (sleeping > 0) {
+                        sleeping--;
+                        woken++;
+                        notify();
+                    }
+                }
+            }
+        }
+
+        /**
+         *  Wakes every thread, if any sleeps.
+         */
+        void wakeAll() {
+            if (sleeping > 0) {
+                synchronized (this) {
+                    woken += sleeping;
+                    sleeping = 0;
+                    notifyAll();
+                }
+            }
+        }
+    }
+}
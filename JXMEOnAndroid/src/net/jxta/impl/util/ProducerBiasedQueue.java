@@ -59,7 +59,6 @@ import org.apache.log4j.Logger;
 import org.apache.log4j.Level;
 
 import java.util.List;
-import java.util.ArrayList;
 
 import net.jxta.impl.util.TimeUtils;
 
@@ -95,7 +94,7 @@ public class ProducerBiasedQueue extends UnbiasedQueue {
      * being pushed. If "false" then then newest item will be dropped.
      */
     public ProducerBiasedQueue(int size, boolean dropOldest) {
-        super( size, dropOldest, new ArrayList() );
+        super( size, dropOldest, new CircularList() );
     }
     
     /**
@@ -55,7 +55,6 @@
 
 package net.jxta.impl.util;
 
-import java.util.ArrayList;
 import java.util.List;
 
 import org.apache.log4j.Logger;
@@ -66,9 +65,8 @@ import net.jxta.impl.util.TimeUtils;
 /**
  *  A generic queue class. This queue is explicitly <b>NOT</b> a synchronized queue.
  *
- *  <p/>FIXME 20020511  bondolo@jxta.org    This could be more efficient with a
- *  circular queue implementation, but its a pain to write since we allow the
- *  queue to be resizable.
+ *  <p/>By default the elements are kept in a {@link CircularList}, so that
+ *  pushing and popping take constant time whatever the queue length.
  *
  *  <p/>FIXME 20020511  bondolo@jxta.org    Exercise for the reader: Extend this
  *  class so that it does both LIFO and FIFO.
@@ -215,6 +213,15 @@ public class UnbiasedQueue  {
             }
         }
 
+        /**
+         *  {@inheritDoc}
+         */
+        public boolean unpop(Object [] objs) {
+            synchronized(innerqueue.queue) {
+                return innerqueue.unpop(objs);
+            }
+        }
+
         /**
          *  {@inheritDoc}
          */
@@ -269,6 +276,15 @@ public class UnbiasedQueue  {
             }
         }
 
+        /**
+         *  {@inheritDoc}
+         */
+        public Object [] peekMulti(int maxObjs) {
+            synchronized(innerqueue.queue) {
+                return innerqueue.peekMulti(maxObjs);
+            }
+        }
+
         /**
          *  {@inheritDoc}
          */
@@ -375,7 +391,7 @@ public class UnbiasedQueue  {
      * <tt>false</tt> then the element will not be inserted if the queue is full.
      */
     public UnbiasedQueue(int maxsize, boolean dropOldest) {
-        this(maxsize, dropOldest, new ArrayList());
+        this(maxsize, dropOldest, new CircularList());
     }
 
     /**
@@ -491,6 +507,34 @@ public class UnbiasedQueue  {
         return true;
     }
 
+    /**
+     *  Return objects which were popped from the queue to its head, in the
+     *  order they were popped. The objects held places in the queue until
+     *  they were popped so they are returned even if the queue has filled
+     *  since. The queue is then over its maximum size until they are popped
+     *  again.
+     *
+     *  @param objs objects to return, in the order they were popped.
+     *  @return true if the objects were returned, false if the queue is
+     *  closed.
+     */
+    public boolean unpop(Object [] objs) {
+        synchronized (queue) {
+            if (isClosed()) {
+                return false;
+            }
+
+            for(int eachObj = objs.length - 1; eachObj >= 0; eachObj--) {
+                numEnqueued++;
+                sumOfQueueSizesEnqueue += queue.size();
+                queue.add(0, objs[eachObj]);
+            }
+
+            queue.notify(); // inform someone who is waiting. we dont have to tell everyone though.
+            return true;
+        }
+    }
+
     /**
      * Push an object onto the queue. If the queue is full then the push will
      *  wait for up to "timeout" milliseconds to push the object. At the end of
@@ -719,6 +763,27 @@ public class UnbiasedQueue  {
         return result;
     }
 
+    /**
+     *  Returns an array of objects, possibly empty, from the head of the queue
+     *  without removing them.
+     *
+     *  @param  maxObjs  the maximum number of items to return.
+     *  @return an array of objects, possibly empty containing the queue
+     *  elements.
+     */
+    public Object [] peekMulti(int maxObjs) {
+        if(maxObjs <= 0)
+            throw new IllegalArgumentException("maxObjs must be > 0");
+
+        maxObjs = Math.min(maxObjs, queue.size());
+        Object [] result = new Object [maxObjs];
+        for(int eachElement = 0; eachElement < maxObjs; eachElement++) {
+            result [eachElement] = queue.get(eachElement);
+        }
+
+        return result;
+    }
+
     /**
      *  How many objects will fit in this queue
      *
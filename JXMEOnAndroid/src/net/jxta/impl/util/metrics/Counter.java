@@ -0,0 +1,134 @@
+/*
+ *
+ * $Id$
+ *
+ * Copyright (c) 2001 Sun Microsystems, Inc.  All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *
+ * 3. The end-user documentation included with the redistribution,
+ *    if any, must include the following acknowledgment:
+ *       "This product includes software developed by the
+ *       Sun Microsystems, Inc. for Project JXTA."
+ *    Alternately, this acknowledgment may appear in the software itself,
+ *    if and wherever such third-party acknowledgments normally appear.
+ *
+ * 4. The names "Sun", "Sun Microsystems, Inc.", "JXTA" and "Project JXTA"
+ *    must not be used to endorse or promote products derived from this
+ *    software without prior written permission. For written
+ *    permission, please contact Project JXTA at http://www.jxta.org.
+ *
+ * 5. Products derived from this software may not be called "JXTA",
+ *    nor may "JXTA" appear in their name, without prior written
+ *    permission of Sun.
+ *
+ * THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED.  IN NO EVENT SHALL SUN MICROSYSTEMS OR
+ * ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ * USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ * OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ *
+ * ====================================================================
+ *
+ * This software consists of voluntary contributions made by many
+ * individuals on behalf of Project JXTA.  For more
+ * information on Project JXTA, please see
+ * <http://www.jxta.org/>.
+ *
+ * This license is based on the BSD license adopted by the Apache Foundation.
+ */
+
+package net.jxta.impl.util.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ *  A monotonic counter. Updates are atomic adds spread over a few stripes so
+ *  that threads updating the same counter rarely contend, and no monitor is
+ *  taken. Reading the counter sums the stripes.
+ *
+ *  @see MetricsRegistry#counter(String)
+ */
+public final class Counter {
+
+    /**
+     *  Number of stripes. A power of two.
+     */
+    final static int STRIPES = 4;
+
+    /**
+     *  The stripes of the counter.
+     */
+    private final AtomicLong[] cells = new AtomicLong[STRIPES];
+
+    /**
+     *  Creates a counter. Counters are created by the registry.
+     */
+    Counter() {
+        for (int eachCell = 0; eachCell < cells.length; eachCell++) {
+            cells[eachCell] = new AtomicLong(0);
+        }
+    }
+
+    /**
+     *  @return the stripe used by the current thread.
+     */
+    static int stripe() {
+        int hash = System.identityHashCode(Thread.currentThread());
+
+        return (hash ^ (hash >>> 16)) & (STRIPES - 1);
+    }
+
+    /**
+     *  Adds one to the counter.
+     */
+    public void increment() {
+        add(1);
+    }
+
+    /**
+     *  Adds to the counter.
+     *
+     *  @param delta the amount to add.
+     */
+    public void add(long delta) {
+        cells[stripe()].addAndGet(delta);
+    }
+
+    /**
+     *  @return the current value of the counter.
+     */
+    public long get() {
+        long result = 0;
+
+        for (int eachCell = 0; eachCell < cells.length; eachCell++) {
+            result += cells[eachCell].get();
+        }
+
+        return result;
+    }
+
+    /**
+     *  {@inheritDoc}
+     */
+    public String toString() {
+        return Long.toString(get());
+    }
+}
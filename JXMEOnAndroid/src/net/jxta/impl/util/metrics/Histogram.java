@@ -0,0 +1,317 @@
+/*
+ *
+ * $Id$
+ *
+ * Copyright (c) 2001 Sun Microsystems, Inc.  All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *
+ * 3. The end-user documentation included with the redistribution,
+ *    if any, must include the following acknowledgment:
+ *       "This product includes software developed by the
+ *       Sun Microsystems, Inc. for Project JXTA."
+ *    Alternately, this acknowledgment may appear in the software itself,
+ *    if and wherever such third-party acknowledgments normally appear.
+ *
+ * 4. The names "Sun", "Sun Microsystems, Inc.", "JXTA" and "Project JXTA"
+ *    must not be used to endorse or promote products derived from this
+ *    software without prior written permission. For written
+ *    permission, please contact Project JXTA at http://www.jxta.org.
+ *
+ * 5. Products derived from this software may not be called "JXTA",
+ *    nor may "JXTA" appear in their name, without prior written
+ *    permission of Sun.
+ *
+ * THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED.  IN NO EVENT SHALL SUN MICROSYSTEMS OR
+ * ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ * USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ * OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ *
+ * ====================================================================
+ *
+ * This software consists of voluntary contributions made by many
+ * individuals on behalf of Project JXTA.  For more
+ * information on Project JXTA, please see
+ * <http://www.jxta.org/>.
+ *
+ * This license is based on the BSD license adopted by the Apache Foundation.
+ */
+
+package net.jxta.impl.util.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ *  A histogram of non-negative values, typically latencies in milliseconds
+ *  or sizes in bytes. Values are counted in log-linear buckets: each power
+ *  of two is split in {@link #SUB_BUCKETS} equal buckets, so that values are
+ *  reported with a relative error of at most 1/{@link #SUB_BUCKETS}. Values
+ *  above 2^{@link #MAX_EXPONENT} are counted in the last bucket.
+ *
+ *  <p/>Like {@link Counter} updates are spread over stripes and made with
+ *  atomic operations, without a monitor. A snapshot taken while values are
+ *  recorded may therefore count a value in the minimum, maximum or sum and
+ *  not yet in its bucket, or the reverse.
+ *
+ *  @see MetricsRegistry#histogram(String)
+ */
+public final class Histogram {
+
+    /**
+     *  Number of buckets per power of two.
+     */
+    public final static int SUB_BUCKETS = 8;
+
+    /**
+     *  log2 of {@link #SUB_BUCKETS}.
+     */
+    private final static int SUB_BITS = 3;
+
+    /**
+     *  Values up to 2^MAX_EXPONENT have their own bucket.
+     */
+    public final static int MAX_EXPONENT = 32;
+
+    private final static long MAX_VALUE = (1L << (MAX_EXPONENT + 1)) - 1;
+
+    private final static int BUCKETS = bucketFor(MAX_VALUE) + 1;
+
+    /**
+     *  A stripe of the histogram. The count is not kept, it is the sum of the
+     *  buckets.
+     */
+    private static final class Stripe {
+        final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        final AtomicLong sum = new AtomicLong(0);
+        final AtomicLong min = new AtomicLong(Long.MAX_VALUE);
+        final AtomicLong max = new AtomicLong(Long.MIN_VALUE);
+    }
+
+    private final Stripe[] stripes = new Stripe[Counter.STRIPES];
+
+    /**
+     *  Creates a histogram. Histograms are created by the registry.
+     */
+    Histogram() {
+        for (int eachStripe = 0; eachStripe < stripes.length; eachStripe++) {
+            stripes[eachStripe] = new Stripe();
+        }
+    }
+
+    /**
+     *  Returns the bucket of a value.
+     *
+     *  @param value a value between 0 and MAX_VALUE.
+     *  @return the bucket of the value.
+     */
+    static int bucketFor(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+
+        int exponent = 63;
+
+        while (0 == (value & (1L << exponent))) {
+            exponent--;
+        }
+
+        int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+
+        return ((exponent - SUB_BITS + 1) << SUB_BITS) + sub;
+    }
+
+    /**
+     *  Returns the highest value counted in a bucket.
+     *
+     *  @param bucket a bucket.
+     *  @return the highest value counted in the bucket.
+     */
+    static long highestValueOf(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+
+        int exponent = (bucket >>> SUB_BITS) + SUB_BITS - 1;
+        long sub = bucket & (SUB_BUCKETS - 1);
+        long width = 1L << (exponent - SUB_BITS);
+
+        return ((SUB_BUCKETS + sub) << (exponent - SUB_BITS)) + width - 1;
+    }
+
+    /**
+     *  Counts a value. Negative values are counted as 0.
+     *
+     *  @param value the value.
+     */
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+
+        int bucket = bucketFor(Math.min(value, MAX_VALUE));
+        Stripe stripe = stripes[Counter.stripe()];
+
+        // the extremes are only written when they change, which is rare
+        // once some values have been recorded.
+        long min;
+        while (value < (min = stripe.min.get())) {
+            if (stripe.min.compareAndSet(min, value)) {
+                break;
+            }
+        }
+
+        long max;
+        while (value > (max = stripe.max.get())) {
+            if (stripe.max.compareAndSet(max, value)) {
+                break;
+            }
+        }
+
+        stripe.sum.addAndGet(value);
+        stripe.buckets.incrementAndGet(bucket);
+    }
+
+    /**
+     *  @return a snapshot of the histogram.
+     */
+    public Snapshot getSnapshot() {
+        long[] buckets = new long[BUCKETS];
+        long count = 0;
+        long sum = 0;
+        long min = Long.MAX_VALUE;
+        long max = Long.MIN_VALUE;
+
+        for (int eachStripe = 0; eachStripe < stripes.length; eachStripe++) {
+            Stripe stripe = stripes[eachStripe];
+
+            for (int eachBucket = 0; eachBucket < BUCKETS; eachBucket++) {
+                long inBucket = stripe.buckets.get(eachBucket);
+
+                buckets[eachBucket] += inBucket;
+                count += inBucket;
+            }
+            sum += stripe.sum.get();
+            min = Math.min(min, stripe.min.get());
+            max = Math.max(max, stripe.max.get());
+        }
+
+        return new Snapshot(buckets, count, sum, min, max);
+    }
+
+    /**
+     *  {@inheritDoc}
+     */
+    public String toString() {
+        return getSnapshot().toString();
+    }
+
+    /**
+     *  An immutable view of a histogram at one point in time.
+     */
+    public static final class Snapshot {
+        private final long[] buckets;
+        private final long count;
+        private final long sum;
+        private final long min;
+        private final long max;
+
+        Snapshot(long[] buckets, long count, long sum, long min, long max) {
+            this.buckets = buckets;
+            this.count = count;
+            this.sum = sum;
+            this.min = (0 == count) ? 0 : min;
+            this.max = (0 == count) ? 0 : max;
+        }
+
+        /**
+         *  @return the number of values counted.
+         */
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         *  @return the sum of the values counted.
+         */
+        public long getSum() {
+            return sum;
+        }
+
+        /**
+         *  @return the mean of the values counted.
+         */
+        public double getMean() {
+            return (0 == count) ? 0.0 : (double) sum / count;
+        }
+
+        /**
+         *  @return the smallest value counted.
+         */
+        public long getMin() {
+            return min;
+        }
+
+        /**
+         *  @return the largest value counted.
+         */
+        public long getMax() {
+            return max;
+        }
+
+        /**
+         *  Returns the value below which the specified fraction of the values
+         *  fall, within the precision of the buckets.
+         *
+         *  @param fraction a fraction between 0.0 and 1.0.
+         *  @return the value at the fraction.
+         */
+        public long getValueAt(double fraction) {
+            if (0 == count) {
+                return 0;
+            }
+
+            long rank = (long) Math.ceil(fraction * count);
+
+            rank = Math.max(1, Math.min(rank, count));
+
+            long seen = 0;
+
+            for (int eachBucket = 0; eachBucket < buckets.length; eachBucket++) {
+                seen += buckets[eachBucket];
+
+                if (seen >= rank) {
+                    return Math.max(min, Math.min(max, highestValueOf(eachBucket)));
+                }
+            }
+
+            return max;
+        }
+
+        /**
+         *  {@inheritDoc}
+         */
+        public String toString() {
+            return "count=" + count + " mean=" + (Math.round(getMean() * 100) / 100.0) + " min=" + min + " p50=" + getValueAt(0.50) +
+                   " p90=" + getValueAt(0.90) + " p99=" + getValueAt(0.99) + " max=" + max;
+        }
+    }
+}
@@ -0,0 +1,336 @@
+/*
+ *
+ * $Id$
+ *
+ * Copyright (c) 2001 Sun Microsystems, Inc.  All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *
+ * 3. The end-user documentation included with the redistribution,
+ *    if any, must include the following acknowledgment:
+ *       "This product includes software developed by the
+ *       Sun Microsystems, Inc. for Project JXTA."
+ *    Alternately, this acknowledgment may appear in the software itself,
+ *    if and wherever such third-party acknowledgments normally appear.
+ *
+ * 4. The names "Sun", "Sun Microsystems, Inc.", "JXTA" and "Project JXTA"
+ *    must not be used to endorse or promote products derived from this
+ *    software without prior written permission. For written
+ *    permission, please contact Project JXTA at http://www.jxta.org.
+ *
+ * 5. Products derived from this software may not be called "JXTA",
+ *    nor may "JXTA" appear in their name, without prior written
+ *    permission of Sun.
+ *
+ * THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED.  IN NO EVENT SHALL SUN MICROSYSTEMS OR
+ * ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ * USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ * OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ *
+ * ====================================================================
+ *
+ * This software consists of voluntary contributions made by many
+ * individuals on behalf of Project JXTA.  For more
+ * information on Project JXTA, please see
+ * <http://www.jxta.org/>.
+ *
+ * This license is based on the BSD license adopted by the Apache Foundation.
+ */
+
+package net.jxta.impl.util.metrics;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+import net.jxta.impl.util.TimeUtils;
+
+/**
+ *  The registry of the metrics of the JXTA stack. Metrics are named with
+ *  dotted names, such as <code>tcp.sent.bytes</code>, and are created on
+ *  first use. Modules usually keep the metrics they update in static fields:
+ *
+ *  <pre>
+ *      private final static Counter SENT = MetricsRegistry.getRegistry().counter("tcp.sent.messages");
+ *  </pre>
+ *
+ *  <p/>Updating a metric takes an uncontended monitor and does not involve the
+ *  registry. A {@link #snapshot()} of all the metrics may be taken at any
+ *  time. If the system property <code>net.jxta.impl.util.metrics.file</code>
+ *  names a file, a snapshot is appended to it every
+ *  <code>net.jxta.impl.util.metrics.interval</code> milliseconds (one minute
+ *  by default).
+ */
+public final class MetricsRegistry {
+
+    /**
+     *  Log4J Logger
+     */
+    private final static Logger LOG = Logger.getLogger(MetricsRegistry.class.getName());
+
+    /**
+     *  Default interval between dumps to the metrics file.
+     */
+    private final static long DEFAULT_DUMP_INTERVAL = 1 * TimeUtils.AMINUTE;
+
+    /**
+     *  The registry of this class loader.
+     */
+    private final static MetricsRegistry registry = new MetricsRegistry();
+
+    static {
+        String dumpFile = null;
+        long dumpInterval = DEFAULT_DUMP_INTERVAL;
+
+        try {
+            dumpFile = System.getProperty("net.jxta.impl.util.metrics.file");
+
+            String dumpIntervalStr = System.getProperty("net.jxta.impl.util.metrics.interval");
+
+            if (dumpIntervalStr != null) {
+                dumpInterval = Math.max(TimeUtils.ASECOND, Long.parseLong(dumpIntervalStr));
+            }
+        } catch (Exception e) {
+            if (LOG.isEnabledFor(Level.WARN)) {
+                LOG.warn("Could not parse system property: net.jxta.impl.util.metrics.*");
+            }
+            // Keep the defaults
+        }
+
+        if (null != dumpFile) {
+            registry.startDumping(dumpFile, dumpInterval);
+        }
+    }
+
+    /**
+     *  The metrics.
+     *
+     *  <ul>
+     *      <li>Keys are the names as {@link java.lang.String}s</li>
+     *      <li>Values are {@link Counter}, {@link Histogram} or {@link Gauge}</li>
+     *  </ul>
+     */
+    private final Map metrics = new HashMap();
+
+    /**
+     *  The thread appending snapshots to the metrics file, if any.
+     */
+    private Thread dumper = null;
+
+    /**
+     *  Creates a registry.
+     */
+    private MetricsRegistry() {}
+
+    /**
+     *  @return the registry.
+     */
+    public static MetricsRegistry getRegistry() {
+        return registry;
+    }
+
+    /**
+     *  Returns the counter with the specified name, creating it if needed.
+     *
+     *  @param name the name of the counter.
+     *  @return the counter.
+     */
+    public synchronized Counter counter(String name) {
+        Object metric = metrics.get(name);
+
+        if (null == metric) {
+            metric = new Counter();
+            metrics.put(name, metric);
+        } else if (!(metric instanceof Counter)) {
+            throw new IllegalArgumentException(name + " is not a counter");
+        }
+
+        return (Counter) metric;
+    }
+
+    /**
+     *  Returns the histogram with the specified name, creating it if needed.
+     *
+     *  @param name the name of the histogram.
+     *  @return the histogram.
+     */
+    public synchronized Histogram histogram(String name) {
+        Object metric = metrics.get(name);
+
+        if (null == metric) {
+            metric = new Histogram();
+            metrics.put(name, metric);
+        } else if (!(metric instanceof Histogram)) {
+            throw new IllegalArgumentException(name + " is not a histogram");
+        }
+
+        return (Histogram) metric;
+    }
+
+    /**
+     *  Registers a gauge, replacing any gauge of the same name.
+     *
+     *  @param name the name of the gauge.
+     *  @param gauge the gauge.
+     */
+    public synchronized void registerGauge(String name, Gauge gauge) {
+        Object metric = metrics.get(name);
+
+        if ((null != metric) && !(metric instanceof Gauge)) {
+            throw new IllegalArgumentException(name + " is not a gauge");
+        }
+
+        metrics.put(name, gauge);
+    }
+
+    /**
+     *  Unregisters a gauge.
+     *
+     *  @param name the name of the gauge.
+     *  @param gauge the gauge. Nothing is done if another gauge is now
+     *  registered under the name.
+     */
+    public synchronized void unregisterGauge(String name, Gauge gauge) {
+        if (metrics.get(name) == gauge) {
+            metrics.remove(name);
+        }
+    }
+
+    /**
+     *  Takes a snapshot of all the metrics.
+     *
+     *  @return the metrics sorted by name. Values are {@link java.lang.Long}
+     *  for counters and gauges and {@link Histogram.Snapshot} for histograms.
+     */
+    public SortedMap snapshot() {
+        Map current;
+
+        synchronized (this) {
+            current = new HashMap(metrics);
+        }
+
+        SortedMap result = new TreeMap();
+        Iterator eachMetric = current.entrySet().iterator();
+
+        while (eachMetric.hasNext()) {
+            Map.Entry anEntry = (Map.Entry) eachMetric.next();
+            Object metric = anEntry.getValue();
+            Object value;
+
+            if (metric instanceof Counter) {
+                value = new Long(((Counter) metric).get());
+            } else if (metric instanceof Histogram) {
+                value = ((Histogram) metric).getSnapshot();
+            } else {
+                try {
+                    value = new Long(((Gauge) metric).getValue());
+                } catch (Throwable failed) {
+                    if (LOG.isEnabledFor(Level.WARN)) {
+                        LOG.warn("Uncaught Throwable in gauge " + anEntry.getKey(), failed);
+                    }
+                    continue;
+                }
+            }
+
+            result.put(anEntry.getKey(), value);
+        }
+
+        return result;
+    }
+
+    /**
+     *  Writes a snapshot of all the metrics, one per line.
+     *
+     *  @param out where to write the snapshot.
+     *  @throws IOException if writing fails.
+     */
+    public void dump(Writer out) throws IOException {
+        SortedMap snapshot = snapshot();
+        Iterator eachMetric = snapshot.entrySet().iterator();
+
+        out.write("# metrics at " + new Date(TimeUtils.timeNow()) + "\n");
+
+        while (eachMetric.hasNext()) {
+            Map.Entry anEntry = (Map.Entry) eachMetric.next();
+
+            out.write(anEntry.getKey() + " " + anEntry.getValue() + "\n");
+        }
+
+        out.flush();
+    }
+
+    /**
+     *  Starts appending a snapshot to the specified file at a fixed interval.
+     *
+     *  @param fileName the file to append to.
+     *  @param interval the interval between snapshots in milliseconds.
+     */
+    public synchronized void startDumping(final String fileName, final long interval) {
+        if (null != dumper) {
+            return;
+        }
+
+        dumper = new Thread(new Runnable() {
+            public void run() {
+                while (true) {
+                    try {
+                        Thread.sleep(interval);
+                    } catch (InterruptedException woken) {
+                        Thread.interrupted();
+                    }
+
+                    PrintWriter out = null;
+
+                    try {
+                        out = new PrintWriter(new FileWriter(fileName, true));
+                        dump(out);
+                    } catch (IOException failed) {
+                        if (LOG.isEnabledFor(Level.WARN)) {
+                            LOG.warn("Could not write metrics to " + fileName, failed);
+                        }
+                    } finally {
+                        if (null != out) {
+                            out.close();
+                        }
+                    }
+                }
+            }
+        }, "Metrics Dumper");
+
+        dumper.setDaemon(true);
+        dumper.start();
+
+        if (LOG.isEnabledFor(Level.INFO)) {
+            LOG.info("Dumping metrics to " + fileName + " every " + interval + "ms");
+        }
+    }
+}
@@ -0,0 +1,262 @@
+/*
+ *
+ * Copyright (c) 2003 Sun Microsystems, Inc.  All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *
+ * 3. The end-user documentation included with the redistribution,
+ *    if any, must include the following acknowledgment:
+ *       "This product includes software developed by the
+ *       Sun Microsystems, Inc. for Project JXTA."
+ *    Alternately, this acknowledgment may appear in the software itself,
+ *    if and wherever such third-party acknowledgments normally appear.
+ *
+ * 4. The names "Sun", "Sun Microsystems, Inc.", "JXTA" and "Project JXTA"
+ *    must not be used to endorse or promote products derived from this
+ *    software without prior written permission. For written
+ *    permission, please contact Project JXTA at http://www.jxta.org.
+ *
+ * 5. Products derived from this software may not be called "JXTA",
+ *    nor may "JXTA" appear in their name, without prior written
+ *    permission of Sun.
+ *
+ * THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED.  IN NO EVENT SHALL SUN MICROSYSTEMS OR
+ * ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ * USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ * OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ *
+ * ====================================================================
+ *
+ * This software consists of voluntary contributions made by many
+ * individuals on behalf of Project JXTA.  For more
+ * information on Project JXTA, please see
+ * <http://www.jxta.org/>.
+ *
+ * This license is based on the BSD license adopted by the Apache Foundation.
+ */
+
+package net.jxta.impl.util.pipe.reliable;
+
+/**
+ * A flow control module which adapts rwindow to the path in the manner of
+ * TCP congestion control.
+ *
+ * <p/>The window starts small and doubles every round trip (slow start)
+ * until it reaches the slow start threshold, then grows by one packet per
+ * round trip (congestion avoidance). While the latest RTT is well above the
+ * smallest recently seen, packets are queuing somewhere on the path: slow
+ * start ends and the window is not grown.
+ *
+ * <p/>A packet reported missing reduces the window once per window of
+ * packets, since the holes reported by the following ACKs are most likely
+ * from the same loss. How much depends on the number of packets the RTT
+ * shows queued on the path, as in TCP Veno. With a standing queue the loss
+ * is taken for congestion and the window and threshold are halved. Without
+ * one the loss is taken for a lossy link, such as a wireless one, and only
+ * the window is reduced by a fifth. A retransmission timeout halves the
+ * threshold and restarts from the minimum window. The window never exceeds
+ * the queue size advertised by the receiver.
+ */
+public class AdaptiveFlowControl extends FlowControl {
+
+    /**
+     * The smallest window used.
+     */
+    static final int MIN_RWINDOW = 2;
+
+    /**
+     * The number of ack events over which the minimum RTT is taken, so that
+     * it follows a path which becomes slower.
+     */
+    private static final int MIN_RTT_EVENTS = 64;
+
+    /**
+     * The path is taken to be queuing packets while the latest RTT is larger
+     * than the minimum RTT by this factor.
+     */
+    private static final int QUEUING_RTT_FACTOR = 2;
+
+    /**
+     * A loss is taken for congestion when at least this many packets are
+     * estimated to be queued on the path.
+     */
+    private static final int CONGESTION_BACKLOG = 3;
+
+    /**
+     * The window kept after a loss which is not taken for congestion, in
+     * thousandths.
+     */
+    private static final int RANDOM_LOSS_DECREASE = 800;
+
+    private final int maxRwindow;
+
+    private volatile int rwindow = MIN_RWINDOW;
+
+    /**
+     * The window in thousandths of a packet, so that it can grow by a
+     * fraction of a packet per ACK during congestion avoidance.
+     */
+    private long cwnd = MIN_RWINDOW * 1000L;
+
+    private int ssthresh;
+
+    /**
+     * Packets ACKed by the current ack event.
+     */
+    private int acked = 0;
+
+    /**
+     * If true, a packet beyond {@link #recoverSeqnum} was reported missing by
+     * the current ack event.
+     */
+    private boolean missing = false;
+
+    /**
+     * The highest sequence number reported missing.
+     */
+    private int maxMissing = 0;
+
+    /**
+     * Losses of packets up to this sequence number are part of the loss the
+     * window was last reduced for.
+     */
+    private int recoverSeqnum = 0;
+
+    private long minRTT = Long.MAX_VALUE;
+    private long nextMinRTT = Long.MAX_VALUE;
+    private int minRTTEvents = 0;
+
+    /**
+     * Constructs an adaptive flow control module which does not grow the
+     * window beyond the size of the remote input queue. Slow start lasts
+     * until the path shows queuing or loss.
+     */
+    public AdaptiveFlowControl() {
+        this(Defs.MAXQUEUESIZE);
+    }
+
+    /**
+     * @param ssthresh the initial slow start threshold.
+     */
+    public AdaptiveFlowControl(int ssthresh) {
+        this(ssthresh, Defs.MAXQUEUESIZE);
+    }
+
+    /**
+     * @param ssthresh the initial slow start threshold.
+     * @param maxRwindow the largest window used.
+     */
+    public AdaptiveFlowControl(int ssthresh, int maxRwindow) {
+        this.maxRwindow = Math.max(MIN_RWINDOW, maxRwindow);
+        this.ssthresh = Math.max(MIN_RWINDOW, Math.min(ssthresh, this.maxRwindow));
+    }
+
+    /**
+     * { @inheritDoc }
+     */
+    public int getRwindow() {
+        return rwindow;
+    }
+
+    /**
+     * { @inheritDoc }
+     */
+    public void ackEventBegin() {
+        acked = 0;
+        missing = false;
+    }
+
+    /**
+     * { @inheritDoc }
+     */
+    public void packetACKed(int seqnum) {
+        acked++;
+    }
+
+    /**
+     * { @inheritDoc }
+     */
+    public void packetMissing(int seqnum) {
+        if (seqnum > recoverSeqnum) {
+            missing = true;
+        }
+        maxMissing = Math.max(maxMissing, seqnum);
+    }
+
+    /**
+     * { @inheritDoc }
+     */
+    public void retransmitTimeout() {
+        ssthresh = Math.max(MIN_RWINDOW, rwindow / 2);
+        cwnd = MIN_RWINDOW * 1000L;
+        recoverSeqnum = maxMissing + rwindow;
+        rwindow = MIN_RWINDOW;
+    }
+
+    /**
+     * { @inheritDoc }
+     */
+    public int ackEventEnd(int rQSize, long aveRTT, long lastRTT) {
+        if (lastRTT > 0) {
+            minRTT = Math.min(minRTT, lastRTT);
+            nextMinRTT = Math.min(nextMinRTT, lastRTT);
+            if (++minRTTEvents >= MIN_RTT_EVENTS) {
+                minRTT = nextMinRTT;
+                nextMinRTT = Long.MAX_VALUE;
+                minRTTEvents = 0;
+            }
+        }
+
+        boolean queuing = (lastRTT > 0) && (minRTT != Long.MAX_VALUE) && (lastRTT >= minRTT * QUEUING_RTT_FACTOR);
+
+        if (missing) {
+            // Everything up to what is in flight now belongs to this loss.
+            recoverSeqnum = maxMissing + rwindow;
+
+            // Packets queued on the path: the window less what one minimum
+            // RTT's worth of the path holds.
+            long rtt = (lastRTT > 0) ? lastRTT : aveRTT;
+            long backlog = ((rtt > 0) && (minRTT != Long.MAX_VALUE)) ? (rwindow * (rtt - minRTT)) / rtt : 0;
+
+            if (backlog >= CONGESTION_BACKLOG) {
+                ssthresh = Math.max(MIN_RWINDOW, rwindow / 2);
+                cwnd = ssthresh * 1000L;
+            } else {
+                cwnd = (cwnd * RANDOM_LOSS_DECREASE) / 1000;
+            }
+        } else if (queuing) {
+            // Do not add to the queue; leave slow start if still in it.
+            ssthresh = Math.max(MIN_RWINDOW, Math.min(ssthresh, rwindow));
+        } else if (rwindow < ssthresh) {
+            cwnd += acked * 1000L;
+        } else {
+            cwnd += (acked * 1000L) / rwindow;
+        }
+
+        // Never send more than the receiver can queue.
+        int limit = (rQSize > 0) ? Math.min(maxRwindow, rQSize) : maxRwindow;
+
+        cwnd = Math.min(Math.max(MIN_RWINDOW * 1000L, cwnd), limit * 1000L);
+        rwindow = (int) (cwnd / 1000);
+
+        return rwindow;
+    }
+}
@@ -95,6 +95,13 @@ public abstract class FlowControl {
     public void packetMissing(int seqnum) {
     }
 
+    /**
+     * Invoked when unacknowledged packets had to be retransmitted because
+     * the retransmission timeout expired without any ACK for them.
+     */
+    public void retransmitTimeout() {
+    }
+
     /**
      * Concludes rwindow update for this ackEvent. That's where all the
      * smarts are. A number of externally computed parameters must be
@@ -102,7 +109,8 @@ public abstract class FlowControl {
      *
      * @param rQSize the last known value of the remote queue size.
      * @param aveRTT the latest estimate of the average RTT.
-     * @param lastRTT the RTT inferred from the most recent ACK message.
+     * @param lastRTT the RTT inferred from the most recent ACK message or 0
+     * if the message did not provide a usable sample.
      * @return int the new recommended value for rwindow.
      */
 
@@ -57,23 +57,22 @@
 package net.jxta.impl.util.pipe.reliable;
 
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InterruptedIOException;
 import java.net.SocketTimeoutException;
 
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Iterator;
 import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
 
 import net.jxta.endpoint.ByteArrayMessageElement;
 import net.jxta.endpoint.Message;
 import net.jxta.endpoint.MessageElement;
 import net.jxta.impl.endpoint.WireFormatMessageFactory;
 import net.jxta.impl.util.TimeUtils;
+import net.jxta.impl.util.TimerThreadNamer;
 
 import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
@@ -105,6 +104,43 @@ public class ReliableInputStream extends InputStream implements Incoming {
     // Incoming messages queue
     private List inputQueue = new ArrayList();
 
+    /**
+     *  Sequence number of the last block taken off the input queue. Unlike
+     *  sequenceNumber it is updated with the inputQueue lock held.
+     */
+    private int lastDequeued = 0;
+
+    /**
+     *  Timer sending the delayed ACKs of all streams. Created on first use.
+     */
+    private static Timer ackTimer = null;
+
+    /**
+     *  Number of in sequence blocks covered by one ACK. Guarded by
+     *  inputQueue, as is all the delayed ACK state.
+     */
+    private int ackEvery = 1;
+
+    /**
+     *  Maximum time in milliseconds an ACK may be delayed.
+     */
+    private long ackDelay = 0;
+
+    /**
+     *  Number of delivered blocks not acknowledged yet.
+     */
+    private int ackPending = 0;
+
+    /**
+     *  Highest delivered sequence number not acknowledged yet.
+     */
+    private int ackPendingSeqn = 0;
+
+    /**
+     *  The scheduled send of the pending ACK, if any.
+     */
+    private TimerTask ackTask = null;
+
     /**
      * Input record Object
      */
@@ -191,6 +227,10 @@ public class ReliableInputStream extends InputStream implements Incoming {
         super.close();
         synchronized (inputQueue) {
             closed = true;
+            if (null != ackTask) {
+                ackTask.cancel();
+                ackTask = null;
+            }
             inputQueue.clear();
             inputQueue.notifyAll();
         }
@@ -285,6 +325,102 @@ public class ReliableInputStream extends InputStream implements Incoming {
         return i;
     }
 
+    /**
+     *  Sets how in sequence blocks are acknowledged. By default every block
+     *  is acknowledged as soon as it is delivered. In delayed mode one ACK
+     *  covers up to <code>ackEvery</code> blocks, and a block waits at most
+     *  <code>ackDelay</code> milliseconds for its ACK. Blocks arriving out
+     *  of sequence are always reported at once.
+     *
+     *  @param ackEvery the number of blocks covered by an ACK, 1 to
+     *  acknowledge every block.
+     *  @param ackDelay the maximum time in milliseconds an ACK is delayed.
+     */
+    public void setDelayedAck(int ackEvery, long ackDelay) {
+        if ((ackEvery < 1) || (ackDelay < 0)) {
+            throw new IllegalArgumentException("Invalid delayed ACK parameters");
+        }
+        int seqnAck = -1;
+        synchronized (inputQueue) {
+            this.ackEvery = ackEvery;
+            this.ackDelay = ackDelay;
+            if (ackPending > 0) {
+                seqnAck = takePendingAck();
+            }
+        }
+        if (seqnAck >= 0) {
+            sendACK(seqnAck);
+        }
+    }
+
+    /**
+     *  Acknowledges the delivery of a block, now or later depending on the
+     *  ACK mode.
+     *
+     *  @param seqnAck the sequence number of the delivered block.
+     */
+    private void ackDelivered(int seqnAck) {
+        synchronized (inputQueue) {
+            ackPending++;
+            ackPendingSeqn = seqnAck;
+
+            // Do not sit on an ACK while there is a hole to report.
+            boolean inSequence = inputQueue.isEmpty() ||
+                (((IQElt) inputQueue.get(0)).seqnum == seqnAck + 1);
+
+            if ((ackPending < ackEvery) && inSequence && !closed) {
+                if (null == ackTask) {
+                    ackTask = new AckTask();
+                    getAckTimer().schedule(ackTask, ackDelay);
+                }
+                return;
+            }
+            takePendingAck();
+        }
+        sendACK(seqnAck);
+    }
+
+    /**
+     *  Clears the pending ACK state. Caller must hold the inputQueue lock.
+     *
+     *  @return the sequence number to acknowledge.
+     */
+    private int takePendingAck() {
+        if (null != ackTask) {
+            ackTask.cancel();
+            ackTask = null;
+        }
+        ackPending = 0;
+        return ackPendingSeqn;
+    }
+
+    /**
+     *  Sends the pending ACK when its delay expires.
+     */
+    private class AckTask extends TimerTask {
+        public void run() {
+            int seqnAck;
+            synchronized (inputQueue) {
+                if ((ackTask != this) || (0 == ackPending)) {
+                    return;
+                }
+                seqnAck = takePendingAck();
+            }
+            sendACK(seqnAck);
+        }
+    }
+
+    /**
+     *  Returns the timer shared by all streams for their delayed ACKs.
+     */
+    private static synchronized Timer getAckTimer() {
+        if (null == ackTimer) {
+            ackTimer = new Timer(true);
+            ackTimer.schedule(new TimerThreadNamer("Reliable delayed ACK timer"), 0);
+        }
+        return ackTimer;
+    }
+
     /**
      *  Send a sequential ACK and selective ACKs for all of
      *  the queued messages.
@@ -292,57 +428,48 @@ public class ReliableInputStream extends InputStream implements Incoming {
      *  @param seqnAck the sequence number being sequential ACKed
      */
     private void sendACK(int seqnAck) {
-        //No need to sync on inputQueue, acking as many as we can is want we want
-        List selectedAckList = new ArrayList();
-        List queue;
+        int[] sackList;
+        int sackCount = 0;
         synchronized(inputQueue) {
-            queue = Arrays.asList(inputQueue.toArray());
-        }
-        Iterator eachInQueue = queue.iterator();
-            while (eachInQueue.hasNext() &&
-                   (selectedAckList.size() < Defs.MAXQUEUESIZE)) {
-                IQElt anIQElt = (IQElt) eachInQueue.next();
-                if (anIQElt.seqnum > seqnAck) {
-                    if (!anIQElt.ackd) {
-                        selectedAckList.add(new Integer(anIQElt.seqnum));
-                        anIQElt.ackd = true;
-                    }
+            sackList = new int[Math.min(inputQueue.size(), Defs.MAXQUEUESIZE)];
+            for (int eachInQueue = 0;
+                 (eachInQueue < inputQueue.size()) && (sackCount < sackList.length);
+                 eachInQueue++) {
+                IQElt anIQElt = (IQElt) inputQueue.get(eachInQueue);
+                if ((anIQElt.seqnum > seqnAck) && !anIQElt.ackd) {
+                    sackList[sackCount++] = anIQElt.seqnum;
+                    anIQElt.ackd = true;
                 }
+            }
         }
 
         // PERMIT DUPLICATE ACKS. Just a list and one small message.
-        sendACK(seqnAck, selectedAckList);
+        sendACK(seqnAck, sackList, sackCount);
     }
 
     /**
      *  Build an ACK message. The message provides a sequential ACK count and
-     *  an optional list of selective ACKs.
+     *  an optional list of selective ACKs, as big-endian 32 bit integers.
      *
      *  @param seqnAck the sequence number being sequential ACKed
-     *  @param sackList a list of selective ACKs. Must be sorted in increasing
+     *  @param sackList selective ACKs. Must be sorted in increasing
      *  order.
+     *  @param sackCount the number of entries of sackList to send.
      */
-    private void sendACK(int seqnAck, List sackList) {
-        ByteArrayOutputStream bos =
-            new ByteArrayOutputStream((1 + sackList.size()) * 4);
-        DataOutputStream dos = new DataOutputStream(bos);
-
-        try {
-            dos.writeInt(seqnAck);
-            Iterator eachSACK = sackList.iterator();
+    private void sendACK(int seqnAck, int[] sackList, int sackCount) {
+        byte[] ack = new byte[(1 + sackCount) * 4];
 
-            while(eachSACK.hasNext()) {
-                int aSack = ((Integer)eachSACK.next()).intValue();
-                dos.writeInt(aSack);
-            }
-            dos.close();
-            bos.close();
+        putInt(ack, 0, seqnAck);
+        for (int eachSACK = 0; eachSACK < sackCount; eachSACK++) {
+            putInt(ack, (1 + eachSACK) * 4, sackList[eachSACK]);
+        }
 
+        try {
             Message ACKMsg = new Message();
             MessageElement elt =
                 new ByteArrayMessageElement(Defs.ACK_ELEMENT_NAME,
                                             Defs.MIME_TYPE_ACK,
-                                            bos.toByteArray(), null);
+                                            ack, null);
 
             ACKMsg.addMessageElement(Defs.NAMESPACE, elt);
 
@@ -350,7 +477,7 @@ public class ReliableInputStream extends InputStream implements Incoming {
 
             if (LOG.isEnabledFor(Level.INFO)) {
                 LOG.info("SENT ACK, seqn#" + seqnAck +
-                         " and " + sackList.size() + " SACKs ");
+                         " and " + sackCount + " SACKs ");
             }
         } catch (IOException e) {
             if (LOG.isEnabledFor(Level.INFO)) {
@@ -359,6 +486,13 @@ public class ReliableInputStream extends InputStream implements Incoming {
         }
     }
 
+    private static void putInt(byte[] buf, int offset, int value) {
+        buf[offset] = (byte) (value >>> 24);
+        buf[offset + 1] = (byte) (value >>> 16);
+        buf[offset + 2] = (byte) (value >>> 8);
+        buf[offset + 3] = (byte) value;
+    }
+
     public void recv(Message msg) {
         queueIncomingMessage(msg);
     }
@@ -414,6 +548,7 @@ public class ReliableInputStream extends InputStream implements Incoming {
         }
 
         long startEnqueue = TimeUtils.timeNow();
+        boolean outOfSequence = false;
 
         Message.ElementIterator e =
             msg.getMessageElements(Defs.NAMESPACE, Defs.MIME_TYPE_BLOCK);
@@ -494,6 +629,18 @@ public class ReliableInputStream extends InputStream implements Incoming {
 
                 inputQueue.add(insertIndex, newElt);
 
+                // A block which does not follow the one before it reveals
+                // a hole, and one queued behind a hole cannot be delivered:
+                // report them now rather than on the next delivery, so that
+                // the sender can tell the hole is a loss and resend it.
+                int previous = (insertIndex > 0) ?
+                    ((IQElt) inputQueue.get(insertIndex - 1)).seqnum :
+                    lastDequeued;
+                if ((newElt.seqnum != previous + 1) ||
+                    (((IQElt) inputQueue.get(0)).seqnum != lastDequeued + 1)) {
+                    outOfSequence = true;
+                }
+
                 if (LOG.isEnabledFor(Level.DEBUG)) {
                     LOG.debug("Enqueued msg with seqn#" + newElt.seqnum +
                               " at index " + insertIndex );
@@ -502,6 +649,16 @@ public class ReliableInputStream extends InputStream implements Incoming {
                 inputQueue.notifyAll();
             }
         }
+        if (outOfSequence) {
+            int seqnAck;
+            synchronized (inputQueue) {
+                if (ackPending > 0) {
+                    takePendingAck();
+                }
+                seqnAck = lastDequeued;
+            }
+            sendACK(seqnAck);
+        }
         if (listener != null) {
             Message newmsg = null;
             while (true) {
@@ -620,6 +777,7 @@ public class ReliableInputStream extends InputStream implements Incoming {
                     continue;
                 }
                 inputQueue.remove(0);
+                lastDequeued = desiredSeqn;
                 break;
             }
         }
@@ -629,7 +787,7 @@ public class ReliableInputStream extends InputStream implements Incoming {
             return null;
         }
 
-        sendACK(desiredSeqn);
+        ackDelivered(desiredSeqn);
 
         if (LOG.isEnabledFor(Level.DEBUG)) {
             long waited =
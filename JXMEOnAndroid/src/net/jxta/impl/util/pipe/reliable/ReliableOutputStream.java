@@ -56,13 +56,11 @@
 package net.jxta.impl.util.pipe.reliable;
 
 import java.io.ByteArrayOutputStream;
-import java.io.DataInputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Iterator;
-import java.util.List;
 
 import net.jxta.endpoint.ByteArrayMessageElement;
 import net.jxta.endpoint.Message;
@@ -72,6 +70,9 @@ import net.jxta.impl.endpoint.WireFormatMessage;
 import net.jxta.impl.endpoint.WireFormatMessageFactory;
 
 import net.jxta.impl.util.TimeUtils;
+import net.jxta.impl.util.metrics.Counter;
+import net.jxta.impl.util.metrics.Histogram;
+import net.jxta.impl.util.metrics.MetricsRegistry;
 
 import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
@@ -90,6 +91,15 @@ public class ReliableOutputStream extends OutputStream implements Incoming {
     private final static Logger LOG =
             Logger.getLogger(ReliableOutputStream.class.getName());
 
+    /**
+     *  Metrics shared by all of the streams. RTT and RTO are in milliseconds
+     *  and sampled each time an ACK updates them.
+     */
+    private final static Histogram RTT = MetricsRegistry.getRegistry().histogram("reliable.rtt");
+    private final static Histogram RTO_SAMPLES = MetricsRegistry.getRegistry().histogram("reliable.rto");
+    private final static Counter RETRANSMITS = MetricsRegistry.getRegistry().counter("reliable.retransmits");
+    private final static Counter RTO_EXPIRIES = MetricsRegistry.getRegistry().counter("reliable.rto.expiries");
+
     /**
      * This maximum is only enforced if we have not heard
      * from the remote for RETRMAXAGE.
@@ -181,12 +191,37 @@ public class ReliableOutputStream extends OutputStream implements Incoming {
      */
     private volatile long sackRetransTime = 0;
 
+    /**
+     *  Highest sequence number selectively acknowledged by the remote.
+     *  Guarded by retrQ.
+     */
+    private int maxSACK = 0;
+
+    /**
+     *  Number of messages sent after an unacknowledged one which must have
+     *  been selectively acknowledged before it is deemed lost.
+     */
+    private final static int LOSS_THRESHOLD = 3;
+
+    /**
+     *  Number of holes reported by the latest SACK which the retransmitter
+     *  should fill. Guarded by retrQ.
+     */
+    private int sackRetransWanted = 0;
+
     /**
      *   The collection of messages available for re-transmission.
      *
      *   elements are {@link RetrQElt}
      */
-    protected List retrQ = new ArrayList();
+    protected RetransmitQueue retrQ = new RetransmitQueue(Defs.MAXQUEUESIZE);
+
+    /**
+     *  Guards the processing of ACKs: the flow control module and the RTT
+     *  estimation. The retrQ monitor is only held while the queue itself is
+     *  updated, so writers and the retransmitter do not wait for the rest.
+     */
+    private final Object ackLock = new String("ACK lock");
 
     // running average of receipients Input Queue
     private int nIQTests = 0;
@@ -212,6 +247,43 @@ public class ReliableOutputStream extends OutputStream implements Incoming {
      */
     private volatile int rwindow = 0;
 
+    /**
+     * Buffer in which small writes are packed into blocks, or null if
+     * writes are not coalesced. Owned by whoever holds the coalescing
+     * buffer (see {@link #acquireCoalesceBuf(long)}).
+     */
+    private byte[] coalesceBuf = null;
+
+    /**
+     * Number of bytes pending in the coalescing buffer.
+     */
+    private volatile int coalesceCount = 0;
+
+    /**
+     * Time at which the oldest pending byte entered the coalescing buffer.
+     */
+    private long coalesceSince = 0;
+
+    /**
+     * Longest time a pending byte may wait for its block to fill.
+     */
+    private volatile long coalesceDelay = 0;
+
+    /**
+     * True while a thread owns the coalescing buffer. Guarded by
+     * coalesceLock.
+     */
+    private boolean coalesceBusy = false;
+
+    private final Object coalesceLock = new String("coalesce lock");
+
+    /**
+     * Deadlines for the sends: give up at once when the window is full, or
+     * wait for as long as it takes.
+     */
+    private final static long NO_WAIT = 0;
+    private final static long WAIT_FOREVER = Long.MAX_VALUE;
+
     /**
      * retrans queue element
      */
@@ -249,8 +321,7 @@ public class ReliableOutputStream extends OutputStream implements Incoming {
      * @param  outgoing  Description of the Parameter
      */
     public ReliableOutputStream(Outgoing outgoing) {
-        // By default use the old behaviour: fixed fc with a rwin of 20
-        this(outgoing, new FixedFlowControl(20));
+        this(outgoing, new AdaptiveFlowControl());
     }
 
 
@@ -303,7 +374,9 @@ public class ReliableOutputStream extends OutputStream implements Incoming {
             }
         }
 
-        retrQ.clear();
+        synchronized (retrQ) {
+            retrQ.clear();
+        }
     }
 
     /**
@@ -352,10 +425,239 @@ public class ReliableOutputStream extends OutputStream implements Incoming {
             return;
         }
 
-        // Copy the data since it will be queued, and caller may
-        // overwrite the same byte[] buffer.
-        byte[] data = new byte[len];
-        System.arraycopy(b, off, data, 0, len);
+        byte[] buf = coalesceBuf;
+        if (null == buf) {
+            // Copy the data since it will be queued, and caller may
+            // overwrite the same byte[] buffer.
+            byte[] data = new byte[len];
+            System.arraycopy(b, off, data, 0, len);
+            sendBlock(data, WAIT_FOREVER);
+            return;
+        }
+
+        acquireCoalesceBuf(WAIT_FOREVER);
+        try {
+            while (len > 0) {
+                int n = Math.min(len, buf.length - coalesceCount);
+                if (0 == coalesceCount) {
+                    coalesceSince = TimeUtils.timeNow();
+                }
+                System.arraycopy(b, off, buf, coalesceCount, n);
+                coalesceCount += n;
+                off += n;
+                len -= n;
+
+                // Send a full block right away, and also a partial one
+                // when nothing is in flight: there is then no ACK to wait
+                // for which could give the next writes a chance to join.
+                if ((coalesceCount == buf.length) || retrQ.isEmpty() ||
+                        (TimeUtils.toRelativeTimeMillis(TimeUtils.timeNow(), coalesceSince) >= coalesceDelay)) {
+                    sendCoalesced(WAIT_FOREVER);
+                }
+            }
+        } finally {
+            releaseCoalesceBuf();
+        }
+    }
+
+    /**
+     * Sends a block of data as a message of its own, after any coalesced
+     * data. The block is queued without being copied: the caller must not
+     * modify it afterwards.
+     *
+     * @param  block            the block.
+     * @exception  IOException  if the stream is closed or broken.
+     */
+    public void writeBlock(byte[] block) throws IOException {
+        if (closed) {
+            throw new IOException("stream is closed");
+        }
+        if (closing) {
+            throw new IOException("stream is being closed");
+        }
+        if (block.length == 0) {
+            return;
+        }
+        if (null == coalesceBuf) {
+            sendBlock(block, WAIT_FOREVER);
+            return;
+        }
+        acquireCoalesceBuf(WAIT_FOREVER);
+        try {
+            sendCoalesced(WAIT_FOREVER);
+            sendBlock(block, WAIT_FOREVER);
+        } finally {
+            releaseCoalesceBuf();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p/>Sends the data pending in the coalescing buffer, if any.
+     */
+    public void flush() throws IOException {
+        flush(0);
+    }
+
+    /**
+     * Sends the data pending in the coalescing buffer, if any, waiting at
+     * most the given time for the send window to open.
+     *
+     * @param  timeout  The maximum time to wait in milliseconds, 0 to wait
+     * as long as needed.
+     * @return          false if the data could not be sent in time. It is
+     * then still pending.
+     * @exception  IOException  if the stream is closed or broken.
+     */
+    public boolean flush(long timeout) throws IOException {
+        if (null == coalesceBuf) {
+            return true;
+        }
+        long waitUntil = (0 == timeout) ? WAIT_FOREVER : TimeUtils.toAbsoluteTimeMillis(timeout);
+        if (!acquireCoalesceBuf(waitUntil)) {
+            return false;
+        }
+        try {
+            return sendCoalesced(waitUntil);
+        } finally {
+            releaseCoalesceBuf();
+        }
+    }
+
+    /**
+     * Enables or disables the coalescing of small writes. When enabled,
+     * written data is packed into blocks of up to <code>blockSize</code>
+     * bytes. A partial block is sent when nothing else is in flight, when
+     * its oldest byte has waited <code>flushDelay</code> milliseconds, or
+     * on {@link #flush()}. Messages given to {@link #send(Message)} are
+     * never coalesced.
+     *
+     * @param  blockSize   The block size in bytes, or 0 to send every write
+     * as its own block.
+     * @param  flushDelay  The maximum time in milliseconds data may wait
+     * for its block to fill.
+     * @exception  IOException  if pending data could not be sent.
+     */
+    public void setCoalescing(int blockSize, long flushDelay) throws IOException {
+        if ((blockSize < 0) || (flushDelay < 0)) {
+            throw new IllegalArgumentException("negative block size or flush delay");
+        }
+        acquireCoalesceBuf(WAIT_FOREVER);
+        try {
+            sendCoalesced(WAIT_FOREVER);
+            coalesceBuf = (blockSize > 0) ? new byte[blockSize] : null;
+            coalesceDelay = flushDelay;
+        } finally {
+            releaseCoalesceBuf();
+        }
+    }
+
+    /**
+     * Takes ownership of the coalescing buffer, waiting for it if needed.
+     * Ownership is kept while waiting for the send window to open, so it
+     * is not a plain monitor: the retransmitter must be able to notice
+     * that the buffer is busy without blocking.
+     *
+     * @param  waitUntil  absolute time after which to give up.
+     * @return            false if the buffer stayed busy until then.
+     */
+    private boolean acquireCoalesceBuf(long waitUntil) throws IOException {
+        synchronized (coalesceLock) {
+            while (coalesceBusy) {
+                long left = TimeUtils.toRelativeTimeMillis(waitUntil);
+                if (left <= 0) {
+                    return false;
+                }
+                try {
+                    coalesceLock.wait(left);
+                } catch (InterruptedException woken) {
+                    throw new InterruptedIOException("interrupted waiting for write");
+                }
+            }
+            coalesceBusy = true;
+            return true;
+        }
+    }
+
+    /**
+     * Takes ownership of the coalescing buffer if no one holds it.
+     *
+     * @return    true if ownership was taken.
+     */
+    private boolean tryAcquireCoalesceBuf() {
+        synchronized (coalesceLock) {
+            if (coalesceBusy) {
+                return false;
+            }
+            coalesceBusy = true;
+            return true;
+        }
+    }
+
+    private void releaseCoalesceBuf() {
+        synchronized (coalesceLock) {
+            coalesceBusy = false;
+            coalesceLock.notify();
+        }
+    }
+
+    /**
+     * Sends the content of the coalescing buffer as one block. The caller
+     * must own the buffer.
+     *
+     * @param  waitUntil  absolute time until which to wait for room in the
+     * send window, {@link #NO_WAIT} to leave the data pending when the
+     * window is full.
+     * @return       false if data is still pending.
+     */
+    private boolean sendCoalesced(long waitUntil) throws IOException {
+        if (0 == coalesceCount) {
+            return true;
+        }
+        byte[] data = new byte[coalesceCount];
+        System.arraycopy(coalesceBuf, 0, data, 0, coalesceCount);
+        if (!sendBlock(data, waitUntil)) {
+            return false;
+        }
+        coalesceCount = 0;
+        return true;
+    }
+
+    /**
+     * Called by the retransmitter to send a partial block which has waited
+     * long enough, or which no longer has anything in flight to wait for.
+     */
+    private void flushCoalescedIfDue() {
+        if ((0 == coalesceCount) || !tryAcquireCoalesceBuf()) {
+            return;
+        }
+        try {
+            if ((0 != coalesceCount) &&
+                    (retrQ.isEmpty() ||
+                     (TimeUtils.toRelativeTimeMillis(TimeUtils.timeNow(), coalesceSince) >= coalesceDelay))) {
+                sendCoalesced(NO_WAIT);
+            }
+        } catch (IOException failed) {
+            if (LOG.isEnabledFor(Level.DEBUG)) {
+                LOG.debug("Could not flush pending data", failed);
+            }
+        } finally {
+            releaseCoalesceBuf();
+        }
+    }
+
+    /**
+     * Queues one block for retransmission and sends it.
+     *
+     * @param  data  the block. It is not copied.
+     * @param  waitUntil  absolute time until which to wait for room in the
+     * send window, {@link #NO_WAIT} to give up at once when it is full.
+     * @return       true if the block was sent.
+     */
+    private boolean sendBlock(byte[] data, long waitUntil) throws IOException {
+
+        int seqnum;
 
         // allocate new message
         Message jmsg = new Message();
@@ -365,29 +667,33 @@ public class ReliableOutputStream extends OutputStream implements Incoming {
                     throw new IOException("broken connection");
                 }
                 if (retrQ.size() > Math.min(rwindow, mrrIQFreeSpace * 2)) {
+                    long left = TimeUtils.toRelativeTimeMillis(waitUntil);
+                    if (left <= 0) {
+                        return false;
+                    }
                     try {
-                        retrQ.wait(1000);
+                        retrQ.wait(Math.min(left, 1000));
                     } catch (InterruptedException ignored) {}
                     continue;
                 }
                 break;
             }
 
-            ++sequenceNumber;
+            seqnum = ++sequenceNumber;
             MessageElement element =
-                    new ByteArrayMessageElement(Integer.toString(sequenceNumber),
+                    new ByteArrayMessageElement(Integer.toString(seqnum),
                     Defs.MIME_TYPE_BLOCK, data, null);
             jmsg.addMessageElement(Defs.NAMESPACE, element);
-            RetrQElt retrQel = new RetrQElt(sequenceNumber, (Message) jmsg.clone());
+            RetrQElt retrQel = new RetrQElt(seqnum, (Message) jmsg.clone());
 
             if (LOG.isEnabledFor(Level.DEBUG)) {
-                LOG.debug("Reliable WRITE : seqn#" + sequenceNumber + " length=" + len);
+                LOG.debug("Reliable WRITE : seqn#" + seqnum + " length=" + data.length);
             }
 
             // place copy on retransmission queue
-            retrQ.add(retrQel);
+            retrQ.add(seqnum, retrQel);
             if (LOG.isEnabledFor(Level.DEBUG)) {
-                LOG.debug("Retrans Enqueue added seqn#" + sequenceNumber + " retrQ.size()=" + retrQ.size());
+                LOG.debug("Retrans Enqueue added seqn#" + seqnum + " retrQ.size()=" + retrQ.size());
             }
         }
 
@@ -395,8 +701,9 @@ public class ReliableOutputStream extends OutputStream implements Incoming {
         mrrIQFreeSpace--;
         // assume we have now taken a slot
         if (LOG.isEnabledFor(Level.DEBUG)) {
-            LOG.debug("SENT : seqn#" + sequenceNumber + " length=" + len);
+            LOG.debug("SENT : seqn#" + seqnum + " length=" + data.length);
         }
+        return true;
     }
 
     /**
@@ -414,7 +721,8 @@ public class ReliableOutputStream extends OutputStream implements Incoming {
         msgSerialized.sendToStream(baos);
         baos.close();
         byte[] msgData = baos.toByteArray();
-        write(msgData, 0, msgData.length);
+        // a message must be a block of its own.
+        writeBlock(msgData);
         return sequenceNumber;
     }
 
@@ -508,6 +816,9 @@ public class ReliableOutputStream extends OutputStream implements Incoming {
         RTO = Math.max(RTO, minRTO);
         RTO = Math.min(RTO, maxRTO);
 
+        RTT.record(dt);
+        RTO_SAMPLES.record(RTO);
+
         if (LOG.isEnabledFor(Level.DEBUG)) {
             LOG.debug("RTT = " + dt + "ms aveRTT = " + aveRTT + "ms" +
                     " RTO = " + RTO + "ms");
@@ -539,27 +850,34 @@ public class ReliableOutputStream extends OutputStream implements Incoming {
         while (eachACK.hasNext()) {
             MessageElement elt = (MessageElement) eachACK.next();
             eachACK.remove();
-            int sackCount = ((int) elt.getByteLength() / 4) - 1;
+            byte[] ack = elt.getBytes(false);
+            int sackCount = (ack.length / 4) - 1;
 
-            try {
-                DataInputStream dis = new DataInputStream(elt.getStream());
-                int seqack = dis.readInt();
-                int[] sacs = new int[sackCount];
-                for (int eachSac = 0; eachSac < sackCount; eachSac++) {
-                    sacs[eachSac] = dis.readInt();
-                }
-                Arrays.sort(sacs);
-                // take care of the ACK here;
-                ackReceived(seqack, sacs);
-            } catch (IOException failed) {
+            if (sackCount < 0) {
                 if (LOG.isEnabledFor(Level.WARN)) {
-                    LOG.warn("Failure processing ACK", failed);
+                    LOG.warn("Failure processing ACK : " + ack.length + " bytes");
                 }
+                continue;
+            }
+            int seqack = getInt(ack, 0);
+            int[] sacs = new int[sackCount];
+            for (int eachSac = 0; eachSac < sackCount; eachSac++) {
+                sacs[eachSac] = getInt(ack, (1 + eachSac) * 4);
             }
+            Arrays.sort(sacs);
+            // take care of the ACK here;
+            ackReceived(seqack, sacs);
         }
     }
 
 
+    private static int getInt(byte[] buf, int offset) {
+        return ((buf[offset] & 0xFF) << 24) |
+               ((buf[offset + 1] & 0xFF) << 16) |
+               ((buf[offset + 2] & 0xFF) << 8) |
+               (buf[offset + 3] & 0xFF);
+    }
+
     /**
      * Process an ACK Message. We remove ACKed
      * messages from the retry queue.  We only
@@ -573,11 +891,13 @@ public class ReliableOutputStream extends OutputStream implements Incoming {
      * will be sequence numbers higher than the
      * sequential ACK seqnum.
      *
-     * Recepients are passive and only ack upon the
-     * receipt of an in sequence message.
+     * Recepients ack upon the delivery of in sequence
+     * messages, possibly several at once, and report
+     * the messages received out of sequence as soon as
+     * they arrive.
      *
-     * They depend on our RTO to fill holes in message
-     * sequences.
+     * Holes revealed by the SACKs are filled by the
+     * retransmitter, others wait for our RTO.
      *
      * @param  seqnum    Description of the Parameter
      * @param  sackList  Description of the Parameter
@@ -589,192 +909,188 @@ public class ReliableOutputStream extends OutputStream implements Incoming {
         int rttCalcSeqnum = -1;
         long fallBackDt = 0;
         int fallBackSeqnum = -1;
+        int retrans = 0;
 
         // remove acknowledged messages from retrans Q.
-        synchronized (retrQ) {
+        synchronized (ackLock) {
             lastACKTime = TimeUtils.timeNow();
             fc.ackEventBegin();
             maxACK = Math.max(maxACK, seqnum);
 
-            // dump the current Retry queue and the SACK list
-            if (LOG.isEnabledFor(Level.INFO)) {
-                StringBuffer dumpRETRQ =
-                        new StringBuffer("ACK RECEIVE : " +
-                        Integer.toString(seqnum));
-                if (LOG.isEnabledFor(Level.DEBUG)) {
-                    dumpRETRQ.append('\n');
-                }
-                dumpRETRQ.append("\tRETRQ (size=" + retrQ.size() + ")");
-                if (LOG.isEnabledFor(Level.DEBUG)) {
-                    dumpRETRQ.append(" : ");
-                    for (int y = 0; y < retrQ.size(); y++) {
-                        if (0 != y) {
-                            dumpRETRQ.append(", ");
+            synchronized (retrQ) {
+                // dump the current Retry queue and the SACK list
+                if (LOG.isEnabledFor(Level.INFO)) {
+                    StringBuffer dumpRETRQ =
+                            new StringBuffer("ACK RECEIVE : " +
+                            Integer.toString(seqnum));
+                    if (LOG.isEnabledFor(Level.DEBUG)) {
+                        dumpRETRQ.append('\n');
+                    }
+                    dumpRETRQ.append("\tRETRQ (size=" + retrQ.size() + ")");
+                    if (LOG.isEnabledFor(Level.DEBUG)) {
+                        dumpRETRQ.append(" : ");
+                        boolean first = true;
+                        for (int y = retrQ.first(); y < retrQ.end(); y++) {
+                            if (null == retrQ.get(y)) {
+                                continue;
+                            }
+                            if (!first) {
+                                dumpRETRQ.append(", ");
+                            }
+                            first = false;
+                            dumpRETRQ.append(y);
                         }
-                        RetrQElt r = (RetrQElt) retrQ.get(y);
-                        dumpRETRQ.append(r.seqnum);
                     }
-                }
-                if (LOG.isEnabledFor(Level.DEBUG)) {
-                    dumpRETRQ.append('\n');
-                }
+                    if (LOG.isEnabledFor(Level.DEBUG)) {
+                        dumpRETRQ.append('\n');
+                    }
 
-                dumpRETRQ.append("\tSACKLIST (size=" + sackList.length + ")");
-                if (LOG.isEnabledFor(Level.DEBUG)) {
-                    dumpRETRQ.append(" : ");
-                    for (int y = 0; y < sackList.length; y++) {
-                        if (0 != y) {
-                            dumpRETRQ.append(", ");
+                    dumpRETRQ.append("\tSACKLIST (size=" + sackList.length + ")");
+                    if (LOG.isEnabledFor(Level.DEBUG)) {
+                        dumpRETRQ.append(" : ");
+                        for (int y = 0; y < sackList.length; y++) {
+                            if (0 != y) {
+                                dumpRETRQ.append(", ");
+                            }
+                            dumpRETRQ.append(sackList[y]);
                         }
-                        dumpRETRQ.append(sackList[y]);
                     }
+                    LOG.info(dumpRETRQ);
                 }
-                LOG.info(dumpRETRQ);
-            }
 
-            Iterator eachRetryQueueEntry = retrQ.iterator();
-            // First remove monotonically increasing seq#s in retrans vector
-            while (eachRetryQueueEntry.hasNext()) {
-                RetrQElt r = (RetrQElt) eachRetryQueueEntry.next();
-                if (r.seqnum > seqnum) {
-                    break;
-                }
-                // Acknowledged
-                eachRetryQueueEntry.remove();
-
-                // Update RTT, RTO. Use only those that where acked
-                // w/o retrans otherwise the number may be phony (ack
-                // of first xmit received just after resending => RTT
-                // seems small).  Also, we keep the worst of the bunch
-                // we encounter.  If we really can't find a single
-                // non-resent message, we make do with a pessimistic
-                // approximation: we must not be left behind with an
-                // RTT that's too short, we'd keep resending like
-                // crazy.
-                long enqueuetime = r.enqueuedAt;
-                long dt = TimeUtils.toRelativeTimeMillis(lastACKTime, enqueuetime);
-                // Update RTT, RTO
-                if (r.marked == 0) {
-                    if (dt > rttCalcDt) {
-                        rttCalcDt = dt;
-                        rttCalcSeqnum = r.seqnum;
-                    }
-                } else {
-                    // In case we find no good candidate, make
-                    // a guess by dividing by the number of attempts
-                    // and keep the worst of them too. Since we
-                    // know it may be too short, we will not use it
-                    // if shortens rtt.
-                    dt /= (r.marked + 1);
-                    if (dt > fallBackDt) {
-                        fallBackDt = dt;
-                        fallBackSeqnum = r.seqnum;
+                // First remove monotonically increasing seq#s in retrans queue
+                for (int eachSeqnum = retrQ.first(); eachSeqnum <= seqnum; eachSeqnum = retrQ.first()) {
+                    // Acknowledged
+                    RetrQElt r = (RetrQElt) retrQ.remove(eachSeqnum);
+                    if (null == r) {
+                        // queue is empty
+                        break;
                     }
-                }
-                fc.packetACKed(r.seqnum);
-                r.msg.clear();
-                r.msg = null;
-                r = null;
-                numberACKed++;
-            }
-            // Update last accessed time in response to getting seq acks.
-            if (numberACKed > 0) {
-                outgoing.setLastAccessed(TimeUtils.timeNow());
-            }
-            if (LOG.isEnabledFor(Level.DEBUG)) {
-                LOG.debug("SEQUENTIALLY ACKD SEQN = " + seqnum +
-                        ", (" + numberACKed + " acked)");
-            }
-            // most recent remote IQ free space
-            mrrIQFreeSpace = rmaxQSize - sackList.length;
-            // let's look at average sacs.size(). If it is big, then this
-            // probably means we must back off because the system is slow.
-            // Our retrans Queue can be large and we can overwhelm the
-            // receiver with retransmissions.
-            // We will keep the rwin <= ave real input queue size.
-            int aveIQ = calcAVEIQ(sackList.length);
-            if (LOG.isEnabledFor(Level.DEBUG)) {
-                LOG.debug("remote IQ free space = " + mrrIQFreeSpace +
-                        " remote avg IQ occupancy = " + aveIQ);
-            }
 
-            int retrans = 0;
-            if (sackList.length > 0) {
-                Iterator eachRetrQElement = retrQ.iterator();
-                int currentSACK = 0;
-                while (eachRetrQElement.hasNext()) {
-                    RetrQElt r = (RetrQElt) eachRetrQElement.next();
-                    while (sackList[currentSACK] < r.seqnum) {
-                        currentSACK++;
-                        if (currentSACK == sackList.length) {
-                            break;
+                    // Update RTT, RTO. Use only those that where acked
+                    // w/o retrans otherwise the number may be phony (ack
+                    // of first xmit received just after resending => RTT
+                    // seems small).  Also, we keep the worst of the bunch
+                    // we encounter.  If we really can't find a single
+                    // non-resent message, we make do with a pessimistic
+                    // approximation: we must not be left behind with an
+                    // RTT that's too short, we'd keep resending like
+                    // crazy.
+                    long enqueuetime = r.enqueuedAt;
+                    long dt = TimeUtils.toRelativeTimeMillis(lastACKTime, enqueuetime);
+                    // Update RTT, RTO
+                    if (r.marked == 0) {
+                        if (dt > rttCalcDt) {
+                            rttCalcDt = dt;
+                            rttCalcSeqnum = r.seqnum;
+                        }
+                    } else {
+                        // In case we find no good candidate, make
+                        // a guess by dividing by the number of attempts
+                        // and keep the worst of them too. Since we
+                        // know it may be too short, we will not use it
+                        // if shortens rtt.
+                        dt /= (r.marked + 1);
+                        if (dt > fallBackDt) {
+                            fallBackDt = dt;
+                            fallBackSeqnum = r.seqnum;
                         }
                     }
-                    if (currentSACK == sackList.length) {
-                        break;
-                    }
-                    if (sackList[currentSACK] == r.seqnum) {
-                        fc.packetACKed(r.seqnum);
-                        numberACKed++;
-                        eachRetrQElement.remove();
-
-                        // Update RTT, RTO. Use only those that where acked w/o retrans
-                        // otherwise the number is completely phony.
-                        // Also, we keep the worst of the bunch we encounter.
-                        long enqueuetime = r.enqueuedAt;
-                        long dt = TimeUtils.toRelativeTimeMillis(lastACKTime, enqueuetime);
-                        // Update RTT, RTO
-                        if (r.marked == 0) {
-                            if (dt > rttCalcDt) {
-                                rttCalcDt = dt;
-                                rttCalcSeqnum = r.seqnum;
+                    fc.packetACKed(r.seqnum);
+                    r.msg.clear();
+                    r.msg = null;
+                    r = null;
+                    numberACKed++;
+                }
+                // Update last accessed time in response to getting seq acks.
+                if (numberACKed > 0) {
+                    outgoing.setLastAccessed(TimeUtils.timeNow());
+                }
+                if (LOG.isEnabledFor(Level.DEBUG)) {
+                    LOG.debug("SEQUENTIALLY ACKD SEQN = {}, ({} acked)", new Integer(seqnum), new Integer(numberACKed));
+                }
+                // most recent remote IQ free space
+                mrrIQFreeSpace = rmaxQSize - sackList.length;
+                // let's look at average sacs.size(). If it is big, then this
+                // probably means we must back off because the system is slow.
+                // Our retrans Queue can be large and we can overwhelm the
+                // receiver with retransmissions.
+                // We will keep the rwin <= ave real input queue size.
+                int aveIQ = calcAVEIQ(sackList.length);
+                if (LOG.isEnabledFor(Level.DEBUG)) {
+                    LOG.debug("remote IQ free space = {} remote avg IQ occupancy = {}", new Integer(mrrIQFreeSpace), new Integer(aveIQ));
+                }
+
+                if (sackList.length > 0) {
+                    maxSACK = Math.max(maxSACK, sackList[sackList.length - 1]);
+                }
+                if (maxSACK > seqnum) {
+                    for (int currentSACK = 0; currentSACK < sackList.length; currentSACK++) {
+                        RetrQElt r = (RetrQElt) retrQ.remove(sackList[currentSACK]);
+                        if (null != r) {
+                            fc.packetACKed(r.seqnum);
+                            numberACKed++;
+
+                            // Update RTT, RTO. Use only those that where acked w/o retrans
+                            // otherwise the number is completely phony.
+                            // Also, we keep the worst of the bunch we encounter.
+                            long enqueuetime = r.enqueuedAt;
+                            long dt = TimeUtils.toRelativeTimeMillis(lastACKTime, enqueuetime);
+                            // Update RTT, RTO
+                            if (r.marked == 0) {
+                                if (dt > rttCalcDt) {
+                                    rttCalcDt = dt;
+                                    rttCalcSeqnum = r.seqnum;
+                                }
+                            } else {
+                                // In case we find no good candidate, make
+                                // a guess by dividing by the number of attempts
+                                // and keep the worst of them too. Since we
+                                // know it may be too short, we will not use it
+                                // if shortens rtt.
+                                dt /= (r.marked + 1);
+                                if (dt > fallBackDt) {
+                                    fallBackDt = dt;
+                                    fallBackSeqnum = r.seqnum;
+                                }
                             }
-                        } else {
-                            // In case we find no good candidate, make
-                            // a guess by dividing by the number of attempts
-                            // and keep the worst of them too. Since we
-                            // know it may be too short, we will not use it
-                            // if shortens rtt.
-                            dt /= (r.marked + 1);
-                            if (dt > fallBackDt) {
-                                fallBackDt = dt;
-                                fallBackSeqnum = r.seqnum;
+                            if (LOG.isEnabledFor(Level.DEBUG)) {
+                                LOG.debug("SACKD SEQN = {}", new Integer(r.seqnum));
                             }
-                        }
-                        if (LOG.isEnabledFor(Level.DEBUG)) {
-                            LOG.debug("SACKD SEQN = " + r.seqnum);
-                        }
 
-                        // GC this stuff
-                        r.msg.clear();
-                        r.msg = null;
-                        r = null;
+                            // GC this stuff
+                            r.msg.clear();
+                            r.msg = null;
+                            r = null;
+                        }
+                    }
 
-                    } else {
-                        // Retransmit? Only if there is a hole in the selected
-                        // acknowledgement list. Otherwise let RTO deal.
-
-                        //    Given that this SACK acknowledged messages still
-                        //    in the retrQ:
-                        //      seqnum is the max consectively SACKD message.
-                        //      seqnum < r.seqnum means a message has not reached
-                        //      receiver. EG: sacklist == 10,11,13 seqnum == 11
-                        //                  We retransmit 12.
-                        if (seqnum < r.seqnum) {
-                            fc.packetMissing(r.seqnum);
+                    // Retransmit? Only if there is a hole in the selected
+                    // acknowledgement list. Otherwise let RTO deal.
+
+                    //    Given that SACKs acknowledged messages still
+                    //    in the retrQ:
+                    //      seqnum is the max consectively SACKD message.
+                    //      seqnum < r.seqnum means a message has not reached
+                    //      receiver. EG: sacklist == 10,11,13,14,15 seqnum == 11
+                    //                  We retransmit 12.
+                    //    A message is only deemed lost once LOSS_THRESHOLD
+                    //    later ones made it, not if it was merely
+                    //    overtaken.
+                    int lastMissing = Math.min(maxSACK - LOSS_THRESHOLD, retrQ.end() - 1);
+                    for (int eachSeqnum = Math.max(retrQ.first(), seqnum + 1); eachSeqnum <= lastMissing; eachSeqnum++) {
+                        if (null != retrQ.get(eachSeqnum)) {
+                            fc.packetMissing(eachSeqnum);
                             retrans++;
                             if (LOG.isEnabledFor(Level.DEBUG)) {
-                                LOG.debug("RETR: Fill hole, SACK, seqn#" +
-                                        r.seqnum +
-                                        ", Window =" + retrans);
+                                LOG.debug("RETR: Fill hole, SACK, seqn#{}, Window ={}", new Integer(eachSeqnum), new Integer(retrans));
                             }
                         }
                     }
-                }
 
-                if (LOG.isEnabledFor(Level.DEBUG)) {
-                    LOG.debug("SELECTIVE ACKD (" + numberACKed + ") " +
-                            retrans + " retrans wanted");
+                    if (LOG.isEnabledFor(Level.DEBUG)) {
+                        LOG.debug("SELECTIVE ACKD ({}) {} retrans wanted", new Integer(numberACKed), new Integer(retrans));
+                    }
                 }
             }
 
@@ -792,7 +1108,14 @@ public class ReliableOutputStream extends OutputStream implements Incoming {
                 calcRTT(fallBackDt, fallBackSeqnum);
                 // get fc to recompute rwindow
                 rwindow = fc.ackEventEnd(rmaxQSize, aveRTT, fallBackDt);
+            } else {
+                // no usable RTT sample, but fc must still see the acks
+                // and losses of this event.
+                rwindow = fc.ackEventEnd(rmaxQSize, aveRTT, 0);
             }
+        }
+        synchronized (retrQ) {
+            sackRetransWanted = retrans;
             retrQ.notifyAll();
         }
     }
@@ -803,63 +1126,67 @@ public class ReliableOutputStream extends OutputStream implements Incoming {
      *
      * @param  rwin         max number of messages to retransmit
      * @param  triggerTime  Description of the Parameter
+     * @param  reportedLost true if the oldest messages were reported lost
+     *                      by a SACK, so they are resent without waiting.
      * @return              number of messages retransmitted.
      */
-    private int retransmit(int rwin, long triggerTime) {
+    private int retransmit(int rwin, long triggerTime, boolean reportedLost) {
 
-        List retransMsgs = new ArrayList();
-
-        int numberToRetrans;
+        int numberToRetrans = 0;
+        int retransmitted = 0;
 
-        // build a list of retries.
+        // walk the oldest messages, retrying those which are overdue.
+        int eachSeqnum;
+        int end;
         synchronized (retrQ) {
-            numberToRetrans = Math.min(retrQ.size(), rwin);
-            if (numberToRetrans > 0 && LOG.isEnabledFor(Level.DEBUG)) {
-                LOG.debug("Number of messages pending retransmit =" + numberToRetrans);
+            eachSeqnum = retrQ.first();
+            end = retrQ.end();
+        }
+        for (; (eachSeqnum < end) && (numberToRetrans < rwin); eachSeqnum++) {
+            RetrQElt r;
+            synchronized (retrQ) {
+                r = (RetrQElt) retrQ.get(eachSeqnum);
             }
-            for (int j = 0; j < numberToRetrans; j++) {
-                RetrQElt r = (RetrQElt) retrQ.get(j);
-                // Mark message as retransmission
-                // need to know if a msg was retr or not for RTT eval
-                if (r.marked == 0) {
-                    // First time: we're here because this message has not arrived, but
-                    // the next one has. It may be an out of order message.
-                    // Experience shows that such a message rarely arrives older than
-                    // 1.2 * aveRTT. Beyond that, it's lost. It is also rare that we
-                    // detect a hole within that delay. So, often enough, as soon as
-                    // a hole is detected, it's time to resend...but not always.
-                    if (TimeUtils.toRelativeTimeMillis(triggerTime, r.sentAt)
-                             < (6 * aveRTT) / 5) {
-                        // Nothing to worry about, yet.
-                        continue;
-                    }
-                } else {
-                    // That one has been retransmitted at least once already.
-                    // So, we don't have much of a clue other than the age of the
-                    // last transmission. It is unlikely that it arrives before aveRTT/2
-                    // but we have to anticipate its loss at the risk of making dupes.
-                    // Otherwise the receiver will reach the hole, and that's really
-                    // expensive. (Think that we've been trying for a while already.)
-
-                    if (TimeUtils.toRelativeTimeMillis(triggerTime, r.sentAt)
-                             < aveRTT) {
-
-                        // Nothing to worry about, yet.
-                        continue;
-                    }
+            if (null == r) {
+                // acknowledged
+                continue;
+            }
+            numberToRetrans++;
+            // Mark message as retransmission
+            // need to know if a msg was retr or not for RTT eval
+            if (r.marked == 0) {
+                // First time: we're here because this message has not arrived, but
+                // the next one has. It may be an out of order message.
+                // Experience shows that such a message rarely arrives older than
+                // 1.2 * aveRTT. Beyond that, it's lost. It is also rare that we
+                // detect a hole within that delay. So, often enough, as soon as
+                // a hole is detected, it's time to resend...but not always.
+                // A SACK reporting it lost has already seen LOSS_THRESHOLD
+                // later messages overtake it, so it is resent at once.
+                if (!reportedLost &&
+                        (TimeUtils.toRelativeTimeMillis(triggerTime, r.sentAt)
+                         < (6 * aveRTT) / 5)) {
+                    // Nothing to worry about, yet.
+                    continue;
+                }
+            } else {
+                // That one has been retransmitted at least once already.
+                // So, we don't have much of a clue other than the age of the
+                // last transmission. It is unlikely that it arrives before aveRTT/2
+                // but we have to anticipate its loss at the risk of making dupes.
+                // Otherwise the receiver will reach the hole, and that's really
+                // expensive. (Think that we've been trying for a while already.)
+
+                if (TimeUtils.toRelativeTimeMillis(triggerTime, r.sentAt)
+                         < aveRTT) {
+
+                    // Nothing to worry about, yet.
+                    continue;
                 }
-                r.marked++;
-                // Make a copy to for sending
-                retransMsgs.add(r);
             }
-        }
+            r.marked++;
 
-        // send the retries.
-        int retransmitted = 0;
-        Iterator eachRetrans = retransMsgs.iterator();
-        while (eachRetrans.hasNext()) {
-            RetrQElt r = (RetrQElt) eachRetrans.next();
-            eachRetrans.remove();
+            // send the retry.
             try {
                 if (LOG.isEnabledFor(Level.DEBUG)) {
                     LOG.debug("RETRANSMIT seqn#" + r.seqnum);
@@ -893,6 +1220,7 @@ public class ReliableOutputStream extends OutputStream implements Incoming {
             LOG.debug("RETRANSMITED " + retransmitted +
                     " of " + numberToRetrans);
         }
+        RETRANSMITS.add(retransmitted);
         return retransmitted;
     }
 
@@ -963,14 +1291,35 @@ public class ReliableOutputStream extends OutputStream implements Incoming {
                         } catch (IOException ignored) {}
                         continue;
                     }
+                    int holes;
                     synchronized (retrQ) {
+                        long wait = RTO;
+                        if (0 != coalesceCount) {
+                            wait = Math.max(1, Math.min(wait, coalesceDelay));
+                        }
                         try {
-                            retrQ.wait(RTO);
+                            retrQ.wait(wait);
                         } catch (InterruptedException e) {}
+                        holes = sackRetransWanted;
+                        sackRetransWanted = 0;
                     }
                     if (closed) {
                         break;
                     }
+                    flushCoalescedIfDue();
+                    // fill the holes reported by the latest SACK without
+                    // waiting for RTO.
+                    if (holes > 0) {
+                        int retransed = retransmit(Math.min(holes, Math.max(rwindow, 1)), TimeUtils.timeNow(), true);
+                        if (retransed > 0) {
+                            sackRetransTime = TimeUtils.timeNow();
+                            nretransmitted += retransed;
+                            if (LOG.isEnabledFor(Level.DEBUG)) {
+                                LOG.debug("RETRANS : SACK RETRANSMISSION " + retransed);
+                            }
+                        }
+                        continue;
+                    }
                     // see if we recently did a retransmit triggered by a SACK
                     long sinceLastSACKRetr =
                             TimeUtils.toRelativeTimeMillis(TimeUtils.timeNow(),
@@ -988,8 +1337,8 @@ public class ReliableOutputStream extends OutputStream implements Incoming {
                             lastACKTime);
                     long oldestInQueueWait;
                     synchronized (retrQ) {
-                        if (retrQ.size() > 0) {
-                            RetrQElt elt = (RetrQElt) retrQ.get(0);
+                        RetrQElt elt = (RetrQElt) retrQ.oldest();
+                        if (null != elt) {
                             oldestInQueueWait =
                                     TimeUtils.toRelativeTimeMillis(TimeUtils.timeNow(),
                                     elt.enqueuedAt);
@@ -1034,7 +1383,15 @@ public class ReliableOutputStream extends OutputStream implements Incoming {
                                     rwindow + "]");
                         }
                         // retransmit
-                        int retransed = retransmit(rwindow, TimeUtils.timeNow());
+                        RTO_EXPIRIES.increment();
+                        int retransed = retransmit(rwindow, TimeUtils.timeNow(), false);
+                        if (retransed > 0) {
+                            // let fc back off
+                            synchronized (ackLock) {
+                                fc.retransmitTimeout();
+                                rwindow = fc.getRwindow();
+                            }
+                        }
                         // Total
                         nretransmitted += retransed;
                         // number at this RTO
@@ -0,0 +1,213 @@
+/*
+ *
+ * Copyright (c) 2003 Sun Microsystems, Inc.  All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *
+ * 3. The end-user documentation included with the redistribution,
+ *    if any, must include the following acknowledgment:
+ *       "This product includes software developed by the
+ *       Sun Microsystems, Inc. for Project JXTA."
+ *    Alternately, this acknowledgment may appear in the software itself,
+ *    if and wherever such third-party acknowledgments normally appear.
+ *
+ * 4. The names "Sun", "Sun Microsystems, Inc.", "JXTA" and "Project JXTA"
+ *    must not be used to endorse or promote products derived from this
+ *    software without prior written permission. For written
+ *    permission, please contact Project JXTA at http://www.jxta.org.
+ *
+ * 5. Products derived from this software may not be called "JXTA",
+ *    nor may "JXTA" appear in their name, without prior written
+ *    permission of Sun.
+ *
+ * THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED.  IN NO EVENT SHALL SUN MICROSYSTEMS OR
+ * ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ * USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ * OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ *
+ * ====================================================================
+ *
+ * This software consists of voluntary contributions made by many
+ * individuals on behalf of Project JXTA.  For more
+ * information on Project JXTA, please see
+ * <http://www.jxta.org/>.
+ *
+ * This license is based on the BSD license adopted by the Apache Foundation.
+ */
+
+package net.jxta.impl.util.pipe.reliable;
+
+/**
+ * The messages sent by a {@link ReliableOutputStream} and not acknowledged
+ * yet, kept in a ring indexed by sequence number.
+ *
+ * <p/>Messages are added in sequence order and removed in any order, as
+ * sequential and selective ACKs come in. Adding, looking up and removing a
+ * message take constant time; only growing the ring, when the window
+ * outgrows it, copies the entries.
+ *
+ * <p/>This class is not synchronized. Users hold the monitor of the queue
+ * for each batch of operations, which is also the monitor on which writers
+ * wait for room in the send window.
+ */
+final class RetransmitQueue {
+
+    /**
+     * The entries. Sequence number s lives in slot <code>s & mask</code>.
+     */
+    private Object[] ring;
+
+    private int mask;
+
+    /**
+     * Sequence number of the oldest entry, or of the next one if the
+     * queue is empty.
+     */
+    private int head = 0;
+
+    /**
+     * Sequence number following the newest entry.
+     */
+    private int tail = 0;
+
+    /**
+     * Number of entries, not counting the removed ones between head and
+     * tail.
+     */
+    private int count = 0;
+
+    /**
+     * @param capacity the number of entries the ring holds before growing.
+     */
+    RetransmitQueue(int capacity) {
+        int size = 1;
+        while (size < capacity) {
+            size <<= 1;
+        }
+        ring = new Object[size];
+        mask = size - 1;
+    }
+
+    /**
+     * Adds the entry of the next sequence number.
+     *
+     * @param seqnum the sequence number. Must follow the last one added,
+     * unless the queue is empty.
+     * @param elt the entry.
+     */
+    void add(int seqnum, Object elt) {
+        if (0 == count) {
+            head = seqnum;
+            tail = seqnum;
+        } else if (seqnum != tail) {
+            throw new IllegalStateException("Out of sequence entry #" + seqnum + ", expected #" + tail);
+        }
+        if (tail - head == ring.length) {
+            grow();
+        }
+        ring[seqnum & mask] = elt;
+        tail = seqnum + 1;
+        count++;
+    }
+
+    /**
+     * @return the entry of the sequence number or null if there is none.
+     */
+    Object get(int seqnum) {
+        if ((seqnum < head) || (seqnum >= tail)) {
+            return null;
+        }
+        return ring[seqnum & mask];
+    }
+
+    /**
+     * Removes the entry of a sequence number.
+     *
+     * @return the entry removed or null if there was none.
+     */
+    Object remove(int seqnum) {
+        if ((seqnum < head) || (seqnum >= tail)) {
+            return null;
+        }
+        int slot = seqnum & mask;
+        Object elt = ring[slot];
+        if (null == elt) {
+            return null;
+        }
+        ring[slot] = null;
+        count--;
+        while ((head < tail) && (null == ring[head & mask])) {
+            head++;
+        }
+        return elt;
+    }
+
+    /**
+     * @return the oldest entry or null if the queue is empty.
+     */
+    Object oldest() {
+        return (0 == count) ? null : ring[head & mask];
+    }
+
+    /**
+     * @return the sequence number of the oldest entry, or of the next entry
+     * if the queue is empty.
+     */
+    int first() {
+        return head;
+    }
+
+    /**
+     * @return the sequence number following the newest entry.
+     */
+    int end() {
+        return tail;
+    }
+
+    int size() {
+        return count;
+    }
+
+    boolean isEmpty() {
+        return 0 == count;
+    }
+
+    void clear() {
+        while (head < tail) {
+            ring[head & mask] = null;
+            head++;
+        }
+        count = 0;
+    }
+
+    /**
+     * Doubles the ring, keeping every entry at its sequence number.
+     */
+    private void grow() {
+        Object[] bigger = new Object[ring.length * 2];
+        int biggerMask = bigger.length - 1;
+        for (int seqnum = head; seqnum < tail; seqnum++) {
+            bigger[seqnum & biggerMask] = ring[seqnum & mask];
+        }
+        ring = bigger;
+        mask = biggerMask;
+    }
+}
@@ -123,6 +123,14 @@ public final class ConfigurationFactory  {
      *  Default tcp outgoing true
      */
     protected boolean tcp_outgoing = true;
+    /**
+     *  Default tcp connections each served by their own thread
+     */
+    protected boolean tcpUseSelector = false;
+    /**
+     *  Default tcp messages sent uncompressed
+     */
+    protected boolean tcpCompress = false;
     /**
      *  Default PeerID set null
      */
@@ -306,6 +314,8 @@ public final class ConfigurationFactory  {
         tcpAdv.setServer(null);
         tcpAdv.setClientEnabled(factory.tcp_outgoing);
         tcpAdv.setServerEnabled(factory.tcp_incoming);
+        tcpAdv.setUseSelector(factory.tcpUseSelector);
+        tcpAdv.setCompress(factory.tcpCompress);
         return tcpAdv;
     }
 
@@ -463,6 +473,27 @@ public final class ConfigurationFactory  {
         factory.tcp_outgoing = outgoing;
     }
 
+    /**
+     *  Toggles whether tcp connections are served by a small pool of
+     *  selector threads rather than a thread each (default is off)
+     *
+     *@param  useSelector  The new tcpUseSelector value
+     */
+    public static void setTcpUseSelector(boolean useSelector) {
+        factory.tcpUseSelector = useSelector;
+    }
+
+    /**
+     *  Toggles whether tcp connections offer to compress messages (default
+     *  is off). Messages are only compressed between peers which both offer
+     *  it.
+     *
+     *@param  compress  The new tcpCompress value
+     */
+    public static void setTcpCompress(boolean compress) {
+        factory.tcpCompress = compress;
+    }
+
     /**
      *  Sets the listening port (default 9901)
      *
@@ -959,6 +959,27 @@ public class NetworkConfigurator {
         tcpConfig.setServerEnabled(incoming);
     }
 
+    /**
+     * Toggles whether the TCP transport serves its connections from a small
+     * pool of selector threads rather than a thread per connection (default
+     * is false)
+     *
+     * @param useSelector the new TCP selector mode
+     */
+    public void setTcpUseSelector(boolean useSelector) {
+        tcpConfig.setUseSelector(useSelector);
+    }
+
+    /**
+     * Toggles whether TCP connections offer to compress messages (default is
+     * false). Messages are only compressed between peers which both offer it.
+     *
+     * @param compress the new TCP compression mode
+     */
+    public void setTcpCompress(boolean compress) {
+        tcpConfig.setCompress(compress);
+    }
+
     /**
      * Toggles TCP transport client (outgoing) mode (default is true)
      *
@@ -0,0 +1,485 @@
+/*
+ *
+ * $Id$
+ *
+ * Copyright (c) 2001 Sun Microsystems, Inc.  All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *
+ * 3. The end-user documentation included with the redistribution,
+ *    if any, must include the following acknowledgment:
+ *       "This product includes software developed by the
+ *       Sun Microsystems, Inc. for Project JXTA."
+ *    Alternately, this acknowledgment may appear in the software itself,
+ *    if and wherever such third-party acknowledgments normally appear.
+ *
+ * 4. The names "Sun", "Sun Microsystems, Inc.", "JXTA" and "Project JXTA"
+ *    must not be used to endorse or promote products derived from this
+ *    software without prior written permission. For written
+ *    permission, please contact Project JXTA at http://www.jxta.org.
+ *
+ * 5. Products derived from this software may not be called "JXTA",
+ *    nor may "JXTA" appear in their name, without prior written
+ *    permission of Sun.
+ *
+ * THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED.  IN NO EVENT SHALL SUN MICROSYSTEMS OR
+ * ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ * USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ * OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ *
+ * ====================================================================
+ *
+ * This software consists of voluntary contributions made by many
+ * individuals on behalf of Project JXTA.  For more
+ * information on Project JXTA, please see
+ * <http://www.jxta.org/>.
+ *
+ * This license is based on the BSD license adopted by the Apache Foundation.
+ */
+
+package net.jxta.socket;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+/**
+ *  Transfers files over a {@link JxtaSocket}.
+ *
+ *  <p/>The file is read chunk by chunk from its channel into a block which is
+ *  handed to the socket as is, so that each chunk travels as one message
+ *  without being copied or serialized. The receiver writes the chunks to a
+ *  partial file as they arrive and renames it once complete.
+ *
+ *  <p/>The protocol is:
+ *  <ol>
+ *  <li>The sender offers the file: its name, its length, its modification
+ *  time and the largest chunk size it would like to use.</li>
+ *  <li>The receiver answers with the offset to start from and with the chunk
+ *  size to use, which is at most the one offered. The offset is the last
+ *  one acknowledged by an earlier transfer of the same file, as identified
+ *  by its length and modification time, or 0 if there is none.
+ *  </li>
+ *  <li>The sender streams the file from that offset in chunks of that
+ *  size. The receiver acknowledges the offset it has written, and forced to
+ *  disk, every few chunks and at the end.</li>
+ *  </ol>
+ *
+ *  <p/>An interrupted transfer is resumed by sending the same file again,
+ *  on a new socket if need be. Progress and throughput are reported to an
+ *  optional listener each time an offset is acknowledged.
+ *
+ *  <p/>A transfer uses the socket exclusively: anything written by the
+ *  application must have been flushed before, and nothing else may read
+ *  the socket until the transfer completes.
+ */
+public class JxtaFileTransfer {
+
+    /**
+     *  Log4J Logger
+     */
+    private final static Logger LOG = Logger.getLogger(JxtaFileTransfer.class.getName());
+
+    /**
+     *  Receives the progress of a transfer.
+     */
+    public interface ProgressListener {
+
+        /**
+         *  Called each time an offset is acknowledged.
+         *
+         *  @param transfer the transfer in progress.
+         */
+        void transferProgress(JxtaFileTransfer transfer);
+    }
+
+    /**
+     *  Default and largest chunk sizes, in bytes.
+     */
+    public final static int DEFAULT_CHUNK_SIZE = 16 * 1024;
+    public final static int MAX_CHUNK_SIZE = 64 * 1024;
+
+    /**
+     *  "JXFT"
+     */
+    private final static int MAGIC = 0x4A584654;
+    private final static int VERSION = 2;
+
+    /**
+     *  Offset answered to refuse an offer.
+     */
+    private final static long REFUSED = -1;
+
+    /**
+     *  Number of chunks between two acknowledgements.
+     */
+    private final static int ACK_INTERVAL = 16;
+
+    private final static String PARTIAL_SUFFIX = ".part";
+
+    /**
+     *  Suffix of the file which records which file a partial file belongs
+     *  to, its length and modification time as given by the sender, and the
+     *  offset up to which the partial file was acknowledged.
+     */
+    private final static String IDENTITY_SUFFIX = ".part.id";
+
+    private final JxtaSocket socket;
+    private int chunkSize = DEFAULT_CHUNK_SIZE;
+    private ProgressListener listener = null;
+
+    private volatile String name = null;
+    private volatile long length = 0;
+    private volatile long resumedFrom = 0;
+    private volatile long acknowledged = 0;
+    private volatile long startedAt = 0;
+    private volatile long lastProgressAt = 0;
+
+    /**
+     *  Creates a transfer over a connected socket.
+     *
+     *  @param socket the socket.
+     */
+    public JxtaFileTransfer(JxtaSocket socket) {
+        this.socket = socket;
+    }
+
+    /**
+     *  Sets the largest chunk size offered by the sender or accepted by the
+     *  receiver.
+     *
+     *  @param chunkSize the chunk size in bytes, at most {@link #MAX_CHUNK_SIZE}.
+     */
+    public void setChunkSize(int chunkSize) {
+        if ((chunkSize <= 0) || (chunkSize > MAX_CHUNK_SIZE)) {
+            throw new IllegalArgumentException("Invalid chunk size : " + chunkSize);
+        }
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     *  Sets the listener to which progress is reported.
+     *
+     *  @param listener the listener, or null.
+     */
+    public void setProgressListener(ProgressListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     *  Sends a file, resuming where an earlier transfer of it stopped.
+     *  Returns once the receiver has acknowledged the whole file.
+     *
+     *  @param file the file to send.
+     *  @throws IOException if the transfer is refused or fails.
+     */
+    public void send(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            long fileLength = channel.size();
+            long modified = file.lastModified();
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(file.getName());
+            out.writeLong(fileLength);
+            out.writeLong(modified);
+            out.writeInt(chunkSize);
+            out.flush();
+
+            long offset = in.readLong();
+            int chunk = in.readInt();
+            if (REFUSED == offset) {
+                throw new IOException("Transfer of " + file.getName() + " refused");
+            }
+            if ((offset < 0) || (offset > fileLength) || (chunk <= 0) || (chunk > chunkSize)) {
+                throw new IOException("Invalid answer to the offer of " + file.getName() +
+                                      " : offset " + offset + ", chunk size " + chunk);
+            }
+            started(file.getName(), fileLength, offset);
+            if (LOG.isEnabledFor(Level.INFO)) {
+                LOG.info("Sending " + file + " from offset " + offset + " in chunks of " + chunk);
+            }
+
+            channel.position(offset);
+            long sent = offset;
+            while (sent < fileLength) {
+                byte[] block = new byte[(int) Math.min(chunk, fileLength - sent)];
+                ByteBuffer buffer = ByteBuffer.wrap(block);
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer) < 0) {
+                        throw new EOFException(file + " shrank during the transfer");
+                    }
+                }
+                socket.writeBlock(block);
+                sent += block.length;
+
+                // collect the acknowledgements which already came back
+                while (in.available() >= 8) {
+                    progress(in.readLong());
+                }
+            }
+            while (acknowledged < fileLength) {
+                progress(in.readLong());
+            }
+        } finally {
+            raf.close();
+        }
+        if (LOG.isEnabledFor(Level.INFO)) {
+            LOG.info("Sent " + file + " at " + getThroughput() + " bytes/s");
+        }
+    }
+
+    /**
+     *  Receives a file offered by the remote into a directory. A partial
+     *  file left by an earlier transfer of the same file is resumed from the
+     *  last offset acknowledged, anything written after it is discarded. One
+     *  left by another file of the same name is discarded.
+     *
+     *  @param directory the directory in which the file is stored.
+     *  @return the file received.
+     *  @throws IOException if the offer is invalid or the transfer fails.
+     */
+    public File receive(File directory) throws IOException {
+        DataInputStream in = new DataInputStream(socket.getInputStream());
+        DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+
+        if (MAGIC != in.readInt()) {
+            throw new IOException("Not a file transfer");
+        }
+        int version = in.readInt();
+        // the name must not lead out of the directory.
+        String fileName = new File(in.readUTF()).getName();
+        long fileLength = in.readLong();
+        long modified = in.readLong();
+        int offered = in.readInt();
+        if ((VERSION != version) || (0 == fileName.length()) || ".".equals(fileName) || "..".equals(fileName) ||
+                (fileLength < 0) || (offered <= 0)) {
+            out.writeLong(REFUSED);
+            out.writeInt(0);
+            out.flush();
+            throw new IOException("Refused offer of '" + fileName + "' : version " + version +
+                                  ", length " + fileLength + ", chunk size " + offered);
+        }
+
+        File target = new File(directory, fileName);
+        File partial = new File(directory, fileName + PARTIAL_SUFFIX);
+        File identity = new File(directory, fileName + IDENTITY_SUFFIX);
+        RandomAccessFile raf = new RandomAccessFile(partial, "rw");
+        RandomAccessFile ids = null;
+        try {
+            FileChannel channel = raf.getChannel();
+            long offset = getAcknowledged(identity, fileLength, modified);
+            if ((offset < 0) || (offset > channel.size())) {
+                // left by another file of the same name, or of unknown origin.
+                channel.truncate(0);
+                channel.force(true);
+                writeIdentity(identity, fileLength, modified);
+                offset = 0;
+            } else {
+                // what follows the acknowledged offset may never have reached
+                // the disk intact.
+                channel.truncate(offset);
+                channel.force(true);
+            }
+            ids = new RandomAccessFile(identity, "rw");
+            int chunk = Math.min(offered, chunkSize);
+            out.writeLong(offset);
+            out.writeInt(chunk);
+            out.flush();
+            started(fileName, fileLength, offset);
+            if (LOG.isEnabledFor(Level.INFO)) {
+                LOG.info("Receiving " + target + " from offset " + offset + " in chunks of " + chunk);
+            }
+
+            channel.position(offset);
+            byte[] block = new byte[chunk];
+            long received = offset;
+            int chunks = 0;
+            while (received < fileLength) {
+                int wanted = (int) Math.min(chunk, fileLength - received);
+                in.readFully(block, 0, wanted);
+                ByteBuffer buffer = ByteBuffer.wrap(block, 0, wanted);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                received += wanted;
+                if ((0 == (++chunks % ACK_INTERVAL)) || (received == fileLength)) {
+                    // the sender takes the acknowledged data as delivered.
+                    channel.force(false);
+                    // after the length and modification time.
+                    ids.seek(16);
+                    ids.writeLong(received);
+                    ids.getFD().sync();
+                    out.writeLong(received);
+                    out.flush();
+                    progress(received);
+                }
+            }
+        } finally {
+            raf.close();
+            if (null != ids) {
+                ids.close();
+            }
+        }
+
+        if (target.exists() && !target.delete()) {
+            throw new IOException("Could not replace " + target);
+        }
+        if (!partial.renameTo(target)) {
+            throw new IOException("Could not rename " + partial + " to " + target);
+        }
+        identity.delete();
+        if (LOG.isEnabledFor(Level.INFO)) {
+            LOG.info("Received " + target + " at " + getThroughput() + " bytes/s");
+        }
+        return target;
+    }
+
+    /**
+     *  @return the name of the file being transferred, or null.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     *  @return the length of the file being transferred.
+     */
+    public long getLength() {
+        return length;
+    }
+
+    /**
+     *  @return the offset from which the transfer started, non zero when an
+     *  earlier transfer was resumed.
+     */
+    public long getResumedFrom() {
+        return resumedFrom;
+    }
+
+    /**
+     *  @return the offset up to which the receiver has written the file.
+     */
+    public long getAcknowledged() {
+        return acknowledged;
+    }
+
+    /**
+     *  @return the average throughput of the transfer so far, in bytes per
+     *  second, not counting the part resumed from.
+     */
+    public long getThroughput() {
+        long elapsed = lastProgressAt - startedAt;
+        if (elapsed <= 0) {
+            return 0;
+        }
+        return ((acknowledged - resumedFrom) * 1000) / elapsed;
+    }
+
+    /**
+     *  @return the offset up to which the partial file was acknowledged if the
+     *  identity file says it belongs to the file of the given length and
+     *  modification time, -1 otherwise.
+     */
+    private static long getAcknowledged(File identity, long fileLength, long modified) {
+        if (!identity.exists()) {
+            return -1;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new FileInputStream(identity));
+            if ((in.readLong() != fileLength) || (in.readLong() != modified)) {
+                return -1;
+            }
+            long acknowledged = in.readLong();
+            return ((acknowledged >= 0) && (acknowledged <= fileLength)) ? acknowledged : -1;
+        } catch (IOException unreadable) {
+            return -1;
+        } finally {
+            if (null != in) {
+                try {
+                    in.close();
+                } catch (IOException ignored) {
+                    // ignored
+                }
+            }
+        }
+    }
+
+    /**
+     *  Records which file the partial file belongs to, before any of it is
+     *  written. Nothing of it is acknowledged yet.
+     */
+    private static void writeIdentity(File identity, long fileLength, long modified) throws IOException {
+        FileOutputStream stream = new FileOutputStream(identity);
+        try {
+            DataOutputStream out = new DataOutputStream(stream);
+            out.writeLong(fileLength);
+            out.writeLong(modified);
+            out.writeLong(0);
+            out.flush();
+            stream.getFD().sync();
+        } finally {
+            stream.close();
+        }
+    }
+
+    private void started(String name, long length, long offset) {
+        this.name = name;
+        this.length = length;
+        this.resumedFrom = offset;
+        this.acknowledged = offset;
+        this.startedAt = System.currentTimeMillis();
+        this.lastProgressAt = startedAt;
+    }
+
+    private void progress(long offset) throws IOException {
+        if ((offset < acknowledged) || (offset > length)) {
+            throw new IOException("Invalid acknowledgement of offset " + offset);
+        }
+        acknowledged = offset;
+        lastProgressAt = System.currentTimeMillis();
+        ProgressListener current = listener;
+        if (null != current) {
+            try {
+                current.transferProgress(this);
+            } catch (Throwable all) {
+                if (LOG.isEnabledFor(Level.WARN)) {
+                    LOG.warn("Uncaught Throwable in listener", all);
+                }
+            }
+        }
+    }
+}
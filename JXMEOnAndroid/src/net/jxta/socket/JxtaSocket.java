@@ -84,9 +84,10 @@ import net.jxta.endpoint.OutgoingMessageEvent;
 import net.jxta.endpoint.OutgoingMessageEventListener;
 import net.jxta.endpoint.StringMessageElement;
 import net.jxta.id.ID;
+import net.jxta.impl.util.LockFreeQueue;
 import net.jxta.impl.util.UnbiasedQueue;
 import net.jxta.impl.util.pipe.reliable.Defs;
-import net.jxta.impl.util.pipe.reliable.FixedFlowControl;
+import net.jxta.impl.util.pipe.reliable.AdaptiveFlowControl;
 import net.jxta.impl.util.pipe.reliable.OutgoingMsgrAdaptor;
 import net.jxta.impl.util.pipe.reliable.ReliableInputStream;
 import net.jxta.impl.util.pipe.reliable.ReliableOutputStream;
@@ -144,14 +145,18 @@ public class JxtaSocket extends Socket implements PipeMsgListener, OutputPipeLis
     protected int timeout = 60000;
     protected int retryTimeout = 60000;
     protected int maxRetryTimeout = MAXRETRYTIMEOUT;
-    protected int windowSize = 20;
+    protected int windowSize = Defs.MAXQUEUESIZE;
+    protected int coalesceBlockSize = 0;
+    protected int coalesceDelay = 200;
+    protected int ackEvery = 1;
+    protected int ackDelay = 0;
     protected final String closeLock  = new String("closeLock");
     protected final String acceptLock = new String("acceptLock");
     protected final String instrLock  = new String("instrLock");
     protected final String finalLock  = new String("finalLock");
     protected boolean closed = false;
     protected boolean bound = false;
-    protected final UnbiasedQueue queue = UnbiasedQueue.synchronizedQueue(new UnbiasedQueue(windowSize, false));
+    protected final UnbiasedQueue queue = new LockFreeQueue(windowSize, false);
     protected Credential credential = null;
     protected StructuredDocument credentialDoc = null;
     protected StructuredDocument myCredentialDoc = null;
@@ -650,6 +655,7 @@ public class JxtaSocket extends Socket implements PipeMsgListener, OutputPipeLis
         }
         if (ris == null) {
             ris = new ReliableInputStream(outgoing, retryTimeout);
+            ris.setDelayedAck(ackEvery, ackDelay);
         }
     }
 
@@ -703,7 +709,8 @@ public class JxtaSocket extends Socket implements PipeMsgListener, OutputPipeLis
                 outgoing = new OutgoingMsgrAdaptor(msgr, retryTimeout);
             }
             if (ros == null) {
-                ros = new ReliableOutputStream(outgoing, new FixedFlowControl(windowSize));
+                ros = new ReliableOutputStream(outgoing, new AdaptiveFlowControl(windowSize, windowSize));
+                ros.setCoalescing(coalesceBlockSize, coalesceDelay);
             }
         }
         osCreated = true;
@@ -715,6 +722,11 @@ public class JxtaSocket extends Socket implements PipeMsgListener, OutputPipeLis
      */
     public void close() throws IOException {
 
+        // Send any coalesced data ahead of the close request.
+        if (isStream && !isClosed()) {
+            flushPending();
+        }
+
         synchronized (closeLock) {
             if (closed) {
                 return;
@@ -1249,7 +1261,10 @@ public class JxtaSocket extends Socket implements PipeMsgListener, OutputPipeLis
     }
 
     /**
-     *  When in reliable mode, sets the Reliable library window size
+     *  When in reliable mode, sets the Reliable library window size, the
+     *  largest send window used. The send window starts small and adapts to
+     *  the path up to this size, which is also bounded by the receiver's
+     *  queue. Defaults to the size of the receiver's queue.
      *
      * @param  windowSize              The new window size value
      * @exception  IOException  if an I/O error occurs
@@ -1261,6 +1276,49 @@ public class JxtaSocket extends Socket implements PipeMsgListener, OutputPipeLis
         this.windowSize = windowSize;
     }
 
+    /**
+     *  When in reliable mode, packs small writes into blocks of up to
+     *  <code>blockSize</code> bytes instead of sending each write as its
+     *  own message. A partial block is held back while earlier data is
+     *  unacknowledged, but no longer than <code>flushDelay</code>
+     *  milliseconds. This is similar to the Nagle algorithm of TCP.
+     *
+     * @param  blockSize               The block size, or 0 to disable coalescing (the default)
+     * @param  flushDelay              The maximum delay in milliseconds added to a write
+     * @exception  SocketException  if the socket is already bound
+     */
+    public synchronized void setWriteCoalescing(int blockSize, int flushDelay) throws SocketException {
+        if (isBound()) {
+            throw new SocketException("Socket bound. Can not change write coalescing");
+        }
+        if ((blockSize < 0) || (flushDelay < 0)) {
+            throw new IllegalArgumentException("negative block size or flush delay");
+        }
+        this.coalesceBlockSize = blockSize;
+        this.coalesceDelay = flushDelay;
+    }
+
+    /**
+     *  When in reliable mode, acknowledges up to <code>ackEvery</code>
+     *  received blocks with a single ACK, delaying an ACK by at most
+     *  <code>ackDelay</code> milliseconds. This reduces the traffic sent back
+     *  to the remote, at the price of a slightly higher round trip time.
+     *
+     * @param  ackEvery                The number of blocks per ACK, 1 to acknowledge every block (the default)
+     * @param  ackDelay                The maximum delay in milliseconds of an ACK
+     * @exception  SocketException  if the socket is already bound
+     */
+    public synchronized void setDelayedAck(int ackEvery, int ackDelay) throws SocketException {
+        if (isBound()) {
+            throw new SocketException("Socket bound. Can not change delayed ACKs");
+        }
+        if ((ackEvery < 1) || (ackDelay < 0)) {
+            throw new IllegalArgumentException("Invalid delayed ACK parameters");
+        }
+        this.ackEvery = ackEvery;
+        this.ackDelay = ackDelay;
+    }
+
     /**
      * Returns the closed state of the JxtaServerSocket.
      *
@@ -1302,6 +1360,31 @@ public class JxtaSocket extends Socket implements PipeMsgListener, OutputPipeLis
         msgr.sendMessageB(msg, null, null);
     }
 
+    /**
+     * Sends a block of data as one message, without copying it. The data
+     * follows whatever was written to the socket output streams and
+     * flushed. The caller must not modify the block afterwards.
+     *
+     * @param  block            the data.
+     * @exception  IOException  if an I/O error occurs
+     */
+    protected void writeBlock(byte[] block) throws IOException {
+        checkState();
+        if (isStream) {
+            // reliable mode, ros != null
+            ros.writeBlock(block);
+            return;
+        }
+
+        Message msg = new Message();
+        msg.addMessageElement(JxtaServerSocket.nameSpace,
+                              new ByteArrayMessageElement(JxtaServerSocket.dataTag,
+                                                          MimeMediaType.AOS,
+                                                          block,
+                                                          null));
+        msgr.sendMessageB(msg, null, null);
+    }
+
     /**
      * Performs on behalf of JxtaSocketInputStream.
      *
@@ -1543,6 +1626,28 @@ public class JxtaSocket extends Socket implements PipeMsgListener, OutputPipeLis
         throw new SocketException("Operation not supported");
     }
 
+    /**
+     *  Sends the data still waiting in the reliable output stream's
+     *  coalescing buffer, within the socket timeout. Failure to do so only
+     *  loses that data: the socket must still be closed.
+     */
+    private void flushPending() {
+        if (ros == null) {
+            return;
+        }
+        try {
+            if (!ros.flush(timeout)) {
+                if (LOG.isEnabledFor(Level.WARN)) {
+                    LOG.warn("Pending data could not be sent within " + timeout + "ms");
+                }
+            }
+        } catch (IOException failed) {
+            if (LOG.isEnabledFor(Level.INFO)) {
+                LOG.info("Could not send pending data", failed);
+            }
+        }
+    }
+
     /**
      *{@inheritDoc}
      */
@@ -1562,6 +1667,7 @@ public class JxtaSocket extends Socket implements PipeMsgListener, OutputPipeLis
      */
     public void shutdownOutput() throws IOException {
         if (isStream) {
+            flushPending();
             long quitAt = System.currentTimeMillis() + timeout;
             while (true) {
                 if (ros == null) {
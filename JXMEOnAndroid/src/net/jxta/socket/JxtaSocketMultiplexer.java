@@ -0,0 +1,875 @@
+/*
+ *
+ * $Id$
+ *
+ * Copyright (c) 2001 Sun Microsystems, Inc.  All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *
+ * 3. The end-user documentation included with the redistribution,
+ *    if any, must include the following acknowledgment:
+ *       "This product includes software developed by the
+ *       Sun Microsystems, Inc. for Project JXTA."
+ *    Alternately, this acknowledgment may appear in the software itself,
+ *    if and wherever such third-party acknowledgments normally appear.
+ *
+ * 4. The names "Sun", "Sun Microsystems, Inc.", "JXTA" and "Project JXTA"
+ *    must not be used to endorse or promote products derived from this
+ *    software without prior written permission. For written
+ *    permission, please contact Project JXTA at http://www.jxta.org.
+ *
+ * 5. Products derived from this software may not be called "JXTA",
+ *    nor may "JXTA" appear in their name, without prior written
+ *    permission of Sun.
+ *
+ * THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED.  IN NO EVENT SHALL SUN MICROSYSTEMS OR
+ * ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ * USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ * OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ *
+ * ====================================================================
+ *
+ * This software consists of voluntary contributions made by many
+ * individuals on behalf of Project JXTA.  For more
+ * information on Project JXTA, please see
+ * <http://www.jxta.org/>.
+ *
+ * This license is based on the BSD license adopted by the Apache Foundation.
+ */
+
+package net.jxta.socket;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+/**
+ *  Carries many independent logical streams over one connected
+ *  {@link JxtaSocket}, so that the pipe resolution, the accept handshake and
+ *  the reliable stream setup are paid once per pair of peers.
+ *
+ *  <p/>Both ends wrap their socket in a multiplexer, one of them as the
+ *  initiator. Either end may then open streams, which the other end
+ *  accepts. Each stream has its own input and output streams, and may be
+ *  half closed like a socket.
+ *
+ *  <p/>Data travels in frames of at most {@link #MAX_FRAME_SIZE} bytes, each
+ *  sent as one block of the socket. Every stream is flow controlled on its
+ *  own: a writer may only have {@link #STREAM_WINDOW} bytes in flight which
+ *  the remote application has not read yet, and the reader grants credit
+ *  back as it reads. The frames of a stream which is not read are therefore
+ *  never more than its window, and a slow or bulk stream cannot hold up the
+ *  frames of the others. A stream which overruns its window is reset on its
+ *  own, the other streams are not affected.
+ *
+ *  <p/>Frames are sent by a sender thread. The data frames waiting to be
+ *  sent are queued per stream and the streams take turns, one frame each,
+ *  so that a bulk stream can not take the socket from the others. Window
+ *  and other control frames go ahead of the data.
+ */
+public class JxtaSocketMultiplexer {
+
+    /**
+     *  Log4J Logger
+     */
+    private final static Logger LOG = Logger.getLogger(JxtaSocketMultiplexer.class.getName());
+
+    /**
+     *  Largest payload of a frame, in bytes.
+     */
+    public final static int MAX_FRAME_SIZE = 8 * 1024;
+
+    /**
+     *  Number of unread bytes a stream may have in flight.
+     */
+    public final static int STREAM_WINDOW = 64 * 1024;
+
+    /**
+     *  Frame header : stream id, type and payload length.
+     */
+    private final static int HEADER_SIZE = 4 + 1 + 4;
+
+    /**
+     *  Frame types.
+     */
+    private final static byte OPEN = 0;
+    private final static byte DATA = 1;
+    private final static byte WINDOW = 2;
+    private final static byte CLOSE = 3;
+    private final static byte RESET = 4;
+
+    private final JxtaSocket socket;
+    private final DataInputStream in;
+
+    /**
+     *  The open streams by id. Also guards acceptQueue, nextId and closed.
+     */
+    private final Map streams = new HashMap();
+
+    /**
+     *  Streams opened by the remote and not accepted yet.
+     */
+    private final List acceptQueue = new ArrayList();
+
+    /**
+     *  Id of the next stream we open. The initiator uses odd ids and the
+     *  other end even ids.
+     */
+    private int nextId;
+
+    private boolean closed = false;
+
+    /**
+     *  Why the multiplexer stopped, if it did on its own.
+     */
+    private IOException failure = null;
+
+    /**
+     *  Guards the frames waiting to be sent and the state of the sender.
+     */
+    private final Object sendLock = new String("send lock");
+
+    /**
+     *  Control frames waiting to be sent, ahead of any data.
+     */
+    private final LinkedList control = new LinkedList();
+
+    /**
+     *  Data and close frames waiting to be sent, as a list of frames per
+     *  stream id.
+     */
+    private final Map pending = new HashMap();
+
+    /**
+     *  Ids of the streams having frames in <code>pending</code>, in the order
+     *  they are served.
+     */
+    private final LinkedList ready = new LinkedList();
+
+    /**
+     *  True while the sender writes a frame.
+     */
+    private boolean sending = false;
+
+    /**
+     *  Why the sender stopped, if it did.
+     */
+    private IOException sendFailure = null;
+
+    /**
+     *  Creates a multiplexer over a connected socket and starts reading
+     *  from it. The socket must not be used directly afterwards.
+     *
+     *  @param socket the socket.
+     *  @param initiator true at one end of the socket, false at the other.
+     *  @throws IOException if the socket streams can not be obtained.
+     */
+    public JxtaSocketMultiplexer(JxtaSocket socket, boolean initiator) throws IOException {
+        this.socket = socket;
+        this.nextId = initiator ? 1 : 2;
+        this.in = new DataInputStream(socket.getInputStream());
+
+        // make sure the output side is ready before frames are sent.
+        socket.getOutputStream();
+
+        Thread reader = new Thread(new Runnable() {
+                                       public void run() {
+                                           readFrames();
+                                       }
+                                   }, "JxtaSocketMultiplexer reader for " + socket);
+        reader.setDaemon(true);
+        reader.start();
+
+        Thread sender = new Thread(new Runnable() {
+                                       public void run() {
+                                           sendFrames();
+                                       }
+                                   }, "JxtaSocketMultiplexer sender for " + socket);
+        sender.setDaemon(true);
+        sender.start();
+    }
+
+    /**
+     *  Opens a new stream to the remote.
+     *
+     *  @return the stream.
+     *  @throws IOException if the multiplexer is closed.
+     */
+    public Stream openStream() throws IOException {
+        Stream stream;
+        synchronized (streams) {
+            checkOpen();
+            stream = new Stream(nextId);
+            nextId += 2;
+            streams.put(new Integer(stream.id), stream);
+        }
+        sendFrame(stream.id, OPEN, null, 0, 0);
+        return stream;
+    }
+
+    /**
+     *  Waits for the remote to open a stream.
+     *
+     *  @return the stream.
+     *  @throws IOException if the multiplexer is or gets closed.
+     */
+    public Stream accept() throws IOException {
+        synchronized (streams) {
+            while (acceptQueue.isEmpty()) {
+                checkOpen();
+                try {
+                    streams.wait();
+                } catch (InterruptedException woken) {
+                    throw new InterruptedIOException("Interrupted while accepting");
+                }
+            }
+            return (Stream) acceptQueue.remove(0);
+        }
+    }
+
+    /**
+     *  Closes the multiplexer, all its streams and the socket. The frames
+     *  already queued are sent first.
+     *
+     *  @throws IOException if closing the socket fails.
+     */
+    public void close() throws IOException {
+        IOException cause = new IOException("Multiplexer closed");
+        if (!shutdown(cause)) {
+            return;
+        }
+        synchronized (sendLock) {
+            while ((sending || !control.isEmpty() || !ready.isEmpty()) && (null == sendFailure)) {
+                try {
+                    sendLock.wait();
+                } catch (InterruptedException woken) {
+                    Thread.interrupted();
+                    break;
+                }
+            }
+        }
+        stopSending(cause);
+        socket.close();
+    }
+
+    /**
+     *  @return true if the multiplexer is closed.
+     */
+    public boolean isClosed() {
+        synchronized (streams) {
+            return closed;
+        }
+    }
+
+    /**
+     *  @return the socket carrying the streams.
+     */
+    public JxtaSocket getSocket() {
+        return socket;
+    }
+
+    private void checkOpen() throws IOException {
+        if (closed) {
+            if (null != failure) {
+                IOException failed = new IOException("Multiplexer failed : " + failure.getMessage());
+                failed.initCause(failure);
+                throw failed;
+            }
+            throw new IOException("Multiplexer closed");
+        }
+    }
+
+    /**
+     *  Marks the multiplexer closed and fails every stream.
+     *
+     *  @return false if it was already closed.
+     */
+    private boolean shutdown(IOException cause) {
+        List all;
+        synchronized (streams) {
+            if (closed) {
+                return false;
+            }
+            closed = true;
+            failure = cause;
+            all = new ArrayList(streams.values());
+            streams.clear();
+            acceptQueue.clear();
+            streams.notifyAll();
+        }
+        Iterator eachStream = all.iterator();
+        while (eachStream.hasNext()) {
+            ((Stream) eachStream.next()).reset(cause.getMessage());
+        }
+        return true;
+    }
+
+    private Stream getStream(int id) {
+        synchronized (streams) {
+            return (Stream) streams.get(new Integer(id));
+        }
+    }
+
+    private void unregister(Stream stream) {
+        synchronized (streams) {
+            streams.remove(new Integer(stream.id));
+        }
+    }
+
+    /**
+     *  Resets a stream which broke the protocol, leaving the others alone.
+     */
+    private void resetStream(Stream stream, String reason) throws IOException {
+        if (LOG.isEnabledFor(Level.WARN)) {
+            LOG.warn("Resetting stream " + stream.id + " : " + reason);
+        }
+        unregister(stream);
+        stream.reset(reason);
+        sendFrame(stream.id, RESET, null, 0, 0);
+    }
+
+    /**
+     *  Queues a frame to be sent as one block of the socket. Data and close
+     *  frames are sent in order with the other frames of their stream, the
+     *  other frames ahead of them. A reset drops what its stream still had
+     *  to send.
+     */
+    private void sendFrame(int id, byte type, byte[] payload, int offset, int length) throws IOException {
+        byte[] frame = new byte[HEADER_SIZE + length];
+        putInt(frame, 0, id);
+        frame[4] = type;
+        putInt(frame, 5, length);
+        if (length > 0) {
+            System.arraycopy(payload, offset, frame, HEADER_SIZE, length);
+        }
+        synchronized (sendLock) {
+            if (null != sendFailure) {
+                IOException failed = new IOException("Multiplexer failed : " + sendFailure.getMessage());
+                failed.initCause(sendFailure);
+                throw failed;
+            }
+            Integer key = new Integer(id);
+            if ((DATA == type) || (CLOSE == type)) {
+                LinkedList frames = (LinkedList) pending.get(key);
+                if (null == frames) {
+                    frames = new LinkedList();
+                    pending.put(key, frames);
+                    ready.addLast(key);
+                }
+                frames.addLast(frame);
+            } else {
+                if ((RESET == type) && (null != pending.remove(key))) {
+                    ready.remove(key);
+                }
+                control.addLast(frame);
+            }
+            sendLock.notifyAll();
+        }
+    }
+
+    /**
+     *  Sends the queued frames until the socket fails or the multiplexer is
+     *  closed, control frames first and then one data frame per stream in
+     *  turn.
+     */
+    private void sendFrames() {
+        IOException cause;
+        try {
+            while (true) {
+                byte[] frame;
+                synchronized (sendLock) {
+                    sending = false;
+                    while (control.isEmpty() && ready.isEmpty()) {
+                        if (null != sendFailure) {
+                            return;
+                        }
+                        // wakes up close() once everything is sent.
+                        sendLock.notifyAll();
+                        sendLock.wait();
+                    }
+                    if (null != sendFailure) {
+                        return;
+                    }
+                    if (!control.isEmpty()) {
+                        frame = (byte[]) control.removeFirst();
+                    } else {
+                        Integer key = (Integer) ready.removeFirst();
+                        LinkedList frames = (LinkedList) pending.get(key);
+                        frame = (byte[]) frames.removeFirst();
+                        if (frames.isEmpty()) {
+                            pending.remove(key);
+                        } else {
+                            ready.addLast(key);
+                        }
+                    }
+                    sending = true;
+                }
+                socket.writeBlock(frame);
+            }
+        } catch (InterruptedException woken) {
+            cause = new IOException("Multiplexer sender interrupted");
+        } catch (IOException failed) {
+            cause = failed;
+        } catch (Throwable all) {
+            LOG.fatal("Uncaught Throwable in thread :" + Thread.currentThread().getName(), all);
+            cause = new IOException("Multiplexer failed : " + all);
+        }
+        stopSending(cause);
+        if (shutdown(cause)) {
+            if (LOG.isEnabledFor(Level.INFO)) {
+                LOG.info("Multiplexer stopped : " + cause.getMessage());
+            }
+            try {
+                socket.close();
+            } catch (IOException ignored) {}
+        }
+    }
+
+    /**
+     *  Stops the sender and drops the frames it has not sent.
+     */
+    private void stopSending(IOException cause) {
+        synchronized (sendLock) {
+            if (null == sendFailure) {
+                sendFailure = cause;
+            }
+            sending = false;
+            control.clear();
+            pending.clear();
+            ready.clear();
+            sendLock.notifyAll();
+        }
+    }
+
+    private void sendWindow(int id, int credit) throws IOException {
+        byte[] payload = new byte[4];
+        putInt(payload, 0, credit);
+        sendFrame(id, WINDOW, payload, 0, payload.length);
+    }
+
+    private static void putInt(byte[] buf, int offset, int value) {
+        buf[offset] = (byte) (value >>> 24);
+        buf[offset + 1] = (byte) (value >>> 16);
+        buf[offset + 2] = (byte) (value >>> 8);
+        buf[offset + 3] = (byte) value;
+    }
+
+    private static int getInt(byte[] buf, int offset) {
+        return ((buf[offset] & 0xFF) << 24) |
+               ((buf[offset + 1] & 0xFF) << 16) |
+               ((buf[offset + 2] & 0xFF) << 8) |
+               (buf[offset + 3] & 0xFF);
+    }
+
+    /**
+     *  Reads and dispatches frames until the socket fails or is closed. Never
+     *  blocks on a stream, so that every stream keeps being served.
+     */
+    private void readFrames() {
+        IOException cause;
+        try {
+            while (true) {
+                int id = in.readInt();
+                byte type = in.readByte();
+                int length = in.readInt();
+                if ((length < 0) || (length > MAX_FRAME_SIZE)) {
+                    throw new IOException("Invalid frame length " + length + " for stream " + id);
+                }
+                byte[] payload = new byte[length];
+                in.readFully(payload);
+
+                if (OPEN == type) {
+                    opened(id);
+                    continue;
+                }
+
+                Stream stream = getStream(id);
+                if (null == stream) {
+                    // closed or reset here already.
+                    if (LOG.isEnabledFor(Level.DEBUG)) {
+                        LOG.debug("Dropped frame of type " + type + " for unknown stream " + id);
+                    }
+                    continue;
+                }
+                switch (type) {
+                case DATA:
+                    if (!stream.received(payload)) {
+                        resetStream(stream, "Stream overran its window");
+                    }
+                    break;
+
+                case WINDOW:
+                    if ((4 != length) || !stream.credited(getInt(payload, 0))) {
+                        resetStream(stream, "Invalid credit for stream");
+                    }
+                    break;
+
+                case CLOSE:
+                    stream.remoteClosed();
+                    break;
+
+                case RESET:
+                    unregister(stream);
+                    stream.reset("Stream reset by the remote");
+                    break;
+
+                default:
+                    throw new IOException("Invalid frame type " + type + " for stream " + id);
+                }
+            }
+        } catch (EOFException eof) {
+            cause = new IOException("Connection closed by the remote");
+        } catch (IOException failed) {
+            cause = failed;
+        } catch (Throwable all) {
+            LOG.fatal("Uncaught Throwable in thread :" + Thread.currentThread().getName(), all);
+            cause = new IOException("Multiplexer failed : " + all);
+        }
+        if (shutdown(cause)) {
+            if (LOG.isEnabledFor(Level.INFO)) {
+                LOG.info("Multiplexer stopped : " + cause.getMessage());
+            }
+            stopSending(cause);
+            try {
+                socket.close();
+            } catch (IOException ignored) {}
+        }
+    }
+
+    private void opened(int id) throws IOException {
+        synchronized (streams) {
+            if (closed) {
+                return;
+            }
+            if (((id & 1) == (nextId & 1)) || streams.containsKey(new Integer(id))) {
+                throw new IOException("Invalid stream id " + id + " opened by the remote");
+            }
+            Stream stream = new Stream(id);
+            streams.put(new Integer(id), stream);
+            acceptQueue.add(stream);
+            streams.notifyAll();
+        }
+    }
+
+    /**
+     *  A logical stream.
+     */
+    public class Stream {
+
+        private final int id;
+
+        /**
+         *  Received data not read yet, as byte arrays. All the state of the
+         *  stream is guarded by the stream itself.
+         */
+        private final LinkedList received = new LinkedList();
+
+        /**
+         *  Bytes of the first received array already read.
+         */
+        private int readOffset = 0;
+
+        /**
+         *  Bytes received and not read yet.
+         */
+        private int buffered = 0;
+
+        /**
+         *  Bytes read and not credited back to the remote yet.
+         */
+        private int consumed = 0;
+
+        /**
+         *  Bytes we may still send.
+         */
+        private int sendCredit = STREAM_WINDOW;
+
+        private boolean outputClosed = false;
+        private boolean remoteClosed = false;
+        private boolean closed = false;
+        private String resetReason = null;
+
+        private final InputStream input = new InputStream() {
+            public int read() throws IOException {
+                byte[] one = new byte[1];
+                int n = Stream.this.read(one, 0, 1);
+                return (n < 0) ? -1 : (one[0] & 0xFF);
+            }
+
+            public int read(byte[] b, int off, int len) throws IOException {
+                return Stream.this.read(b, off, len);
+            }
+
+            public int available() {
+                synchronized (Stream.this) {
+                    return buffered;
+                }
+            }
+
+            public void close() throws IOException {
+                Stream.this.close();
+            }
+        };
+
+        private final OutputStream output = new OutputStream() {
+            public void write(int b) throws IOException {
+                Stream.this.write(new byte[] {(byte) b}, 0, 1);
+            }
+
+            public void write(byte[] b, int off, int len) throws IOException {
+                Stream.this.write(b, off, len);
+            }
+
+            public void close() throws IOException {
+                closeOutput();
+            }
+        };
+
+        Stream(int id) {
+            this.id = id;
+        }
+
+        /**
+         *  @return the id of the stream, unique within its multiplexer.
+         */
+        public int getId() {
+            return id;
+        }
+
+        /**
+         *  @return the stream from which the data sent by the remote is read.
+         *  It ends once the remote has closed its output.
+         */
+        public InputStream getInputStream() {
+            return input;
+        }
+
+        /**
+         *  @return the stream to which data for the remote is written. Closing
+         *  it half closes the stream.
+         */
+        public OutputStream getOutputStream() {
+            return output;
+        }
+
+        /**
+         *  Closes the stream. If the remote has not finished sending, the
+         *  stream is reset and the rest of its data is discarded.
+         *
+         *  @throws IOException if the close can not be sent.
+         */
+        public void close() throws IOException {
+            boolean abort;
+            boolean sendClose;
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                abort = !remoteClosed && (null == resetReason);
+                sendClose = !outputClosed && (null == resetReason);
+                outputClosed = true;
+                received.clear();
+                buffered = 0;
+                notifyAll();
+            }
+            unregister(this);
+            if (abort) {
+                sendFrame(id, RESET, null, 0, 0);
+            } else if (sendClose) {
+                sendFrame(id, CLOSE, null, 0, 0);
+            }
+        }
+
+        /**
+         *  Half closes the stream: the remote reads the end of the stream once
+         *  it has read what was written.
+         */
+        private void closeOutput() throws IOException {
+            boolean unregister;
+            synchronized (this) {
+                if (outputClosed) {
+                    return;
+                }
+                outputClosed = true;
+                unregister = remoteClosed;
+                notifyAll();
+            }
+            sendFrame(id, CLOSE, null, 0, 0);
+            if (unregister) {
+                unregister(this);
+            }
+        }
+
+        private int read(byte[] b, int off, int len) throws IOException {
+            if ((off < 0) || (len < 0) || (off + len > b.length)) {
+                throw new IndexOutOfBoundsException();
+            }
+            if (0 == len) {
+                return 0;
+            }
+            int copied = 0;
+            int credit = 0;
+            synchronized (this) {
+                while (received.isEmpty()) {
+                    if (remoteClosed && !closed) {
+                        return -1;
+                    }
+                    checkUsable();
+                    try {
+                        wait();
+                    } catch (InterruptedException woken) {
+                        throw new InterruptedIOException("Interrupted while reading");
+                    }
+                }
+                while ((copied < len) && !received.isEmpty()) {
+                    byte[] first = (byte[]) received.getFirst();
+                    int n = Math.min(len - copied, first.length - readOffset);
+                    System.arraycopy(first, readOffset, b, off + copied, n);
+                    copied += n;
+                    readOffset += n;
+                    if (readOffset == first.length) {
+                        received.removeFirst();
+                        readOffset = 0;
+                    }
+                }
+                buffered -= copied;
+                consumed += copied;
+                // credit back in batches rather than on every read.
+                if (!remoteClosed && (consumed >= STREAM_WINDOW / 2)) {
+                    credit = consumed;
+                    consumed = 0;
+                }
+            }
+            if (credit > 0) {
+                sendWindow(id, credit);
+            }
+            return copied;
+        }
+
+        private void write(byte[] b, int off, int len) throws IOException {
+            if ((off < 0) || (len < 0) || (off + len > b.length)) {
+                throw new IndexOutOfBoundsException();
+            }
+            while (len > 0) {
+                int n;
+                synchronized (this) {
+                    while (true) {
+                        checkUsable();
+                        if (outputClosed) {
+                            throw new IOException("Stream output closed");
+                        }
+                        if (sendCredit > 0) {
+                            break;
+                        }
+                        try {
+                            wait();
+                        } catch (InterruptedException woken) {
+                            throw new InterruptedIOException("Interrupted while writing");
+                        }
+                    }
+                    n = Math.min(Math.min(len, sendCredit), MAX_FRAME_SIZE);
+                    sendCredit -= n;
+                }
+                sendFrame(id, DATA, b, off, n);
+                off += n;
+                len -= n;
+            }
+        }
+
+        private void checkUsable() throws IOException {
+            if (null != resetReason) {
+                throw new IOException(resetReason);
+            }
+            if (closed) {
+                throw new IOException("Stream closed");
+            }
+        }
+
+        /**
+         *  @return false if the remote sent more than its window or sent
+         *  after closing its output.
+         */
+        private synchronized boolean received(byte[] data) {
+            if (closed) {
+                // we no longer read, but the remote does not know it yet.
+                return true;
+            }
+            if (remoteClosed || (buffered + data.length > STREAM_WINDOW)) {
+                return false;
+            }
+            if (data.length > 0) {
+                received.add(data);
+                buffered += data.length;
+                notifyAll();
+            }
+            return true;
+        }
+
+        /**
+         *  @return false if the credit is not positive or exceeds the window.
+         */
+        private synchronized boolean credited(int credit) {
+            if ((credit <= 0) || (sendCredit + credit > STREAM_WINDOW)) {
+                return false;
+            }
+            sendCredit += credit;
+            notifyAll();
+            return true;
+        }
+
+        private void remoteClosed() {
+            boolean unregister;
+            synchronized (this) {
+                remoteClosed = true;
+                unregister = outputClosed;
+                notifyAll();
+            }
+            if (unregister) {
+                unregister(this);
+            }
+        }
+
+        private synchronized void reset(String reason) {
+            if (null == resetReason) {
+                resetReason = reason;
+            }
+            if (!remoteClosed) {
+                // incomplete, the data is not worth reading anymore.
+                received.clear();
+                buffered = 0;
+            }
+            notifyAll();
+        }
+    }
+}
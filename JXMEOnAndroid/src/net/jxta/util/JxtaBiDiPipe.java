@@ -88,11 +88,12 @@ import net.jxta.pipe.PipeMsgListener;
 import net.jxta.pipe.PipeService;
 import net.jxta.protocol.PeerAdvertisement;
 import net.jxta.protocol.PipeAdvertisement;
+import net.jxta.impl.util.LockFreeQueue;
 import net.jxta.impl.util.UnbiasedQueue;
 import net.jxta.impl.util.pipe.reliable.OutgoingMsgrAdaptor;
 import net.jxta.impl.util.pipe.reliable.ReliableInputStream;
 import net.jxta.impl.util.pipe.reliable.ReliableOutputStream;
-import net.jxta.impl.util.pipe.reliable.FixedFlowControl;
+import net.jxta.impl.util.pipe.reliable.AdaptiveFlowControl;
 import net.jxta.impl.util.pipe.reliable.Defs;
 
 import org.apache.log4j.Level;
@@ -130,7 +131,7 @@ public class JxtaBiDiPipe implements PipeMsgListener, OutputPipeListener,  Relia
     protected int retryTimeout = 60000;
     protected int maxRetryTimeout = MAXRETRYTIMEOUT;
     private UnbiasedQueue queue;
-    protected int windowSize = 20;
+    protected int windowSize = Defs.MAXQUEUESIZE;
     protected PeerGroup group;
     protected PipeAdvertisement pipeAdv;
     protected PipeAdvertisement myPipeAdv;
@@ -185,7 +186,7 @@ public class JxtaBiDiPipe implements PipeMsgListener, OutputPipeListener,  Relia
         this.in = pipeSvc.createInputPipe(pipe, this);
         this.msgr = msgr;
         this.isReliable = isReliable;
-        queue = UnbiasedQueue.synchronizedQueue(new UnbiasedQueue(100, false));
+        queue = new LockFreeQueue(100, false);
         createRLib();
         setBound();
     }
@@ -378,7 +379,7 @@ public class JxtaBiDiPipe implements PipeMsgListener, OutputPipeListener,  Relia
             throw new IOException("Interrupted");
         }
         if (msgListener == null) {
-            queue = UnbiasedQueue.synchronizedQueue(new UnbiasedQueue());
+            queue = new LockFreeQueue();
         }
         setBound();
     }
@@ -392,7 +393,7 @@ public class JxtaBiDiPipe implements PipeMsgListener, OutputPipeListener,  Relia
                 outgoing = new OutgoingMsgrAdaptor(msgr, timeout);
             }
             if (ros == null) {
-                ros = new ReliableOutputStream(outgoing, new FixedFlowControl(20));
+                ros = new ReliableOutputStream(outgoing, new AdaptiveFlowControl(windowSize, windowSize));
             }
             if (ris == null) {
                 ris = new ReliableInputStream(outgoing, timeout, this);
@@ -414,6 +415,30 @@ public class JxtaBiDiPipe implements PipeMsgListener, OutputPipeListener,  Relia
         this.isReliable = reliable;
     }
 
+    /**
+     *  When in reliable mode, gets the largest send window used.
+     *
+     *@return    The windowSize value
+     */
+    public int getWindowSize() {
+        return windowSize;
+    }
+
+    /**
+     *  When in reliable mode, sets the largest send window used. The send
+     *  window starts small and adapts to the path up to this size, which is
+     *  also bounded by the receiver's queue.
+     *
+     *@param  windowSize The new window size value
+     * @throws IOException if pipe is bound
+     */
+    public void setWindowSize(int windowSize) throws IOException {
+        if (isBound()) {
+            throw new IOException("Can not set the window size after pipe is bound");
+        }
+        this.windowSize = windowSize;
+    }
+
     /**
      *  obtain the cred doc from the group object
      *
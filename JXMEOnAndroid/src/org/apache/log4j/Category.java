@@ -58,48 +58,138 @@ import java.util.Collections;
 import java.util.Enumeration;
 import java.util.ResourceBundle;
 
+/**
+ *  A named logger. Checking whether a level is enabled is a single read of
+ *  the threshold which the {@link LogManager} keeps up to date, and enabled
+ *  events are handed to the {@link LogBuffer} without being formatted.
+ *
+ *  <p/>The methods taking a message pattern replace each <code>{}</code> in
+ *  the pattern with the next argument, so that the string is only built by
+ *  the thread writing the log.
+ *
+ *  <p/>Because the arguments are converted with <code>toString()</code> later,
+ *  on the writer thread, they must be immutable: strings, boxed numbers,
+ *  addresses or IDs. Objects which may change or which are not thread safe,
+ *  such as a <code>Message</code>, must be converted by the caller, or logged
+ *  with the methods which take a finished message.
+ */
 public class Category {
+
+    /**
+     *  Number of arguments passed with a message which is not a pattern.
+     */
+    private final static int NO_ARGS = 0;
+
     protected String name;
     protected volatile Level level;
-    protected volatile Category parent;
-    protected Category() {}
-    public void assertLog(boolean assertion, String msg) {}
-    public void debug(Object message) {}
-    public void debug(Object message, Throwable t) {}
-    public void debug(Object messagePattern, Object arg) {}
-    public void debug(String messagePattern, Object arg1, Object arg2) {}
+
+    /**
+     *  The effective level as an int, maintained by the {@link LogManager}.
+     */
+    volatile int threshold = Level.OFF_INT;
+
+    private volatile boolean additive = true;
+
+    protected Category(String name) {
+        this.name = name;
+    }
+    public void assertLog(boolean assertion, String msg) {
+        if (!assertion) {
+            error(msg);
+        }
+    }
+    public void debug(Object message) {
+        if (Level.DEBUG_INT >= threshold) {
+            forcedLog(Level.DEBUG, message, null, null, NO_ARGS, null);
+        }
+    }
+    public void debug(Object message, Throwable t) {
+        if (Level.DEBUG_INT >= threshold) {
+            forcedLog(Level.DEBUG, message, null, null, NO_ARGS, t);
+        }
+    }
+    public void debug(Object messagePattern, Object arg) {
+        if (Level.DEBUG_INT >= threshold) {
+            forcedLog(Level.DEBUG, messagePattern, arg, null, 1, null);
+        }
+    }
+    public void debug(String messagePattern, Object arg1, Object arg2) {
+        if (Level.DEBUG_INT >= threshold) {
+            forcedLog(Level.DEBUG, messagePattern, arg1, arg2, 2, null);
+        }
+    }
     public boolean isErrorEnabled() {
-        return false;
+        return Level.ERROR_INT >= threshold;
+    }
+    public void error(Object message) {
+        if (Level.ERROR_INT >= threshold) {
+            forcedLog(Level.ERROR, message, null, null, NO_ARGS, null);
+        }
+    }
+    public void error(Object message, Throwable t) {
+        if (Level.ERROR_INT >= threshold) {
+            forcedLog(Level.ERROR, message, null, null, NO_ARGS, t);
+        }
+    }
+    public void error(Object messagePattern, Object arg) {
+        if (Level.ERROR_INT >= threshold) {
+            forcedLog(Level.ERROR, messagePattern, arg, null, 1, null);
+        }
+    }
+    public void error(String messagePattern, Object arg1, Object arg2) {
+        if (Level.ERROR_INT >= threshold) {
+            forcedLog(Level.ERROR, messagePattern, arg1, arg2, 2, null);
+        }
     }
-    public void error(Object message) {}
-    public void error(Object message, Throwable t) {}
-    public void error(Object messagePattern, Object arg) {}
-    public void error(String messagePattern, Object arg1, Object arg2) {}
     public static Logger exists(String name) {
-        return Logger.getLogger("stub");
+        return LogManager.exists(name);
+    }
+    public void fatal(Object message) {
+        if (Level.FATAL_INT >= threshold) {
+            forcedLog(Level.FATAL, message, null, null, NO_ARGS, null);
+        }
+    }
+    public void fatal(Object messagePattern, Object arg) {
+        if (Level.FATAL_INT >= threshold) {
+            forcedLog(Level.FATAL, messagePattern, arg, null, 1, null);
+        }
+    }
+    public void fatal(Object message, Throwable t) {
+        if (Level.FATAL_INT >= threshold) {
+            forcedLog(Level.FATAL, message, null, null, NO_ARGS, t);
+        }
+    }
+
+    /**
+     *  Logs without checking the level.
+     *
+     *  @param args The number of arguments, 0 if the message is not a
+     *  pattern.
+     */
+    protected void forcedLog(Level level, Object message, Object arg1, Object arg2, int args, Throwable t) {
+        LogBuffer buffer = LogManager.getBuffer();
+        if (null != buffer) {
+            buffer.append(level, name, message, arg1, arg2, args, t);
+        }
     }
-    public void fatal(Object message) {}
-    public void fatal(Object messagePattern, Object arg) {}
-    public void fatal(Object message, Throwable t) {}
-    protected void forcedLog() {}
     public boolean getAdditivity() {
-        return false;
+        return additive;
     }
     public Enumeration getAllAppenders() {
         return Collections.enumeration(Collections.EMPTY_LIST);
     }
     public Level getEffectiveLevel() {
-        return null; // If reached will cause an NullPointerException.
+        return LogManager.getEffectiveLevel(this);
     }
 
     public static Enumeration getCurrentCategories() {
-        return Collections.enumeration(Collections.EMPTY_LIST);
+        return LogManager.getCurrentLoggers();
     }
     public final String getName() {
-        return "stub";
+        return name;
     }
     public final Category getParent() {
-        return this;
+        return LogManager.getParent(this);
     }
     public final Level getLevel() {
         return this.level;
@@ -111,42 +201,98 @@ public class Category {
     protected String getResourceBundleString(String key) {
         return null;
     }
-    public void info(Object message) {}
-    public void info(Object messagePattern, Object arg) {}
-    public void info(String messagePattern, Object arg1, Object arg2) {}
-    public void info(Object message, Throwable t) {}
+    public void info(Object message) {
+        if (Level.INFO_INT >= threshold) {
+            forcedLog(Level.INFO, message, null, null, NO_ARGS, null);
+        }
+    }
+    public void info(Object messagePattern, Object arg) {
+        if (Level.INFO_INT >= threshold) {
+            forcedLog(Level.INFO, messagePattern, arg, null, 1, null);
+        }
+    }
+    public void info(String messagePattern, Object arg1, Object arg2) {
+        if (Level.INFO_INT >= threshold) {
+            forcedLog(Level.INFO, messagePattern, arg1, arg2, 2, null);
+        }
+    }
+    public void info(Object message, Throwable t) {
+        if (Level.INFO_INT >= threshold) {
+            forcedLog(Level.INFO, message, null, null, NO_ARGS, t);
+        }
+    }
     public boolean isDebugEnabled() {
-        return false;
+        return Level.DEBUG_INT >= threshold;
     }
 
     public boolean isTraceEnabled() {
-        return false;
+        return Level.TRACE_INT >= threshold;
     }
     public boolean isEnabledFor(Level level) {
-        return false;
+        return level.lvl >= threshold;
     }
     public boolean isInfoEnabled() {
-        return false;
+        return Level.INFO_INT >= threshold;
+    }
+    public void l7dlog(Level level, String key, Throwable t) {
+        log(level, key, t);
+    }
+    public void l7dlog(Level level, String key, Object[] params, Throwable t) {
+        log(level, key, t);
     }
-    public void l7dlog(Level level, String key, Throwable t) {}
-    public void l7dlog(Level level, String key, Object[] params, Throwable t) {}
 
     /**
      * This generic form is intended to be used by wrappers.
      */
-    public void log(Level level, Object message, Throwable t) {}
-    public void log(Level level, Object message) {}
+    public void log(Level level, Object message, Throwable t) {
+        if (level.lvl >= threshold) {
+            forcedLog(level, message, null, null, NO_ARGS, t);
+        }
+    }
+    public void log(Level level, Object message) {
+        if (level.lvl >= threshold) {
+            forcedLog(level, message, null, null, NO_ARGS, null);
+        }
+    }
 
-    public void log(String callerFQCN, Level level, Object message, Throwable t) {}
+    public void log(String callerFQCN, Level level, Object message, Throwable t) {
+        log(level, message, t);
+    }
     public void removeAllAppenders() {}
     public void removeAppender(String name) {}
-    public void setAdditivity(boolean additive) {}
-    public void setLevel(Level level) {}
+    public void setAdditivity(boolean additive) {
+        this.additive = additive;
+    }
+
+    /**
+     *  Sets the level of this category and, unless they have their own, of
+     *  the categories below it. <code>null</code> makes the category inherit
+     *  its level again.
+     */
+    public void setLevel(Level level) {
+        LogManager.setLevel(this, level);
+    }
     public boolean isWarnEnabled() {
-        return false;
+        return Level.WARN_INT >= threshold;
+    }
+    public void warn(Object message) {
+        if (Level.WARN_INT >= threshold) {
+            forcedLog(Level.WARN, message, null, null, NO_ARGS, null);
+        }
+    }
+    public void warn(Object message, Throwable t) {
+        if (Level.WARN_INT >= threshold) {
+            forcedLog(Level.WARN, message, null, null, NO_ARGS, t);
+        }
+    }
+    public void warn(Object messagePattern, Object arg) {
+        if (Level.WARN_INT >= threshold) {
+            forcedLog(Level.WARN, messagePattern, arg, null, 1, null);
+        }
+    }
+    public void warn(String messagePattern, Object arg1, Object arg2) {
+        if (Level.WARN_INT >= threshold) {
+            forcedLog(Level.WARN, messagePattern, arg1, arg2, 2, null);
+        }
     }
-    public void warn(Object message) {}
-    public void warn(Object message, Throwable t) {}
-    public void warn(Object messagePattern, Object arg) {}
-    public void warn(String messagePattern, Object arg1, Object arg2) {}
 }
@@ -53,8 +53,12 @@
  */
 
 package org.apache.log4j;
+
+/**
+ *  The logging levels. Each level is a single shared instance, so levels
+ *  may be compared by identity as well as with {@link #isGreaterOrEqual}.
+ */
 public class Level {
-  private static final Level level = new Level();
   public static final int OFF_INT = Integer.MAX_VALUE;
   public static final int FATAL_INT = 50000;
   public static final int ERROR_INT = 40000;
@@ -63,30 +67,33 @@ public class Level {
   public static final int DEBUG_INT = 10000;
   public static final int TRACE_INT = 5000;
   public static final int ALL_INT = Integer.MIN_VALUE;
-  public static final Level OFF = level;
-  public static final Level FATAL = level;
-  public static final Level ERROR = level;
-  public static final Level WARN = level;
-  public static final Level INFO = level;
-  public static final Level DEBUG = level;
-  public static final Level TRACE = level;
-  public static final Level ALL = level;
-  int lvl=0;
-  String levelStr="stub";
-  int syslogEquivalent=0;
-  protected Level() {
+  public static final Level OFF = new Level(OFF_INT, "OFF", 0);
+  public static final Level FATAL = new Level(FATAL_INT, "FATAL", 0);
+  public static final Level ERROR = new Level(ERROR_INT, "ERROR", 3);
+  public static final Level WARN = new Level(WARN_INT, "WARN", 4);
+  public static final Level INFO = new Level(INFO_INT, "INFO", 6);
+  public static final Level DEBUG = new Level(DEBUG_INT, "DEBUG", 7);
+  public static final Level TRACE = new Level(TRACE_INT, "TRACE", 7);
+  public static final Level ALL = new Level(ALL_INT, "ALL", 7);
+  final int lvl;
+  final String levelStr;
+  final int syslogEquivalent;
+  protected Level(int lvl, String levelStr, int syslogEquivalent) {
+    this.lvl = lvl;
+    this.levelStr = levelStr;
+    this.syslogEquivalent = syslogEquivalent;
   }
   public static Level toLevel(String sArg) {
-    return level;
+    return toLevel(sArg, DEBUG);
   }
   public static Level toLevel(int val) {
-    return level;
+    return toLevel(val, DEBUG);
   }
   public final int getSyslogEquivalent() {
     return syslogEquivalent;
   }
   public boolean isGreaterOrEqual(Level r) {
-    return false;
+    return lvl >= r.lvl;
   }
   public static Level[] getAllPossiblePriorities() {
     return new Level[] {
@@ -126,7 +133,7 @@ public class Level {
     if (sArg == null) {
       return defaultLevel;
     }
-    String s = sArg.toUpperCase();
+    String s = sArg.trim().toUpperCase();
     if (s.equals("ALL")) {
       return ALL;
     }
@@ -0,0 +1,357 @@
+/*
+ *  Copyright (c) 2005 Sun Microsystems, Inc.  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright
+ *  notice, this list of conditions and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *  notice, this list of conditions and the following disclaimer in
+ *  the documentation and/or other materials provided with the
+ *  distribution.
+ *
+ *  3. The end-user documentation included with the redistribution,
+ *  if any, must include the following acknowledgment:
+ *  "This product includes software developed by the
+ *  Sun Microsystems, Inc. for Project JXTA."
+ *  Alternately, this acknowledgment may appear in the software itself,
+ *  if and wherever such third-party acknowledgments normally appear.
+ *
+ *  4. The names "Sun", "Sun Microsystems, Inc.", "JXTA" and "Project JXTA"
+ *  must not be used to endorse or promote products derived from this
+ *  software without prior written permission. For written
+ *  permission, please contact Project JXTA at http://www.jxta.org.
+ *
+ *  5. Products derived from this software may not be called "JXTA",
+ *  nor may "JXTA" appear in their name, without prior written
+ *  permission of Sun.
+ *
+ *  THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ *  WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED.  IN NO EVENT SHALL SUN MICROSYSTEMS OR
+ *  ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ *  USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ *  OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ *  OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ *  SUCH DAMAGE.
+ *
+ *  ====================================================================
+ *
+ *  This software consists of voluntary contributions made by many
+ *  individuals on behalf of Project JXTA.  For more
+ *  information on Project JXTA, please see
+ *  <http://www.jxta.org/>.
+ *
+ *  This license is based on the BSD license adopted by the Apache Foundation.
+ */
+
+package org.apache.log4j;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+/**
+ *  A fixed size ring of preallocated events which the logging threads fill
+ *  and a single background thread drains to a {@link RollingFileWriter}.
+ *
+ *  <p/>Logging threads only store references to the message, its arguments
+ *  and the throwable; all of the formatting and I/O happens on the drain
+ *  thread. Messages are therefore formatted a little after the call, which
+ *  only matters for mutable arguments. When the ring is full new events are
+ *  dropped rather than blocking the caller; the number of events lost is
+ *  written to the log once there is room again.
+ */
+final class LogBuffer implements Runnable {
+
+    /**
+     *  How often the drain thread asks the {@link LogManager} to check its
+     *  configuration file, in milliseconds.
+     */
+    private final static long CHECK_INTERVAL = 10 * 1000L;
+
+    private final static String LINE_SEPARATOR = System.getProperty("line.separator", "\n");
+
+    /**
+     *  One event.
+     */
+    private final static class Slot {
+        long timeStamp;
+        Level level;
+        String categoryName;
+        String threadName;
+        Object message;
+        Object arg1;
+        Object arg2;
+        int args;
+        Throwable throwable;
+
+        void clear() {
+            level = null;
+            categoryName = null;
+            threadName = null;
+            message = null;
+            arg1 = null;
+            arg2 = null;
+            throwable = null;
+        }
+    }
+
+    /**
+     *  The ring. Its size is a power of two so that positions can be masked.
+     */
+    private final Slot[] slots;
+    private final int mask;
+
+    /**
+     *  Position of the next event to drain and of the next free slot. Both
+     *  only ever increase.
+     */
+    private long head = 0;
+    private long tail = 0;
+
+    /**
+     *  Events dropped since the drain thread last looked.
+     */
+    private long dropped = 0;
+
+    private boolean waiting = false;
+    private boolean closed = false;
+
+    /**
+     *  The slots being written by the drain thread. They are swapped with
+     *  the ring's filled slots so that no event is copied or allocated.
+     */
+    private final Slot[] batch;
+
+    private final RollingFileWriter out;
+    private final Thread drainer;
+
+    private final StringBuffer line = new StringBuffer(256);
+    private final DateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss,SSS");
+    private final Date date = new Date();
+
+    /**
+     *  Creates the buffer and starts its drain thread.
+     *
+     *  @param capacity The number of events, rounded up to a power of two.
+     *  @param out Where the events are written.
+     */
+    LogBuffer(int capacity, RollingFileWriter out) {
+        int size = 16;
+        while (size < capacity) {
+            size <<= 1;
+        }
+
+        slots = new Slot[size];
+        batch = new Slot[size];
+        for (int each = 0; each < size; each++) {
+            slots[each] = new Slot();
+            batch[each] = new Slot();
+        }
+        mask = size - 1;
+        this.out = out;
+
+        drainer = new Thread(this, "Log Writer");
+        drainer.setDaemon(true);
+        drainer.start();
+    }
+
+    /**
+     *  Adds an event. Never blocks on I/O.
+     *
+     *  @return <code>false</code> if the event was dropped.
+     */
+    boolean append(Level level, String categoryName, Object message, Object arg1, Object arg2, int args, Throwable throwable) {
+        long now = System.currentTimeMillis();
+        String threadName = Thread.currentThread().getName();
+
+        synchronized (this) {
+            if (closed || (tail - head == slots.length)) {
+                dropped++;
+                return false;
+            }
+
+            Slot slot = slots[(int) tail & mask];
+            slot.timeStamp = now;
+            slot.level = level;
+            slot.categoryName = categoryName;
+            slot.threadName = threadName;
+            slot.message = message;
+            slot.arg1 = arg1;
+            slot.arg2 = arg2;
+            slot.args = args;
+            slot.throwable = throwable;
+            tail++;
+
+            if (waiting) {
+                notify();
+            }
+        }
+        return true;
+    }
+
+    /**
+     *  Writes out what was logged so far and stops the drain thread.
+     *
+     *  @param timeout How long to wait for the drain thread, in milliseconds.
+     */
+    void close(long timeout) {
+        synchronized (this) {
+            closed = true;
+            notify();
+        }
+
+        if (Thread.currentThread() != drainer) {
+            try {
+                drainer.join(timeout);
+            } catch (InterruptedException woken) {
+                Thread.interrupted();
+            }
+        }
+    }
+
+    /**
+     *  {@inheritDoc}
+     */
+    public void run() {
+        long nextCheck = System.currentTimeMillis() + CHECK_INTERVAL;
+        boolean failed = false;
+
+        while (true) {
+            int count;
+            long lost;
+
+            synchronized (this) {
+                while ((head == tail) && !closed) {
+                    long wait = nextCheck - System.currentTimeMillis();
+                    if (wait <= 0) {
+                        break;
+                    }
+                    waiting = true;
+                    try {
+                        wait(wait);
+                    } catch (InterruptedException woken) {
+                        Thread.interrupted();
+                    } finally {
+                        waiting = false;
+                    }
+                }
+
+                count = (int) (tail - head);
+                for (int each = 0; each < count; each++) {
+                    int at = (int) (head + each) & mask;
+                    Slot filled = slots[at];
+                    slots[at] = batch[each];
+                    batch[each] = filled;
+                }
+                head = tail;
+                lost = dropped;
+                dropped = 0;
+
+                if ((0 == count) && (0 == lost) && closed) {
+                    break;
+                }
+            }
+
+            try {
+                for (int each = 0; each < count; each++) {
+                    String text;
+                    try {
+                        text = format(batch[each]);
+                    } catch (RuntimeException failure) {
+                        // Most likely a failing toString().
+                        text = "log4j: could not format event: " + failure + LINE_SEPARATOR;
+                    }
+                    batch[each].clear();
+                    out.write(text);
+                }
+                if (lost > 0) {
+                    out.write("log4j: " + lost + " events dropped, the log buffer was full" + LINE_SEPARATOR);
+                }
+                out.flush();
+                failed = false;
+            } catch (IOException ioFailure) {
+                if (!failed) {
+                    System.err.println("log4j: could not write log: " + ioFailure);
+                    failed = true;
+                }
+                for (int each = 0; each < count; each++) {
+                    batch[each].clear();
+                }
+            }
+
+            long now = System.currentTimeMillis();
+            if (now >= nextCheck) {
+                LogManager.checkConfiguration();
+                nextCheck = now + CHECK_INTERVAL;
+            }
+        }
+
+        out.close();
+    }
+
+    /**
+     *  Formats one event as
+     *  <code>date level [thread] category - message</code>, followed by the
+     *  stack trace of the throwable if there is one.
+     */
+    private String format(Slot event) {
+        line.setLength(0);
+        date.setTime(event.timeStamp);
+        line.append(dateFormat.format(date));
+        line.append(' ');
+        line.append(event.level.toString());
+        line.append(" [");
+        line.append(event.threadName);
+        line.append("] ");
+        line.append(event.categoryName);
+        line.append(" - ");
+
+        if (0 == event.args) {
+            line.append(String.valueOf(event.message));
+        } else {
+            substitute(String.valueOf(event.message), event.arg1, event.arg2, event.args);
+        }
+        line.append(LINE_SEPARATOR);
+
+        if (null != event.throwable) {
+            StringWriter trace = new StringWriter();
+            PrintWriter printer = new PrintWriter(trace);
+            event.throwable.printStackTrace(printer);
+            printer.flush();
+            line.append(trace.toString());
+        }
+
+        return line.toString();
+    }
+
+    /**
+     *  Appends the pattern with each <code>{}</code> replaced by the next
+     *  argument. Surplus placeholders are left as they are.
+     */
+    private void substitute(String pattern, Object arg1, Object arg2, int args) {
+        int from = 0;
+
+        for (int arg = 0; arg < args; arg++) {
+            int at = pattern.indexOf("{}", from);
+            if (-1 == at) {
+                break;
+            }
+            line.append(pattern.substring(from, at));
+            line.append(String.valueOf((0 == arg) ? arg1 : arg2));
+            from = at + 2;
+        }
+        line.append(pattern.substring(from));
+    }
+}
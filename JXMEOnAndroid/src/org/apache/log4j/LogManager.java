@@ -0,0 +1,360 @@
+/*
+ *  Copyright (c) 2005 Sun Microsystems, Inc.  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright
+ *  notice, this list of conditions and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *  notice, this list of conditions and the following disclaimer in
+ *  the documentation and/or other materials provided with the
+ *  distribution.
+ *
+ *  3. The end-user documentation included with the redistribution,
+ *  if any, must include the following acknowledgment:
+ *  "This product includes software developed by the
+ *  Sun Microsystems, Inc. for Project JXTA."
+ *  Alternately, this acknowledgment may appear in the software itself,
+ *  if and wherever such third-party acknowledgments normally appear.
+ *
+ *  4. The names "Sun", "Sun Microsystems, Inc.", "JXTA" and "Project JXTA"
+ *  must not be used to endorse or promote products derived from this
+ *  software without prior written permission. For written
+ *  permission, please contact Project JXTA at http://www.jxta.org.
+ *
+ *  5. Products derived from this software may not be called "JXTA",
+ *  nor may "JXTA" appear in their name, without prior written
+ *  permission of Sun.
+ *
+ *  THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ *  WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED.  IN NO EVENT SHALL SUN MICROSYSTEMS OR
+ *  ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ *  USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ *  OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ *  OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ *  SUCH DAMAGE.
+ *
+ *  ====================================================================
+ *
+ *  This software consists of voluntary contributions made by many
+ *  individuals on behalf of Project JXTA.  For more
+ *  information on Project JXTA, please see
+ *  <http://www.jxta.org/>.
+ *
+ *  This license is based on the BSD license adopted by the Apache Foundation.
+ */
+
+package org.apache.log4j;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Vector;
+
+/**
+ *  Keeps the loggers and their levels, and owns the {@link LogBuffer} which
+ *  writes the log.
+ *
+ *  <p/>Nothing is logged unless a level is configured. The configuration is
+ *  read from the system properties:
+ *
+ *  <ul>
+ *  <li><code>log4j.level</code> : the level of the root logger, OFF by
+ *  default.</li>
+ *  <li><code>log4j.level.</code><i>category</i> : the level of a category
+ *  and, unless they have their own, of the categories below it.</li>
+ *  <li><code>log4j.file</code> : the log file. The log goes to
+ *  <code>System.err</code> if not set.</li>
+ *  <li><code>log4j.file.maxSize</code> : the size at which the file is rolled
+ *  over, 1MB by default.</li>
+ *  <li><code>log4j.file.backups</code> : the number of rolled over files kept,
+ *  3 by default.</li>
+ *  <li><code>log4j.bufferSize</code> : the number of events which may wait to
+ *  be written, 1024 by default.</li>
+ *  <li><code>log4j.configuration</code> : a properties file with more
+ *  <code>log4j.level</code> entries. It is read again whenever it changes,
+ *  so tracing may be turned on and off on a running peer.</li>
+ *  </ul>
+ *
+ *  <p/>Levels may also be changed with {@link Category#setLevel(Level)} or
+ *  {@link #configure(Properties)}. Such changes last until the configuration
+ *  file next changes.
+ */
+public final class LogManager {
+
+    private final static String LEVEL = "log4j.level";
+    private final static String LEVEL_PREFIX = LEVEL + ".";
+
+    /**
+     *  The loggers by name, not including the root logger.
+     */
+    private final static Map loggers = new HashMap();
+
+    private final static Logger root = new Logger("root");
+
+    private static volatile LogBuffer buffer = null;
+
+    private static File configuration = null;
+    private static long configurationModified = 0;
+
+    static {
+        String config = System.getProperty("log4j.configuration");
+        if (null != config) {
+            configuration = new File(config);
+            // The drain thread is also the one which watches the file.
+            startBuffer();
+        }
+        reconfigure();
+    }
+
+    private LogManager() {
+    }
+
+    public static synchronized Logger getLogger(String name) {
+        Logger logger = (Logger) loggers.get(name);
+        if (null == logger) {
+            logger = new Logger(name);
+            loggers.put(name, logger);
+            logger.threshold = getEffectiveLevel(logger).lvl;
+        }
+        return logger;
+    }
+
+    public static Logger getRootLogger() {
+        return root;
+    }
+
+    /**
+     *  @return the logger or <code>null</code> if there is none of that name.
+     */
+    public static synchronized Logger exists(String name) {
+        return (Logger) loggers.get(name);
+    }
+
+    public static synchronized Enumeration getCurrentLoggers() {
+        return new Vector(loggers.values()).elements();
+    }
+
+    /**
+     *  Applies the <code>log4j.level</code> entries of the given properties.
+     *  Categories which are not mentioned keep their level.
+     */
+    public static synchronized void configure(Properties props) {
+        applyLevels(props);
+        updateThresholds();
+    }
+
+    /**
+     *  Writes out what was logged so far and stops writing.
+     */
+    public static void shutdown() {
+        LogBuffer current;
+        synchronized (LogManager.class) {
+            current = buffer;
+            buffer = null;
+            if (null != current) {
+                Iterator eachLogger = loggers.values().iterator();
+                while (eachLogger.hasNext()) {
+                    ((Category) eachLogger.next()).threshold = Level.OFF_INT;
+                }
+                root.threshold = Level.OFF_INT;
+            }
+        }
+        if (null != current) {
+            current.close(5 * 1000L);
+        }
+    }
+
+    static LogBuffer getBuffer() {
+        return buffer;
+    }
+
+    static synchronized void setLevel(Category category, Level level) {
+        if ((category == root) && (null == level)) {
+            throw new IllegalArgumentException("The root logger must have a level");
+        }
+        category.level = level;
+        updateThresholds();
+    }
+
+    static synchronized Level getEffectiveLevel(Category category) {
+        Category each = category;
+        while (null == each.level) {
+            each = getParent(each);
+        }
+        return each.level;
+    }
+
+    /**
+     *  @return the nearest existing logger whose name is a prefix of the
+     *  category's name, the root logger or <code>null</code> for the root.
+     */
+    static synchronized Category getParent(Category category) {
+        if (category == root) {
+            return null;
+        }
+
+        String name = category.name;
+        for (int dot = name.lastIndexOf('.'); dot > 0; dot = name.lastIndexOf('.', dot - 1)) {
+            Logger parent = (Logger) loggers.get(name.substring(0, dot));
+            if (null != parent) {
+                return parent;
+            }
+        }
+        return root;
+    }
+
+    /**
+     *  Called periodically by the drain thread. Reads the configuration file
+     *  again if it changed.
+     */
+    static void checkConfiguration() {
+        if ((null == configuration) || (configuration.lastModified() == configurationModified)) {
+            return;
+        }
+        reconfigure();
+    }
+
+    /**
+     *  Resets every level and applies the system properties and the
+     *  configuration file.
+     */
+    private static synchronized void reconfigure() {
+        root.level = Level.OFF;
+        Iterator eachLogger = loggers.values().iterator();
+        while (eachLogger.hasNext()) {
+            ((Category) eachLogger.next()).level = null;
+        }
+
+        applyLevels(System.getProperties());
+
+        if (null != configuration) {
+            configurationModified = configuration.lastModified();
+
+            if (configuration.exists()) {
+                Properties props = new Properties();
+                InputStream in = null;
+                try {
+                    in = new FileInputStream(configuration);
+                    props.load(in);
+                    applyLevels(props);
+                } catch (IOException failed) {
+                    System.err.println("log4j: could not read " + configuration + ": " + failed);
+                } finally {
+                    if (null != in) {
+                        try {
+                            in.close();
+                        } catch (IOException ignored) {
+                            // ignored
+                        }
+                    }
+                }
+            }
+        }
+
+        updateThresholds();
+    }
+
+    private static void applyLevels(Properties props) {
+        Enumeration eachKey = props.propertyNames();
+        while (eachKey.hasMoreElements()) {
+            String key = (String) eachKey.nextElement();
+            Category category;
+
+            if (key.equals(LEVEL)) {
+                category = root;
+            } else if (key.startsWith(LEVEL_PREFIX) && (key.length() > LEVEL_PREFIX.length())) {
+                category = getLogger(key.substring(LEVEL_PREFIX.length()));
+            } else {
+                continue;
+            }
+
+            Level level = Level.toLevel(props.getProperty(key), null);
+            if (null == level) {
+                System.err.println("log4j: unknown level for " + key + ": " + props.getProperty(key));
+                continue;
+            }
+            category.level = level;
+        }
+    }
+
+    /**
+     *  Recomputes the effective level of every logger, which the loggers keep
+     *  so that checking a level never needs a lock. Starts the buffer the
+     *  first time something is enabled.
+     */
+    private static void updateThresholds() {
+        int lowest = root.level.lvl;
+        Iterator eachLogger = loggers.values().iterator();
+        while (eachLogger.hasNext()) {
+            lowest = Math.min(lowest, getEffectiveLevel((Category) eachLogger.next()).lvl);
+        }
+
+        if ((lowest < Level.OFF_INT) && (null == buffer)) {
+            startBuffer();
+        }
+
+        root.threshold = root.level.lvl;
+        eachLogger = loggers.values().iterator();
+        while (eachLogger.hasNext()) {
+            Category category = (Category) eachLogger.next();
+            category.threshold = getEffectiveLevel(category).lvl;
+        }
+    }
+
+    private static void startBuffer() {
+        int capacity = 1024;
+        long maxSize = 1024 * 1024L;
+        int backups = 3;
+
+        try {
+            capacity = Integer.parseInt(System.getProperty("log4j.bufferSize", Integer.toString(capacity)));
+            maxSize = Long.parseLong(System.getProperty("log4j.file.maxSize", Long.toString(maxSize)));
+            backups = Integer.parseInt(System.getProperty("log4j.file.backups", Integer.toString(backups)));
+        } catch (NumberFormatException badValue) {
+            System.err.println("log4j: could not parse system property: " + badValue.getMessage());
+            // Keep the defaults
+        }
+
+        RollingFileWriter out = null;
+        String file = System.getProperty("log4j.file");
+        if (null != file) {
+            try {
+                out = new RollingFileWriter(new File(file), maxSize, backups);
+            } catch (IOException failed) {
+                System.err.println("log4j: could not open " + file + ", logging to System.err: " + failed);
+            }
+        }
+        if (null == out) {
+            out = new RollingFileWriter(System.err);
+        }
+
+        buffer = new LogBuffer(capacity, out);
+
+        try {
+            Runtime.getRuntime().addShutdownHook(new Thread("Log Writer Shutdown") {
+                public void run() {
+                    shutdown();
+                }
+            });
+        } catch (IllegalStateException alreadyShuttingDown) {
+            // ignored
+        } catch (SecurityException notAllowed) {
+            // ignored
+        }
+    }
+}
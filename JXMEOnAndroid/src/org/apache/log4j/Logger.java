@@ -17,27 +17,42 @@ package org.apache.log4j;
 
 public class Logger extends Category {
 
-    private final static Logger logger = new Logger();
-    protected Logger() { }
+    protected Logger(String name) {
+        super(name);
+    }
     public void fatal(String messagePattern, Object arg1, Object arg2) {
+        if (Level.FATAL_INT >= threshold) {
+            forcedLog(Level.FATAL, messagePattern, arg1, arg2, 2, null);
+        }
     }
     public static Logger getLogger(String name) {
-        return logger;
+        return LogManager.getLogger(name);
     }
     public static Logger getLogger(Class clazz) {
-        return logger;
+        return LogManager.getLogger(clazz.getName());
     }
     public static Logger getRootLogger() {
-        return logger;
+        return LogManager.getRootLogger();
     }
     public void trace(Object message) {
+        if (Level.TRACE_INT >= threshold) {
+            forcedLog(Level.TRACE, message, null, null, 0, null);
+        }
     }
     public void trace(Object message, Throwable t) {
+        if (Level.TRACE_INT >= threshold) {
+            forcedLog(Level.TRACE, message, null, null, 0, t);
+        }
     }
     public void trace(Object messagePattern, Object arg) {
+        if (Level.TRACE_INT >= threshold) {
+            forcedLog(Level.TRACE, messagePattern, arg, null, 1, null);
+        }
     }
     public void trace(String messagePattern, Object arg1, Object arg2) {
+        if (Level.TRACE_INT >= threshold) {
+            forcedLog(Level.TRACE, messagePattern, arg1, arg2, 2, null);
+        }
     }
 
 }
-
@@ -0,0 +1,155 @@
+/*
+ *  Copyright (c) 2005 Sun Microsystems, Inc.  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright
+ *  notice, this list of conditions and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *  notice, this list of conditions and the following disclaimer in
+ *  the documentation and/or other materials provided with the
+ *  distribution.
+ *
+ *  3. The end-user documentation included with the redistribution,
+ *  if any, must include the following acknowledgment:
+ *  "This product includes software developed by the
+ *  Sun Microsystems, Inc. for Project JXTA."
+ *  Alternately, this acknowledgment may appear in the software itself,
+ *  if and wherever such third-party acknowledgments normally appear.
+ *
+ *  4. The names "Sun", "Sun Microsystems, Inc.", "JXTA" and "Project JXTA"
+ *  must not be used to endorse or promote products derived from this
+ *  software without prior written permission. For written
+ *  permission, please contact Project JXTA at http://www.jxta.org.
+ *
+ *  5. Products derived from this software may not be called "JXTA",
+ *  nor may "JXTA" appear in their name, without prior written
+ *  permission of Sun.
+ *
+ *  THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ *  WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED.  IN NO EVENT SHALL SUN MICROSYSTEMS OR
+ *  ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ *  USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ *  OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ *  OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ *  SUCH DAMAGE.
+ *
+ *  ====================================================================
+ *
+ *  This software consists of voluntary contributions made by many
+ *  individuals on behalf of Project JXTA.  For more
+ *  information on Project JXTA, please see
+ *  <http://www.jxta.org/>.
+ *
+ *  This license is based on the BSD license adopted by the Apache Foundation.
+ */
+
+package org.apache.log4j;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+/**
+ *  The destination of the log. When writing to a file, the file is rolled
+ *  over once it reaches its maximum size: <code>name</code> becomes
+ *  <code>name.1</code>, <code>name.1</code> becomes <code>name.2</code> and
+ *  so on, and the oldest backup is deleted. Sizes are counted in characters,
+ *  which is exact for the usual ASCII log lines.
+ *
+ *  <p/>Only used by the thread which drains the {@link LogBuffer}.
+ */
+final class RollingFileWriter {
+
+    private final File file;
+    private final long maxSize;
+    private final int backups;
+    private Writer out;
+    private long written;
+
+    /**
+     *  Writes to a file, appending to it if it already exists.
+     *
+     *  @param file The file.
+     *  @param maxSize The size after which the file is rolled over.
+     *  @param backups The number of rolled over files to keep.
+     */
+    RollingFileWriter(File file, long maxSize, int backups) throws IOException {
+        this.file = file;
+        this.maxSize = maxSize;
+        this.backups = backups;
+        written = file.length();
+        out = open(new FileOutputStream(file.getPath(), true));
+    }
+
+    /**
+     *  Writes to a stream which is never rolled over.
+     *
+     *  @param stream The stream, usually <code>System.err</code>.
+     */
+    RollingFileWriter(OutputStream stream) {
+        file = null;
+        maxSize = Long.MAX_VALUE;
+        backups = 0;
+        written = 0;
+        out = open(stream);
+    }
+
+    private static Writer open(OutputStream stream) {
+        return new BufferedWriter(new OutputStreamWriter(stream), 8192);
+    }
+
+    void write(String line) throws IOException {
+        if ((null != file) && (written > 0) && (written + line.length() > maxSize)) {
+            roll();
+        }
+        out.write(line);
+        written += line.length();
+    }
+
+    void flush() throws IOException {
+        out.flush();
+    }
+
+    void close() {
+        try {
+            if (null == file) {
+                out.flush();
+            } else {
+                out.close();
+            }
+        } catch (IOException ignored) {
+            // nothing more we can do.
+        }
+    }
+
+    private void roll() throws IOException {
+        out.close();
+
+        if (backups > 0) {
+            new File(file.getPath() + "." + backups).delete();
+            for (int each = backups - 1; each >= 1; each--) {
+                File from = new File(file.getPath() + "." + each);
+                if (from.exists()) {
+                    from.renameTo(new File(file.getPath() + "." + (each + 1)));
+                }
+            }
+            file.renameTo(new File(file.getPath() + ".1"));
+        }
+
+        out = open(new FileOutputStream(file.getPath(), false));
+        written = 0;
+    }
+}